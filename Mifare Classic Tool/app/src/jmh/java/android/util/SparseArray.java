@@ -0,0 +1,136 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package android.util;
+
+import java.util.Arrays;
+
+/**
+ * Plain Java version of the framework's SparseArray for the JMH
+ * benchmarks. They run on a JVM with the android.jar of the SDK, which
+ * only contains stubs. Like the original, the keys are kept sorted in an
+ * int array and found by binary search. Only the methods used by the
+ * benchmarked code are implemented.
+ * @author Gerhard Klostermeier
+ */
+public class SparseArray<E> implements Cloneable {
+
+    private int[] mKeys;
+    private Object[] mValues;
+    private int mSize;
+
+    public SparseArray() {
+        this(10);
+    }
+
+    public SparseArray(int initialCapacity) {
+        mKeys = new int[initialCapacity];
+        mValues = new Object[initialCapacity];
+    }
+
+    public E get(int key) {
+        return get(key, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    public E get(int key, E valueIfKeyNotFound) {
+        int i = Arrays.binarySearch(mKeys, 0, mSize, key);
+        return (i < 0) ? valueIfKeyNotFound : (E) mValues[i];
+    }
+
+    public void put(int key, E value) {
+        int i = Arrays.binarySearch(mKeys, 0, mSize, key);
+        if (i >= 0) {
+            mValues[i] = value;
+            return;
+        }
+        i = ~i;
+        if (mSize == mKeys.length) {
+            int capacity = Math.max(4, mSize * 2);
+            mKeys = Arrays.copyOf(mKeys, capacity);
+            mValues = Arrays.copyOf(mValues, capacity);
+        }
+        System.arraycopy(mKeys, i, mKeys, i + 1, mSize - i);
+        System.arraycopy(mValues, i, mValues, i + 1, mSize - i);
+        mKeys[i] = key;
+        mValues[i] = value;
+        mSize++;
+    }
+
+    public void append(int key, E value) {
+        put(key, value);
+    }
+
+    public void remove(int key) {
+        int i = Arrays.binarySearch(mKeys, 0, mSize, key);
+        if (i >= 0) {
+            removeAt(i);
+        }
+    }
+
+    public void delete(int key) {
+        remove(key);
+    }
+
+    public void removeAt(int index) {
+        System.arraycopy(mKeys, index + 1, mKeys, index, mSize - index - 1);
+        System.arraycopy(mValues, index + 1, mValues, index,
+                mSize - index - 1);
+        mSize--;
+        mValues[mSize] = null;
+    }
+
+    public void clear() {
+        Arrays.fill(mValues, 0, mSize, null);
+        mSize = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int keyAt(int index) {
+        return mKeys[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    public E valueAt(int index) {
+        return (E) mValues[index];
+    }
+
+    public int indexOfKey(int key) {
+        return Arrays.binarySearch(mKeys, 0, mSize, key);
+    }
+
+    public boolean contains(int key) {
+        return indexOfKey(key) >= 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public SparseArray<E> clone() {
+        try {
+            SparseArray<E> clone = (SparseArray<E>) super.clone();
+            clone.mKeys = mKeys.clone();
+            clone.mValues = mValues.clone();
+            return clone;
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
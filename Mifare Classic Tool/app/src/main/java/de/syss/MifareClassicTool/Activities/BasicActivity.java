@@ -36,6 +36,14 @@ import de.syss.MifareClassicTool.Common;
  */
 public abstract class BasicActivity extends AppCompatActivity {
 
+    /**
+     * The result of
+     * {@link Common#treatAsNewTag(Intent, android.content.Context)}
+     * for the last new Intent (0 if the tag supports MIFARE Classic).
+     * @see #onNewIntent(Intent)
+     */
+    protected int mNewTagCheck = -4;
+
     /**
      * Enable NFC foreground dispatch system.
      * @see Common#disableNfcForegroundDispatch(Activity)
@@ -68,6 +76,7 @@ public abstract class BasicActivity extends AppCompatActivity {
     public void onNewIntent(Intent intent) {
         super.onNewIntent(intent);
         int typeCheck = Common.treatAsNewTag(intent, this);
+        mNewTagCheck = typeCheck;
         if (typeCheck == -1 || typeCheck == -2) {
             // Device or tag does not support MIFARE Classic.
             // Run the only thing that is possible: The tag info tool.
@@ -39,6 +39,7 @@ import java.io.File;
 import de.syss.MifareClassicTool.Common;
 import de.syss.MifareClassicTool.MCDiffUtils;
 import de.syss.MifareClassicTool.R;
+import de.syss.MifareClassicTool.TagImage;
 
 /**
  * A tool to show the difference between two dumps.
@@ -61,8 +62,8 @@ public class DiffTool extends BasicActivity {
     private Button mDumpFileButton1;
     private Button mDumpFileButton2;
     private CheckBox mDumpHideIdentical;
-    private SparseArray<String[]> mDump1;
-    private SparseArray<String[]> mDump2;
+    private TagImage mDump1;
+    private TagImage mDump2;
 
     /**
      * Process {@link #EXTRA_DUMP} if they are part of the Intent and
@@ -81,7 +82,7 @@ public class DiffTool extends BasicActivity {
         // Check if one or both dumps are already chosen via Intent
         // (from DumpEditor).
         if (getIntent().hasExtra(EXTRA_DUMP)) {
-            mDump1 = convertDumpFormat(
+            mDump1 = TagImage.fromDump(
                     getIntent().getStringArrayExtra(EXTRA_DUMP));
             mDumpFileButton1.setText(R.string.text_dump_from_editor);
             mDumpFileButton1.setEnabled(false);
@@ -129,7 +130,7 @@ public class DiffTool extends BasicActivity {
 
     /**
      * Run diff if there are two dumps and show the result in the GUI.
-     * @see MCDiffUtils#diffIndices(SparseArray, SparseArray)
+     * @see MCDiffUtils#diffIndices(TagImage, TagImage)
      */
     @SuppressLint({"SetTextI18n", "DefaultLocale"})
     private void runDiff() {
@@ -155,14 +156,13 @@ public class DiffTool extends BasicActivity {
                     continue;
                 }
 
+                // Each block has 32 symbols.
+                int sectorLength = TagImage.blockCountInSector(sector) * 32;
+
                 // A sector that exists only in one dump is counted as differences.
                 if (blocks.length == 0 || blocks.length == 1) {
-                    String[] bs = blocks.length == 0
-                        ? mDump1.get(sector) : mDump2.get(sector);
-                    for (String b : bs) {
-                        totalLength += b.length();
-                        diffLength += b.length();
-                    }
+                    totalLength += sectorLength;
+                    diffLength += sectorLength;
                 }
 
                 // If the Hide Identical Sectors option is checked,
@@ -176,9 +176,7 @@ public class DiffTool extends BasicActivity {
                     }
                     if (block == blocks.length) {
                         // Identical sector.
-                        for (String b : mDump1.get(sector)) {
-                            totalLength += b.length();
-                        }
+                        totalLength += sectorLength;
                         continue;
                     }
                 }
@@ -232,10 +230,11 @@ public class DiffTool extends BasicActivity {
                     StringBuilder diffString;
                     diffIndex.setTextColor(Color.RED);
                     // Populate the blocks of the diff entry.
-                    dump1.setText(mDump1.get(sector)[block]);
-                    dump2.setText(mDump2.get(sector)[block]);
+                    String block1 = mDump1.getBlockAsHex(sector, block);
+                    dump1.setText(block1);
+                    dump2.setText(mDump2.getBlockAsHex(sector, block));
 
-                    totalLength += mDump1.get(sector)[block].length();
+                    totalLength += block1.length();
 
                     if (blocks[block].length == 0) {
                         // Set diff line for identical blocks.
@@ -301,20 +300,19 @@ public class DiffTool extends BasicActivity {
     /**
      * Get the {@link FileChooser#EXTRA_CHOSEN_FILE} from the Intend,
      * read the file, check it for errors using
-     * {@link Common#isValidDump(String[], boolean)} and convert its format
-     * using {@link #convertDumpFormat(String[])}.
+     * {@link Common#isValidDump(String[], boolean)} and convert it
+     * using {@link TagImage#fromDump(String[])}.
      * This is a helper function for
      * {@link #onActivityResult(int, int, Intent)}.
      * @param data The Intent returned by the {@link FileChooser}
-     * @return The chosen dump in a key value pair format. The key is the sector
-     * number. The value is an String array. Each field of the array
-     * represents a block. If the dump was not valid null will be returned.
+     * @return The chosen dump. If the dump was not valid null will
+     * be returned.
      * @see Common#isValidDump(String[], boolean)
      * @see Common#isValidDumpErrorToast(int, android.content.Context)
      * @see Common#readFileLineByLine(File, boolean, android.content.Context)
-     * @see #convertDumpFormat(String[])
+     * @see TagImage#fromDump(String[])
      */
-    private SparseArray<String[]> processChosenDump(Intent data) {
+    private TagImage processChosenDump(Intent data) {
         String path = data.getStringExtra(
                 FileChooser.EXTRA_CHOSEN_FILE);
         File file = new File(path);
@@ -324,7 +322,7 @@ public class DiffTool extends BasicActivity {
             Common.isValidDumpErrorToast(err, this);
             return null;
         } else {
-            return convertDumpFormat(dump);
+            return TagImage.fromDump(dump);
         }
     }
 
@@ -345,34 +343,4 @@ public class DiffTool extends BasicActivity {
                 getString(R.string.action_open_dump_file));
         return intent;
     }
-
-    /**
-     * Convert the format of an dump.
-     * @param dump A dump in the same format a dump file is.
-     * (with no comments, not multiple dumps (appended) and validated by
-     * {@link Common#isValidDump(String[], boolean)})
-     * @return The dump in a key value pair format. The key is the sector
-     * number. The value is an String array. Each field of the array
-     * represents a block.
-     */
-    private static SparseArray<String[]> convertDumpFormat(String[] dump) {
-        SparseArray<String[]> ret = new SparseArray<>();
-        int i = 0;
-        int sector = 0;
-        for (String line : dump) {
-            if (line.startsWith("+")) {
-                String[] tmp = line.split(": ");
-                sector = Integer.parseInt(tmp[tmp.length-1]);
-                i = 0;
-                if (sector < 32) {
-                    ret.put(sector, new String[4]);
-                } else {
-                    ret.put(sector, new String[16]);
-                }
-            } else {
-                ret.get(sector)[i++] = line;
-            }
-        }
-        return ret;
-    }
 }
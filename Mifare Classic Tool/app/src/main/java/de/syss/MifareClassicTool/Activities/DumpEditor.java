@@ -59,6 +59,8 @@ import java.util.Locale;
 import de.syss.MifareClassicTool.Common;
 import de.syss.MifareClassicTool.MCReader;
 import de.syss.MifareClassicTool.R;
+import de.syss.MifareClassicTool.SectorPermissions;
+import de.syss.MifareClassicTool.TimingStats;
 
 
 /**
@@ -292,6 +294,9 @@ public class DumpEditor extends BasicActivity
         } else if (itemId == R.id.menuDumpEditorExportDump) {
             exportDump();
             return true;
+        } else if (itemId == R.id.menuDumpEditorExportTimingReport) {
+            exportTimingReport();
+            return true;
         }
         return super.onOptionsItemSelected(item);
     }
@@ -939,6 +944,44 @@ public class DumpEditor extends BasicActivity
         return file;
     }
 
+    /**
+     * Save the timing statistics of the tag operations ({@link TimingStats})
+     * as JSON and CSV file next to the dumps ({@link Common#DUMPS_DIR}).
+     * The file names are based on the dump name (or the UID).
+     */
+    private void exportTimingReport() {
+        TimingStats stats = TimingStats.getInstance();
+        if (stats.isEmpty()) {
+            Toast.makeText(this, R.string.info_no_timing_data,
+                    Toast.LENGTH_LONG).show();
+            return;
+        }
+        String name;
+        if (mDumpName == null) {
+            GregorianCalendar calendar = new GregorianCalendar();
+            SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss",
+                    Locale.getDefault());
+            fmt.setCalendar(calendar);
+            name = "UID_" + mUID + "_" + fmt.format(calendar.getTime());
+        } else {
+            name = mDumpName.endsWith(".mct") ? mDumpName.substring(
+                    0, mDumpName.length() - 4) : mDumpName;
+        }
+        name += "_timing";
+        File dir = Common.getFile(Common.DUMPS_DIR);
+        File json = new File(dir, name + ".json");
+        File csv = new File(dir, name + ".csv");
+        if (!Common.saveFile(json, new String[] {stats.toJson()}, false)
+                || !Common.saveFile(csv, stats.toCsv(), false)) {
+            Toast.makeText(this, R.string.info_save_error,
+                    Toast.LENGTH_LONG).show();
+            return;
+        }
+        Toast.makeText(this, getString(R.string.info_timing_report_saved,
+                json.getParent() + "/" + name + ".{json,csv}"),
+                Toast.LENGTH_LONG).show();
+    }
+
     /**
      * Check if it is a valid dump ({@link #checkDumpAndUpdateLines()}),
      * extract all keys from the current dump, create a file name suggestion
@@ -1013,9 +1056,12 @@ public class DumpEditor extends BasicActivity
 
     /**
      * Create a full colored sector trailer (representing the last block of
-     * every sector).
+     * every sector). Invalid Access Conditions (the inverted bits do not
+     * match) are colored red, because writing them would make the sector
+     * unusable.
      * @param data Block data as hex string (16 Byte, 32 Chars.).
      * @return A full colored string.
+     * @see SectorPermissions#decode(byte[], int)
      */
     private SpannableString colorSectorTrailer(String data) {
         // Get sector trailer colors.
@@ -1023,6 +1069,11 @@ public class DumpEditor extends BasicActivity
         int colorKeyB = ContextCompat.getColor(this, R.color.dark_green);
         int colorAC = ContextCompat.getColor(this, R.color.orange);
         try {
+            // Unknown Access Conditions ("------") are not checked.
+            byte[] acBytes = Common.hex2Bytes(data.substring(12, 18));
+            if (acBytes != null && SectorPermissions.decode(acBytes) == null) {
+                colorAC = ContextCompat.getColor(this, R.color.red);
+            }
             SpannableString keyA = Common.colorString(
                     data.substring(0, 12), colorKeyA);
             SpannableString keyB = Common.colorString(
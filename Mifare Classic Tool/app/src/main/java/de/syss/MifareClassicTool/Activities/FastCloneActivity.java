@@ -20,6 +20,7 @@ package de.syss.MifareClassicTool.Activities;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.Intent;
+import android.nfc.Tag;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
@@ -31,19 +32,32 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import de.syss.MifareClassicTool.BatchProvisioner;
 import de.syss.MifareClassicTool.Common;
+import de.syss.MifareClassicTool.KeyDictionary;
 import de.syss.MifareClassicTool.MCReader;
 import de.syss.MifareClassicTool.R;
+import de.syss.MifareClassicTool.ReaderConfig;
+import de.syss.MifareClassicTool.WritePlan;
 
 /**
  * Fast clone activity that writes a preconfigured dump file to a tag
  * with a single tap. Always writes to manufacturer block (block 0).
  * Launched from the fast clone tiles on the main menu.
+ * In batch mode ({@link #EXTRA_BATCH}), the dump is written to one tag
+ * after another without user interaction (see {@link BatchProvisioner}).
+ * The manufacturer block is not written in batch mode.
  */
 public class FastCloneActivity extends BasicActivity {
 
@@ -51,6 +65,17 @@ public class FastCloneActivity extends BasicActivity {
             "de.syss.MifareClassicTool.Activity.FastClone.DUMP_PATH";
     public static final String EXTRA_KEY_FILES =
             "de.syss.MifareClassicTool.Activity.FastClone.KEY_FILES";
+    /**
+     * Provision all presented tags with the dump (boolean).
+     */
+    public static final String EXTRA_BATCH =
+            "de.syss.MifareClassicTool.Activity.FastClone.BATCH";
+    /**
+     * Per-tag fields for the batch mode
+     * (see {@link BatchProvisioner#addFields(String)}).
+     */
+    public static final String EXTRA_BATCH_FIELDS =
+            "de.syss.MifareClassicTool.Activity.FastClone.BATCH_FIELDS";
 
     private static final int CKM_FAST_CLONE = 1;
 
@@ -59,6 +84,13 @@ public class FastCloneActivity extends BasicActivity {
     private HashMap<Integer, HashMap<Integer, byte[]>> mDumpWithPos;
     private HashSet<String> mKeysFromDump;
     private boolean mKeyMapCreated = false;
+    private boolean mBatch = false;
+    private BatchProvisioner mProvisioner;
+    private ExecutorService mBatchWorker;
+    private boolean mBatchBusy = false;
+    private int mBatchOk = 0;
+    private int mBatchFailed = 0;
+    private TextView mStatus;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -76,6 +108,7 @@ public class FastCloneActivity extends BasicActivity {
         tv.setTextSize(22);
         tv.setGravity(Gravity.CENTER);
         ll.addView(tv);
+        mStatus = tv;
 
         ProgressBar pb = new ProgressBar(this);
         pb.setIndeterminate(true);
@@ -89,6 +122,7 @@ public class FastCloneActivity extends BasicActivity {
         Intent intent = getIntent();
         mDumpPath = intent.getStringExtra(EXTRA_DUMP_PATH);
         mKeyFiles = intent.getStringExtra(EXTRA_KEY_FILES);
+        mBatch = intent.getBooleanExtra(EXTRA_BATCH, false);
 
         if (mDumpPath == null || mDumpPath.isEmpty()) {
             Toast.makeText(this, R.string.info_fast_clone_not_configured,
@@ -123,18 +157,159 @@ public class FastCloneActivity extends BasicActivity {
 
         // Initialize dump data structures.
         initDumpWithPosAndKeysFromDump(dump);
+        if (mBatch) {
+            // Fresh tags most likely use the default key.
+            mKeysFromDump.add(MCReader.DEFAULT_KEY);
+        }
         saveKeysFromDumpToTempKeyFile();
+        if (mBatch) {
+            initBatch(intent.getStringExtra(EXTRA_BATCH_FIELDS));
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mBatchWorker != null) {
+            mBatchWorker.shutdown();
+        }
     }
 
     @Override
     public void onNewIntent(Intent intent) {
         super.onNewIntent(intent);
+        if (mBatch) {
+            provisionTag();
+            return;
+        }
         if (!mKeyMapCreated) {
             // Tag detected - start key mapping.
             createKeyMapForDump();
         }
     }
 
+    /**
+     * Prepare the batch mode: Load the keys (keys from the dump and the
+     * selected key files) and create the {@link BatchProvisioner}.
+     * This is done once for all tags.
+     * @param fields The per-tag fields
+     * (see {@link BatchProvisioner#addFields(String)}). Might be null.
+     */
+    private void initBatch(String fields) {
+        ArrayList<File> keyFiles = new ArrayList<>();
+        // Keys from the dump first. They are the most likely ones.
+        File dumpKeys = Common.getFile(Common.TMP_DIR + "/keys_from_dump.keys");
+        if (dumpKeys.exists()) {
+            keyFiles.add(dumpKeys);
+        }
+        if (mKeyFiles != null && !mKeyFiles.isEmpty()) {
+            for (String path : mKeyFiles.split("\\|")) {
+                File file = new File(path);
+                if (file.exists()) {
+                    keyFiles.add(file);
+                }
+            }
+        }
+        KeyDictionary keys = KeyDictionary.load(
+                keyFiles.toArray(new File[0]));
+        if (keys == null || keys.size() == 0) {
+            Toast.makeText(this, R.string.info_no_key_found,
+                    Toast.LENGTH_LONG).show();
+            finish();
+            return;
+        }
+
+        String date = new SimpleDateFormat("yyyy-MM-dd",
+                Locale.getDefault()).format(new Date());
+        File auditLog = Common.getFile(BatchProvisioner.AUDIT_LOG_DIR + "/"
+                + new File(mDumpPath).getName() + "_" + date + ".jsonl");
+        mProvisioner = new BatchProvisioner(mDumpWithPos, keys,
+                ReaderConfig.getCurrent(), auditLog);
+        if (!mProvisioner.addFields(fields)) {
+            Toast.makeText(this, R.string.info_batch_fields_invalid,
+                    Toast.LENGTH_LONG).show();
+            finish();
+            return;
+        }
+        // Continue the counters of the last batch with this dump.
+        mProvisioner.setCardIndex(Common.getPreferences().getLong(
+                getBatchIndexPreference(), 0));
+        mBatchWorker = Executors.newSingleThreadExecutor();
+        mStatus.setText(R.string.text_batch_present_tag);
+    }
+
+    /**
+     * Provision the current tag (batch mode). Tags presented while
+     * another tag is provisioned are ignored.
+     */
+    private void provisionTag() {
+        final Tag tag = Common.getTag();
+        final byte[] uid = Common.getUID();
+        if (mProvisioner == null || mBatchBusy || tag == null) {
+            return;
+        }
+        mBatchBusy = true;
+        final Handler handler = new Handler(Looper.getMainLooper());
+        mBatchWorker.execute(() -> {
+            BatchProvisioner.Result result = null;
+            MCReader reader = MCReader.get(tag);
+            if (reader != null) {
+                try {
+                    reader.connect();
+                    result = mProvisioner.provision(reader, uid);
+                } catch (Exception e) {
+                    // Tag lost.
+                }
+                reader.close();
+            }
+            final BatchProvisioner.Result r = result;
+            handler.post(() -> showBatchResult(r, uid));
+        });
+    }
+
+    /**
+     * Show the result of a tag (batch mode) and save the index
+     * of the next tag. If a tag that failed used up an index (it was
+     * partially written), the index is shown.
+     * @param result The result or null if the tag could not be connected.
+     * @param uid The UID of the tag.
+     */
+    private void showBatchResult(BatchProvisioner.Result result, byte[] uid) {
+        mBatchBusy = false;
+        if (result != null && result.getCode() == BatchProvisioner.RESULT_OK) {
+            mBatchOk++;
+        } else if (result == null
+                || result.getCode() != BatchProvisioner.RESULT_DUPLICATE) {
+            mBatchFailed++;
+        }
+        if (result != null && result.isCardIndexUsed()) {
+            Common.getPreferences().edit().putLong(getBatchIndexPreference(),
+                    mProvisioner.getCardIndex()).apply();
+        }
+        String[] results = getResources().getStringArray(
+                R.array.batch_results);
+        String last = (result == null)
+                ? results[BatchProvisioner.RESULT_TAG_LOST]
+                : results[result.getCode()];
+        long ms = (result == null) ? 0 : result.getTotalMs();
+        String status = getString(R.string.text_batch_status, mBatchOk,
+                mBatchFailed, Common.bytes2Hex(uid), last, ms);
+        if (result != null && result.isCardIndexUsed()
+                && result.getCode() != BatchProvisioner.RESULT_OK) {
+            status += "\n" + getString(R.string.text_batch_index_used,
+                    result.getCardIndex());
+        }
+        mStatus.setText(status);
+    }
+
+    /**
+     * @return The name of the preference with the index of the next tag
+     * for the current dump.
+     */
+    private String getBatchIndexPreference() {
+        return "batch_card_index_" + new File(mDumpPath).getName();
+    }
+
     /**
      * Parse dump into sector/block structure and extract keys from sector trailers.
      */
@@ -361,62 +536,19 @@ public class FastCloneActivity extends BasicActivity {
         final Activity a = this;
         final Handler handler = new Handler(Looper.getMainLooper());
         new Thread(() -> {
-            // Sort sectors for deterministic write order.
-            Integer[] sectors = writeOnPos.keySet().toArray(new Integer[0]);
-            java.util.Arrays.sort(sectors);
-
-            // Write all blocks twice to work around timing/reliability issues
-            // where some sectors (e.g. sector 7) don't get written on the first pass.
-            for (int pass = 0; pass < 2; pass++) {
-                for (int sector : sectors) {
-                    byte[][] keys = keyMap.get(sector);
-                    // Sort blocks for deterministic write order.
-                    Integer[] blocks = writeOnPos.get(sector).keySet().toArray(new Integer[0]);
-                    java.util.Arrays.sort(blocks);
-                    for (int block : blocks) {
-                        byte[] writeKey = null;
-                        boolean useAsKeyB = true;
-                        int wi = writeOnPos.get(sector).get(block);
-                        if (wi == 1 || wi == 4) {
-                            writeKey = keys[0];
-                            useAsKeyB = false;
-                        } else if (wi == 2 || wi == 5 || wi == 6) {
-                            writeKey = keys[1];
-                        }
-
-                        // Retry up to 3 times with delays per attempt.
-                        int result = 0;
-                        for (int i = 0; i < 3; i++) {
-                            result = reader.writeBlock(sector, block,
-                                    mDumpWithPos.get(sector).get(block),
-                                    writeKey, useAsKeyB);
-                            if (result == 0) {
-                                break;
-                            }
-                            try {
-                                Thread.sleep(100);
-                            } catch (InterruptedException e) {
-                                // Ignore.
-                            }
-                        }
-
-                        if (result != 0 && pass == 1) {
-                            // Only report error on the second pass.
-                            handler.post(() -> Toast.makeText(a,
-                                    R.string.info_write_error,
-                                    Toast.LENGTH_LONG).show());
-                            reader.close();
-                            warning.cancel();
-                            return;
-                        }
-                    }
-                    // Delay between sectors for reliability.
-                    try {
-                        Thread.sleep(50);
-                    } catch (InterruptedException e) {
-                        // Ignore.
-                    }
-                }
+            // The plan writes the sectors in order, authenticates once per
+            // sector and key, verifies each block and only retries blocks
+            // that were not written correctly (instead of writing
+            // everything twice).
+            WritePlan plan = WritePlan.compile(writeOnPos, keyMap,
+                    mDumpWithPos);
+            if (reader.writeWithPlan(plan) != 0) {
+                handler.post(() -> Toast.makeText(a,
+                        R.string.info_write_error,
+                        Toast.LENGTH_LONG).show());
+                reader.close();
+                warning.cancel();
+                return;
             }
             reader.close();
             warning.cancel();
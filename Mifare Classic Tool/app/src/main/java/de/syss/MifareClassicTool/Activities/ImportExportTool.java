@@ -44,15 +44,16 @@ import java.io.FileInputStream;
 import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.GregorianCalendar;
 import java.util.Locale;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import de.syss.MifareClassicTool.Common;
+import de.syss.MifareClassicTool.KeyDictionary;
 import de.syss.MifareClassicTool.MCReader;
 import de.syss.MifareClassicTool.R;
+import de.syss.MifareClassicTool.TagImage;
 
 
 /**
@@ -416,6 +417,10 @@ public class ImportExportTool extends BasicActivity {
                 if (Common.saveFile(destination, convertedContent, false)) {
                     Toast.makeText(this, R.string.info_file_imported,
                             Toast.LENGTH_SHORT).show();
+                    if (!mIsDumpFile) {
+                        // Build the index of the new key file.
+                        KeyDictionary.compile(destination);
+                    }
                 } else {
                     Toast.makeText(this, R.string.info_save_error,
                             Toast.LENGTH_LONG).show();
@@ -518,7 +523,7 @@ public class ImportExportTool extends BasicActivity {
     /**
      * Convert dump {@code source} from {@code srcType} to {@code destType}.
      * The formats .mct, .json, .eml and .bin are supported. The
-     * intermediate is always JSON. If the {@code srcType} or the
+     * intermediate is always a {@link TagImage}. If the {@code srcType} or the
      * {@code destType} is {@link FileType#BIN}, the the
      * {@code source}/return value must be a string array with only
      * one string with each char representing one byte (MSB=0).
@@ -528,24 +533,16 @@ public class ImportExportTool extends BasicActivity {
      * @return The converted data. Null on error.
      * @see FileType
      */
-    @SuppressLint("DefaultLocale")
     private String[] convertDump(String[] source, FileType srcType,
             FileType destType) {
         if (source == null || srcType == null || destType == null) {
             return null;
         }
-        // Convert source to json.
-        ArrayList<String> json = new ArrayList<>();
-        String block = null;
-        if (srcType != FileType.JSON) {
-            json.add("{");
-            json.add("  \"Created\": \"MifareClassicTool\",");
-            json.add("  \"FileType\": \"mfcard\",");
-            json.add("  \"blocks\": {");
-        }
+        // Convert source to a tag image.
+        TagImage image = null;
         switch (srcType) {
             case JSON:
-                json = new ArrayList<>(Arrays.asList(source));
+                image = convertJsonToTagImage(source);
                 break;
             case MCT:
                 int err = Common.isValidDump(source, true);
@@ -553,22 +550,7 @@ public class ImportExportTool extends BasicActivity {
                     Common.isValidDumpErrorToast(err, this);
                     return null;
                 }
-                int sectorNumber;
-                int blockNumber = 0;
-                for (String line : source) {
-                    if (line.startsWith("+")) {
-                        sectorNumber = Integer.parseInt(line.split(": ")[1]);
-                        if (sectorNumber < 32) {
-                            blockNumber = sectorNumber * 4;
-                        } else {
-                            blockNumber =  32 * 4 + (sectorNumber - 32) * 16;
-                        }
-                        continue;
-                    }
-                    block = "    \"" + blockNumber + "\": \"" + line + "\",";
-                    json.add(block);
-                    blockNumber += 1;
-                }
+                image = TagImage.fromDump(source);
                 break;
             case BIN:
                 String binary = source[0];
@@ -579,15 +561,18 @@ public class ImportExportTool extends BasicActivity {
                             Toast.LENGTH_LONG).show();
                     return null;
                 }
-                // In this case: chars = bytes. Get 16 bytes and convert.
+                image = new TagImage(MCReader.blockToSector(
+                        binary.length() / 16 - 1) + 1);
+                // In this case: chars = bytes. Get 16 bytes per block.
+                byte[] blockBytes = new byte[16];
                 for (int i = 0; i < binary.length(); i += 16) {
-                    byte[] blockBytes = new byte[16];
                     for (int j = 0; j < 16; j++) {
                         blockBytes[j] = (byte) binary.charAt(i + j);
                     }
-                    block = "    \"" + i/16 + "\": \"" +
-                            Common.bytes2Hex(blockBytes) + "\",";
-                    json.add(block);
+                    int sector = MCReader.blockToSector(i / 16);
+                    image.setBlock(sector,
+                            i / 16 - TagImage.sectorToBlock(sector),
+                            blockBytes, 0);
                 }
                 break;
             case EML:
@@ -598,6 +583,8 @@ public class ImportExportTool extends BasicActivity {
                             Toast.LENGTH_LONG).show();
                     return null;
                 }
+                image = new TagImage(
+                        MCReader.blockToSector(source.length - 1) + 1);
                 for (int i = 0; i < source.length; i++) {
                     if (source[i].isEmpty()) {
                         // Error. Empty line in .eml file.
@@ -605,121 +592,77 @@ public class ImportExportTool extends BasicActivity {
                                 Toast.LENGTH_LONG).show();
                         return null;
                     }
-                    block = "    \"" + i + "\": \"" + source[i] + "\",";
-                    json.add(block);
+                    int sector = MCReader.blockToSector(i);
+                    if (!image.setBlockFromHex(sector,
+                            i - TagImage.sectorToBlock(sector), source[i])) {
+                        // Error. Invalid block.
+                        image = null;
+                        break;
+                    }
                 }
                 break;
         }
-        if (srcType != FileType.JSON) {
-            block = block.replace(",", "");
-            json.remove(json.size()-1);
-            json.add(block);
-            json.add("  }");
-            json.add("}");
-        }
 
         // Check source conversion.
-        if (json.size() <= 6) {
+        if (image == null || image.isEmpty()) {
             // Error converting source file.
             Toast.makeText(this, R.string.info_convert_error,
                     Toast.LENGTH_LONG).show();
             return null;
         }
 
-        JSONObject blocks;
-        try {
-            JSONObject parsedJson = new JSONObject(TextUtils.join("", json));
-            blocks = parsedJson.getJSONObject("blocks");
-            if (blocks.length() < 1) {
-                throw new JSONException("No blocks in source file");
-            }
-        } catch (JSONException e) {
-            // Error parsing json file.
-            Toast.makeText(this, R.string.info_convert_error,
-                    Toast.LENGTH_LONG).show();
-            return null;
-        }
-
-        // Convert json to destType.
+        // Convert tag image to destType.
         String[] dest = null;
         switch (destType) {
             case JSON:
-                dest = json.toArray(new String[0]);
+                dest = convertTagImageToJson(image);
                 break;
             case MCT:
-                ArrayList<String> export = new ArrayList<>();
-                int lastKnownSector = -1;
-                // Go through all possible blocks in a sorted order.
-                for (int blockNr = 0; blockNr < 256; blockNr++) {
-                    String blockKey = Integer.toString(blockNr);
-                    if (!blocks.has(blockKey)) {
-                        // Block does not exists. Skip.
-                        continue;
-                    }
-                    int sector = MCReader.blockToSector(blockNr);
-                    if (lastKnownSector != sector) {
-                        lastKnownSector = sector;
-                        export.add("+Sector: " + sector);
-                    }
-                    try {
-                        block = blocks.getString(blockKey);
-                        export.add(block);
-                    } catch (JSONException ex) {
-                        // Error. This should never happen.
-                        continue;
-                    }
-                }
-                dest = export.toArray(new String[0]);
+                dest = image.toDump();
                 break;
             case BIN:
-                if (blocks.length() != 20 && blocks.length() != 64 &&
-                        blocks.length() != 128 && blocks.length() != 256) {
+                if (!isCompleteDump(image)) {
                     // Error. Not a complete dump (MIFARE mini, 1k, 2k, 4k).
                     Toast.makeText(this, R.string.info_incomplete_dump,
                             Toast.LENGTH_LONG).show();
                     return null;
                 }
-                dest = new String[1];
-                StringBuilder sb = new StringBuilder();
-                for (int i = 0; i < blocks.length(); i++) {
-                    try {
-                        block = blocks.getString(String.format("%d", i));
-                    } catch (JSONException e) {
-                        // Error. Not a complete dump (MIFARE mini, 1k, 2k, 4k).
-                        Toast.makeText(this, R.string.info_incomplete_dump,
-                                Toast.LENGTH_LONG).show();
-                        return null;
-                    }
-                    byte[] bytes = Common.hex2Bytes(block);
-                    if (bytes == null) {
-                        // Error. Invalid block.
-                        Toast.makeText(this, R.string.info_convert_error,
-                                Toast.LENGTH_LONG).show();
-                        return null;
-                    }
-                    for (byte b : bytes) {
-                        sb.append((char)b);
+                for (int sector = 0; sector < image.getSectorCount();
+                        sector++) {
+                    for (int block = 0;
+                            block < TagImage.blockCountInSector(sector);
+                            block++) {
+                        if (!image.isBlockComplete(sector, block)) {
+                            // Error. Block with unknown data.
+                            Toast.makeText(this, R.string.info_convert_error,
+                                    Toast.LENGTH_LONG).show();
+                            return null;
+                        }
                     }
                 }
-                dest[0] = sb.toString();
+                // In this case: chars = bytes.
+                byte[] data = image.getData();
+                char[] chars = new char[data.length];
+                for (int i = 0; i < data.length; i++) {
+                    chars[i] = (char) (data[i] & 0xFF);
+                }
+                dest = new String[] { new String(chars) };
                 break;
             case EML:
-                if (blocks.length() != 20 && blocks.length() != 64 &&
-                        blocks.length() != 128 && blocks.length() != 256) {
+                if (!isCompleteDump(image)) {
                     // Error. Not a complete dump (MIFARE mini, 1k, 2k, 4k).
                     Toast.makeText(this, R.string.info_incomplete_dump,
                             Toast.LENGTH_LONG).show();
                     return null;
                 }
-                dest = new String[blocks.length()];
-                for (int i = 0; i < blocks.length(); i++) {
-                    try {
-                        dest[i] = blocks.getString(String.format("%d", i));
-                    } catch (JSONException e) {
-                        // Error. Not a complete dump (MIFARE mini, 1k, 2k, 4k).
-                        Toast.makeText(this, R.string.info_incomplete_dump,
-                                Toast.LENGTH_LONG).show();
-                        return null;
+                dest = new String[image.getBlockCount()];
+                int i = 0;
+                for (int sector = 0; sector < image.getSectorCount();
+                        sector++) {
+                    for (int block = 0;
+                            block < TagImage.blockCountInSector(sector);
+                            block++) {
+                        dest[i++] = image.getBlockAsHex(sector, block);
                     }
                 }
         }
@@ -727,6 +670,111 @@ public class ImportExportTool extends BasicActivity {
         return dest;
     }
 
+    /**
+     * Parse a dump in the JSON format into a {@link TagImage}.
+     * This is a helper function for
+     * {@link #convertDump(String[], FileType, FileType)}.
+     * @param source The lines of the JSON file.
+     * @return The tag image or null if the JSON file could not be parsed
+     * or contains invalid blocks.
+     */
+    private static TagImage convertJsonToTagImage(String[] source) {
+        JSONObject blocks;
+        try {
+            JSONObject parsedJson = new JSONObject(TextUtils.join("", source));
+            blocks = parsedJson.getJSONObject("blocks");
+            if (blocks.length() < 1) {
+                throw new JSONException("No blocks in source file");
+            }
+        } catch (JSONException e) {
+            // Error parsing json file.
+            return null;
+        }
+        // Get the highest block to know the size of the tag.
+        int lastBlock = -1;
+        for (int blockNr = 0; blockNr < TagImage.MAX_BLOCKS; blockNr++) {
+            if (blocks.has(Integer.toString(blockNr))) {
+                lastBlock = blockNr;
+            }
+        }
+        if (lastBlock == -1) {
+            return null;
+        }
+        TagImage image = new TagImage(MCReader.blockToSector(lastBlock) + 1);
+        for (int blockNr = 0; blockNr <= lastBlock; blockNr++) {
+            String blockKey = Integer.toString(blockNr);
+            if (!blocks.has(blockKey)) {
+                // Block does not exists. Skip.
+                continue;
+            }
+            int sector = MCReader.blockToSector(blockNr);
+            try {
+                if (!image.setBlockFromHex(sector,
+                        blockNr - TagImage.sectorToBlock(sector),
+                        blocks.getString(blockKey))) {
+                    // Error. Invalid block.
+                    return null;
+                }
+            } catch (JSONException e) {
+                // Error. This should never happen.
+                return null;
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Convert a {@link TagImage} into the lines of a JSON file.
+     * Only sectors with known data are included.
+     * This is a helper function for
+     * {@link #convertDump(String[], FileType, FileType)}.
+     * @param image The tag image.
+     * @return The lines of the JSON file.
+     */
+    private static String[] convertTagImageToJson(TagImage image) {
+        ArrayList<String> json = new ArrayList<>();
+        json.add("{");
+        json.add("  \"Created\": \"MifareClassicTool\",");
+        json.add("  \"FileType\": \"mfcard\",");
+        json.add("  \"blocks\": {");
+        for (int sector = 0; sector < image.getSectorCount(); sector++) {
+            if (!image.hasSector(sector)) {
+                continue;
+            }
+            int firstBlock = TagImage.sectorToBlock(sector);
+            for (int block = 0; block < TagImage.blockCountInSector(sector);
+                    block++) {
+                json.add("    \"" + (firstBlock + block) + "\": \""
+                        + image.getBlockAsHex(sector, block) + "\",");
+            }
+        }
+        // Remove the comma of the last block.
+        String last = json.remove(json.size() - 1);
+        json.add(last.substring(0, last.length() - 1));
+        json.add("  }");
+        json.add("}");
+        return json.toArray(new String[0]);
+    }
+
+    /**
+     * Check if a {@link TagImage} contains all sectors of a
+     * MIFARE mini, 1k, 2k or 4k.
+     * @param image The tag image.
+     * @return True if there is data for each sector of the tag.
+     */
+    private static boolean isCompleteDump(TagImage image) {
+        int blocks = image.getBlockCount();
+        if (blocks != 20 && blocks != 64 && blocks != 128 && blocks != 256) {
+            return false;
+        }
+        for (int sector = 0; sector < image.getSectorCount(); sector++) {
+            if (!image.hasSector(sector)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Convert keys {@code source} from {@code srcType} to {@code destType}.
      * The formats .keys and .bin are supported. The
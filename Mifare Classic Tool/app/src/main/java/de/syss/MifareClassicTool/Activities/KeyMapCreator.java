@@ -28,6 +28,7 @@ import android.content.SharedPreferences.Editor;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.text.InputFilter;
 import android.text.InputType;
 import android.text.TextUtils.TruncateAt;
@@ -51,6 +52,9 @@ import java.util.Arrays;
 
 import de.syss.MifareClassicTool.Activities.Preferences.Preference;
 import de.syss.MifareClassicTool.Common;
+import de.syss.MifareClassicTool.KeyHitStats;
+import de.syss.MifareClassicTool.KeyMapCache;
+import de.syss.MifareClassicTool.KeyMapListener;
 import de.syss.MifareClassicTool.MCReader;
 import de.syss.MifareClassicTool.R;
 
@@ -136,6 +140,10 @@ public class KeyMapCreator extends BasicActivity {
 
     private static final int DEFAULT_SECTOR_RANGE_FROM = 0;
     private static final int DEFAULT_SECTOR_RANGE_TO = 15;
+    /**
+     * Minimum time (in ms) between two updates of the keys per second rate.
+     */
+    private static final long RATE_UPDATE_INTERVAL = 250;
 
     private Button mCreateKeyMap;
     private Button mCancel;
@@ -144,6 +152,7 @@ public class KeyMapCreator extends BasicActivity {
     private final Handler mHandler = new Handler(Looper.getMainLooper());
     private int mProgressStatus;
     private ProgressBar mProgressBar;
+    private TextView mProgressText;
     private boolean mIsCreatingKeyMap;
     private File mKeyDirPath;
     private int mFirstSector;
@@ -169,6 +178,7 @@ public class KeyMapCreator extends BasicActivity {
         mKeyFilesGroup = findViewById(
                 R.id.linearLayoutCreateKeyMapKeyFiles);
         mProgressBar = findViewById(R.id.progressBarCreateKeyMap);
+        mProgressText = findViewById(R.id.textViewCreateKeyMapProgess);
 
         // Init. sector range.
         Intent intent = getIntent();
@@ -465,6 +475,14 @@ public class KeyMapCreator extends BasicActivity {
                 String message = numberOfLoadedKeys + " " + getString(
                         R.string.info_keys_loaded_please_wait);
                 Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
+                // Try keys that were found in the past first.
+                reader.setKeyHitStats(KeyHitStats.getInstance());
+                // Resume an interrupted mapping of this tag.
+                reader.setUseKeyMapJournal(true);
+                // Use the keys of the last mapping of this tag.
+                reader.setKeyMapCache(KeyMapCache.getInstance());
+                // Show the keys per second rate and log some metrics.
+                reader.setKeyMapListener(new KeyMapProgress());
                 // Read as much as possible with given key file.
                 createKeyMap(reader, this);
             }
@@ -489,21 +507,34 @@ public class KeyMapCreator extends BasicActivity {
     private void createKeyMap(final MCReader reader, final Context context) {
         new Thread(() -> {
             // Build key map parts and update the progress bar.
-            while (mProgressStatus < mLastSector) {
+            // The sectors are not mapped in ascending order
+            // (see MCReader.setUseTriage()).
+            int sectorCount = (mLastSector - mFirstSector) + 1;
+            while (reader.getKeyMapProgress() < sectorCount) {
                 mProgressStatus = reader.buildNextKeyMapPart();
                 if (mProgressStatus == -1 || !mIsCreatingKeyMap) {
                     // Error while building next key map part.
                     break;
                 }
 
-                mHandler.post(() -> mProgressBar.setProgress(
-                        (mProgressStatus - mFirstSector) + 1));
+                final int progress = reader.getKeyMapProgress();
+                mHandler.post(() -> mProgressBar.setProgress(progress));
             }
+            // Persist the keys found during this session.
+            KeyHitStats.getInstance().save();
+            KeyMapCache.getInstance().save();
+            int[] tierHits = reader.getKeyTierHits();
+            Log.d(LOG_TAG, "Found keys (tag/profile/dictionary/trailer): "
+                    + tierHits[MCReader.KEY_TIER_TAG] + "/"
+                    + tierHits[MCReader.KEY_TIER_PROFILE] + "/"
+                    + tierHits[MCReader.KEY_TIER_DICTIONARY] + "/"
+                    + tierHits[MCReader.KEY_TIER_TRAILER]);
 
             mHandler.post(() -> {
                 getWindow().clearFlags(
                         WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
                 mProgressBar.setProgress(0);
+                mProgressText.setText(R.string.text_key_map_progress);
                 mCreateKeyMap.setEnabled(true);
                 reader.close();
                 if (mIsCreatingKeyMap && mProgressStatus != -1) {
@@ -527,6 +558,98 @@ public class KeyMapCreator extends BasicActivity {
         }).start();
     }
 
+    /**
+     * Listener for the events of the key mapping. It runs on the worker
+     * thread of {@link #createKeyMap(MCReader, Context)}, so it only
+     * counts and posts the keys per second rate to the UI thread at most
+     * every {@link #RATE_UPDATE_INTERVAL} ms. Per sector metrics
+     * (keys tried, authentications, average authentication time)
+     * are logged.
+     */
+    private class KeyMapProgress implements KeyMapListener {
+
+        private long mKeysTried;
+        private int mSectorKeysTried;
+        private long mSectorAuthNanos;
+        private int mSectorAuths;
+        private int mReconnects;
+        private long mLastUpdate = SystemClock.elapsedRealtime();
+        private long mLastKeysTried;
+
+        @Override
+        public void onTriageFinished(int resolved, int partial, int auths) {
+            Log.d(LOG_TAG, "Triage: " + resolved + " sectors resolved, "
+                    + partial + " with one key missing, " + auths
+                    + " authentications.");
+        }
+
+        @Override
+        public void onSectorStarted(int sector) {
+            mSectorKeysTried = 0;
+            mSectorAuthNanos = 0;
+            mSectorAuths = 0;
+        }
+
+        @Override
+        public void onKeysTried(int sector, int keysTried, long authNanos,
+                int auths) {
+            mKeysTried += keysTried - mSectorKeysTried;
+            mSectorKeysTried = keysTried;
+            mSectorAuthNanos += authNanos;
+            mSectorAuths += auths;
+            updateRate();
+        }
+
+        @Override
+        public void onKeyFound(int sector, boolean keyB, long key, int tier,
+                int keyIndex) {
+            Log.d(LOG_TAG, "Sector " + sector + ": Found key "
+                    + (keyB ? "B" : "A") + " (tier " + tier
+                    + ", index " + keyIndex + ").");
+        }
+
+        @Override
+        public void onReconnect(int sector) {
+            mReconnects++;
+            Log.d(LOG_TAG, "Sector " + sector + ": Reconnected to tag ("
+                    + mReconnects + " reconnects).");
+        }
+
+        @Override
+        public void onSectorFinished(int sector, boolean keyAFound,
+                boolean keyBFound) {
+            long avgMicros = (mSectorAuths > 0)
+                    ? mSectorAuthNanos / mSectorAuths / 1000 : 0;
+            Log.d(LOG_TAG, "Sector " + sector + ": " + mSectorKeysTried
+                    + " keys tried, " + mSectorAuths + " authentications, "
+                    + avgMicros + " us per authentication, key A "
+                    + (keyAFound ? "found" : "not found") + ", key B "
+                    + (keyBFound ? "found" : "not found") + ".");
+        }
+
+        /**
+         * Post the keys per second rate to the UI thread (if the last
+         * update is at least {@link #RATE_UPDATE_INTERVAL} ms ago).
+         */
+        private void updateRate() {
+            long now = SystemClock.elapsedRealtime();
+            long elapsed = now - mLastUpdate;
+            if (elapsed < RATE_UPDATE_INTERVAL) {
+                return;
+            }
+            final int rate = (int) ((mKeysTried - mLastKeysTried)
+                    * 1000 / elapsed);
+            mLastUpdate = now;
+            mLastKeysTried = mKeysTried;
+            mHandler.post(() -> {
+                if (mIsCreatingKeyMap) {
+                    mProgressText.setText(
+                            getString(R.string.text_key_map_rate, rate));
+                }
+            });
+        }
+    }
+
     /**
      * Triggered by {@link #createKeyMap(MCReader, Context)}, this method
      * sets the result code to {@link Activity#RESULT_OK},
@@ -1039,6 +1039,11 @@ public class MainMenu extends AppCompatActivity {
         if (keyFiles != null && !keyFiles.isEmpty()) {
             intent.putExtra(FastCloneActivity.EXTRA_KEY_FILES, keyFiles);
         }
+        if (pref.getBoolean("fast_clone_batch_" + tileIndex, false)) {
+            intent.putExtra(FastCloneActivity.EXTRA_BATCH, true);
+            intent.putExtra(FastCloneActivity.EXTRA_BATCH_FIELDS,
+                    pref.getString("fast_clone_fields_" + tileIndex, null));
+        }
         startActivity(intent);
     }
 
@@ -1120,6 +1125,18 @@ public class MainMenu extends AppCompatActivity {
             keyCheckBoxes = new CheckBox[0];
         }
 
+        // Batch mode and per-tag fields.
+        final CheckBox batchCheckBox = new CheckBox(this);
+        batchCheckBox.setText(R.string.action_fast_clone_batch);
+        batchCheckBox.setChecked(
+                pref.getBoolean("fast_clone_batch_" + tileIndex, false));
+        ll.addView(batchCheckBox);
+        final EditText fieldsField = new EditText(this);
+        fieldsField.setHint(R.string.dialog_fast_clone_fields_hint);
+        fieldsField.setText(
+                pref.getString("fast_clone_fields_" + tileIndex, ""));
+        ll.addView(fieldsField);
+
         // Wrap in ScrollView.
         ScrollView scrollView = new ScrollView(this);
         scrollView.addView(ll);
@@ -1150,6 +1167,10 @@ public class MainMenu extends AppCompatActivity {
                         editor.putString("fast_clone_dump_" + tileIndex, mConfigDumpPath);
                     }
                     editor.putString("fast_clone_keys_" + tileIndex, mConfigKeyFiles);
+                    editor.putBoolean("fast_clone_batch_" + tileIndex,
+                            batchCheckBox.isChecked());
+                    editor.putString("fast_clone_fields_" + tileIndex,
+                            fieldsField.getText().toString().trim());
                     editor.apply();
                     updateFastCloneTiles();
                     Toast.makeText(this, R.string.info_fast_clone_saved,
@@ -1160,6 +1181,8 @@ public class MainMenu extends AppCompatActivity {
                     editor.remove("fast_clone_name_" + tileIndex);
                     editor.remove("fast_clone_dump_" + tileIndex);
                     editor.remove("fast_clone_keys_" + tileIndex);
+                    editor.remove("fast_clone_batch_" + tileIndex);
+                    editor.remove("fast_clone_fields_" + tileIndex);
                     editor.apply();
                     mConfigDumpPath = null;
                     mConfigKeyFiles = null;
@@ -65,7 +65,8 @@ public class Preferences extends BasicActivity {
         UseRetryAuthentication("use_retry_authentication"),
         RetryAuthenticationCount("retry_authentication_count"),
         CustomAppLanguage("custom_app_language"),
-        CustomAppTheme("custom_app_theme");
+        CustomAppTheme("custom_app_theme"),
+        CollectTimings("collect_timings");
         // Add more preferences here (comma separated).
 
         private final String text;
@@ -82,6 +83,7 @@ public class Preferences extends BasicActivity {
     }
 
     private CheckBox mPrefAutoReconnect;
+    private CheckBox mPrefCollectTimings;
     private CheckBox mPrefAutoCopyUID;
     private CheckBox mPrefSaveLastUsedKeyFiles;
     private CheckBox mUseCustomSectorCount;
@@ -112,6 +114,8 @@ public class Preferences extends BasicActivity {
         // Get preferences (init. the member variables).
         mPrefAutoReconnect = findViewById(
                 R.id.checkBoxPreferencesAutoReconnect);
+        mPrefCollectTimings = findViewById(
+                R.id.checkBoxPreferencesCollectTimings);
         mPrefAutoCopyUID = findViewById(
                 R.id.checkBoxPreferencesCopyUID);
         mPrefSaveLastUsedKeyFiles = findViewById(
@@ -133,6 +137,8 @@ public class Preferences extends BasicActivity {
         SharedPreferences pref = Common.getPreferences();
         mPrefAutoReconnect.setChecked(pref.getBoolean(
                 Preference.AutoReconnect.toString(), false));
+        mPrefCollectTimings.setChecked(pref.getBoolean(
+                Preference.CollectTimings.toString(), false));
         mPrefAutoCopyUID.setChecked(pref.getBoolean(
                 Preference.AutoCopyUID.toString(), false));
         setUIDFormatBySequence(pref.getInt(Preference.UIDFormat.toString(),0));
@@ -232,6 +238,22 @@ public class Preferences extends BasicActivity {
                     }).show();
     }
 
+    /**
+     * Show information on the "collect timing statistics" preference.
+     * @param view The View object that triggered the method
+     * (in this case the info on collect timings button).
+     */
+    public void onShowCollectTimingsInfo(View view) {
+        new AlertDialog.Builder(this)
+            .setTitle(R.string.dialog_collect_timings_title)
+            .setMessage(R.string.dialog_collect_timings)
+            .setIcon(android.R.drawable.ic_dialog_info)
+            .setPositiveButton(R.string.action_ok,
+                    (dialog, which) -> {
+                        // Do nothing.
+                    }).show();
+    }
+
     /**
      * Toggle the radio group for the copy UID format options
      * @param view The View object that triggered the method
@@ -387,6 +409,8 @@ public class Preferences extends BasicActivity {
         SharedPreferences.Editor edit = Common.getPreferences().edit();
         edit.putBoolean(Preference.AutoReconnect.toString(),
                 mPrefAutoReconnect.isChecked());
+        edit.putBoolean(Preference.CollectTimings.toString(),
+                mPrefCollectTimings.isChecked());
         edit.putBoolean(Preference.AutoCopyUID.toString(),
                 mPrefAutoCopyUID.isChecked());
         edit.putInt(Preference.UIDFormat.toString(),getUIDFormatSequence());
@@ -23,7 +23,6 @@ import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
-import android.util.SparseArray;
 import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
@@ -34,6 +33,7 @@ import java.util.Collections;
 import de.syss.MifareClassicTool.Common;
 import de.syss.MifareClassicTool.MCReader;
 import de.syss.MifareClassicTool.R;
+import de.syss.MifareClassicTool.TagImage;
 
 
 /**
@@ -46,7 +46,7 @@ public class ReadTag extends AppCompatActivity {
     private final static int KEY_MAP_CREATOR = 1;
 
     private final Handler mHandler = new Handler(Looper.getMainLooper());
-    private SparseArray<String[]> mRawDump;
+    private TagImage mRawDump;
 
     /**
      * Show the {@link KeyMapCreator}.
@@ -94,7 +94,7 @@ public class ReadTag extends AppCompatActivity {
     /**
      * Triggered by {@link #onActivityResult(int, int, Intent)}
      * this method starts a worker thread that first reads the tag and then
-     * calls {@link #createTagDump(SparseArray)}.
+     * calls {@link #createTagDump(TagImage)}.
      */
     private void readTag() {
         final MCReader reader = Common.checkForTagAndCreateReader(this);
@@ -103,8 +103,7 @@ public class ReadTag extends AppCompatActivity {
         }
         new Thread(() -> {
             // Get key map from glob. variable.
-            mRawDump = reader.readAsMuchAsPossible(
-                    Common.getKeyMap());
+            mRawDump = reader.readTagImage(Common.getKeyMap());
 
             reader.close();
 
@@ -116,18 +115,18 @@ public class ReadTag extends AppCompatActivity {
      * Create a tag dump in a format the {@link DumpEditor}
      * can read (format: headers (sectors) marked with "+", errors
      * marked with "*"), and then start the dump editor with this dump.
-     * @param rawDump A tag dump like {@link MCReader#readAsMuchAsPossible()}
-     * returns.
+     * @param rawDump A tag dump like
+     * {@link MCReader#readTagImage(android.util.SparseArray)} returns.
      * @see DumpEditor#EXTRA_DUMP
      * @see DumpEditor
      */
-    private void createTagDump(SparseArray<String[]> rawDump) {
+    private void createTagDump(TagImage rawDump) {
         ArrayList<String> tmpDump = new ArrayList<>();
         if (rawDump != null) {
-            if (rawDump.size() != 0) {
+            if (!rawDump.isEmpty()) {
                 for (int i = Common.getKeyMapRangeFrom();
                         i <= Common.getKeyMapRangeTo(); i++) {
-                    String[] val = rawDump.get(i);
+                    String[] val = rawDump.getSectorAsHex(i);
                     // Mark headers (sectors) with "+".
                     tmpDump.add("+Sector: " + i);
                     if (val != null ) {
@@ -60,6 +60,11 @@ import java.util.Set;
 import de.syss.MifareClassicTool.Common;
 import de.syss.MifareClassicTool.MCReader;
 import de.syss.MifareClassicTool.R;
+import de.syss.MifareClassicTool.SectorPermissions;
+import de.syss.MifareClassicTool.TagImage;
+import de.syss.MifareClassicTool.ValuePlan;
+import de.syss.MifareClassicTool.WriteJournal;
+import de.syss.MifareClassicTool.WritePlan;
 
 /**
  * Write data to tag. The user can choose to write
@@ -94,6 +99,7 @@ public class WriteTag extends BasicActivity {
     private ArrayList<View> mWriteModeLayouts;
     private CheckBox mWriteManufBlock;
     private CheckBox mEnableStaticAC;
+    private CheckBox mWriteDifferential;
     private HashMap<Integer, HashMap<Integer, byte[]>> mDumpWithPos;
     private HashSet<String> mKeysFromDump;
     private boolean mWriteDumpFromEditor = false;
@@ -134,6 +140,8 @@ public class WriteTag extends BasicActivity {
                 R.id.checkBoxWriteTagDumpStaticAC);
         mWriteManufBlock = findViewById(
                 R.id.checkBoxWriteTagDumpWriteManuf);
+        mWriteDifferential = findViewById(
+                R.id.checkBoxWriteTagDumpDifferential);
 
         mWriteModeLayouts = new ArrayList<>();
         mWriteModeLayouts.add(findViewById(
@@ -159,6 +167,8 @@ public class WriteTag extends BasicActivity {
         if (savedInstanceState != null) {
             mWriteManufBlock.setChecked(
                     savedInstanceState.getBoolean("write_manuf_block", false));
+            mWriteDifferential.setChecked(
+                    savedInstanceState.getBoolean("write_differential", false));
             Serializable s = null;
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
                 s = savedInstanceState.getSerializable("dump_with_pos", HashMap.class);
@@ -200,6 +210,8 @@ public class WriteTag extends BasicActivity {
     protected void onSaveInstanceState (Bundle outState) {
         super.onSaveInstanceState(outState);
         outState.putBoolean("write_manuf_block", mWriteManufBlock.isChecked());
+        outState.putBoolean("write_differential",
+                mWriteDifferential.isChecked());
         outState.putSerializable("dump_with_pos", mDumpWithPos);
     }
 
@@ -516,8 +528,8 @@ public class WriteTag extends BasicActivity {
     private int checkAccessConditions(String sectorTrailer, boolean showToasts) {
         // Check if Access Conditions are valid.
         byte[] acBytes = Common.hex2Bytes(sectorTrailer.substring(12, 18));
-        byte[][] acMatrix = Common.acBytesToACMatrix(acBytes);
-        if (acMatrix == null) {
+        SectorPermissions permissions = SectorPermissions.decode(acBytes);
+        if (permissions == null) {
             // Error. Invalid ACs.
             if (showToasts) {
                 Toast.makeText(this, R.string.info_ac_format_error,
@@ -526,11 +538,8 @@ public class WriteTag extends BasicActivity {
             return 1;
         }
         // Check if Access Conditions are irreversible.
-        boolean keyBReadable = Common.isKeyBReadable(
-                acMatrix[0][3], acMatrix[1][3], acMatrix[2][3]);
-        int writeAC = Common.getOperationRequirements(
-                acMatrix[0][3], acMatrix[1][3], acMatrix[2][3],
-                Common.Operation.WriteAC, true, keyBReadable);
+        int writeAC = permissions.getKeys(SectorPermissions.TRAILER_GROUP,
+                Common.Operation.WriteAC);
         if (writeAC == 0) {
             // Warning. Access Conditions can not be changed after writing.
             if (showToasts) {
@@ -636,8 +645,9 @@ public class WriteTag extends BasicActivity {
                     Common.hex2Bytes(data),
                     keys[1], true);
         }
-        // Try to write with key A (if there is one).
-        if (keys[0] != null) {
+        // Try to write with key A (if there is one and the tag is
+        // still there).
+        if (keys[0] != null && resultKeyB != -2) {
             resultKeyA = reader.writeBlock(sector, block,
                     Common.hex2Bytes(data),
                     keys[0], false);
@@ -885,49 +895,49 @@ public class WriteTag extends BasicActivity {
      * where the sector and block information are known additionally.
      * Blocks containing unknown data ("-") are dropped.
      * @param dump The dump to initialize the mDumpWithPos with.
+     * @see TagImage#fromDump(String[])
      */
     private void initDumpWithPosAndKeysFromDump(String[] dump) {
         mDumpWithPos = new HashMap<>();
         mKeysFromDump = new HashSet<>();
-        int sector = 0;
-        int block = 0;
-        // Transform the simple dump array into a structure (mDumpWithPos)
+        TagImage image = TagImage.fromDump(dump);
+        if (image == null) {
+            return;
+        }
+        byte[] staticAC = null;
+        if (mEnableStaticAC.isChecked()) {
+            staticAC = Common.hex2Bytes(mStaticAC.getText().toString());
+        }
+        // Transform the image into a structure (mDumpWithPos)
         // where the sector and block information are known additionally.
         // Blocks containing unknown data ("-") are dropped.
-        for (int i = 0; i < dump.length; i++) {
-            if (dump[i].startsWith("+")) {
-                String[] tmp = dump[i].split(": ");
-                sector = Integer.parseInt(tmp[tmp.length-1]);
-                block = 0;
-                mDumpWithPos.put(sector, new HashMap<>());
-            } else {
-                if (i + 1 == dump.length || dump[i + 1].startsWith("+")) {
-                    // Is sector trailer. Get keys
-                    String keyA = dump[i].substring(0, 12);
-                    String keyB = dump[i].substring(20);
-                    if (!keyA.contains("-")) {
-                        mKeysFromDump.add(keyA);
-                    }
-                    if (!keyB.contains("-")) {
-                        mKeysFromDump.add(keyB);
-                    }
+        for (int sector = 0; sector < image.getSectorCount(); sector++) {
+            if (!image.hasSector(sector)) {
+                continue;
+            }
+            HashMap<Integer, byte[]> blocks = new HashMap<>();
+            mDumpWithPos.put(sector, blocks);
+            // Get keys from the sector trailer.
+            if (image.isKeyAKnown(sector)) {
+                mKeysFromDump.add(Common.bytes2Hex(image.getKeyA(sector)));
+            }
+            if (image.isKeyBKnown(sector)) {
+                mKeysFromDump.add(Common.bytes2Hex(image.getKeyB(sector)));
+            }
+            int blockCount = TagImage.blockCountInSector(sector);
+            for (int block = 0; block < blockCount; block++) {
+                if (!image.isBlockComplete(sector, block)) {
+                    continue;
                 }
-                if (!dump[i].contains("-")) {
-                    // Use static Access Conditions for all sectors?
-                    if (mEnableStaticAC.isChecked()
-                        && (i + 1 == dump.length || dump[i + 1].startsWith("+"))) {
-                        // This is a Sector Trailer. Replace its ACs
-                        // with the static ones.
-                        String newBlock = dump[i].substring(0, 12)
-                            + mStaticAC.getText().toString()
-                            + dump[i].substring(18);
-                        dump[i] = newBlock;
-                    }
-                    mDumpWithPos.get(sector).put(block++,
-                        Common.hex2Bytes(dump[i]));
-                } else {
-                    block++;
+                byte[] data = image.getBlock(sector, block);
+                // Use static Access Conditions for all sectors?
+                if (staticAC != null
+                        && TagImage.isSectorTrailer(sector, block)) {
+                    // This is a Sector Trailer. Replace its ACs
+                    // with the static ones.
+                    System.arraycopy(staticAC, 0, data, 6, staticAC.length);
                 }
+                blocks.put(block, data);
             }
         }
     }
@@ -1297,6 +1307,190 @@ public class WriteTag extends BasicActivity {
         }
 
         // Display don't remove warning.
+        final AlertDialog warning = showWriteWarning();
+
+        // Start writing in new thread.
+        final Activity a = this;
+        final Handler handler = new Handler(Looper.getMainLooper());
+        final boolean differential = mWriteDifferential.isChecked();
+        final byte[] uid = Common.getUID();
+        new Thread(() -> {
+            // Write dump to tag. The plan authenticates once per sector
+            // and key, verifies each block and only retries blocks that
+            // were not written correctly.
+            // Writing multiple blocks consecutively sometimes fails (see:
+            // https://github.com/ikarus23/MifareClassicTool/issues/412).
+            // This is why the blocks are verified.
+            // In differential mode, blocks already matching the dump
+            // are not written.
+            WritePlan plan = WritePlan.compile(writeOnPos, keyMap,
+                    mDumpWithPos);
+            plan.setDifferential(differential);
+            // Record the original content of the blocks, so that an
+            // interrupted write can be resumed or rolled back when the
+            // tag is presented again (see onNewIntent()).
+            WriteJournal journal = WriteJournal.create(uid, plan);
+            int result = reader.writeWithPlan(plan, journal);
+            if (result != 0) {
+                // Error. Some error while writing.
+                if (journal != null) {
+                    journal.close();
+                }
+                if (result == -2 && journal != null) {
+                    handler.post(() -> Toast.makeText(a,
+                            R.string.info_write_interrupted,
+                            Toast.LENGTH_LONG).show());
+                } else if (differential) {
+                    // No failed block if the authentication failed.
+                    String msg = (plan.getFailedBlock() == -1)
+                            ? getString(
+                                    R.string.info_write_differential_auth_error,
+                                    plan.getFailedSector(),
+                                    plan.getWrittenBlockCount(),
+                                    plan.getSkippedBlockCount(),
+                                    plan.getUnverifiedCount())
+                            : getString(
+                                    R.string.info_write_differential_error,
+                                    plan.getFailedSector(),
+                                    plan.getFailedBlock(),
+                                    plan.getWrittenBlockCount(),
+                                    plan.getSkippedBlockCount(),
+                                    plan.getUnverifiedCount());
+                    handler.post(() -> Toast.makeText(a, msg,
+                            Toast.LENGTH_LONG).show());
+                } else {
+                    handler.post(() -> Toast.makeText(a,
+                            R.string.info_write_error,
+                            Toast.LENGTH_LONG).show());
+                }
+                reader.close();
+                warning.cancel();
+                return;
+            }
+            // Finished writing.
+            if (journal != null) {
+                journal.delete();
+            }
+            reader.close();
+            warning.cancel();
+            if (differential) {
+                String msg = getString(R.string.info_write_differential,
+                        plan.getWrittenBlockCount(),
+                        plan.getSkippedBlockCount(),
+                        plan.getUnverifiedCount());
+                handler.post(() -> Toast.makeText(a, msg,
+                        Toast.LENGTH_LONG).show());
+            } else {
+                handler.post(() -> Toast.makeText(a,
+                        R.string.info_write_successful,
+                        Toast.LENGTH_LONG).show());
+            }
+            a.finish();
+        }).start();
+    }
+
+    /**
+     * Check if the last write to the new tag was interrupted
+     * (there is a {@link WriteJournal} for it). If so, ask the user
+     * to resume or to roll back the write. This is only done if the
+     * tag supports MIFARE Classic and the "Write Dump" mode is selected.
+     * @param intent The intent of the new tag.
+     */
+    @Override
+    public void onNewIntent(Intent intent) {
+        super.onNewIntent(intent);
+        RadioButton writeDump = findViewById(
+                R.id.radioButtonWriteTagWriteDump);
+        if (mNewTagCheck != 0 || !writeDump.isChecked()) {
+            return;
+        }
+        final WriteJournal journal = WriteJournal.open(Common.getUID());
+        if (journal == null) {
+            return;
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.dialog_write_journal_title)
+                .setMessage(R.string.dialog_write_journal)
+                .setIcon(android.R.drawable.ic_dialog_alert)
+                .setPositiveButton(R.string.action_resume,
+                        (dialog, which) -> replayWriteJournal(journal, false))
+                .setNegativeButton(R.string.action_roll_back,
+                        (dialog, which) -> replayWriteJournal(journal, true))
+                .setNeutralButton(R.string.action_discard,
+                        (dialog, which) -> journal.delete())
+                .show();
+    }
+
+    /**
+     * Finish or roll back an interrupted write to the current tag
+     * (see {@link MCReader#planJournalReplay(WriteJournal, boolean)}).
+     * The journal is removed if this was successful.
+     * @param journal The journal of the interrupted write.
+     * @param rollback True to restore the original content of the
+     * blocks, false to write the rest of the data.
+     */
+    private void replayWriteJournal(final WriteJournal journal,
+            final boolean rollback) {
+        final MCReader reader = Common.checkForTagAndCreateReader(this);
+        if (reader == null) {
+            return;
+        }
+        final AlertDialog warning = showWriteWarning();
+        final Activity a = this;
+        final Handler handler = new Handler(Looper.getMainLooper());
+        new Thread(() -> {
+            WritePlan plan = reader.planJournalReplay(journal, rollback);
+            int result = -2;
+            if (plan != null) {
+                // The pre-images of a rollback are not recorded again.
+                result = reader.writeWithPlan(plan,
+                        rollback ? null : journal);
+            }
+            reader.close();
+            warning.cancel();
+            if (result != 0) {
+                journal.close();
+                int msg = (result == -2) ? R.string.info_write_interrupted
+                        : R.string.info_write_error;
+                handler.post(() -> Toast.makeText(a, msg,
+                        Toast.LENGTH_LONG).show());
+                return;
+            }
+            // Blocks that were not part of the plan (not writable) or
+            // have no usable pre-image.
+            int missing = countBlocks(rollback ? journal.getPreImages()
+                    : journal.getData()) - plan.getBlockCount();
+            if (rollback) {
+                missing += journal.getUnrestorableCount();
+            }
+            journal.delete();
+            String msg = getString(rollback ? R.string.info_write_rolled_back
+                    : R.string.info_write_resumed,
+                    plan.getWrittenBlockCount(), missing);
+            handler.post(() -> Toast.makeText(a, msg,
+                    Toast.LENGTH_LONG).show());
+        }).start();
+    }
+
+    /**
+     * Count the blocks of a map of sectors and blocks.
+     * @param data The map (key = sector, value = map of block and data).
+     * @return The number of blocks.
+     */
+    private static int countBlocks(
+            HashMap<Integer, HashMap<Integer, byte[]>> data) {
+        int count = 0;
+        for (HashMap<Integer, byte[]> blocks : data.values()) {
+            count += blocks.size();
+        }
+        return count;
+    }
+
+    /**
+     * Show the "don't remove the tag" dialog while writing.
+     * @return The dialog (cancel it when writing is done).
+     */
+    private AlertDialog showWriteWarning() {
         LinearLayout ll = new LinearLayout(this);
         int pad = Common.dpToPx(20);
         ll.setPadding(pad, pad, pad, pad);
@@ -1310,67 +1504,12 @@ public class WriteTag extends BasicActivity {
         tv.setTextSize(18);
         ll.addView(progressBar);
         ll.addView(tv);
-        final AlertDialog warning = new AlertDialog.Builder(this)
+        AlertDialog warning = new AlertDialog.Builder(this)
             .setTitle(R.string.dialog_wait_write_tag_title)
             .setView(ll)
             .create();
         warning.show();
-
-
-        // Start writing in new thread.
-        final Activity a = this;
-        final Handler handler = new Handler(Looper.getMainLooper());
-        new Thread(() -> {
-            // Write dump to tag.
-            for (int sector : writeOnPos.keySet()) {
-                byte[][] keys = keyMap.get(sector);
-                for (int block : writeOnPos.get(sector).keySet()) {
-                    // Select key with write privileges.
-                    byte[] writeKey = null;
-                    boolean useAsKeyB = true;
-                    int wi = writeOnPos.get(sector).get(block);
-                    if (wi == 1 || wi == 4) {
-                        writeKey = keys[0]; // Write with key A.
-                        useAsKeyB = false;
-                    } else if (wi == 2 || wi == 5 || wi == 6) {
-                        writeKey = keys[1]; // Write with key B.
-                    }
-
-                    // Write block.
-                    // Writing multiple blocks consecutively sometimes fails. I have no idea why.
-                    // It also depends on the data (see: https://github.com/ikarus23/MifareClassicTool/issues/412).
-                    // This makes no sense. This error does not occurs while debugging which
-                    // might indicate a timing issue. When adding a delay of 200 ms, the error
-                    // does not occur. Retrying to write also works. This why the ugly workaround
-                    // of trying to write at least two times was added.
-                    int result = 0;
-                    for (int i = 0; i < 2; i++) {
-                        result = reader.writeBlock(sector, block,
-                            mDumpWithPos.get(sector).get(block),
-                            writeKey, useAsKeyB);
-                        if (result == 0) {
-                            break;
-                        }
-                    }
-
-                    if (result != 0) {
-                        // Error. Some error while writing.
-                        handler.post(() -> Toast.makeText(a,
-                                R.string.info_write_error,
-                                Toast.LENGTH_LONG).show());
-                        reader.close();
-                        warning.cancel();
-                        return;
-                    }
-                }
-            }
-            // Finished writing.
-            reader.close();
-            warning.cancel();
-            handler.post(() -> Toast.makeText(a, R.string.info_write_successful,
-                    Toast.LENGTH_LONG).show());
-            a.finish();
-        }).start();
+        return warning;
     }
 
     /**
@@ -1594,53 +1733,45 @@ public class WriteTag extends BasicActivity {
         int value = Integer.parseInt(mNewValueTextVB.getText().toString());
         int sector = Integer.parseInt(mSectorTextVB.getText().toString());
         int block = Integer.parseInt(mBlockTextVB.getText().toString());
-        byte[][] keys = Common.getKeyMap().get(sector);
-        int result = -1;
 
-        if (keys[1] != null) {
-            result = reader.writeValueBlock(sector, block, value,
-                    mIncreaseVB.isChecked(),
-                    keys[1], true);
-        }
-        // Error while writing? Maybe tag has default factory settings ->
-        // try to write with key a (if there is one).
-        if (result == -1 && keys[0] != null) {
-            result = reader.writeValueBlock(sector, block, value,
-                    mIncreaseVB.isChecked(),
-                    keys[0], false);
-        }
+        // The key is chosen according to the Access Conditions. If the
+        // Value Block can not be decremented/incremented, it is written.
+        ValuePlan plan = new ValuePlan();
+        plan.addDelta(sector, block,
+                mIncreaseVB.isChecked() ? value : -value);
+        reader.applyValuePlan(plan, Common.getKeyMap());
         reader.close();
 
         // Error handling.
-        switch (result) {
-            case 2:
+        switch (plan.getResult(0)) {
+            case ValuePlan.RESULT_OK:
+                break;
+            case ValuePlan.RESULT_INVALID_BLOCK:
                 Toast.makeText(this, R.string.info_block_not_in_sector,
                         Toast.LENGTH_LONG).show();
                 return;
-            case -1:
+            case ValuePlan.RESULT_OUT_OF_RANGE:
+                Toast.makeText(this, R.string.info_value_out_of_range,
+                        Toast.LENGTH_LONG).show();
+                return;
+            default:
                 Toast.makeText(this, R.string.info_error_writing_value_block,
                         Toast.LENGTH_LONG).show();
                 return;
         }
-        Toast.makeText(this, R.string.info_write_successful,
-                Toast.LENGTH_LONG).show();
+        // Tell the user if the block was not incremented/decremented
+        // but written (this is not the same for e.g. a counter).
+        if (plan.getMethod(0) == ValuePlan.METHOD_WRITE
+                || plan.getMethod(0) == ValuePlan.METHOD_STAGED) {
+            Toast.makeText(this, R.string.info_value_block_rewritten,
+                    Toast.LENGTH_LONG).show();
+        } else {
+            Toast.makeText(this, R.string.info_write_successful,
+                    Toast.LENGTH_LONG).show();
+        }
         finish();
     }
 
-    private byte[] encodeValueBlock(int value, int addr) {
-        // Build 16 bytes: V(4 LE) | ~V(4 LE) | V(4 LE) | addr | ~addr | addr | ~addr
-        byte[] v  = java.nio.ByteBuffer.allocate(4).putInt(Integer.reverseBytes(value)).array();
-        byte[] nv = java.nio.ByteBuffer.allocate(4).putInt(Integer.reverseBytes(~value)).array();
-        byte a    = (byte)(addr & 0xFF);
-        byte na   = (byte)(~a);
-        byte[] out = new byte[16];
-        System.arraycopy(v,  0, out, 0, 4);
-        System.arraycopy(nv, 0, out, 4, 4);
-        System.arraycopy(v,  0, out, 8, 4);
-        out[12] = a;  out[13] = na;  out[14] = a;  out[15] = na;
-        return out;
-    }
-
     /**
      * Use the key map to validate permissions for the Value Block transfer/restore operation
      * and then perform the operation using
@@ -1653,7 +1784,7 @@ public class WriteTag extends BasicActivity {
         int destinationBlock = Integer.parseInt(mVtrDestBlock.getText().toString());
         int value = Integer.parseInt(mVtrValue.getText().toString());
         int address = Integer.parseInt(mVtrAddr.getText().toString(), 16);
-        byte[] vb = encodeValueBlock(value, address);
+        byte[] vb = Common.encodeValueBlock(value, address);
 
         // Do we have a key for the staging and the destination block?
         byte[][] stagingKeys = Common.getKeyMap().get(stagingSector);
@@ -1730,6 +1861,11 @@ public class WriteTag extends BasicActivity {
         // Do we have restore permissions of the staging block?
         int hasRestorePermission = reader.hasDecTransRestPermission(stagingSector, stagingBlock,
                 stagingKey, useAsKeyB);
+        if (hasRestorePermission == -2) {
+            // Tag lost.
+            Toast.makeText(this, R.string.info_key_map_error, Toast.LENGTH_LONG).show();
+            return;
+        }
         if (hasRestorePermission == 0 || hasRestorePermission == -1) {
             // Block has no restore permissions (or an unexpected error happened).
             Toast.makeText(this, R.string.info_no_restore_staging, Toast.LENGTH_LONG).show();
@@ -0,0 +1,691 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Write one dump (the template) to many tags, one after another.
+ * Everything that is the same for all tags (parsing the dump, loading
+ * the keys, the positions to write) is prepared once. Each tag is then
+ * provisioned with {@link #provision(MCReader, byte[])}: map the keys,
+ * check the Access Conditions, write and verify
+ * (see {@link MCReader#writeWithPlan(WritePlan)}).
+ * The template can have per-tag fields, like a counter
+ * ({@link #addCounterField(int, int, int, int, long)}) or a Value Block
+ * ({@link #addValueBlockField(int, int, int, int)}). The manufacturer
+ * block (sector 0, block 0) is never written.
+ * Each tag is appended to an audit log (JSON Lines, one object per tag).
+ * @author Gerhard Klostermeier
+ */
+public class BatchProvisioner {
+
+    private static final String LOG_TAG =
+            BatchProvisioner.class.getSimpleName();
+
+    /**
+     * Directory (relative to the home directory) of the audit logs.
+     */
+    public static final String AUDIT_LOG_DIR = "provisioning-logs";
+
+    /**
+     * Result: The tag was provisioned.
+     */
+    public static final int RESULT_OK = 0;
+    /**
+     * Result: The tag was the same as the last provisioned tag
+     * (it was not removed). Nothing was written.
+     */
+    public static final int RESULT_DUPLICATE = 1;
+    /**
+     * Result: The tag has less sectors than the template.
+     */
+    public static final int RESULT_TAG_TOO_SMALL = 2;
+    /**
+     * Result: Some blocks of the template can not be written (key not
+     * found or Access Conditions). Nothing was written.
+     */
+    public static final int RESULT_NOT_WRITABLE = 3;
+    /**
+     * Result: Error while writing (the tag might be partially written).
+     */
+    public static final int RESULT_WRITE_ERROR = 4;
+    /**
+     * Result: The tag was lost.
+     */
+    public static final int RESULT_TAG_LOST = 5;
+    /**
+     * Result: A per-tag field of this tag does not fit in its bytes
+     * (or in a Value Block). Nothing was written.
+     */
+    public static final int RESULT_OUT_OF_RANGE = 6;
+
+    private static final String[] RESULT_NAMES = {"ok", "duplicate",
+            "tag_too_small", "not_writable", "write_error", "tag_lost",
+            "out_of_range"};
+
+    /**
+     * The result of provisioning one tag.
+     */
+    public static final class Result {
+        private final int mCode;
+        private final byte[] mUid;
+        private final long mCardIndex;
+        private final boolean mCardIndexUsed;
+        private final int mBlocks;
+        private final int mRetries;
+        private final long mMapMs;
+        private final long mCheckMs;
+        private final long mWriteMs;
+        private final long mTotalMs;
+
+        private Result(int code, byte[] uid, long cardIndex,
+                boolean cardIndexUsed, int blocks, int retries, long mapMs,
+                long checkMs, long writeMs, long totalMs) {
+            mCode = code;
+            mUid = uid;
+            mCardIndex = cardIndex;
+            mCardIndexUsed = cardIndexUsed;
+            mBlocks = blocks;
+            mRetries = retries;
+            mMapMs = mapMs;
+            mCheckMs = checkMs;
+            mWriteMs = writeMs;
+            mTotalMs = totalMs;
+        }
+
+        /**
+         * @return One of the RESULT_* constants
+         * (e.g. {@link #RESULT_OK}).
+         */
+        public int getCode() {
+            return mCode;
+        }
+
+        /**
+         * @return The UID of the tag.
+         */
+        public byte[] getUid() {
+            return mUid;
+        }
+
+        /**
+         * @return The index of the tag in the batch (used for the
+         * per-tag fields).
+         */
+        public long getCardIndex() {
+            return mCardIndex;
+        }
+
+        /**
+         * @return True if the card index was used up by this tag. This is
+         * the case if something was written to the tag (even if the
+         * result is not {@link #RESULT_OK}), so that no two tags get the
+         * same per-tag fields.
+         */
+        public boolean isCardIndexUsed() {
+            return mCardIndexUsed;
+        }
+
+        /**
+         * @return Number of written blocks.
+         */
+        public int getBlockCount() {
+            return mBlocks;
+        }
+
+        /**
+         * @return Number of blocks that were written again
+         * (see {@link WritePlan#getRetryCount()}).
+         */
+        public int getRetryCount() {
+            return mRetries;
+        }
+
+        /**
+         * @return Duration of the key mapping in ms.
+         */
+        public long getMapMs() {
+            return mMapMs;
+        }
+
+        /**
+         * @return Duration of the Access Condition check in ms.
+         */
+        public long getCheckMs() {
+            return mCheckMs;
+        }
+
+        /**
+         * @return Duration of writing and verifying in ms.
+         */
+        public long getWriteMs() {
+            return mWriteMs;
+        }
+
+        /**
+         * @return Duration of the whole provisioning in ms.
+         */
+        public long getTotalMs() {
+            return mTotalMs;
+        }
+    }
+
+    /**
+     * A per-tag field of the template.
+     */
+    private static final class Field {
+        private final boolean mValueBlock;
+        private final int mSector;
+        private final int mBlock;
+        private final int mOffset;
+        private final int mLength;
+        private final long mStart;
+        private final long mStep;
+
+        private Field(boolean valueBlock, int sector, int block, int offset,
+                int length, long start, long step) {
+            mValueBlock = valueBlock;
+            mSector = sector;
+            mBlock = block;
+            mOffset = offset;
+            mLength = length;
+            mStart = start;
+            mStep = step;
+        }
+
+        /**
+         * @param cardIndex The index of the tag in the batch.
+         * @return The value of this field for the tag.
+         */
+        private long getValue(long cardIndex) {
+            return mStart + cardIndex * mStep;
+        }
+
+        /**
+         * @param cardIndex The index of the tag in the batch.
+         * @return True if the value of this field for the tag fits in
+         * the field (counters are unsigned, Value Blocks are signed
+         * 32 bit).
+         */
+        private boolean isInRange(long cardIndex) {
+            long value = getValue(cardIndex);
+            if (mValueBlock) {
+                return value >= Integer.MIN_VALUE
+                        && value <= Integer.MAX_VALUE;
+            }
+            return value >= 0
+                    && (mLength == 8 || value >>> (mLength * 8) == 0);
+        }
+
+        /**
+         * Write the value of this field for a tag to its block
+         * (see {@link #isInRange(long)}).
+         * @param block The data of the block (will be modified).
+         * @param cardIndex The index of the tag in the batch.
+         */
+        private void apply(byte[] block, long cardIndex) {
+            long value = getValue(cardIndex);
+            if (mValueBlock) {
+                // Use the block number as address.
+                int address = (mSector < 32) ? mSector * 4 + mBlock
+                        : 128 + (mSector - 32) * 16 + mBlock;
+                byte[] vb = Common.encodeValueBlock((int) value, address);
+                System.arraycopy(vb, 0, block, 0, 16);
+                return;
+            }
+            // Big endian.
+            for (int i = mLength - 1; i >= 0; i--) {
+                block[mOffset + i] = (byte) value;
+                value >>>= 8;
+            }
+        }
+    }
+
+    private final HashMap<Integer, HashMap<Integer, byte[]>> mTemplate;
+    private final HashMap<Integer, int[]> mDataPos;
+    private final int mFirstSector;
+    private final int mLastSector;
+    private final int mTemplateBlockCount;
+    private final KeyDictionary mKeys;
+    private final ReaderConfig mConfig;
+    private final File mAuditLog;
+    private final List<Field> mFields = new ArrayList<>();
+    private long mCardIndex = 0;
+    private byte[] mLastUid;
+
+    /**
+     * Prepare a batch.
+     * @param template The dump to write (key = sector, value = map of
+     * block and its 16 bytes, like in {@link
+     * de.syss.MifareClassicTool.Activities.WriteTag}).
+     * The manufacturer block is ignored.
+     * @param keys The keys for the key mapping. The keys of the template
+     * should be included (for tags that were already provisioned).
+     * @param config The configuration of the reader.
+     * @param auditLog The audit log. New entries are appended.
+     * Might be null (no audit log).
+     */
+    public BatchProvisioner(HashMap<Integer, HashMap<Integer, byte[]>> template,
+            KeyDictionary keys, ReaderConfig config, File auditLog) {
+        mTemplate = new HashMap<>();
+        mDataPos = new HashMap<>();
+        int blockCount = 0;
+        for (int sector : template.keySet()) {
+            HashMap<Integer, byte[]> blocks = new HashMap<>(
+                    template.get(sector));
+            if (sector == 0) {
+                blocks.remove(0);
+            }
+            if (blocks.isEmpty()) {
+                continue;
+            }
+            mTemplate.put(sector, blocks);
+            int[] pos = new int[blocks.size()];
+            int i = 0;
+            for (int block : blocks.keySet()) {
+                pos[i++] = block;
+            }
+            Arrays.sort(pos);
+            mDataPos.put(sector, pos);
+            blockCount += pos.length;
+        }
+        mTemplateBlockCount = blockCount;
+        mFirstSector = mTemplate.isEmpty() ? 0
+                : Collections.min(mTemplate.keySet());
+        mLastSector = mTemplate.isEmpty() ? -1
+                : Collections.max(mTemplate.keySet());
+        mKeys = keys;
+        mConfig = config;
+        mAuditLog = auditLog;
+    }
+
+    /**
+     * Add a counter to the template. The counter is stored big endian
+     * and increases with each provisioned tag.
+     * @param sector The sector of the counter.
+     * @param block The block (index in the sector) of the counter.
+     * It must be a data block of the template.
+     * @param offset The offset of the counter in the block.
+     * @param length The length of the counter in bytes (1-8).
+     * @param start The value of the counter for the first tag.
+     * It must fit in the length (and must not be negative).
+     * @return True if the field was added. False if the position
+     * or the start value is invalid.
+     */
+    public boolean addCounterField(int sector, int block, int offset,
+            int length, long start) {
+        if (!isDataBlock(sector, block) || length < 1 || length > 8
+                || offset < 0 || offset + length > 16) {
+            return false;
+        }
+        if (start < 0 || (length < 8 && start >>> (length * 8) != 0)) {
+            return false;
+        }
+        mFields.add(new Field(false, sector, block, offset, length,
+                start, 1));
+        return true;
+    }
+
+    /**
+     * Add a Value Block to the template. The whole block is replaced.
+     * @param sector The sector of the Value Block.
+     * @param block The block (index in the sector) of the Value Block.
+     * It must be a data block of the template.
+     * @param start The value for the first tag.
+     * @param step The value is changed by this for each tag
+     * (0 for the same value on all tags).
+     * @return True if the field was added. False if the position
+     * is invalid.
+     */
+    public boolean addValueBlockField(int sector, int block, int start,
+            int step) {
+        if (!isDataBlock(sector, block)) {
+            return false;
+        }
+        mFields.add(new Field(true, sector, block, 0, 16, start, step));
+        return true;
+    }
+
+    /**
+     * Add per-tag fields from a text. Fields are separated by ";".
+     * The formats are:
+     * <ul>
+     * <li>counter:&lt;sector&gt;:&lt;block&gt;:&lt;offset&gt;:&lt;length&gt;:&lt;start&gt;
+     * (see {@link #addCounterField(int, int, int, int, long)})</li>
+     * <li>value:&lt;sector&gt;:&lt;block&gt;:&lt;start&gt;:&lt;step&gt;
+     * (see {@link #addValueBlockField(int, int, int, int)})</li>
+     * </ul>
+     * Example: "counter:1:0:12:4:1000;value:2:1:500:0".
+     * @param fields The fields.
+     * @return True if all fields were added. False if one of them is
+     * invalid (the fields before the invalid one are added).
+     */
+    public boolean addFields(String fields) {
+        if (fields == null) {
+            return true;
+        }
+        for (String field : fields.split(";")) {
+            field = field.trim();
+            if (field.isEmpty()) {
+                continue;
+            }
+            String[] parts = field.split(":");
+            try {
+                boolean added;
+                if (parts[0].equals("counter") && parts.length == 6) {
+                    added = addCounterField(Integer.parseInt(parts[1]),
+                            Integer.parseInt(parts[2]),
+                            Integer.parseInt(parts[3]),
+                            Integer.parseInt(parts[4]),
+                            Long.parseLong(parts[5]));
+                } else if (parts[0].equals("value") && parts.length == 5) {
+                    added = addValueBlockField(Integer.parseInt(parts[1]),
+                            Integer.parseInt(parts[2]),
+                            Integer.parseInt(parts[3]),
+                            Integer.parseInt(parts[4]));
+                } else {
+                    added = false;
+                }
+                if (!added) {
+                    return false;
+                }
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Set the index of the next tag (e.g. to continue a batch of
+     * an earlier shift). The per-tag fields are computed from it.
+     * @param cardIndex The index of the next tag.
+     */
+    public synchronized void setCardIndex(long cardIndex) {
+        mCardIndex = cardIndex;
+    }
+
+    /**
+     * @return The index of the next tag. This is the number of
+     * provisioned tags (if the batch started at 0).
+     */
+    public synchronized long getCardIndex() {
+        return mCardIndex;
+    }
+
+    /**
+     * Check if the per-tag fields of a tag fit in their bytes. A counter
+     * or Value Block that would wrap around is an error (the tag would
+     * get the fields of another tag).
+     * @param cardIndex The index of the tag in the batch.
+     * @return True if all fields are in range.
+     */
+    public boolean isInRange(long cardIndex) {
+        for (Field field : mFields) {
+            if (!field.isInRange(cardIndex)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the data for a tag (the template with the per-tag fields)
+     * (see {@link #isInRange(long)}).
+     * @param cardIndex The index of the tag in the batch.
+     * @return The data (key = sector, value = map of block and data).
+     */
+    public HashMap<Integer, HashMap<Integer, byte[]>> getCardData(
+            long cardIndex) {
+        HashMap<Integer, HashMap<Integer, byte[]>> data =
+                new HashMap<>(mTemplate.size());
+        for (int sector : mTemplate.keySet()) {
+            data.put(sector, new HashMap<>(mTemplate.get(sector)));
+        }
+        for (Field field : mFields) {
+            HashMap<Integer, byte[]> blocks = data.get(field.mSector);
+            byte[] block = blocks.get(field.mBlock).clone();
+            field.apply(block, cardIndex);
+            blocks.put(field.mBlock, block);
+        }
+        return data;
+    }
+
+    /**
+     * Provision a tag: map the keys, check if all blocks of the template
+     * are writable, write and verify. Nothing is written if a block is
+     * not writable. The index of the next tag is advanced if the tag
+     * was provisioned or if anything was written to it (see
+     * {@link Result#isCardIndexUsed()}). The result is appended to the
+     * audit log.
+     * @param reader A connected reader for the tag. It will not be closed.
+     * @param uid The UID of the tag.
+     * @return The result.
+     */
+    public synchronized Result provision(MCReader reader, byte[] uid) {
+        long start = System.nanoTime();
+        long cardIndex = mCardIndex;
+        long mapMs = 0;
+        long checkMs = 0;
+        long writeMs = 0;
+        int blocks = 0;
+        int retries = 0;
+        boolean cardIndexUsed = false;
+        int code;
+
+        if (mLastUid != null && Arrays.equals(uid, mLastUid)) {
+            code = RESULT_DUPLICATE;
+        } else if (reader.getSectorCount() - 1 < mLastSector) {
+            code = RESULT_TAG_TOO_SMALL;
+        } else if (!isInRange(cardIndex)) {
+            code = RESULT_OUT_OF_RANGE;
+        } else {
+            // Map keys.
+            SparseArray<byte[][]> keyMap = mapKeys(reader);
+            mapMs = (System.nanoTime() - start) / 1000000;
+            long t = System.nanoTime();
+            HashMap<Integer, HashMap<Integer, Integer>> writeOnPos = null;
+            if (keyMap != null) {
+                writeOnPos = reader.isWritableOnPositions(mDataPos, keyMap);
+            }
+            checkMs = (System.nanoTime() - t) / 1000000;
+            if (keyMap == null || writeOnPos == null) {
+                code = RESULT_TAG_LOST;
+            } else if (!isWritable(writeOnPos, keyMap)) {
+                code = RESULT_NOT_WRITABLE;
+            } else {
+                // Write and verify.
+                t = System.nanoTime();
+                WritePlan plan = WritePlan.compile(writeOnPos, keyMap,
+                        getCardData(cardIndex));
+                int ret = reader.writeWithPlan(plan);
+                writeMs = (System.nanoTime() - t) / 1000000;
+                blocks = plan.getWrittenBlockCount();
+                retries = plan.getRetryCount();
+                if (ret == 0) {
+                    code = RESULT_OK;
+                    mLastUid = uid;
+                } else if (ret == -2) {
+                    code = RESULT_TAG_LOST;
+                } else {
+                    code = RESULT_WRITE_ERROR;
+                }
+                // A partially written tag might already carry the
+                // per-tag fields. Do not give them to the next tag.
+                // (A write command that failed might have been executed
+                // anyway. Therefore the commands are counted, not the
+                // verified blocks.)
+                if (ret == 0 || plan.getWriteCount() > 0) {
+                    cardIndexUsed = true;
+                    mCardIndex++;
+                }
+            }
+        }
+
+        Result result = new Result(code, uid, cardIndex, cardIndexUsed,
+                blocks, retries, mapMs, checkMs, writeMs,
+                (System.nanoTime() - start) / 1000000);
+        appendToAuditLog(result);
+        return result;
+    }
+
+    /**
+     * Map the keys of the sectors of the template.
+     * @param reader The reader.
+     * @return The key map or null on error (e.g. tag lost).
+     */
+    private SparseArray<byte[][]> mapKeys(MCReader reader) {
+        if (mConfig != null) {
+            reader.setConfig(mConfig);
+        }
+        if (reader.setKeyDictionary(mKeys) == 0
+                || !reader.setMappingRange(mFirstSector, mLastSector)) {
+            return null;
+        }
+        int sectorCount = mLastSector - mFirstSector + 1;
+        while (reader.getKeyMapProgress() < sectorCount) {
+            if (reader.buildNextKeyMapPart() == -1) {
+                return null;
+            }
+        }
+        return reader.getKeyMap();
+    }
+
+    /**
+     * Check if all blocks of the template can be written with
+     * the found keys.
+     * @param writeOnPos The result of {@link
+     * MCReader#isWritableOnPositions(HashMap, SparseArray)}.
+     * @param keyMap The key map.
+     * @return True if all blocks can be written.
+     */
+    private boolean isWritable(
+            HashMap<Integer, HashMap<Integer, Integer>> writeOnPos,
+            SparseArray<byte[][]> keyMap) {
+        int writable = 0;
+        for (int sector : mDataPos.keySet()) {
+            HashMap<Integer, Integer> blockInfo = writeOnPos.get(sector);
+            byte[][] keys = keyMap.get(sector);
+            if (blockInfo == null || keys == null) {
+                return false;
+            }
+            for (int block : mDataPos.get(sector)) {
+                Integer wi = blockInfo.get(block);
+                if (wi == null) {
+                    return false;
+                }
+                boolean keyA = keys[0] != null;
+                boolean keyB = keys[1] != null;
+                boolean ok;
+                switch (wi) {
+                    case 1:
+                    case 4:
+                        ok = keyA;
+                        break;
+                    case 2:
+                    case 5:
+                    case 6:
+                        ok = keyB;
+                        break;
+                    case 3:
+                        ok = keyA || keyB;
+                        break;
+                    default:
+                        // Never writable or error.
+                        ok = false;
+                }
+                if (!ok) {
+                    return false;
+                }
+                writable++;
+            }
+        }
+        return writable == mTemplateBlockCount;
+    }
+
+    /**
+     * Append a result to the audit log (one JSON object per line).
+     * Errors are only logged, they do not stop the batch.
+     * @param result The result.
+     */
+    private void appendToAuditLog(Result result) {
+        if (mAuditLog == null) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"time\": ").append(System.currentTimeMillis())
+                .append(", \"uid\": \"")
+                .append(Common.bytes2Hex(result.getUid()))
+                .append("\", \"card\": ").append(result.getCardIndex())
+                .append(", \"card_used\": ").append(result.isCardIndexUsed())
+                .append(", \"result\": \"")
+                .append(RESULT_NAMES[result.getCode()]).append("\"");
+        if (!mFields.isEmpty()) {
+            sb.append(", \"fields\": [");
+            for (int i = 0; i < mFields.size(); i++) {
+                sb.append((i == 0) ? "" : ", ")
+                        .append(mFields.get(i).getValue(
+                                result.getCardIndex()));
+            }
+            sb.append("]");
+        }
+        sb.append(String.format(Locale.US, ", \"blocks\": %d, "
+                + "\"retries\": %d, \"map_ms\": %d, \"check_ms\": %d, "
+                + "\"write_ms\": %d, \"total_ms\": %d}\n",
+                result.getBlockCount(), result.getRetryCount(),
+                result.getMapMs(), result.getCheckMs(), result.getWriteMs(),
+                result.getTotalMs()));
+        File dir = mAuditLog.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            Log.e(LOG_TAG, "Error while creating the audit log directory.");
+            return;
+        }
+        try (OutputStream out = new FileOutputStream(mAuditLog, true)) {
+            out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while writing the audit log.", e);
+        }
+    }
+
+    /**
+     * @param sector The sector.
+     * @param block The block (index in the sector).
+     * @return True if the block is a data block of the template.
+     */
+    private boolean isDataBlock(int sector, int block) {
+        HashMap<Integer, byte[]> blocks = mTemplate.get(sector);
+        int trailer = (sector < 32) ? 3 : 15;
+        return blocks != null && block != trailer
+                && blocks.get(block) != null;
+    }
+}
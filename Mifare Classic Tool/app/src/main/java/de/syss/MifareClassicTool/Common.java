@@ -148,6 +148,26 @@ public class Common extends Application {
 
     private static final String LOG_TAG = Common.class.getSimpleName();
 
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    /**
+     * The result of {@link #getOperationRequirements(int, Operation,
+     * boolean, boolean)} for each combination of Access Condition bits,
+     * operation, Sector Trailer flag and key B readable flag.
+     */
+    private static final byte[] OPERATION_REQUIREMENTS =
+            buildOperationRequirements();
+
+    /**
+     * Hex digits used by {@link #bytes2Hex(byte[])} and {@link TagImage}.
+     */
+    static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * The prefix of a sector header in a dump (e.g. "+Sector: 1").
+     */
+    static final String SECTOR_HEADER = "+Sector: ";
+
     /**
      * The last detected tag.
      * Set by {@link #treatAsNewTag(Intent, Context)}
@@ -282,6 +302,21 @@ public class Common extends Application {
                 + HOME_DIR + "/" + relativePath);
     }
 
+    /**
+     * Create a File object with a path that consists of the apps cache
+     * directory and the relative path. The system might delete files in
+     * this directory at any time. Therefore it should only be used for
+     * data that can be recreated (e.g. the {@link KeyDictionary} index).
+     * @param relativePath The relative path that gets appended to the
+     * base path.
+     * @return A File object with the absolute path of app cache directory +
+     * relativePath.
+     * @see Context#getCacheDir()
+     */
+    public static File getCacheFile(String relativePath) {
+        return new File(mAppContext.getCacheDir(), relativePath);
+    }
+
     /**
      * Read a file line by line. The file should be a simple text file.
      * Empty lines will not be read.
@@ -503,6 +538,7 @@ public class Common extends Application {
                         if (Common.saveFile(file, lines, false)) {
                             Toast.makeText(context, R.string.info_save_successful,
                                     Toast.LENGTH_LONG).show();
+                            updateKeyIndex(file, isDump);
                             activity.onSaveSuccessful();
                         } else {
                             Toast.makeText(context, R.string.info_save_error,
@@ -516,6 +552,7 @@ public class Common extends Application {
                         if (Common.saveFileAppend(file, lines, isDump)) {
                             Toast.makeText(context, R.string.info_save_successful,
                                     Toast.LENGTH_LONG).show();
+                            updateKeyIndex(file, isDump);
                             activity.onSaveSuccessful();
                         } else {
                             Toast.makeText(context, R.string.info_save_error,
@@ -532,6 +569,7 @@ public class Common extends Application {
             if (Common.saveFile(file, lines, false)) {
                 Toast.makeText(context, R.string.info_save_successful,
                         Toast.LENGTH_LONG).show();
+                updateKeyIndex(file, isDump);
                 activity.onSaveSuccessful();
             } else {
                 Toast.makeText(context, R.string.info_save_error,
@@ -541,6 +579,20 @@ public class Common extends Application {
         }
     }
 
+    /**
+     * Rebuild the {@link KeyDictionary} index of a key file after it
+     * was saved. This is a helper function for
+     * {@link #checkFileExistenceAndSave(File, String[], boolean, Context,
+     * IActivityThatReactsToSave)}.
+     * @param file The saved file.
+     * @param isDump True if the file is a dump (nothing to do).
+     */
+    private static void updateKeyIndex(File file, boolean isDump) {
+        if (!isDump) {
+            KeyDictionary.compile(file);
+        }
+    }
+
     /**
      * Append an array of strings (each field is one line) to a given file.
      * @param file The file to write to.
@@ -1091,6 +1143,10 @@ public class Common extends Application {
     /**
      * Depending on the provided Access Conditions, this method will return
      * which key is required to achieve the operation ({@link Operation}).
+     * The result is looked up in a precomputed table
+     * (see {@link #computeOperationRequirements(byte, byte, byte, Operation,
+     * boolean, boolean)} for the rules). To check all blocks of a sector,
+     * {@link SectorPermissions} is faster.
      * @param c1 Access Condition bit "C1".
      * @param c2 Access Condition bit "C2".
      * @param c3 Access Condition bit "C3".
@@ -1108,6 +1164,102 @@ public class Common extends Application {
      */
     public static int getOperationRequirements (byte c1, byte c2, byte c3,
                 Operation op, boolean isSectorTrailer, boolean isKeyBReadable) {
+        if (((c1 | c2 | c3) & ~1) != 0) {
+            // Invalid Access Condition bits. (Only the check of the
+            // operation comes first for Sector Trailers.)
+            return (isSectorTrailer && !isSectorTrailerOperation(op))
+                    ? 4 : -1;
+        }
+        return getOperationRequirements((c1 << 2) | (c2 << 1) | c3,
+                op, isSectorTrailer, isKeyBReadable);
+    }
+
+    /**
+     * Same as {@link #getOperationRequirements(byte, byte, byte, Operation,
+     * boolean, boolean)}, but with the Access Condition bits of a block
+     * in one value.
+     * @param accessBits The Access Condition bits (C1 &lt;&lt; 2 |
+     * C2 &lt;&lt; 1 | C3).
+     * @param op The operation you want to do.
+     * @param isSectorTrailer True if it is a Sector Trailer, False otherwise.
+     * @param isKeyBReadable True if key B is readable, False otherwise.
+     * @return See {@link #getOperationRequirements(byte, byte, byte,
+     * Operation, boolean, boolean)}.
+     */
+    static int getOperationRequirements(int accessBits, Operation op,
+            boolean isSectorTrailer, boolean isKeyBReadable) {
+        return OPERATION_REQUIREMENTS[operationIndex(accessBits, op.ordinal(),
+                isSectorTrailer, isKeyBReadable)];
+    }
+
+    /**
+     * Get the index of an entry in {@link #OPERATION_REQUIREMENTS}.
+     * @param accessBits The Access Condition bits (0-7).
+     * @param op The ordinal of the operation.
+     * @param isSectorTrailer True if it is a Sector Trailer.
+     * @param isKeyBReadable True if key B is readable.
+     * @return The index.
+     */
+    private static int operationIndex(int accessBits, int op,
+            boolean isSectorTrailer, boolean isKeyBReadable) {
+        return (((accessBits * OPERATIONS.length + op) << 2)
+                | (isSectorTrailer ? 2 : 0) | (isKeyBReadable ? 1 : 0));
+    }
+
+    /**
+     * Build {@link #OPERATION_REQUIREMENTS} from the rules in
+     * {@link #computeOperationRequirements(byte, byte, byte, Operation,
+     * boolean, boolean)}.
+     * @return The table.
+     */
+    private static byte[] buildOperationRequirements() {
+        byte[] table = new byte[8 * OPERATIONS.length * 4];
+        for (int bits = 0; bits < 8; bits++) {
+            for (Operation op : OPERATIONS) {
+                for (int flags = 0; flags < 4; flags++) {
+                    boolean trailer = (flags & 2) != 0;
+                    boolean keyBReadable = (flags & 1) != 0;
+                    table[operationIndex(bits, op.ordinal(), trailer,
+                            keyBReadable)] =
+                    (byte) computeOperationRequirements(
+                            (byte) (bits >> 2), (byte) ((bits >> 1) & 1),
+                            (byte) (bits & 1), op, trailer, keyBReadable);
+                }
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Check if an operation is a Sector Trailer operation.
+     * @param op The operation.
+     * @return True for the operations on keys and Access Conditions.
+     */
+    static boolean isSectorTrailerOperation(Operation op) {
+        return op == Operation.ReadKeyA || op == Operation.ReadKeyB
+                || op == Operation.ReadAC
+                || op == Operation.WriteKeyA
+                || op == Operation.WriteKeyB
+                || op == Operation.WriteAC;
+    }
+
+    /**
+     * The rules of the Access Conditions (see
+     * {@link #getOperationRequirements(byte, byte, byte, Operation, boolean,
+     * boolean)}). They are only evaluated once to build
+     * {@link #OPERATION_REQUIREMENTS}.
+     * @param c1 Access Condition bit "C1".
+     * @param c2 Access Condition bit "C2".
+     * @param c3 Access Condition bit "C3".
+     * @param op The operation you want to do.
+     * @param isSectorTrailer True if it is a Sector Trailer, False otherwise.
+     * @param isKeyBReadable True if key B is readable, False otherwise.
+     * @return See {@link #getOperationRequirements(byte, byte, byte,
+     * Operation, boolean, boolean)}.
+     */
+    private static int computeOperationRequirements(byte c1, byte c2,
+            byte c3, Operation op, boolean isSectorTrailer,
+            boolean isKeyBReadable) {
         // Is Sector Trailer?
         if (isSectorTrailer) {
             // Sector Trailer.
@@ -1261,36 +1413,16 @@ public class Common extends Application {
      * null will be returned.
      */
     public static byte[][] acBytesToACMatrix(byte[] acBytes) {
-        if (acBytes == null) {
-            return null;
-        }
         // ACs correct?
         // C1 (Byte 7, 4-7) == ~C1 (Byte 6, 0-3) and
         // C2 (Byte 8, 0-3) == ~C2 (Byte 6, 4-7) and
         // C3 (Byte 8, 4-7) == ~C3 (Byte 7, 0-3)
-        byte[][] acMatrix = new byte[3][4];
-        if (acBytes.length > 2 &&
-                (byte)((acBytes[1]>>>4)&0x0F)  ==
-                        (byte)((acBytes[0]^0xFF)&0x0F) &&
-                (byte)(acBytes[2]&0x0F) ==
-                        (byte)(((acBytes[0]^0xFF)>>>4)&0x0F) &&
-                (byte)((acBytes[2]>>>4)&0x0F)  ==
-                        (byte)((acBytes[1]^0xFF)&0x0F)) {
-            // C1, Block 0-3
-            for (int i = 0; i < 4; i++) {
-                acMatrix[0][i] = (byte)((acBytes[1]>>>4+i)&0x01);
-            }
-            // C2, Block 0-3
-            for (int i = 0; i < 4; i++) {
-                acMatrix[1][i] = (byte)((acBytes[2]>>>i)&0x01);
-            }
-            // C3, Block 0-3
-            for (int i = 0; i < 4; i++) {
-                acMatrix[2][i] = (byte)((acBytes[2]>>>4+i)&0x01);
-            }
-            return acMatrix;
+        // This is checked (and the result is cached) by SectorPermissions.
+        SectorPermissions permissions = SectorPermissions.decode(acBytes);
+        if (permissions == null) {
+            return null;
         }
-        return null;
+        return permissions.toACMatrix();
     }
 
     /**
@@ -1377,8 +1509,7 @@ public class Common extends Application {
      * @return True if string is hex. False otherwise.
      */
     public static boolean isHex(String hex, Context context) {
-        if (!(hex != null && hex.length() % 2 == 0
-                && hex.matches("[0-9A-Fa-f]+"))) {
+        if (!isHexString(hex)) {
             // Error, not hex.
             Toast.makeText(context, R.string.info_not_hex_data,
                     Toast.LENGTH_LONG).show();
@@ -1413,6 +1544,29 @@ public class Common extends Application {
         return false;
     }
 
+    /**
+     * Encode an integer as Value Block
+     * (see {@link #isValueBlock(String)}).
+     * @param value The value.
+     * @param addr The address byte (e.g. the number of the block).
+     * @return The Value Block (16 bytes):
+     * V (4 bytes, little endian) | ~V | V | addr | ~addr | addr | ~addr.
+     */
+    public static byte[] encodeValueBlock(int value, int addr) {
+        byte[] vb = new byte[16];
+        for (int i = 0; i < 4; i++) {
+            byte b = (byte) (value >>> (8 * i));
+            vb[i] = b;
+            vb[i + 4] = (byte) ~b;
+            vb[i + 8] = b;
+        }
+        vb[12] = (byte) addr;
+        vb[13] = (byte) ~addr;
+        vb[14] = (byte) addr;
+        vb[15] = (byte) ~addr;
+        return vb;
+    }
+
     /**
      * Check if all blocks (lines) contain valid data.
      * @param lines Blocks (incl. their sector header, e.g. "+Sector: 1").
@@ -1432,7 +1586,7 @@ public class Common extends Application {
      * </ul>
      */
     public static int isValidDump(String[] lines, boolean ignoreAsterisk) {
-        ArrayList<Integer> knownSectors = new ArrayList<>();
+        boolean[] knownSectors = new boolean[100];
         int blocksSinceLastSectorHeader = 4;
         boolean is16BlockSector = false;
         if (lines == null || lines.length == 0) {
@@ -1443,29 +1597,22 @@ public class Common extends Application {
             if ((!is16BlockSector && blocksSinceLastSectorHeader == 4)
                     || (is16BlockSector && blocksSinceLastSectorHeader == 16)) {
                 // A sector header is expected.
-                if (!line.matches("^\\+Sector: [0-9]{1,2}$")) {
+                int sector = parseSectorHeader(line);
+                if (sector == -1) {
                     // Not a valid sector length or not a valid sector header.
                     return 1;
                 }
-                int sector;
-                try {
-                    sector = Integer.parseInt(line.split(": ")[1]);
-                } catch (Exception ex) {
-                    // Not a valid sector header.
-                    // Should not occur due to the previous check (regex).
-                    return 1;
-                }
-                if (sector < 0 || sector > 39) {
+                if (sector > 39) {
                     // Sector out of range.
                     return 4;
                 }
-                if (knownSectors.contains(sector)) {
+                if (knownSectors[sector]) {
                     // Two times the same sector number (index).
                     // Maybe this is a file containing multiple dumps
                     // (the dump editor->save->append function was used).
                     return 5;
                 }
-                knownSectors.add(sector);
+                knownSectors[sector] = true;
                 is16BlockSector = (sector >= 32);
                 blocksSinceLastSectorHeader = 0;
                 continue;
@@ -1477,7 +1624,7 @@ public class Common extends Application {
                 blocksSinceLastSectorHeader = 4;
                 continue;
             }
-            if (!line.matches("[0-9A-Fa-f-]+")) {
+            if (!isHexChars(line, 0, line.length(), true)) {
                 // Not pure hex (or NO_DATA).
                 return 2;
             }
@@ -1512,7 +1659,10 @@ public class Common extends Application {
             if (line.startsWith("#")) {
                 continue;
             }
-            line = line.split("#")[0];
+            int commentStart = line.indexOf('#');
+            if (commentStart != -1) {
+                line = line.substring(0, commentStart);
+            }
 
             // Ignore leading/tailing whitespaces.
             line = line.trim();
@@ -1523,7 +1673,7 @@ public class Common extends Application {
             }
 
             // Is hex?
-            if (!line.matches("[0-9A-Fa-f]+")) {
+            if (!isHexChars(line, 0, line.length(), false)) {
                 return 2;
             }
 
@@ -1772,8 +1922,7 @@ public class Common extends Application {
      * @return String representation of the decimal value of hexString.
      */
     public static String hex2Dec(String hex) {
-        if (!(hex != null && hex.length() % 2 == 0
-                && hex.matches("[0-9A-Fa-f]+"))) {
+        if (!isHexString(hex)) {
             return null;
         }
         String ret;
@@ -1794,13 +1943,15 @@ public class Common extends Application {
      * @return The bytes in hex string format.
      */
     public static String bytes2Hex(byte[] bytes) {
-        StringBuilder ret = new StringBuilder();
-        if (bytes != null) {
-            for (Byte b : bytes) {
-                ret.append(String.format("%02X", b.intValue() & 0xFF));
-            }
+        if (bytes == null) {
+            return "";
         }
-        return ret.toString();
+        char[] ret = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            ret[i * 2] = HEX_DIGITS[(bytes[i] >>> 4) & 0x0F];
+            ret[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0x0F];
+        }
+        return new String(ret);
     }
 
     /**
@@ -1810,35 +1961,111 @@ public class Common extends Application {
      * @return An array of bytes with the values of the string.
      */
     public static byte[] hex2Bytes(String hex) {
-        if (!(hex != null && hex.length() % 2 == 0
-                && hex.matches("[0-9A-Fa-f]+"))) {
+        if (hex == null || hex.isEmpty() || hex.length() % 2 != 0) {
             return null;
         }
         int len = hex.length();
         byte[] data = new byte[len / 2];
-        try {
-            for (int i = 0; i < len; i += 2) {
-                data[i / 2] = (byte) ((Character.digit(hex.charAt(i), 16) << 4)
-                                     + Character.digit(hex.charAt(i+1), 16));
+        for (int i = 0; i < len; i += 2) {
+            int high = hexDigit(hex.charAt(i));
+            int low = hexDigit(hex.charAt(i + 1));
+            if (high == -1 || low == -1) {
+                // Not a hex string.
+                return null;
             }
-        } catch (Exception e) {
-            Log.d(LOG_TAG, "Argument(s) for hexStringToByteArray(String s)"
-                    + "was not a hex string");
+            data[i / 2] = (byte) ((high << 4) + low);
         }
         return data;
     }
 
+    /**
+     * Check if a string is a non empty hex string (0-9, A-F, a-f) with an
+     * even number of characters. This is way faster than using a regular
+     * expression and does not allocate any memory.
+     * @param hex The string to check.
+     * @return True if the string is hex. False otherwise.
+     */
+    public static boolean isHexString(String hex) {
+        return hex != null && !hex.isEmpty() && hex.length() % 2 == 0
+                && isHexChars(hex, 0, hex.length(), false);
+    }
+
+    /**
+     * Check if a part of a string only contains hex characters.
+     * @param s The string to check.
+     * @param from First index to check (inclusive).
+     * @param to Last index to check (exclusive).
+     * @param allowDash If true, "-" (used by {@link MCReader#NO_DATA}
+     * and {@link MCReader#NO_KEY}) is accepted too.
+     * @return True if all characters are hex (or "-"). False if there is
+     * another character or the range is empty.
+     */
+    private static boolean isHexChars(String s, int from, int to,
+            boolean allowDash) {
+        if (from >= to) {
+            return false;
+        }
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (hexDigit(c) == -1 && !(allowDash && c == '-')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the value of a hex digit.
+     * @param c The hex digit (0-9, A-F, a-f).
+     * @return The value of the digit or -1 if it is not a hex digit.
+     */
+    static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
+    /**
+     * Parse a sector header of a dump (e.g. "+Sector: 1").
+     * @param line The line to parse.
+     * @return The sector number (0-99) or -1 if the line is not a valid
+     * sector header.
+     */
+    static int parseSectorHeader(String line) {
+        int len = line.length();
+        int start = SECTOR_HEADER.length();
+        if (!line.startsWith(SECTOR_HEADER)
+                || len < start + 1 || len > start + 2) {
+            return -1;
+        }
+        int sector = 0;
+        for (int i = start; i < len; i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            sector = sector * 10 + (c - '0');
+        }
+        return sector;
+    }
+
     /**
      * Convert a hex string to ASCII string.
      * @param hex Hex string to convert.
      * @return Converted ASCII string. Null on error.
      */
     public static String hex2Ascii(String hex) {
-        if (!(hex != null && hex.length() % 2 == 0
-                && hex.matches("[0-9A-Fa-f]+"))) {
+        byte[] bytes = hex2Bytes(hex);
+        if (bytes == null) {
             return null;
         }
-        byte[] bytes = hex2Bytes(hex);
         String ret;
         // Replace non printable ASCII with ".".
         for(int i = 0; i < bytes.length; i++) {
@@ -1874,8 +2101,7 @@ public class Common extends Application {
      * @return Converted binary string.
      */
     public static String hex2Bin(String hex) {
-        if (!(hex != null && hex.length() % 2 == 0
-                && hex.matches("[0-9A-Fa-f]+"))) {
+        if (!isHexString(hex)) {
             return null;
         }
         String bin = new BigInteger(hex, 16).toString(2);
@@ -0,0 +1,474 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A set of MIFARE Classic keys loaded from one or more key files.
+ * Keys are stored as 48 bit values in a long array (in the order of the
+ * key files) without duplicates. For each key, the index of the key file
+ * it was first found in is stored.<br />
+ * Parsing key files is slow for large dictionaries. Therefore each
+ * key file is compiled into a binary index ({@link #compile(File)}) in the
+ * cache directory ({@link #INDEX_DIR}). The index is rebuilt if the key file
+ * has changed. The binary format is:
+ * <ul>
+ * <li>4 byte magic ("MCTK")</li>
+ * <li>4 byte version</li>
+ * <li>8 byte length of the key file</li>
+ * <li>8 byte last modification time of the key file</li>
+ * <li>4 byte number of keys</li>
+ * <li>6 byte per key (big endian, no duplicates)</li>
+ * </ul>
+ * @author Gerhard Klostermeier
+ */
+public class KeyDictionary {
+
+    private static final String LOG_TAG =
+            KeyDictionary.class.getSimpleName();
+
+    /**
+     * Directory (relative to the cache directory) for the compiled
+     * key files.
+     * @see Common#getCacheFile(String)
+     */
+    public static final String INDEX_DIR = "key-index";
+
+    private static final int MAGIC = 0x4D43544B;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 28;
+    private static final int KEY_SIZE = 6;
+    private static final long EMPTY = -1L;
+
+    /**
+     * Directory of the indices if they should not be stored in
+     * {@link #INDEX_DIR} of the cache directory. Only used by the
+     * benchmarks, which run without an app context.
+     */
+    static File sIndexDir;
+
+    private final File[] mSourceFiles;
+    private long[] mKeys = new long[64];
+    private short[] mSources = new short[64];
+    private int mSize = 0;
+    /**
+     * Open addressing hash table (linear probing) for duplicate detection.
+     */
+    private long[] mTable = newTable(128);
+
+    /**
+     * Create an empty dictionary.
+     * @param sourceFiles The key files the keys will come from.
+     */
+    private KeyDictionary(File[] sourceFiles) {
+        mSourceFiles = sourceFiles;
+    }
+
+    /**
+     * Load the keys of the given key files. Up to date indices
+     * of the key files will be used. Missing or outdated indices will be
+     * (re)built. Key files that do not exist will be ignored.
+     * @param keyFiles The key files. The order of the keys will be
+     * the order of the key files and the keys within the files.
+     * @return The dictionary (may be empty).
+     */
+    public static KeyDictionary load(File[] keyFiles) {
+        KeyDictionary dictionary = new KeyDictionary(keyFiles.clone());
+        for (int i = 0; i < keyFiles.length; i++) {
+            File keyFile = keyFiles[i];
+            if (keyFile == null || !keyFile.isFile()) {
+                continue;
+            }
+            File index = getIndexFile(keyFile);
+            if ((isIndexUpToDate(index, keyFile) || compile(keyFile))
+                    && dictionary.addFromIndex(index, i)) {
+                continue;
+            }
+            // Index not usable. Parse the key file directly.
+            long[] keys = parseKeyFile(keyFile);
+            if (keys != null) {
+                for (long key : keys) {
+                    dictionary.add(key, i);
+                }
+            }
+        }
+        return dictionary;
+    }
+
+    /**
+     * Compile a key file into its binary index. This should be called
+     * whenever a key file was changed. (If not, it will be called by
+     * {@link #load(File[])} the next time the key file is used.)
+     * @param keyFile The key file.
+     * @return True if the index was written. False otherwise.
+     * @see #getIndexFile(File)
+     */
+    public static boolean compile(File keyFile) {
+        if (keyFile == null || !keyFile.isFile()) {
+            return false;
+        }
+        long length = keyFile.length();
+        long lastModified = keyFile.lastModified();
+        long[] keys = parseKeyFile(keyFile);
+        if (keys == null) {
+            return false;
+        }
+        KeyDictionary dictionary = new KeyDictionary(new File[] {keyFile});
+        for (long key : keys) {
+            dictionary.add(key, 0);
+        }
+
+        File index = getIndexFile(keyFile);
+        File dir = index.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            return false;
+        }
+        // Write to a temporary file first, so that an incomplete index is
+        // never used.
+        File tmp = new File(index.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(length);
+            out.writeLong(lastModified);
+            out.writeInt(dictionary.mSize);
+            for (int i = 0; i < dictionary.mSize; i++) {
+                long key = dictionary.mKeys[i];
+                out.writeShort((int) (key >>> 32));
+                out.writeInt((int) key);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while writing key file index.", e);
+            tmp.delete();
+            return false;
+        }
+        if (!tmp.renameTo(index)) {
+            tmp.delete();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get the location of the binary index of a key file.
+     * @param keyFile The key file.
+     * @return The index file in {@link #INDEX_DIR}.
+     */
+    public static File getIndexFile(File keyFile) {
+        String path = keyFile.getAbsolutePath();
+        String name = keyFile.getName() + "-"
+                + Integer.toHexString(path.hashCode()) + ".idx";
+        if (sIndexDir != null) {
+            return new File(sIndexDir, name);
+        }
+        return Common.getCacheFile(INDEX_DIR + "/" + name);
+    }
+
+    /**
+     * Get the number of (distinct) keys.
+     * @return Number of keys.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Get a key.
+     * @param index Index of the key (0 to {@link #size()} - 1).
+     * @return The key as 48 bit value.
+     */
+    public long getKey(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Key out of bounds: " + index);
+        }
+        return mKeys[index];
+    }
+
+    /**
+     * Get the key file a key was (first) found in.
+     * @param index Index of the key (0 to {@link #size()} - 1).
+     * @return The key file.
+     */
+    public File getSourceFile(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Key out of bounds: " + index);
+        }
+        return mSourceFiles[mSources[index]];
+    }
+
+    /**
+     * Check if a key is part of the dictionary.
+     * @param key The key as 48 bit value.
+     * @return True if the key is part of the dictionary.
+     */
+    public boolean contains(long key) {
+        int mask = mTable.length - 1;
+        for (int i = hash(key) & mask; mTable[i] != EMPTY; i = (i + 1) & mask) {
+            if (mTable[i] == key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get a copy of all keys in their order.
+     * @return All keys as 48 bit values.
+     */
+    public long[] toArray() {
+        return Arrays.copyOf(mKeys, mSize);
+    }
+
+    /**
+     * Convert a 6 byte key into a 48 bit value.
+     * @param key The key.
+     * @return The key as 48 bit value.
+     */
+    public static long toLong(byte[] key) {
+        long ret = 0;
+        for (int i = 0; i < KEY_SIZE; i++) {
+            ret = (ret << 8) | (key[i] & 0xFF);
+        }
+        return ret;
+    }
+
+    /**
+     * Convert a 48 bit value into a 6 byte key.
+     * @param key The key as 48 bit value.
+     * @param dest The array to store the key in.
+     * @param offset Offset within {@code dest}.
+     */
+    public static void toBytes(long key, byte[] dest, int offset) {
+        for (int i = KEY_SIZE - 1; i >= 0; i--) {
+            dest[offset + i] = (byte) key;
+            key >>>= 8;
+        }
+    }
+
+    /**
+     * Convert a 48 bit value into a 6 byte key.
+     * @param key The key as 48 bit value.
+     * @return The key.
+     */
+    public static byte[] toBytes(long key) {
+        byte[] ret = new byte[KEY_SIZE];
+        toBytes(key, ret, 0);
+        return ret;
+    }
+
+    /**
+     * Add a key if it is not already part of the dictionary.
+     * @param key The key as 48 bit value.
+     * @param source Index of the key file.
+     */
+    private void add(long key, int source) {
+        if ((mSize + 1) * 2 > mTable.length) {
+            rehash(mTable.length * 2);
+        }
+        int mask = mTable.length - 1;
+        int i = hash(key) & mask;
+        while (mTable[i] != EMPTY) {
+            if (mTable[i] == key) {
+                // Duplicate.
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        mTable[i] = key;
+        if (mSize == mKeys.length) {
+            mKeys = Arrays.copyOf(mKeys, mSize * 2);
+            mSources = Arrays.copyOf(mSources, mSize * 2);
+        }
+        mKeys[mSize] = key;
+        mSources[mSize] = (short) source;
+        mSize++;
+    }
+
+    /**
+     * Add all keys of an index file.
+     * @param index The index file.
+     * @param source Index of the key file.
+     * @return True if the index was read. False otherwise.
+     */
+    private boolean addFromIndex(File index, int source) {
+        try (RandomAccessFile file = new RandomAccessFile(index, "r");
+                FileChannel channel = file.getChannel()) {
+            MappedByteBuffer buffer = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.position(HEADER_SIZE - 4);
+            int count = buffer.getInt();
+            if (count < 0 || buffer.remaining() != (long) count * KEY_SIZE) {
+                return false;
+            }
+            ensureCapacity(mSize + count);
+            for (int i = 0; i < count; i++) {
+                long key = ((long) (buffer.getShort() & 0xFFFF) << 32)
+                        | (buffer.getInt() & 0xFFFFFFFFL);
+                add(key, source);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while reading key file index.", e);
+            return false;
+        }
+    }
+
+    /**
+     * Check if the index of a key file exists and was made from the current
+     * version of the key file.
+     * @param index The index file.
+     * @param keyFile The key file.
+     * @return True if the index is up to date.
+     */
+    private static boolean isIndexUpToDate(File index, File keyFile) {
+        if (!index.isFile() || index.length() < HEADER_SIZE) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new FileInputStream(index))) {
+            return in.readInt() == MAGIC
+                    && in.readInt() == VERSION
+                    && in.readLong() == keyFile.length()
+                    && in.readLong() == keyFile.lastModified();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Read all keys of a key file. The rules are the same as for
+     * {@link Common#readFileLineByLine(File, boolean, android.content.Context)}
+     * (leading/tailing whitespaces, empty lines and comments are ignored).
+     * Lines that are not 12 hex chars are skipped.
+     * @param keyFile The key file.
+     * @return All keys (including duplicates) or null on error.
+     */
+    private static long[] parseKeyFile(File keyFile) {
+        long[] keys = new long[64];
+        int count = 0;
+        try (BufferedReader reader = new BufferedReader(
+                new FileReader(keyFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int end = line.indexOf('#');
+                if (end == -1) {
+                    end = line.length();
+                }
+                // Ignore leading/tailing whitespaces (like String.trim()).
+                int start = 0;
+                while (start < end && line.charAt(start) <= ' ') {
+                    start++;
+                }
+                while (end > start && line.charAt(end - 1) <= ' ') {
+                    end--;
+                }
+                if (end - start != KEY_SIZE * 2) {
+                    continue;
+                }
+                long key = 0;
+                for (int i = start; i < end; i++) {
+                    int digit = Common.hexDigit(line.charAt(i));
+                    if (digit == -1) {
+                        key = -1;
+                        break;
+                    }
+                    key = (key << 4) | digit;
+                }
+                if (key == -1) {
+                    continue;
+                }
+                if (count == keys.length) {
+                    keys = Arrays.copyOf(keys, count * 2);
+                }
+                keys[count++] = key;
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while reading key file.", e);
+            return null;
+        }
+        return Arrays.copyOf(keys, count);
+    }
+
+    /**
+     * Make sure there is room for the given number of keys
+     * without resizing.
+     * @param capacity Number of keys.
+     */
+    private void ensureCapacity(int capacity) {
+        if (capacity > mKeys.length) {
+            mKeys = Arrays.copyOf(mKeys, capacity);
+            mSources = Arrays.copyOf(mSources, capacity);
+        }
+        if (capacity * 2 > mTable.length) {
+            rehash(Integer.highestOneBit(capacity * 2 - 1) << 1);
+        }
+    }
+
+    /**
+     * Rebuild the hash table with a new size.
+     * @param size New size (power of 2).
+     */
+    private void rehash(int size) {
+        mTable = newTable(size);
+        int mask = size - 1;
+        for (int j = 0; j < mSize; j++) {
+            int i = hash(mKeys[j]) & mask;
+            while (mTable[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            mTable[i] = mKeys[j];
+        }
+    }
+
+    /**
+     * Create an empty hash table.
+     * @param size Size (power of 2).
+     * @return The empty table.
+     */
+    private static long[] newTable(int size) {
+        long[] table = new long[size];
+        Arrays.fill(table, EMPTY);
+        return table;
+    }
+
+    /**
+     * Hash function for the keys (Fibonacci hashing).
+     * @param key The key as 48 bit value.
+     * @return The hash.
+     */
+    private static int hash(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32);
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persistent statistics about which keys were found for which sector,
+ * key type and kind of tag (see {@link #fingerprint(byte[], short, int)}).
+ * They are used by {@link MCReader#buildNextKeyMapPart()} to try the
+ * most promising keys first. Each hit adds 1 to the score of an entry
+ * and scores decay with a half-life of {@link #HALF_LIFE} (frequency
+ * weighted with recency decay).
+ * @author Gerhard Klostermeier
+ */
+public class KeyHitStats {
+
+    private static final String LOG_TAG = KeyHitStats.class.getSimpleName();
+
+    /**
+     * File (relative to {@link Common#HOME_DIR}) for the statistics.
+     */
+    public static final String STATS_FILE = "key-hit-stats.bin";
+    /**
+     * Half-life of the score of a hit in ms (30 days).
+     */
+    public static final long HALF_LIFE = 30L * 24 * 60 * 60 * 1000;
+
+    private static final int MAGIC = 0x4D43484B;
+    private static final int VERSION = 1;
+    private static final int MAX_ENTRIES = 4096;
+    /**
+     * Weight of hits from other sectors of the same kind of tag.
+     */
+    private static final double OTHER_SECTOR_WEIGHT = 0.25;
+    /**
+     * Weight of hits from other kinds of tags.
+     */
+    private static final double OTHER_TAG_WEIGHT = 0.05;
+
+    private static KeyHitStats mInstance;
+
+    private final File mFile;
+    private final ArrayList<Entry> mEntries = new ArrayList<>();
+    private boolean mChanged = false;
+
+    /**
+     * A key that was found for a sector, key type and kind of tag.
+     */
+    private static final class Entry {
+        int fingerprint;
+        int sector;
+        boolean keyB;
+        long key;
+        double score;
+        long lastHit;
+        int hits;
+
+        /**
+         * Get the score at a given time (with decay).
+         * @param now The time in ms.
+         * @return The score.
+         */
+        double scoreAt(long now) {
+            long age = Math.max(0, now - lastHit);
+            return score * Math.pow(0.5, (double) age / HALF_LIFE);
+        }
+    }
+
+    /**
+     * Create statistics that are stored in the given file. If the file
+     * exists, the statistics will be loaded from it.
+     * @param file The file to load from and save to.
+     */
+    public KeyHitStats(File file) {
+        mFile = file;
+        load();
+    }
+
+    /**
+     * Get the statistics of the app (stored in {@link #STATS_FILE}).
+     * @return The statistics.
+     */
+    public static synchronized KeyHitStats getInstance() {
+        if (mInstance == null) {
+            mInstance = new KeyHitStats(Common.getFile(STATS_FILE));
+        }
+        return mInstance;
+    }
+
+    /**
+     * Create a fingerprint for a kind of tag. Tags of the same system
+     * usually share the same ATQA, SAK and UID length.
+     * @param atqa The ATQA of the tag (may be null).
+     * @param sak The SAK of the tag.
+     * @param uidLength The length of the UID in bytes.
+     * @return The fingerprint.
+     */
+    public static int fingerprint(byte[] atqa, short sak, int uidLength) {
+        int ret = 0;
+        if (atqa != null && atqa.length >= 2) {
+            ret = ((atqa[0] & 0xFF) << 24) | ((atqa[1] & 0xFF) << 16);
+        }
+        return ret | ((sak & 0xFF) << 8) | (uidLength & 0xFF);
+    }
+
+    /**
+     * Record that a key was found.
+     * @param fingerprint The fingerprint of the tag
+     * (see {@link #fingerprint(byte[], short, int)}).
+     * @param sector The sector.
+     * @param keyB True if it was key B. False if it was key A.
+     * @param key The key as 48 bit value (see {@link KeyDictionary}).
+     */
+    public synchronized void recordHit(int fingerprint, int sector,
+            boolean keyB, long key) {
+        long now = System.currentTimeMillis();
+        Entry entry = null;
+        for (Entry e : mEntries) {
+            if (e.key == key && e.sector == sector && e.keyB == keyB
+                    && e.fingerprint == fingerprint) {
+                entry = e;
+                break;
+            }
+        }
+        if (entry == null) {
+            entry = new Entry();
+            entry.fingerprint = fingerprint;
+            entry.sector = sector;
+            entry.keyB = keyB;
+            entry.key = key;
+            mEntries.add(entry);
+        }
+        entry.score = entry.scoreAt(now) + 1;
+        entry.lastHit = now;
+        entry.hits++;
+        mChanged = true;
+    }
+
+    /**
+     * Get the most promising keys for a sector. Hits on the same sector
+     * of the same kind of tag count most. Hits on other sectors and other
+     * kinds of tags count less. Key A and key B hits are combined because
+     * {@link MCReader#buildNextKeyMapPart()} tries both with each key.
+     * @param fingerprint The fingerprint of the tag
+     * (see {@link #fingerprint(byte[], short, int)}).
+     * @param sector The sector.
+     * @param max Maximum number of keys to return.
+     * @return The keys (48 bit values), best first. Might be empty.
+     */
+    public synchronized long[] rankKeys(int fingerprint, int sector,
+            int max) {
+        long now = System.currentTimeMillis();
+        HashMap<Long, Double> scores = new HashMap<>();
+        for (Entry e : mEntries) {
+            double weight = (e.fingerprint == fingerprint)
+                    ? 1 : OTHER_TAG_WEIGHT;
+            if (e.sector != sector) {
+                weight *= OTHER_SECTOR_WEIGHT;
+            }
+            Double score = scores.get(e.key);
+            scores.put(e.key, ((score != null) ? score : 0)
+                    + weight * e.scoreAt(now));
+        }
+        ArrayList<Map.Entry<Long, Double>> ranked =
+                new ArrayList<>(scores.entrySet());
+        Collections.sort(ranked, (a, b) -> Double.compare(
+                b.getValue(), a.getValue()));
+        long[] ret = new long[Math.min(max, ranked.size())];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = ranked.get(i).getKey();
+        }
+        return ret;
+    }
+
+    /**
+     * Get the number of recorded hits.
+     * @return The number of hits (not decayed).
+     */
+    public synchronized int getHitCount() {
+        int ret = 0;
+        for (Entry e : mEntries) {
+            ret += e.hits;
+        }
+        return ret;
+    }
+
+    /**
+     * Remove all statistics (including the file).
+     * @return True if the file was removed or did not exist.
+     */
+    public synchronized boolean clear() {
+        mEntries.clear();
+        mChanged = false;
+        return !mFile.exists() || mFile.delete();
+    }
+
+    /**
+     * Save the statistics if they were changed. If there are more than
+     * {@link #MAX_ENTRIES}, the entries with the lowest score will
+     * be dropped.
+     * @return True if the statistics were saved (or there was nothing
+     * to save). False on error.
+     */
+    public synchronized boolean save() {
+        if (!mChanged) {
+            return true;
+        }
+        if (mEntries.size() > MAX_ENTRIES) {
+            final long now = System.currentTimeMillis();
+            Collections.sort(mEntries, (a, b) -> Double.compare(
+                    b.scoreAt(now), a.scoreAt(now)));
+            mEntries.subList(MAX_ENTRIES, mEntries.size()).clear();
+        }
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(mEntries.size());
+            for (Entry e : mEntries) {
+                out.writeInt(e.fingerprint);
+                out.writeByte(e.sector);
+                out.writeBoolean(e.keyB);
+                out.writeLong(e.key);
+                out.writeDouble(e.score);
+                out.writeLong(e.lastHit);
+                out.writeInt(e.hits);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while saving key hit statistics.", e);
+            tmp.delete();
+            return false;
+        }
+        if (!tmp.renameTo(mFile)) {
+            tmp.delete();
+            return false;
+        }
+        mChanged = false;
+        return true;
+    }
+
+    /**
+     * Load the statistics from {@link #mFile}. On error, the statistics
+     * will be empty.
+     */
+    private void load() {
+        if (!mFile.isFile()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count && i < MAX_ENTRIES; i++) {
+                Entry e = new Entry();
+                e.fingerprint = in.readInt();
+                e.sector = in.readUnsignedByte();
+                e.keyB = in.readBoolean();
+                e.key = in.readLong();
+                e.score = in.readDouble();
+                e.lastHit = in.readLong();
+                e.hits = in.readInt();
+                mEntries.add(e);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while loading key hit statistics.", e);
+            mEntries.clear();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import android.util.SparseArray;
+
+import java.util.Arrays;
+
+/**
+ * The keys found by several {@link MCReader}s that map the same tag
+ * (or clones of it) at the same time (see {@link ShardedKeyMapper}).
+ * The first key found for a sector and key type wins. The readers
+ * check the board between two keys, so they stop searching for keys
+ * that another reader already found, and they stop mapping if the
+ * board was canceled.
+ * @author Gerhard Klostermeier
+ * @see MCReader#setKeyMapBoard(KeyMapBoard)
+ */
+public class KeyMapBoard {
+
+    /**
+     * Value of a key that was not found (yet).
+     */
+    public static final long NO_KEY = -1;
+
+    private final long[] mKeysA = new long[TagImage.MAX_SECTORS];
+    private final long[] mKeysB = new long[TagImage.MAX_SECTORS];
+    private final boolean[] mKeyBIsData = new boolean[TagImage.MAX_SECTORS];
+    private volatile boolean mCanceled = false;
+
+    /**
+     * Create an empty board.
+     */
+    public KeyMapBoard() {
+        Arrays.fill(mKeysA, NO_KEY);
+        Arrays.fill(mKeysB, NO_KEY);
+    }
+
+    /**
+     * Add a found key. If there already is a key for this sector and
+     * key type, the key is ignored.
+     * @param sector The sector.
+     * @param keyB True for key B, false for key A.
+     * @param key The key.
+     * @return The key of the board for this sector and key type
+     * (the given key or the key that was found first).
+     */
+    public synchronized long offer(int sector, boolean keyB, long key) {
+        long[] keys = keyB ? mKeysB : mKeysA;
+        if (keys[sector] == NO_KEY) {
+            keys[sector] = key;
+        }
+        return keys[sector];
+    }
+
+    /**
+     * @param sector The sector.
+     * @param keyB True for key B, false for key A.
+     * @return The key or {@link #NO_KEY}.
+     */
+    public synchronized long getKey(int sector, boolean keyB) {
+        return keyB ? mKeysB[sector] : mKeysA[sector];
+    }
+
+    /**
+     * Key B of the sector is readable with key A, so it can not be used
+     * for authentication and there is no need to search for it.
+     * @param sector The sector.
+     */
+    public synchronized void setKeyBIsData(int sector) {
+        mKeyBIsData[sector] = true;
+    }
+
+    /**
+     * @param sector The sector.
+     * @return True if key B of the sector is readable with key A.
+     * @see #setKeyBIsData(int)
+     */
+    public synchronized boolean isKeyBData(int sector) {
+        return mKeyBIsData[sector];
+    }
+
+    /**
+     * Tell all readers that use this board to stop mapping.
+     */
+    public void cancel() {
+        mCanceled = true;
+    }
+
+    /**
+     * @return True if the board was canceled.
+     */
+    public boolean isCanceled() {
+        return mCanceled;
+    }
+
+    /**
+     * Get the found keys as key map (see {@link MCReader#getKeyMap()}).
+     * @param firstSector The first sector of the key map.
+     * @param lastSector The last sector of the key map.
+     * @return The key map. Sectors without keys are not included.
+     */
+    public synchronized SparseArray<byte[][]> toKeyMap(int firstSector,
+            int lastSector) {
+        SparseArray<byte[][]> keyMap = new SparseArray<>();
+        for (int i = firstSector; i <= lastSector; i++) {
+            if (mKeysA[i] == NO_KEY && mKeysB[i] == NO_KEY) {
+                continue;
+            }
+            byte[][] keys = new byte[2][];
+            if (mKeysA[i] != NO_KEY) {
+                keys[0] = KeyDictionary.toBytes(mKeysA[i]);
+            }
+            if (mKeysB[i] != NO_KEY) {
+                keys[1] = KeyDictionary.toBytes(mKeysB[i]);
+            }
+            keyMap.put(i, keys);
+        }
+        return keyMap;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of the key maps of recently mapped tags (least
+ * recently used tags will be dropped first). Tags are identified by
+ * UID, ATQA and SAK (see {@link #getId(byte[], byte[], short)}).
+ * {@link MCReader#buildNextKeyMapPart()} uses the cached keys of a
+ * sector (after checking them with one authentication per key) instead
+ * of trying all keys of the key files.
+ * @author Gerhard Klostermeier
+ */
+public class KeyMapCache {
+
+    private static final String LOG_TAG = KeyMapCache.class.getSimpleName();
+
+    /**
+     * File (relative to the cache directory) of the key map cache.
+     */
+    public static final String CACHE_FILE = "key-map-cache.bin";
+    /**
+     * Maximum number of cached key maps.
+     */
+    public static final int MAX_ENTRIES = 32;
+    /**
+     * Value of an unknown key.
+     */
+    public static final long NO_KEY = -1;
+
+    private static final int MAGIC = 0x4D434B43;
+    private static final int VERSION = 1;
+
+    private static KeyMapCache mInstance;
+
+    private final File mFile;
+    private final LinkedHashMap<String, long[]> mEntries =
+            new LinkedHashMap<String, long[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, long[]> e) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private boolean mChanged = false;
+
+    /**
+     * Create a key map cache.
+     * @param file The file to load from and save to. If null, the cache
+     * will be in memory only.
+     */
+    public KeyMapCache(File file) {
+        mFile = file;
+        load();
+    }
+
+    /**
+     * Get the key map cache of the app (stored in {@link #CACHE_FILE}).
+     * @return The key map cache.
+     */
+    public static synchronized KeyMapCache getInstance() {
+        if (mInstance == null) {
+            mInstance = new KeyMapCache(Common.getCacheFile(CACHE_FILE));
+        }
+        return mInstance;
+    }
+
+    /**
+     * Get the ID of a tag for this cache.
+     * @param uid The UID of the tag.
+     * @param atqa The ATQA of the tag (may be null).
+     * @param sak The SAK of the tag.
+     * @return The ID of the tag or null if there is no UID.
+     */
+    public static String getId(byte[] uid, byte[] atqa, short sak) {
+        if (uid == null || uid.length == 0) {
+            return null;
+        }
+        return Common.bytes2Hex(uid) + ":"
+                + ((atqa != null) ? Common.bytes2Hex(atqa) : "") + ":"
+                + Common.bytes2Hex(new byte[] {(byte) sak});
+    }
+
+    /**
+     * Get the cached keys of a tag.
+     * @param id The ID of the tag (see {@link #getId(byte[], byte[], short)}).
+     * @return The keys (48 bit values) as array of
+     * 2 * {@link TagImage#MAX_SECTORS} where index 2 * sector is key A
+     * and index 2 * sector + 1 is key B ({@link #NO_KEY} if unknown).
+     * Null if the tag is not cached.
+     */
+    public synchronized long[] get(String id) {
+        long[] keys = mEntries.get(id);
+        return (keys != null) ? keys.clone() : null;
+    }
+
+    /**
+     * Add the key map of a tag to the cache. Sectors that are not part of
+     * the given key map keep their cached keys.
+     * @param id The ID of the tag (see {@link #getId(byte[], byte[], short)}).
+     * @param keyMap The key map (see {@link MCReader#getKeyMap()}).
+     */
+    public synchronized void put(String id, SparseArray<byte[][]> keyMap) {
+        if (id == null || keyMap == null) {
+            return;
+        }
+        long[] keys = mEntries.get(id);
+        if (keys == null) {
+            keys = new long[2 * TagImage.MAX_SECTORS];
+            Arrays.fill(keys, NO_KEY);
+        }
+        for (int i = 0; i < keyMap.size(); i++) {
+            int sector = keyMap.keyAt(i);
+            byte[][] sectorKeys = keyMap.valueAt(i);
+            if (sector < 0 || sector >= TagImage.MAX_SECTORS
+                    || sectorKeys == null) {
+                continue;
+            }
+            for (int j = 0; j < 2; j++) {
+                keys[2 * sector + j] = (sectorKeys[j] != null)
+                        ? KeyDictionary.toLong(sectorKeys[j]) : NO_KEY;
+            }
+        }
+        mEntries.put(id, keys);
+        mChanged = true;
+    }
+
+    /**
+     * Remove a tag from the cache.
+     * @param id The ID of the tag (see {@link #getId(byte[], byte[], short)}).
+     */
+    public synchronized void remove(String id) {
+        if (mEntries.remove(id) != null) {
+            mChanged = true;
+        }
+    }
+
+    /**
+     * Save the cache if it was changed (and if there is a file).
+     * @return True if the cache was saved (or there was nothing to save).
+     * False on error.
+     */
+    public synchronized boolean save() {
+        if (!mChanged || mFile == null) {
+            return true;
+        }
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(mEntries.size());
+            // Oldest entry first, so that the LRU order is kept on load.
+            for (Map.Entry<String, long[]> e : mEntries.entrySet()) {
+                out.writeUTF(e.getKey());
+                for (long key : e.getValue()) {
+                    out.writeLong(key);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while saving key map cache.", e);
+            tmp.delete();
+            return false;
+        }
+        if (!tmp.renameTo(mFile)) {
+            tmp.delete();
+            return false;
+        }
+        mChanged = false;
+        return true;
+    }
+
+    /**
+     * Load the cache from {@link #mFile}. On error, the cache will be empty.
+     */
+    private void load() {
+        if (mFile == null || !mFile.isFile()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String id = in.readUTF();
+                long[] keys = new long[2 * TagImage.MAX_SECTORS];
+                for (int j = 0; j < keys.length; j++) {
+                    keys[j] = in.readLong();
+                }
+                mEntries.put(id, keys);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while loading key map cache.", e);
+            mEntries.clear();
+        }
+    }
+}
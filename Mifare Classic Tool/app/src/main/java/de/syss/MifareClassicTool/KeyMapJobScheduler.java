@@ -0,0 +1,216 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import android.util.SparseArray;
+
+import java.util.IdentityHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Run key mapping sessions (key mapping followed by reading the tag)
+ * on several readers at the same time, e.g. on a bench of external
+ * readers connected with {@link MCSocketTransport}.
+ * Each session has its own {@link MCReader}. Sessions on the same
+ * transport run one after another, sessions on different transports
+ * run in parallel. The key dictionary is shared (it is read-only),
+ * as are the {@link KeyHitStats} and the {@link KeyMapCache}
+ * (both are thread-safe). Neither of them is saved by the scheduler.
+ * @author Gerhard Klostermeier
+ */
+public class KeyMapJobScheduler {
+
+    /**
+     * The result of a session.
+     */
+    public static final class Result {
+        private final byte[] mUid;
+        private final SparseArray<byte[][]> mKeyMap;
+        private final TagImage mTagImage;
+        private final boolean mError;
+        private final long mDuration;
+        private final int mReconnects;
+
+        private Result(byte[] uid, SparseArray<byte[][]> keyMap,
+                TagImage tagImage, boolean error, long duration,
+                int reconnects) {
+            mUid = uid;
+            mKeyMap = keyMap;
+            mTagImage = tagImage;
+            mError = error;
+            mDuration = duration;
+            mReconnects = reconnects;
+        }
+
+        /**
+         * @return The UID of the tag or null if the tag could not
+         * be connected.
+         */
+        public byte[] getUid() {
+            return mUid;
+        }
+
+        /**
+         * @return The key map (see {@link MCReader#getKeyMap()}) or null
+         * on error.
+         */
+        public SparseArray<byte[][]> getKeyMap() {
+            return mKeyMap;
+        }
+
+        /**
+         * @return The data of the tag or null on error.
+         */
+        public TagImage getTagImage() {
+            return mTagImage;
+        }
+
+        /**
+         * @return True if the session failed (tag not connected, lost or
+         * canceled).
+         */
+        public boolean isError() {
+            return mError;
+        }
+
+        /**
+         * @return Duration of the session in ms.
+         */
+        public long getDuration() {
+            return mDuration;
+        }
+
+        /**
+         * @return How often the tag was reconnected during the session.
+         */
+        public int getReconnectCount() {
+            return mReconnects;
+        }
+    }
+
+    private final KeyDictionary mKeys;
+    private final KeyHitStats mKeyHitStats;
+    private final KeyMapCache mKeyMapCache;
+    private final ReaderConfig mConfig;
+    private final IdentityHashMap<MCTransport, ExecutorService> mExecutors =
+            new IdentityHashMap<>();
+
+    /**
+     * Create a scheduler.
+     * @param keys The keys for the key mapping.
+     * @param keyHitStats Statistics to try the most promising keys first
+     * (see {@link MCReader#setKeyHitStats(KeyHitStats)}). Might be null.
+     * @param keyMapCache Cache of known tags
+     * (see {@link MCReader#setKeyMapCache(KeyMapCache)}). Might be null.
+     * @param config The configuration of the readers.
+     */
+    public KeyMapJobScheduler(KeyDictionary keys, KeyHitStats keyHitStats,
+            KeyMapCache keyMapCache, ReaderConfig config) {
+        mKeys = keys;
+        mKeyHitStats = keyHitStats;
+        mKeyMapCache = keyMapCache;
+        mConfig = config;
+    }
+
+    /**
+     * Queue a session for a transport. Canceling the returned future
+     * (with interruption) cancels the key mapping.
+     * @param transport The transport to the tag.
+     * @return The result of the session.
+     * @throws java.util.concurrent.RejectedExecutionException If the
+     * scheduler was shut down.
+     */
+    public synchronized Future<Result> submit(final MCTransport transport) {
+        ExecutorService executor = mExecutors.get(transport);
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor();
+            mExecutors.put(transport, executor);
+        }
+        return executor.submit(() -> runSession(transport));
+    }
+
+    /**
+     * Stop accepting sessions. Queued sessions will still be run.
+     */
+    public synchronized void shutdown() {
+        for (ExecutorService executor : mExecutors.values()) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Stop accepting sessions and cancel all running and
+     * queued sessions.
+     */
+    public synchronized void shutdownNow() {
+        for (ExecutorService executor : mExecutors.values()) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Map the keys of a tag and read it.
+     * @param transport The transport to the tag.
+     * @return The result of the session.
+     */
+    private Result runSession(MCTransport transport) {
+        long start = System.nanoTime();
+        MCReader reader = MCReader.get(transport);
+        reader.setConfig(mConfig);
+        try {
+            reader.connect();
+        } catch (Exception e) {
+            return new Result(null, null, null, true,
+                    (System.nanoTime() - start) / 1000000, 0);
+        }
+        byte[] uid = transport.getUid();
+        boolean error = reader.setKeyDictionary(mKeys) == 0
+                || !reader.setMappingRange(0, reader.getSectorCount() - 1);
+        SparseArray<byte[][]> keyMap = null;
+        TagImage image = null;
+        if (!error) {
+            reader.setKeyHitStats(mKeyHitStats);
+            reader.setKeyMapCache(mKeyMapCache);
+            int sectorCount = reader.getSectorCount();
+            int status = -1;
+            while (reader.getKeyMapProgress() < sectorCount) {
+                if (Thread.currentThread().isInterrupted()) {
+                    status = -1;
+                    break;
+                }
+                status = reader.buildNextKeyMapPart();
+                if (status == -1) {
+                    break;
+                }
+            }
+            error = status == -1;
+            if (!error) {
+                keyMap = reader.getKeyMap();
+                image = reader.readTagImage(keyMap);
+                error = image == null;
+            }
+        }
+        int reconnects = reader.getReconnectCount();
+        reader.close();
+        return new Result(uid, keyMap, image, error,
+                (System.nanoTime() - start) / 1000000, reconnects);
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * On-disk journal of a partial key map. It is used by
+ * {@link MCReader#buildNextKeyMapPart()} to resume an interrupted key
+ * mapping (tag removed, activity paused, mapping canceled) instead of
+ * starting all over. For each sector, the found keys and the position
+ * in the (ordered) key list up to which key A and key B were tried
+ * are stored. A journal is bound to the UID of the tag and the
+ * key list (see {@link #signature(long[])}).
+ * @author Gerhard Klostermeier
+ */
+public class KeyMapJournal {
+
+    private static final String LOG_TAG = KeyMapJournal.class.getSimpleName();
+
+    /**
+     * Directory (relative to the cache directory) of the journals.
+     */
+    public static final String JOURNAL_DIR = "key-map-journal";
+    /**
+     * Journals older than this (in ms, 7 days) will be removed
+     * by {@link #open(byte[], long[])}.
+     */
+    public static final long MAX_AGE = 7L * 24 * 60 * 60 * 1000;
+    /**
+     * Value of an unknown key.
+     */
+    public static final long NO_KEY = -1;
+
+    private static final int MAGIC = 0x4D434B4A;
+    private static final int VERSION = 1;
+
+    private final File mFile;
+    private final long mSignature;
+    private final long[] mKeyA = new long[TagImage.MAX_SECTORS];
+    private final long[] mKeyB = new long[TagImage.MAX_SECTORS];
+    private final int[] mOffsetA = new int[TagImage.MAX_SECTORS];
+    private final int[] mOffsetB = new int[TagImage.MAX_SECTORS];
+    private boolean mChanged = false;
+
+    /**
+     * Create an empty journal.
+     * @param file The file of the journal.
+     * @param signature The signature of the key list.
+     */
+    private KeyMapJournal(File file, long signature) {
+        mFile = file;
+        mSignature = signature;
+        Arrays.fill(mKeyA, NO_KEY);
+        Arrays.fill(mKeyB, NO_KEY);
+    }
+
+    /**
+     * Open the journal of a tag. If there is no journal for the tag or
+     * the journal was created with another key list, an empty journal
+     * will be returned.
+     * @param uid The UID of the tag.
+     * @param keys The ordered key list used for mapping.
+     * @return The journal or null if the UID is unknown.
+     */
+    public static KeyMapJournal open(byte[] uid, long[] keys) {
+        if (uid == null || uid.length == 0 || keys == null) {
+            return null;
+        }
+        File dir = Common.getCacheFile(JOURNAL_DIR);
+        removeOldJournals(dir);
+        KeyMapJournal journal = new KeyMapJournal(
+                new File(dir, Common.bytes2Hex(uid) + ".bin"),
+                signature(keys));
+        journal.load();
+        return journal;
+    }
+
+    /**
+     * Calculate the signature of an ordered key list. The positions
+     * stored in a journal are only valid for the same key list.
+     * @param keys The ordered key list.
+     * @return The signature.
+     */
+    public static long signature(long[] keys) {
+        // FNV-1a over the 6 bytes of each key.
+        long hash = 0xCBF29CE484222325L;
+        for (long key : keys) {
+            for (int i = 40; i >= 0; i -= 8) {
+                hash ^= (key >>> i) & 0xFF;
+                hash *= 0x100000001B3L;
+            }
+        }
+        return hash ^ keys.length;
+    }
+
+    /**
+     * Get the found key A of a sector.
+     * @param sector The sector.
+     * @return The key (48 bit value) or {@link #NO_KEY}.
+     */
+    public long getKeyA(int sector) {
+        return mKeyA[sector];
+    }
+
+    /**
+     * Get the found key B of a sector.
+     * @param sector The sector.
+     * @return The key (48 bit value) or {@link #NO_KEY}.
+     */
+    public long getKeyB(int sector) {
+        return mKeyB[sector];
+    }
+
+    /**
+     * Get the position in the key list up to which key A was tried
+     * (without success) on a sector.
+     * @param sector The sector.
+     * @return The number of keys already tried as key A.
+     */
+    public int getOffsetA(int sector) {
+        return mOffsetA[sector];
+    }
+
+    /**
+     * Get the position in the key list up to which key B was tried
+     * (without success) on a sector.
+     * @param sector The sector.
+     * @return The number of keys already tried as key B.
+     */
+    public int getOffsetB(int sector) {
+        return mOffsetB[sector];
+    }
+
+    /**
+     * Update the state of a sector.
+     * @param sector The sector.
+     * @param keyA The found key A or {@link #NO_KEY}.
+     * @param keyB The found key B or {@link #NO_KEY}.
+     * @param offsetA The number of keys tried as key A.
+     * @param offsetB The number of keys tried as key B.
+     */
+    public void setSector(int sector, long keyA, long keyB,
+            int offsetA, int offsetB) {
+        if (mKeyA[sector] == keyA && mKeyB[sector] == keyB
+                && mOffsetA[sector] == offsetA
+                && mOffsetB[sector] == offsetB) {
+            return;
+        }
+        mKeyA[sector] = keyA;
+        mKeyB[sector] = keyB;
+        mOffsetA[sector] = offsetA;
+        mOffsetB[sector] = offsetB;
+        mChanged = true;
+    }
+
+    /**
+     * Save the journal if it was changed.
+     * @return True if the journal was saved (or there was nothing to save).
+     * False on error.
+     */
+    public boolean save() {
+        if (!mChanged) {
+            return true;
+        }
+        File dir = mFile.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            return false;
+        }
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(mSignature);
+            out.writeByte(TagImage.MAX_SECTORS);
+            for (int i = 0; i < TagImage.MAX_SECTORS; i++) {
+                out.writeLong(mKeyA[i]);
+                out.writeLong(mKeyB[i]);
+                out.writeInt(mOffsetA[i]);
+                out.writeInt(mOffsetB[i]);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while saving key map journal.", e);
+            tmp.delete();
+            return false;
+        }
+        if (!tmp.renameTo(mFile)) {
+            tmp.delete();
+            return false;
+        }
+        mChanged = false;
+        return true;
+    }
+
+    /**
+     * Remove the journal (e.g. because the key map is complete).
+     */
+    public void delete() {
+        Arrays.fill(mKeyA, NO_KEY);
+        Arrays.fill(mKeyB, NO_KEY);
+        Arrays.fill(mOffsetA, 0);
+        Arrays.fill(mOffsetB, 0);
+        mChanged = false;
+        if (mFile.exists() && !mFile.delete()) {
+            Log.d(LOG_TAG, "Could not delete key map journal.");
+        }
+    }
+
+    /**
+     * Load the journal from {@link #mFile}. If the file does not exist,
+     * is corrupted or belongs to another key list, the journal stays empty.
+     */
+    private void load() {
+        if (!mFile.isFile()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || in.readLong() != mSignature
+                    || in.readUnsignedByte() != TagImage.MAX_SECTORS) {
+                return;
+            }
+            for (int i = 0; i < TagImage.MAX_SECTORS; i++) {
+                mKeyA[i] = in.readLong();
+                mKeyB[i] = in.readLong();
+                mOffsetA[i] = in.readInt();
+                mOffsetB[i] = in.readInt();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while loading key map journal.", e);
+            delete();
+        }
+    }
+
+    /**
+     * Remove journals older than {@link #MAX_AGE}.
+     * @param dir The journal directory.
+     */
+    private static void removeOldJournals(File dir) {
+        File[] journals = dir.listFiles();
+        if (journals == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (File journal : journals) {
+            if (now - journal.lastModified() > MAX_AGE) {
+                journal.delete();
+            }
+        }
+    }
+}
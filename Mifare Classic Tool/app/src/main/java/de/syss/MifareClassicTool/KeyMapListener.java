@@ -0,0 +1,86 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+/**
+ * Events of the key mapping (see {@link MCReader#buildNextKeyMapPart()}
+ * and {@link MCReader#setKeyMapListener(KeyMapListener)}).
+ * The methods are called on the thread that does the key mapping,
+ * so they should return quickly (e.g. only update some counters).
+ * @author Gerhard Klostermeier
+ */
+public interface KeyMapListener {
+
+    /**
+     * The triage of all sectors finished (see
+     * {@link MCReader#setUseTriage(boolean)}). This is called before
+     * the mapping of the first sector starts.
+     * @param resolved Number of sectors the triage resolved.
+     * @param partial Number of sectors with one key found.
+     * @param auths Number of authentications of the triage.
+     */
+    void onTriageFinished(int resolved, int partial, int auths);
+
+    /**
+     * The mapping of a sector started.
+     * @param sector The sector.
+     */
+    void onSectorStarted(int sector);
+
+    /**
+     * Keys were tried on a sector. This is reported in batches
+     * (see {@link MCReader#KEYS_TRIED_INTERVAL}) and once at the end
+     * of a sector.
+     * @param sector The sector.
+     * @param keysTried Number of keys tried on this sector so far (key A
+     * and key B are counted as one).
+     * @param authNanos Time spent on authentications since the last call
+     * in ns.
+     * @param auths Number of authentications since the last call.
+     */
+    void onKeysTried(int sector, int keysTried, long authNanos, int auths);
+
+    /**
+     * A key was found.
+     * @param sector The sector.
+     * @param keyB True if it is key B. False if it is key A.
+     * @param key The key as 48 bit value (see {@link KeyDictionary}).
+     * @param tier The tier the key came from (e.g.
+     * {@link MCReader#KEY_TIER_DICTIONARY}).
+     * @param keyIndex Position of the key in the key files or -1 if the key
+     * was not found while walking the key files.
+     */
+    void onKeyFound(int sector, boolean keyB, long key, int tier,
+            int keyIndex);
+
+    /**
+     * The tag was lost and the connection was reestablished
+     * (see {@link ReaderConfig#isAutoReconnect()}).
+     * @param sector The sector that is mapped.
+     */
+    void onReconnect(int sector);
+
+    /**
+     * The mapping of a sector finished.
+     * @param sector The sector.
+     * @param keyAFound True if key A was found.
+     * @param keyBFound True if key B was found.
+     */
+    void onSectorFinished(int sector, boolean keyAFound, boolean keyBFound);
+}
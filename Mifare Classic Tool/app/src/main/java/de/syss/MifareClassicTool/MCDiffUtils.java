@@ -20,14 +20,17 @@ package de.syss.MifareClassicTool;
 
 import android.util.SparseArray;
 
-import java.util.ArrayList;
-
 /**
  * Provides functions to compare two dumps.
  * @author Gerhard Klostermeier
  */
 public class MCDiffUtils {
 
+    /**
+     * Shared result for identical blocks (empty arrays are immutable).
+     */
+    private static final Integer[] NO_DIFF = new Integer[0];
+
     /**
      * Compare two dumps and get a list of all indices where
      * they differ from each other.
@@ -62,21 +65,14 @@ public class MCDiffUtils {
             Integer[][] diffSector = new Integer[sector1.length][];
             // Walk through all blocks.
             for (int j = 0; j < sector1.length; j++) {
-                ArrayList<Integer> diffIndices = new ArrayList<>();
-                // Walk through all symbols.
-                for (int k = 0; k < sector1[j].length(); k++) {
-                    if (sector1[j].charAt(k) != sector2[j].charAt(k)) {
-                        // Found different symbol at index k.
-                        diffIndices.add(k);
-                    }
-                }
-                if (diffIndices.isEmpty()) {
+                String block1 = sector1[j];
+                String block2 = sector2[j];
+                if (block1.equals(block2)) {
                     // Block was identical.
-                    diffSector[j] = new Integer[0];
-                } else {
-                    diffSector[j] = diffIndices.toArray(
-                            new Integer[0]);
+                    diffSector[j] = NO_DIFF;
+                    continue;
                 }
+                diffSector[j] = diffIndices(block1, block2);
             }
             ret.put(sectorNr, diffSector);
         }
@@ -93,4 +89,82 @@ public class MCDiffUtils {
         return ret;
     }
 
+    /**
+     * Compare two dumps and get a list of all indices where
+     * they differ from each other. Blocks that are equal in both
+     * images are detected without converting them to strings.
+     * @param dump1 The first dump.
+     * @param dump2 The second dump.
+     * @return Indices where the two dumps differ. The indices are
+     * the positions within the hex string of a block
+     * (see {@link TagImage#getBlockAsHex(int, int)}). The format is the
+     * same as the one of {@link #diffIndices(SparseArray, SparseArray)}.
+     */
+    public static SparseArray<Integer[][]> diffIndices(
+            TagImage dump1, TagImage dump2) {
+        SparseArray<Integer[][]> ret = new SparseArray<>();
+        int sectorCount = Math.max(
+                dump1.getSectorCount(), dump2.getSectorCount());
+        for (int sectorNr = 0; sectorNr < sectorCount; sectorNr++) {
+            boolean inDump1 = dump1.hasSector(sectorNr);
+            boolean inDump2 = dump2.hasSector(sectorNr);
+            if (!inDump1 && !inDump2) {
+                continue;
+            }
+            if (!inDump2) {
+                // Sector only exists in dump1.
+                ret.put(sectorNr, new Integer[0][0]);
+                continue;
+            }
+            if (!inDump1) {
+                // Sector only exists in dump2.
+                ret.put(sectorNr, new Integer[1][0]);
+                continue;
+            }
+
+            // Check the blocks.
+            Integer[][] diffSector =
+                    new Integer[TagImage.blockCountInSector(sectorNr)][];
+            for (int j = 0; j < diffSector.length; j++) {
+                if (dump1.blockEquals(sectorNr, j, dump2)) {
+                    // Block was identical.
+                    diffSector[j] = NO_DIFF;
+                    continue;
+                }
+                diffSector[j] = diffIndices(
+                        dump1.getBlockAsHex(sectorNr, j),
+                        dump2.getBlockAsHex(sectorNr, j));
+            }
+            ret.put(sectorNr, diffSector);
+        }
+        return ret;
+    }
+
+    /**
+     * Get all indices where two blocks (hex strings of the same length)
+     * differ.
+     * @param block1 The first block.
+     * @param block2 The second block.
+     * @return Indices where block2 is different from block1.
+     */
+    private static Integer[] diffIndices(String block1, String block2) {
+        // Walk through all symbols. Count the differences first
+        // to allocate the result only once.
+        int len = block1.length();
+        int count = 0;
+        for (int k = 0; k < len; k++) {
+            if (block1.charAt(k) != block2.charAt(k)) {
+                count++;
+            }
+        }
+        Integer[] diffIndices = new Integer[count];
+        count = 0;
+        for (int k = 0; k < len; k++) {
+            if (block1.charAt(k) != block2.charAt(k)) {
+                // Found different symbol at index k.
+                diffIndices[count++] = k;
+            }
+        }
+        return diffIndices;
+    }
 }
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import android.nfc.Tag;
+import android.nfc.tech.MifareClassic;
+import android.nfc.tech.NfcA;
+
+import java.io.IOException;
+
+/**
+ * {@link MCTransport} using the MIFARE Classic implementation of the
+ * Android NFC stack ({@link MifareClassic}).
+ * @author Gerhard Klostermeier
+ */
+public class MCNfcTransport implements MCTransport {
+
+    private final MifareClassic mMFC;
+
+    /**
+     * Create a transport for the given tag.
+     * @param tag The tag to operate on.
+     * @throws RuntimeException If the Android NFC stack could not create
+     * a {@link MifareClassic} object for the tag.
+     * @throws NullPointerException If the tag is not a MIFARE Classic tag.
+     */
+    public MCNfcTransport(Tag tag) {
+        MifareClassic mfc = MifareClassic.get(tag);
+        if (mfc == null) {
+            throw new NullPointerException("Tag is not MIFARE Classic.");
+        }
+        mMFC = mfc;
+    }
+
+    /**
+     * Get the tag this transport is operating on.
+     * @return The tag.
+     */
+    public Tag getTag() {
+        return mMFC.getTag();
+    }
+
+    @Override
+    public void connect() throws IOException {
+        mMFC.connect();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mMFC.close();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mMFC.isConnected();
+    }
+
+    @Override
+    public byte[] getUid() {
+        return mMFC.getTag().getId();
+    }
+
+    @Override
+    public byte[] getAtqa() {
+        NfcA nfca = NfcA.get(mMFC.getTag());
+        return (nfca != null) ? nfca.getAtqa() : null;
+    }
+
+    @Override
+    public short getSak() {
+        NfcA nfca = NfcA.get(mMFC.getTag());
+        return (nfca != null) ? nfca.getSak() : 0;
+    }
+
+    @Override
+    public int getSize() {
+        return mMFC.getSize();
+    }
+
+    @Override
+    public int getSectorCount() {
+        return mMFC.getSectorCount();
+    }
+
+    @Override
+    public int getBlockCount() {
+        return mMFC.getBlockCount();
+    }
+
+    @Override
+    public int getBlockCountInSector(int sectorIndex) {
+        return mMFC.getBlockCountInSector(sectorIndex);
+    }
+
+    @Override
+    public int sectorToBlock(int sectorIndex) {
+        return mMFC.sectorToBlock(sectorIndex);
+    }
+
+    @Override
+    public boolean authenticateSectorWithKeyA(int sectorIndex, byte[] key)
+            throws IOException {
+        return mMFC.authenticateSectorWithKeyA(sectorIndex, key);
+    }
+
+    @Override
+    public boolean authenticateSectorWithKeyB(int sectorIndex, byte[] key)
+            throws IOException {
+        return mMFC.authenticateSectorWithKeyB(sectorIndex, key);
+    }
+
+    @Override
+    public byte[] readBlock(int blockIndex) throws IOException {
+        return mMFC.readBlock(blockIndex);
+    }
+
+    @Override
+    public void writeBlock(int blockIndex, byte[] data) throws IOException {
+        mMFC.writeBlock(blockIndex, data);
+    }
+
+    @Override
+    public void increment(int blockIndex, int value) throws IOException {
+        mMFC.increment(blockIndex, value);
+    }
+
+    @Override
+    public void decrement(int blockIndex, int value) throws IOException {
+        mMFC.decrement(blockIndex, value);
+    }
+
+    @Override
+    public void restore(int blockIndex) throws IOException {
+        mMFC.restore(blockIndex);
+    }
+
+    @Override
+    public void transfer(int blockIndex) throws IOException {
+        mMFC.transfer(blockIndex);
+    }
+}
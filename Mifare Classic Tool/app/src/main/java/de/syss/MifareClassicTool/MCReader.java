@@ -21,7 +21,6 @@ package de.syss.MifareClassicTool;
 import android.content.Context;
 import android.nfc.Tag;
 import android.nfc.TagLostException;
-import android.nfc.tech.MifareClassic;
 import android.nfc.tech.NfcA;
 import android.util.Log;
 import android.util.SparseArray;
@@ -31,11 +30,11 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import de.syss.MifareClassicTool.Activities.Preferences.Preference;
 import de.syss.MifareClassicTool.Common.Operation;
 
 /**
@@ -57,30 +56,154 @@ public class MCReader {
      * Default key of MIFARE Classic tags.
      */
     public static final String DEFAULT_KEY = "FFFFFFFFFFFF";
+    /**
+     * {@link #DEFAULT_KEY} as 48 bit value (see {@link KeyDictionary}).
+     */
+    private static final long DEFAULT_KEY_VALUE = 0xFFFFFFFFFFFFL;
+    /**
+     * Key tier: Keys that were already found on this tag
+     * (see {@link #getKeyTierHits()}).
+     */
+    public static final int KEY_TIER_TAG = 0;
+    /**
+     * Key tier: Keys that were found on the same kind of tag in the past
+     * (see {@link KeyHitStats} and {@link #getKeyTierHits()}).
+     */
+    public static final int KEY_TIER_PROFILE = 1;
+    /**
+     * Key tier: Keys from the key files (see {@link #getKeyTierHits()}).
+     */
+    public static final int KEY_TIER_DICTIONARY = 2;
+    /**
+     * Key tier: Keys B that were read from the sector trailer
+     * (see {@link #getKeyTierHits()}).
+     */
+    public static final int KEY_TIER_TRAILER = 3;
 
-    private final MifareClassic mMFC;
+    private MCTransport mTransport;
+    private ReaderConfig mConfig;
+    private final Tag mTag;
     private SparseArray<byte[][]> mKeyMap = new SparseArray<>();
     private int mKeyMapStatus = 0;
     private int mLastSector = -1;
     private int mFirstSector = 0;
-    private ArrayList<String> mKeysWithOrder;
+    private long[] mKeysWithOrder;
     private boolean mHasAllZeroKey = false;
-    private boolean cancelCreateKeyMap = false;
+    // Set by the UI thread, polled by the key mapping (and reconnect) thread.
+    private volatile boolean cancelCreateKeyMap = false;
+    private KeyDictionary mKeyDictionary;
+    private KeyHitStats mKeyHitStats;
+    private int mFingerprint;
+    /**
+     * Keys (A and B) that were found during the current
+     * {@link #buildNextKeyMapPart()} walk. They will be tried first
+     * on the following sectors, even if they are not in the key files.
+     */
+    private long[] mTagKeys = new long[0];
+    private final int[] mKeyTierHits = new int[4];
+    private KeyMapJournal mKeyMapJournal;
+    private KeyMapCache mKeyMapCache;
+    private long[] mCachedKeys;
+    /**
+     * Number of keys after which the progress of a sector will be
+     * written to the {@link KeyMapJournal}.
+     */
+    private static final int JOURNAL_INTERVAL = 256;
+    /**
+     * How often reading a block that should be readable is retried
+     * (see {@link #readSectorWithPlan(int, byte[][], TagImage)}).
+     */
+    private static final int READ_RETRIES = 2;
+    /**
+     * How often a block is written at most
+     * (see {@link #writeWithPlan(WritePlan)}).
+     */
+    private static final int MAX_WRITE_ATTEMPTS = 3;
+    /**
+     * Maximum number of keys from the {@link KeyHitStats} that will be
+     * tried before the other keys.
+     */
+    private static final int MAX_RANKED_KEYS = 16;
+    /**
+     * Number of keys after which {@link KeyMapListener#onKeysTried(int,
+     * int, long, int)} will be called.
+     */
+    public static final int KEYS_TRIED_INTERVAL = 64;
+    private KeyMapListener mKeyMapListener;
+    /**
+     * Timing statistics if the transport is measured
+     * (see {@link ReaderConfig#isCollectTimings()}).
+     */
+    private TimingStats mTimingStats;
+    private ReconnectScheduler mReconnectScheduler = new ReconnectScheduler();
+    /**
+     * Keys found by other readers that map the same tag
+     * (see {@link #setKeyMapBoard(KeyMapBoard)}).
+     */
+    private KeyMapBoard mKeyMapBoard;
+    /**
+     * Maximum number of keys the triage tries on each sector
+     * (see {@link #setUseTriage(boolean)}).
+     */
+    private static final int TRIAGE_KEYS = 8;
+    private boolean mUseTriage = true;
+    /**
+     * The order in which {@link #buildNextKeyMapPart()} maps the sectors
+     * and the position of the current sector in it.
+     */
+    private int[] mSectorOrder;
+    private int mKeyMapPosition = 0;
+    /**
+     * Results of the triage: The keys (A and B) of each sector (or -1),
+     * their tiers, whether key B is readable and which keys were tried.
+     */
+    private final long[] mTriageKeys = new long[2 * TagImage.MAX_SECTORS];
+    private final int[] mTriageTiers = new int[2 * TagImage.MAX_SECTORS];
+    private final boolean[] mTriageKeyBIsData =
+            new boolean[TagImage.MAX_SECTORS];
+    private final long[][] mTriageTried = new long[TagImage.MAX_SECTORS][];
+    /**
+     * Result of {@link #authenticate(int, byte[], boolean)}:
+     * Authentication successful.
+     */
+    private static final int AUTH_SUCCESS = 0;
+    /**
+     * Result of {@link #authenticate(int, byte[], boolean)}:
+     * Authentication not successful (wrong key).
+     */
+    private static final int AUTH_FAILED = 1;
+    /**
+     * Result of {@link #authenticate(int, byte[], boolean)}:
+     * The tag was lost.
+     */
+    private static final int AUTH_TAG_LOST = 2;
 
     /**
      * Initialize a MIFARE Classic reader for the given tag.
      * @param tag The tag to operate on.
      */
     private MCReader(Tag tag) {
-        MifareClassic tmpMFC;
+        MCTransport tmpTransport;
         try {
-            tmpMFC = MifareClassic.get(tag);
+            tmpTransport = new MCNfcTransport(tag);
         } catch (Exception e) {
             Log.e(LOG_TAG, "Could not create MIFARE Classic reader for the"
                     + "provided tag (even after patching it).");
             throw e;
         }
-        mMFC = tmpMFC;
+        mTransport = tmpTransport;
+        mTag = tag;
+        setConfig(ReaderConfig.getCurrent());
+    }
+
+    /**
+     * Initialize a MIFARE Classic reader for the given transport.
+     * @param transport The transport to operate on.
+     */
+    private MCReader(MCTransport transport) {
+        mTransport = transport;
+        mTag = null;
+        setConfig(ReaderConfig.getCurrent());
     }
 
     /**
@@ -108,10 +231,88 @@ public class MCReader {
         return mcr;
     }
 
+    /**
+     * Get new instance of {@link MCReader} that uses another transport
+     * than the Android NFC stack (e.g. a {@link MCSimulatedTag}).
+     * Functions that require an Android {@link Tag} (like
+     * {@link #writeBlock0Gen3(byte[])}) are not available.
+     * @param transport The transport to operate on.
+     * @return {@link MCReader} object or "null" if transport is "null".
+     */
+    public static MCReader get(MCTransport transport) {
+        if (transport == null) {
+            return null;
+        }
+        return new MCReader(transport);
+    }
+
+    /**
+     * Get the configuration (preferences snapshot) of this reader.
+     * @return The configuration.
+     * @see #setConfig(ReaderConfig)
+     */
+    public ReaderConfig getConfig() {
+        return mConfig;
+    }
+
+    /**
+     * Set the configuration of this reader. By default, the reader uses
+     * the configuration that was current when it was created
+     * (see {@link ReaderConfig#getCurrent()}). If timing statistics
+     * should be collected, the transport will be measured by a
+     * {@link MCTimingTransport}.
+     * @param config The configuration.
+     */
+    public void setConfig(ReaderConfig config) {
+        if (config == null) {
+            return;
+        }
+        mConfig = config;
+        if (config.isCollectTimings()
+                && !(mTransport instanceof MCTimingTransport)) {
+            MCTimingTransport transport = new MCTimingTransport(
+                    mTransport, TimingStats.getInstance());
+            mTransport = transport;
+            mTimingStats = transport.getStats();
+        } else if (!config.isCollectTimings()
+                && mTransport instanceof MCTimingTransport) {
+            mTransport = ((MCTimingTransport) mTransport).getTransport();
+            mTimingStats = null;
+        }
+    }
+
     public void cancelCreateKeyMap() {
         cancelCreateKeyMap = true;
     }
 
+    /**
+     * Set the backoff policy for reconnecting to a lost tag during
+     * the key mapping (see {@link ReaderConfig#isAutoReconnect()}).
+     * @param scheduler The reconnect scheduler.
+     */
+    public void setReconnectScheduler(ReconnectScheduler scheduler) {
+        if (scheduler != null) {
+            mReconnectScheduler = scheduler;
+        }
+    }
+
+    /**
+     * @return How often the tag was reconnected during the key mapping.
+     * @see ReaderConfig#isAutoReconnect()
+     */
+    public int getReconnectCount() {
+        return mReconnectScheduler.getReconnectCount();
+    }
+
+    /**
+     * Set a listener for the events (progress, found keys, reconnects)
+     * of {@link #buildNextKeyMapPart()}.
+     * @param listener The listener or null to remove the listener.
+     */
+    public void setKeyMapListener(KeyMapListener listener) {
+        mKeyMapListener = listener;
+    }
+
     /**
      * Read as much as possible from the tag with the given key information.
      * @param keyMap Keys (A and B) mapped to a sector.
@@ -126,38 +327,201 @@ public class MCReader {
      * (and therefore no sector is read), an empty set (SparseArray.size() == 0)
      * will be returned.
      * @see #buildNextKeyMapPart()
+     * @see #readTagImage(SparseArray)
      */
     public SparseArray<String[]> readAsMuchAsPossible(
             SparseArray<byte[][]> keyMap) {
-        SparseArray<String[]> resultSparseArray;
-        if (keyMap != null && keyMap.size() > 0) {
-            resultSparseArray = new SparseArray<>(keyMap.size());
-            // For all entries in map do:
-            for (int i = 0; i < keyMap.size(); i++) {
-                String[][] results = new String[2][];
-                try {
-                    if (keyMap.valueAt(i)[0] != null) {
-                        // Read with key A.
-                        results[0] = readSector(
-                                keyMap.keyAt(i), keyMap.valueAt(i)[0], false);
+        TagImage image = readTagImage(keyMap);
+        if (image == null) {
+            return null;
+        }
+        return image.toSparseArray();
+    }
+
+    /**
+     * Read as much as possible from the tag with the given key information.
+     * For each sector, the sector trailer is read first. Depending on its
+     * Access Conditions, the data blocks are read with the key that can
+     * read the most of them and the other key is only used to read the
+     * blocks that are still missing (see
+     * {@link #readSectorWithPlan(int, byte[][], TagImage)}). If the Access
+     * Conditions are unknown, key A is used first and key B is only used
+     * to read the blocks that were not readable with key A.
+     * @param keyMap Keys (A and B) mapped to a sector.
+     * See {@link #buildNextKeyMapPart()}.
+     * @return The tag data. Blocks that could not be read with the given
+     * key information are marked as unknown (see
+     * {@link TagImage#isBlockValid(int, int)}).<br />
+     * On Error, "null" will be returned (tag was removed during reading or
+     * keyMap is null). If none of the keys in the key map are valid for
+     * reading, an empty image ({@link TagImage#isEmpty()}) will be returned.
+     * @see #buildNextKeyMapPart()
+     * @see #readSector(int, byte[], boolean, TagImage)
+     */
+    public TagImage readTagImage(SparseArray<byte[][]> keyMap) {
+        if (keyMap == null || keyMap.size() == 0) {
+            return null;
+        }
+        int sectorCount = Math.max(getSectorCount(),
+                keyMap.keyAt(keyMap.size() - 1) + 1);
+        TagImage image = new TagImage(
+                Math.min(sectorCount, TagImage.MAX_SECTORS));
+        // For all entries in map do:
+        for (int i = 0; i < keyMap.size(); i++) {
+            int sector = keyMap.keyAt(i);
+            byte[][] keys = keyMap.valueAt(i);
+            try {
+                if (readSectorWithPlan(sector, keys, image)) {
+                    continue;
+                }
+                if (keys[0] != null) {
+                    // Read with key A.
+                    readSector(sector, keys[0], false, image);
+                }
+                if (keys[1] != null) {
+                    // Read with key B.
+                    readSector(sector, keys[1], true, image);
+                }
+            } catch (TagLostException e) {
+                return null;
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Read a sector into a tag image with the keys of a key map, planned
+     * by the Access Conditions of the sector. The sector trailer is read
+     * first. Then the data blocks are read with the key that can read the
+     * most of them (one authentication) and only the blocks that are still
+     * missing are read with the other key (at most one more
+     * authentication). A block that could not be read is retried
+     * (see {@link #READ_RETRIES}).
+     * @param sectorIndex Index of the sector to read.
+     * @param keys Key A and key B of the sector (one of them may be null).
+     * @param image The image to store the data in.
+     * @return True if the sector was read. False if the Access Conditions
+     * could not be read with the first key (the image is unchanged).
+     * @throws TagLostException When connection with/to tag is lost.
+     * @see #readSector(int, byte[], boolean, TagImage)
+     */
+    private boolean readSectorWithPlan(int sectorIndex, byte[][] keys,
+            TagImage image) throws TagLostException {
+        int current = (keys[0] != null) ? 0 : 1;
+        if (keys[current] == null || checkAuth(authenticate(
+                sectorIndex, keys[current], current == 1)) != AUTH_SUCCESS) {
+            return false;
+        }
+        int firstBlock = mTransport.sectorToBlock(sectorIndex);
+        int blockCount = mTransport.getBlockCountInSector(sectorIndex);
+        int last = blockCount - 1;
+        byte[] trailer = tryReadBlock(firstBlock + last);
+        SectorPermissions permissions = SectorPermissions.decode(trailer, 6);
+        if (permissions == null) {
+            return false;
+        }
+        boolean keyBReadable = permissions.isKeyBReadable();
+        if (!image.isBlockValid(sectorIndex, last)) {
+            image.setAccessConditions(sectorIndex, trailer, 6);
+        }
+        if (current == 0 && keyBReadable) {
+            image.setKeyB(sectorIndex, trailer, 10);
+        }
+
+        // Which key can read which of the missing data blocks?
+        // (1 = key A, 2 = key B, 3 = both.)
+        int[] required = new int[last];
+        int[] count = new int[2];
+        for (int i = 0; i < last; i++) {
+            if (image.isBlockValid(sectorIndex, i)) {
+                continue;
+            }
+            required[i] = permissions.getBlockKeys(
+                    i, blockCount, Operation.Read);
+            for (int k = 0; k < 2; k++) {
+                if (keys[k] != null && (required[i] & (k + 1)) != 0) {
+                    count[k]++;
+                }
+            }
+        }
+
+        // Start with the key that can read the most blocks (or with the
+        // already authenticated one).
+        int first = (count[1 - current] > count[current])
+                ? 1 - current : current;
+        boolean authenticated = true;
+        for (int pass = 0; pass < 2; pass++) {
+            int k = (pass == 0) ? first : 1 - first;
+            if (keys[k] == null) {
+                continue;
+            }
+            boolean authError = false;
+            boolean authOnce = k == current;
+            boolean readAny = k == current;
+            for (int i = 0; i < last && !authError; i++) {
+                if ((required[i] & (k + 1)) == 0
+                        || image.isBlockValid(sectorIndex, i)) {
+                    continue;
+                }
+                // Retry (a failed read ends the authentication).
+                for (int retry = 0; retry <= READ_RETRIES; retry++) {
+                    if (!authenticated || current != k) {
+                        authenticated = checkAuth(authenticate(
+                                sectorIndex, keys[k], k == 1)) == AUTH_SUCCESS;
+                        current = k;
+                        if (!authenticated) {
+                            continue;
+                        }
+                        authOnce = true;
                     }
-                    if (keyMap.valueAt(i)[1] != null) {
-                        // Read with key B.
-                        results[1] = readSector(
-                                keyMap.keyAt(i), keyMap.valueAt(i)[1], true);
+                    byte[] blockBytes = tryReadBlock(firstBlock + i);
+                    if (blockBytes != null) {
+                        image.setBlock(sectorIndex, i, blockBytes, 0);
+                        readAny = true;
+                        break;
                     }
-                } catch (TagLostException e) {
-                    return null;
+                    authenticated = false;
                 }
-                // Merge results.
-                if (results[0] != null || results[1] != null) {
-                    resultSparseArray.put(keyMap.keyAt(i), mergeSectorData(
-                            results[0], results[1]));
+                // Stop if the key does not work at all.
+                authError = !authOnce;
+            }
+            // A key B that is readable can not be used for reading.
+            if (!authError && (readAny || k == 0 || !keyBReadable)) {
+                if (k == 1) {
+                    image.setKeyB(sectorIndex, keys[k], 0);
+                } else {
+                    image.setKeyA(sectorIndex, keys[k], 0);
                 }
             }
-            return resultSparseArray;
         }
-        return null;
+        return true;
+    }
+
+    /**
+     * Read a block from the (authenticated) tag.
+     * @param blockIndex The block to read.
+     * @return The block (16 bytes) or null if the block could not be read.
+     * @throws TagLostException When connection with/to tag is lost.
+     */
+    private byte[] tryReadBlock(int blockIndex) throws TagLostException {
+        try {
+            byte[] blockBytes = mTransport.readBlock(blockIndex);
+            // See readSector(): Some devices return less or more bytes.
+            if (blockBytes == null || blockBytes.length < 16) {
+                return null;
+            }
+            return blockBytes;
+        } catch (TagLostException e) {
+            throw e;
+        } catch (IOException e) {
+            Log.d(LOG_TAG, "(Recoverable) Error while reading block "
+                    + blockIndex + " from tag.");
+            if (!isConnected()) {
+                throw new TagLostException(
+                        "Tag removed during tryReadBlock(...)");
+            }
+            return null;
+        }
     }
 
     /**
@@ -180,8 +544,9 @@ public class MCReader {
      * @see #setKeyFile(File[], Context)
      */
     public SparseArray<String[]> readAsMuchAsPossible() {
-        mKeyMapStatus = getSectorCount();
-        while (buildNextKeyMapPart() < getSectorCount()-1);
+        mSectorOrder = null;
+        while (buildNextKeyMapPart() != -1
+                && getKeyMapProgress() < mLastSector - mFirstSector + 1);
         return readAsMuchAsPossible(mKeyMap);
     }
 
@@ -199,94 +564,107 @@ public class MCReader {
      * it means that this data could not be read or found. On authentication error
      * "null" will be returned.
      * @throws TagLostException When connection with/to tag is lost.
+     * @see #readSector(int, byte[], boolean, TagImage)
      * @see #mergeSectorData(String[], String[])
      */
     public String[] readSector(int sectorIndex, byte[] key,
             boolean useAsKeyB) throws TagLostException {
-        boolean auth = authenticate(sectorIndex, key, useAsKeyB);
-        String[] ret = null;
-        // Read sector.
-        if (auth) {
-            // Read all blocks.
-            ArrayList<String> blocks = new ArrayList<>();
-            int firstBlock = mMFC.sectorToBlock(sectorIndex);
-            int lastBlock = firstBlock + 4;
-            if (mMFC.getSize() == MifareClassic.SIZE_4K
-                    && sectorIndex > 31) {
-                lastBlock = firstBlock + 16;
-            }
-            for (int i = firstBlock; i < lastBlock; i++) {
-                try {
-                    byte[] blockBytes = mMFC.readBlock(i);
-                    // mMFC.readBlock(i) must return 16 bytes or throw an error.
-                    // At least this is what the documentation says.
-                    // On Samsung's Galaxy S5 and Sony's Xperia Z2 however, it
-                    // sometimes returns < 16 bytes for unknown reasons.
-                    // Update: Aaand sometimes it returns more than 16 bytes...
-                    // The appended byte(s) are 0x00.
-                    if (blockBytes.length < 16) {
-                        throw new IOException();
-                    }
-                    if (blockBytes.length > 16) {
-                        blockBytes = Arrays.copyOf(blockBytes,16);
-                    }
+        TagImage image = new TagImage(sectorIndex + 1);
+        if (!readSector(sectorIndex, key, useAsKeyB, image)) {
+            return null;
+        }
+        return image.getSectorAsHex(sectorIndex);
+    }
 
-                    blocks.add(Common.bytes2Hex(blockBytes));
-                } catch (TagLostException e) {
-                    throw e;
-                } catch (IOException e) {
-                    // Could not read block.
-                    // (Maybe due to key/authentication method.)
-                    Log.d(LOG_TAG, "(Recoverable) Error while reading block "
-                            + i + " from tag.");
-                    blocks.add(NO_DATA);
-                    if (!isConnected()) {
-                        throw new TagLostException(
-                                "Tag removed during readSector(...)");
-                    }
-                    // After an error, a re-authentication is needed.
-                    authenticate(sectorIndex, key, useAsKeyB);
-                }
+    /**
+     * Read as much as possible from a sector with the given key into
+     * a tag image. Blocks that are already known in the image will not be
+     * read again (except for the sector trailer). This way, the result of
+     * reading with key A and key B is merged the same way
+     * {@link #mergeSectorData(String[], String[])} does it: known data blocks
+     * and Access Conditions are kept and the keys are added.
+     * @param sectorIndex Index of the Sector to read.
+     * @param key Key for authentication.
+     * @param useAsKeyB If true, key will be treated as key B
+     * for authentication.
+     * @param image The image to store the data in.
+     * @return True if any data could be read. False on authentication
+     * error or if no block was readable.
+     * @throws TagLostException When connection with/to tag is lost.
+     */
+    public boolean readSector(int sectorIndex, byte[] key,
+            boolean useAsKeyB, TagImage image) throws TagLostException {
+        if (checkAuth(authenticate(sectorIndex, key, useAsKeyB))
+                != AUTH_SUCCESS) {
+            return false;
+        }
+        int firstBlock = mTransport.sectorToBlock(sectorIndex);
+        int blockCount = mTransport.getBlockCountInSector(sectorIndex);
+        int last = blockCount - 1;
+        boolean noData = true;
+        for (int i = 0; i < blockCount; i++) {
+            if (i != last && image.isBlockValid(sectorIndex, i)) {
+                // Already read (e.g. with the other key).
+                continue;
             }
-            ret = blocks.toArray(new String[0]);
-            int last = ret.length -1;
-
-            // Validate if it was possible to read any data.
-            boolean noData = true;
-            for (String s : ret) {
-                if (!s.equals(NO_DATA)) {
-                    noData = false;
-                    break;
+            try {
+                byte[] blockBytes = mTransport.readBlock(firstBlock + i);
+                // readBlock(i) must return 16 bytes or throw an error.
+                // At least this is what the documentation says.
+                // On Samsung's Galaxy S5 and Sony's Xperia Z2 however, it
+                // sometimes returns < 16 bytes for unknown reasons.
+                // Update: Aaand sometimes it returns more than 16 bytes...
+                // The appended byte(s) are 0x00. (Only the first 16 bytes
+                // are used.)
+                if (blockBytes.length < 16) {
+                    throw new IOException();
                 }
-            }
-            if (noData) {
-                // Was is possible to read any data (especially with key B)?
-                // If Key B may be read in the corresponding Sector Trailer,
-                // it cannot serve for authentication (according to NXP).
-                // What they mean is that you can authenticate successfully,
-                // but can not read data. In this case the
-                // readBlock() result is 0 for each block.
-                // Also, a tag might be bricked in a way that the authentication
-                // works, but reading data does not.
-                ret = null;
-            } else {
-                // Merge key in last block (sector trailer).
-                if (!useAsKeyB) {
-                    if (isKeyBReadable(Common.hex2Bytes(
-                            ret[last].substring(12, 20)))) {
-                        ret[last] = Common.bytes2Hex(key)
-                                + ret[last].substring(12, 32);
-                    } else {
-                        ret[last] = Common.bytes2Hex(key)
-                                + ret[last].substring(12, 20) + NO_KEY;
-                    }
-                } else {
-                    ret[last] = NO_KEY + ret[last].substring(12, 20)
-                            + Common.bytes2Hex(key);
+                noData = false;
+                if (i != last) {
+                    image.setBlock(sectorIndex, i, blockBytes, 0);
+                    continue;
+                }
+                // Sector trailer. Keep known Access Conditions.
+                if (!image.isBlockValid(sectorIndex, i)) {
+                    image.setAccessConditions(sectorIndex, blockBytes, 6);
                 }
+                if (!useAsKeyB && isKeyBReadable(blockBytes)) {
+                    image.setKeyB(sectorIndex, blockBytes, 10);
+                }
+            } catch (TagLostException e) {
+                throw e;
+            } catch (IOException e) {
+                // Could not read block.
+                // (Maybe due to key/authentication method.)
+                Log.d(LOG_TAG, "(Recoverable) Error while reading block "
+                        + (firstBlock + i) + " from tag.");
+                if (!isConnected()) {
+                    throw new TagLostException(
+                            "Tag removed during readSector(...)");
+                }
+                // After an error, a re-authentication is needed.
+                checkAuth(authenticate(sectorIndex, key, useAsKeyB));
             }
         }
-        return ret;
+
+        if (noData) {
+            // Was is possible to read any data (especially with key B)?
+            // If Key B may be read in the corresponding Sector Trailer,
+            // it cannot serve for authentication (according to NXP).
+            // What they mean is that you can authenticate successfully,
+            // but can not read data. In this case the
+            // readBlock() result is 0 for each block.
+            // Also, a tag might be bricked in a way that the authentication
+            // works, but reading data does not.
+            return false;
+        }
+        // Merge key in last block (sector trailer).
+        if (useAsKeyB) {
+            image.setKeyB(sectorIndex, key, 0);
+        } else {
+            image.setKeyA(sectorIndex, key, 0);
+        }
+        return true;
     }
 
     /**
@@ -305,6 +683,7 @@ public class MCReader {
      * <li>3 - Data are not 16 bytes.</li>
      * <li>4 - Authentication went wrong.</li>
      * <li>-1 - Error while writing to tag.</li>
+     * <li>-2 - Tag lost (during authentication).</li>
      * </ul>
      * @see #authenticate(int, byte[], boolean)
      */
@@ -313,17 +692,20 @@ public class MCReader {
         if (getSectorCount()-1 < sectorIndex) {
             return 1;
         }
-        if (mMFC.getBlockCountInSector(sectorIndex)-1 < blockIndex) {
+        if (mTransport.getBlockCountInSector(sectorIndex)-1 < blockIndex) {
             return 2;
         }
         if (data.length != 16) {
             return 3;
         }
-        if (!authenticate(sectorIndex, key, useAsKeyB)) {
+        int auth = authenticate(sectorIndex, key, useAsKeyB);
+        if (auth == AUTH_TAG_LOST) {
+            return -2;
+        } else if (auth != AUTH_SUCCESS) {
             return 4;
         }
         // Write block.
-        int block = mMFC.sectorToBlock(sectorIndex) + blockIndex;
+        int block = mTransport.sectorToBlock(sectorIndex) + blockIndex;
         // NOTE: See warning on writeBlock0Gen3().
 //        if (block == 0) {
 //            // Try first to write block 0 using the gen3 approach. This must be done
@@ -337,7 +719,7 @@ public class MCReader {
 //        }
         try {
             // Normal write (also feasible for block 0 of gen2 cards).
-            mMFC.writeBlock(block, data);
+            mTransport.writeBlock(block, data);
         } catch (IOException e) {
 //            if (block == 0) {
 //                // Writing to block 0 failed. Maybe it is a gen3 card. Try it.
@@ -349,6 +731,453 @@ public class MCReader {
         return 0;
     }
 
+    /**
+     * Write blocks to the tag following a write plan. Each group of
+     * blocks of the plan is written with one authentication. Each block
+     * is read back after writing. A block is only written again if
+     * writing failed or if the read back data do not match (up to
+     * {@link #MAX_WRITE_ATTEMPTS} times). The statistics of the run are
+     * stored in the plan (e.g. {@link WritePlan#getRetryCount()}).
+     * @param plan The write plan.
+     * @return The return codes are:<br />
+     * <ul>
+     * <li>0 - Everything went fine.</li>
+     * <li>4 - Authentication went wrong.</li>
+     * <li>-1 - Error while writing to tag (see
+     * {@link WritePlan#getFailedSector()}).</li>
+     * <li>-2 - Tag lost.</li>
+     * </ul>
+     * @see WritePlan#compile(HashMap, SparseArray, HashMap)
+     */
+    public int writeWithPlan(WritePlan plan) {
+        return writeWithPlan(plan, null);
+    }
+
+    /**
+     * Write blocks to the tag following a write plan (see
+     * {@link #writeWithPlan(WritePlan)}) and record the current content
+     * of each block in a journal before it is overwritten. The blocks of
+     * a step are read (once) right after the authentication and the
+     * journal is synced once per step. In differential mode, the read
+     * content is also used to skip matching blocks. Blocks that already
+     * have a pre-image in the journal (resumed write) are not recorded
+     * again.
+     * @param plan The write plan.
+     * @param journal The journal (see {@link WriteJournal#create(byte[],
+     * WritePlan)}). Might be null (no journal).
+     * @return The return codes are the same as for
+     * {@link #writeWithPlan(WritePlan)} plus:<br />
+     * <ul>
+     * <li>-3 - Error while writing the journal. The current step was not
+     * written.</li>
+     * </ul>
+     */
+    public int writeWithPlan(WritePlan plan, WriteJournal journal) {
+        plan.resetStats();
+        for (WritePlan.Step step : plan.getSteps()) {
+            int ret = writeStep(step, plan, journal);
+            if (ret != 0) {
+                return ret;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Write and verify the blocks of one step of a write plan.
+     * @param step The step.
+     * @param plan The plan (for the statistics).
+     * @param journal The journal. Might be null.
+     * @return See {@link #writeWithPlan(WritePlan, WriteJournal)}.
+     */
+    private int writeStep(WritePlan.Step step, WritePlan plan,
+            WriteJournal journal) {
+        int firstBlock = mTransport.sectorToBlock(step.mSector);
+        int trailer = mTransport.getBlockCountInSector(step.mSector) - 1;
+        boolean authenticated = false;
+        byte[][] current = new byte[step.mBlocks.length][];
+        if (journal != null) {
+            int ret = journalStep(step, plan, journal, current);
+            if (ret < 0 || ret == 4) {
+                return ret;
+            }
+            authenticated = ret == 0;
+        }
+        for (int i = 0; i < step.mBlocks.length; i++) {
+            int block = firstBlock + step.mBlocks[i];
+            boolean isTrailer = step.mBlocks[i] == trailer;
+            boolean compared = !plan.isDifferential();
+            int attempts = 0;
+            while (true) {
+                attempts++;
+                if (!authenticated) {
+                    plan.countAuth();
+                    int auth = authenticate(step.mSector, step.mKey,
+                            step.mKeyB);
+                    if (auth == AUTH_TAG_LOST) {
+                        plan.setFailed(step.mSector, -1);
+                        return -2;
+                    } else if (auth != AUTH_SUCCESS) {
+                        // Might be a RF error. Retry.
+                        if (attempts >= MAX_WRITE_ATTEMPTS) {
+                            plan.setFailed(step.mSector, -1);
+                            return 4;
+                        }
+                        plan.countRetry();
+                        continue;
+                    }
+                    authenticated = true;
+                }
+                if (!compared) {
+                    // Differential write. Skip the block if it already
+                    // contains the data.
+                    compared = true;
+                    if (current[i] == null) {
+                        current[i] = readBackBlock(step, block, plan);
+                    }
+                    if (current[i] == null) {
+                        if (!isConnected()) {
+                            plan.setFailed(step.mSector, step.mBlocks[i]);
+                            return -2;
+                        }
+                        // Unknown content. Write the block (after a new
+                        // authentication).
+                        authenticated = false;
+                        attempts--;
+                        continue;
+                    }
+                    if (isAlreadyWritten(step.mData[i], current[i], isTrailer,
+                            step.mWriteInfo[i], step.mKeyB, step.mKey)) {
+                        plan.countSkippedBlock();
+                        break;
+                    }
+                }
+                try {
+                    plan.countWrite();
+                    mTransport.writeBlock(block, step.mData[i]);
+                } catch (TagLostException | SecurityException e) {
+                    plan.setFailed(step.mSector, step.mBlocks[i]);
+                    return -2;
+                } catch (IOException e) {
+                    // Writing multiple blocks consecutively sometimes
+                    // fails (see issue 412). An error ends the
+                    // authentication.
+                    Log.d(LOG_TAG, "Error while writing block " + block
+                            + " (attempt " + attempts + ").");
+                    if (!isConnected()) {
+                        plan.setFailed(step.mSector, step.mBlocks[i]);
+                        return -2;
+                    }
+                    authenticated = false;
+                    if (attempts >= MAX_WRITE_ATTEMPTS) {
+                        plan.setFailed(step.mSector, step.mBlocks[i]);
+                        return -1;
+                    }
+                    plan.countRetry();
+                    continue;
+                }
+
+                // Verify.
+                byte[] readBack = readBackBlock(step, block, plan);
+                if (readBack == null) {
+                    if (!isConnected()) {
+                        plan.setFailed(step.mSector, step.mBlocks[i]);
+                        return -2;
+                    }
+                    // Not readable (anymore) with this key. Accept
+                    // the write. The next block needs a new authentication.
+                    authenticated = false;
+                    plan.countUnverified();
+                    plan.countWrittenBlock();
+                    break;
+                }
+                if (isWritten(step.mData[i], readBack, isTrailer,
+                        step.mWriteInfo[i], step.mKeyB)) {
+                    plan.countWrittenBlock();
+                    break;
+                }
+                Log.d(LOG_TAG, "Verification of block " + block
+                        + " failed (attempt " + attempts + ").");
+                if (attempts >= MAX_WRITE_ATTEMPTS) {
+                    plan.setFailed(step.mSector, step.mBlocks[i]);
+                    return -1;
+                }
+                plan.countRetry();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Read the blocks of a step and append their content (pre-images)
+     * to the journal. The journal is synced before anything is written.
+     * The pre-image of a Sector Trailer is completed with the keys from
+     * the key map (key A is never readable).
+     * @param step The step.
+     * @param plan The plan (for the statistics).
+     * @param journal The journal.
+     * @param current The read content of the blocks (will be filled,
+     * null if a block was not read).
+     * @return 0 if the pre-images are on disk and the sector is still
+     * authenticated, 1 if they are on disk but a new authentication is
+     * needed, or an error code of
+     * {@link #writeWithPlan(WritePlan, WriteJournal)}.
+     */
+    private int journalStep(WritePlan.Step step, WritePlan plan,
+            WriteJournal journal, byte[][] current) {
+        boolean needed = false;
+        for (int block : step.mBlocks) {
+            needed |= !journal.hasPreImage(step.mSector, block);
+        }
+        if (!needed) {
+            return 1;
+        }
+        int auth = AUTH_FAILED;
+        for (int i = 0; i < MAX_WRITE_ATTEMPTS && auth == AUTH_FAILED; i++) {
+            plan.countAuth();
+            auth = authenticate(step.mSector, step.mKey, step.mKeyB);
+        }
+        if (auth != AUTH_SUCCESS) {
+            plan.setFailed(step.mSector, -1);
+            return (auth == AUTH_TAG_LOST) ? -2 : 4;
+        }
+        int firstBlock = mTransport.sectorToBlock(step.mSector);
+        int trailer = mTransport.getBlockCountInSector(step.mSector) - 1;
+        boolean authenticated = true;
+        for (int i = 0; i < step.mBlocks.length; i++) {
+            if (journal.hasPreImage(step.mSector, step.mBlocks[i])) {
+                continue;
+            }
+            current[i] = readBackBlock(step, firstBlock + step.mBlocks[i],
+                    plan);
+            if (current[i] == null) {
+                if (!isConnected()) {
+                    plan.setFailed(step.mSector, step.mBlocks[i]);
+                    return -2;
+                }
+                authenticated = false;
+            }
+            byte[] preImage = current[i];
+            boolean complete = true;
+            if (preImage != null && step.mBlocks[i] == trailer) {
+                preImage = preImage.clone();
+                complete = completeTrailer(preImage, step);
+            }
+            if (!journal.addPreImage(step.mSector, step.mBlocks[i],
+                    preImage, complete)) {
+                plan.setFailed(step.mSector, step.mBlocks[i]);
+                return -3;
+            }
+        }
+        if (!journal.sync()) {
+            plan.setFailed(step.mSector, -1);
+            return -3;
+        }
+        return authenticated ? 0 : 1;
+    }
+
+    /**
+     * Fill in the parts of a read Sector Trailer that can not be read
+     * (key A and, depending on the Access Conditions, key B) with the
+     * keys from the key map.
+     * @param trailer The read Sector Trailer (will be modified).
+     * @param step The step of the write plan (with the keys).
+     * @return True if the Sector Trailer is complete. False if a key
+     * is unknown.
+     */
+    private static boolean completeTrailer(byte[] trailer,
+            WritePlan.Step step) {
+        byte[] keyA = step.mSectorKeys[0];
+        byte[] keyB = step.mSectorKeys[1];
+        boolean complete = true;
+        if (keyA != null) {
+            System.arraycopy(keyA, 0, trailer, 0, 6);
+        } else {
+            complete = false;
+        }
+        SectorPermissions permissions = SectorPermissions.decode(trailer, 6);
+        if (step.mKeyB || permissions == null
+                || !permissions.isKeyBReadable()) {
+            // Key B was not read.
+            if (keyB != null) {
+                System.arraycopy(keyB, 0, trailer, 10, 6);
+            } else {
+                complete = false;
+            }
+        }
+        return complete;
+    }
+
+    /**
+     * Create a write plan to finish or to roll back an interrupted write
+     * that was recorded in a journal. The keys of each sector are mapped
+     * first, because the interrupted write might already have changed
+     * them (see {@link WriteJournal#getKeyCandidates(int, boolean)}).
+     * The plan is differential, so blocks that already contain the data
+     * are not written again.
+     * Run the plan with {@link #writeWithPlan(WritePlan, WriteJournal)}
+     * (with the journal to resume, without it to roll back).
+     * @param journal The journal of the interrupted write.
+     * @param rollback True to restore the pre-images, false to write the
+     * rest of the data.
+     * @return The write plan or null if the tag was lost. Blocks that
+     * can not be written (key not found or Access Conditions) are not
+     * part of the plan.
+     */
+    public WritePlan planJournalReplay(WriteJournal journal,
+            boolean rollback) {
+        HashMap<Integer, HashMap<Integer, byte[]>> data = rollback
+                ? journal.getPreImages() : journal.getData();
+        HashMap<Integer, int[]> pos = new HashMap<>();
+        SparseArray<byte[][]> keyMap = new SparseArray<>();
+        for (int sector : data.keySet()) {
+            if (sector >= getSectorCount()) {
+                continue;
+            }
+            byte[][] keys = new byte[2][];
+            for (int k = 0; k < 2; k++) {
+                for (byte[] key : journal.getKeyCandidates(sector, k == 1)) {
+                    int auth = authenticate(sector, key, k == 1);
+                    if (auth == AUTH_TAG_LOST) {
+                        return null;
+                    } else if (auth == AUTH_SUCCESS) {
+                        keys[k] = key;
+                        break;
+                    }
+                }
+            }
+            if (keys[0] == null && keys[1] == null) {
+                continue;
+            }
+            keyMap.put(sector, keys);
+            Integer[] blocks = data.get(sector).keySet().toArray(
+                    new Integer[0]);
+            int[] blockArray = new int[blocks.length];
+            for (int i = 0; i < blocks.length; i++) {
+                blockArray[i] = blocks[i];
+            }
+            pos.put(sector, blockArray);
+        }
+        HashMap<Integer, HashMap<Integer, Integer>> writeOnPos =
+                isWritableOnPositions(pos, keyMap);
+        if (writeOnPos == null) {
+            return null;
+        }
+        WritePlan plan = WritePlan.compile(writeOnPos, keyMap, data);
+        plan.setDifferential(true);
+        return plan;
+    }
+
+    /**
+     * Read a block back for verification. If reading fails,
+     * the block is read again after a new authentication
+     * (reading might fail for the same reason writing sometimes does).
+     * @param step The step of the write plan (for the authentication).
+     * @param block The block (index on the tag).
+     * @param plan The plan (for the statistics).
+     * @return The first 16 bytes of the block or null if the block could
+     * not be read.
+     */
+    private byte[] readBackBlock(WritePlan.Step step, int block,
+            WritePlan plan) {
+        for (int i = 0; i < 2; i++) {
+            try {
+                if (i > 0) {
+                    plan.countAuth();
+                    if (authenticate(step.mSector, step.mKey, step.mKeyB)
+                            != AUTH_SUCCESS) {
+                        return null;
+                    }
+                }
+                byte[] data = mTransport.readBlock(block);
+                if (data != null && data.length >= 16) {
+                    return (data.length == 16) ? data
+                            : Arrays.copyOf(data, 16);
+                }
+            } catch (TagLostException | SecurityException e) {
+                return null;
+            } catch (IOException e) {
+                if (!isConnected()) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check if a block already contains the data that should be written
+     * (see {@link WritePlan#setDifferential(boolean)}). Unlike
+     * {@link #isWritten(byte[], byte[], boolean, int, boolean)}, the
+     * parts of a Sector Trailer that can not be read must be known to
+     * match: Key A must be the key used for authentication and key B
+     * must be readable (if the keys are writable).
+     * @param data The data to write.
+     * @param current The current data of the block.
+     * @param isTrailer True if the block is a Sector Trailer.
+     * @param writeInfo The write info of the block (see
+     * {@link #isWritableOnPositions(HashMap, SparseArray)}).
+     * @param keyB True if the block is written with key B.
+     * @param key The key used for authentication.
+     * @return True if the block does not need to be written.
+     */
+    private static boolean isAlreadyWritten(byte[] data, byte[] current,
+            boolean isTrailer, int writeInfo, boolean keyB, byte[] key) {
+        if (!isWritten(data, current, isTrailer, writeInfo, keyB)) {
+            return false;
+        }
+        if (!isTrailer || writeInfo == 6) {
+            // Data block or keys not writable.
+            return true;
+        }
+        if (keyB || !Arrays.equals(Arrays.copyOf(data, 6), key)) {
+            // Key A is unknown or different.
+            return false;
+        }
+        // Key B was compared by isWritten() if it is readable.
+        SectorPermissions permissions = SectorPermissions.decode(current, 6);
+        return permissions != null && permissions.isKeyBReadable();
+    }
+
+    /**
+     * Check if the read back data of a block match the written data.
+     * For Sector Trailers, only the readable parts are checked: The
+     * Access Conditions (if they were writable) and key B (if it was
+     * writable and is readable). Key A is never readable.
+     * @param written The written data.
+     * @param readBack The read back data.
+     * @param isTrailer True if the block is a Sector Trailer.
+     * @param writeInfo The write info of the block (see
+     * {@link #isWritableOnPositions(HashMap, SparseArray)}).
+     * @param keyB True if the block was written with key B.
+     * @return True if the data match.
+     */
+    private static boolean isWritten(byte[] written, byte[] readBack,
+            boolean isTrailer, int writeInfo, boolean keyB) {
+        if (!isTrailer) {
+            return Arrays.equals(written, readBack);
+        }
+        // 4, 5 - Access Conditions not writable.
+        if (writeInfo != 4 && writeInfo != 5) {
+            for (int i = 6; i < 10; i++) {
+                if (written[i] != readBack[i]) {
+                    return false;
+                }
+            }
+        }
+        // 6 - Keys not writable. Key B is only readable with key A.
+        SectorPermissions permissions = SectorPermissions.decode(readBack, 6);
+        if (writeInfo != 6 && !keyB && permissions != null
+                && permissions.isKeyBReadable()) {
+            for (int i = 10; i < 16; i++) {
+                if (written[i] != readBack[i]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
     // WARNING: This function is based on the description from here:
     // https://github.com/RfidResearchGroup/proxmark3/blob/master/doc/magic_cards_notes.md#mifare-classic-apdu-aka-gen3
     // When tested, it did work, however, sectors 0-31 bricked on the 4k tag that was used.
@@ -374,16 +1203,19 @@ public class MCReader {
         System.arraycopy(writeCommand, 0, fullCommand, 0, writeCommand.length);
         System.arraycopy(data, 0, fullCommand, writeCommand.length, data.length);
         try {
-            NfcA gen3Tag = NfcA.get(mMFC.getTag());
+            if (mTag == null) {
+                throw new IOException("No Android tag for this transport.");
+            }
+            NfcA gen3Tag = NfcA.get(mTag);
             if (gen3Tag == null) {
                 throw new IOException("Tag is not IsoDep compatible.");
             }
-            mMFC.close();
+            mTransport.close();
             gen3Tag.connect();
             byte[] response = gen3Tag.transceive(fullCommand);
             // TODO: check response for success.
             gen3Tag.close();
-            mMFC.connect();
+            mTransport.connect();
         } catch (IOException e) {
             Log.e(LOG_TAG, "Error while writing block to tag.", e);
             return -1;
@@ -408,6 +1240,7 @@ public class MCReader {
      * <li>2 - Block index is out of range.</li>
      * <li>3 - Authentication went wrong.</li>
      * <li>-1 - Error while writing to tag.</li>
+     * <li>-2 - Tag lost (during authentication).</li>
      * </ul>
      * @see #authenticate(int, byte[], boolean)
      */
@@ -416,21 +1249,24 @@ public class MCReader {
         if (getSectorCount()-1 < sectorIndex) {
             return 1;
         }
-        if (mMFC.getBlockCountInSector(sectorIndex)-1 < blockIndex) {
+        if (mTransport.getBlockCountInSector(sectorIndex)-1 < blockIndex) {
             return 2;
         }
-        if (!authenticate(sectorIndex, key, useAsKeyB)) {
+        int auth = authenticate(sectorIndex, key, useAsKeyB);
+        if (auth == AUTH_TAG_LOST) {
+            return -2;
+        } else if (auth != AUTH_SUCCESS) {
             return 3;
         }
         // Write Value Block.
-        int block = mMFC.sectorToBlock(sectorIndex) + blockIndex;
+        int block = mTransport.sectorToBlock(sectorIndex) + blockIndex;
         try {
             if (increment) {
-                mMFC.increment(block, value);
+                mTransport.increment(block, value);
             } else {
-                mMFC.decrement(block, value);
+                mTransport.decrement(block, value);
             }
-            mMFC.transfer(block);
+            mTransport.transfer(block);
         } catch (IOException e) {
             Log.e(LOG_TAG, "Error while writing Value Block to tag.", e);
             return -1;
@@ -438,6 +1274,357 @@ public class MCReader {
         return 0;
     }
 
+    /**
+     * Apply a list of Value Block changes to the tag
+     * (see {@link ValuePlan}). The changes are grouped by sector and the
+     * Access Conditions of each sector are read only once. For each
+     * change, the first method the Access Conditions permit is used:
+     * increment or decrement and transfer (no read needed to change a
+     * value by a delta), write the new Value Block, or write it to the
+     * staging block of the sector, restore and transfer. The connection
+     * stays open (the caller closes it), so many changes can be applied
+     * in one go. Changes are not retried, because an increment or
+     * decrement that failed after the tag executed it would be applied
+     * twice.
+     * @param plan The changes. The results are stored in the plan
+     * (e.g. {@link ValuePlan#getResult(int)}).
+     * @param keyMap A key map generated by
+     * {@link de.syss.MifareClassicTool.Activities.KeyMapCreator}.
+     * @return The return codes are:<br />
+     * <ul>
+     * <li>0 - All changes were applied.</li>
+     * <li>-1 - Some changes were not applied (or the content of a
+     * staging block could not be restored).</li>
+     * <li>-2 - Tag lost.</li>
+     * </ul>
+     */
+    public int applyValuePlan(ValuePlan plan, SparseArray<byte[][]> keyMap) {
+        plan.resetStats();
+        // Group by sector. The sort is stable, so the changes of a block
+        // keep their order.
+        List<ValuePlan.Change> changes = new ArrayList<>(plan.getChanges());
+        Collections.sort(changes,
+                (a, b) -> Integer.compare(a.mSector, b.mSector));
+        int from = 0;
+        while (from < changes.size()) {
+            int sector = changes.get(from).mSector;
+            int to = from;
+            while (to < changes.size() && changes.get(to).mSector == sector) {
+                to++;
+            }
+            List<ValuePlan.Change> sectorChanges = changes.subList(from, to);
+            byte[][] keys = keyMap.get(sector);
+            if (sector < 0 || sector >= getSectorCount()) {
+                setValueResults(sectorChanges, ValuePlan.RESULT_INVALID_BLOCK);
+            } else if (keys == null || (keys[0] == null && keys[1] == null)) {
+                setValueResults(sectorChanges, ValuePlan.RESULT_NOT_PERMITTED);
+            } else if (applyValueChanges(sector, sectorChanges, keys, plan)
+                    == -2) {
+                return -2;
+            }
+            from = to;
+        }
+        return (plan.getFailedCount() > 0 || plan.isStagingRestoreFailed())
+                ? -1 : 0;
+    }
+
+    /**
+     * Apply the Value Block changes of one sector
+     * (see {@link #applyValuePlan(ValuePlan, SparseArray)}).
+     * @param sector The sector.
+     * @param changes The changes of the sector.
+     * @param keys Key A and key B of the sector (one might be null).
+     * @param plan The plan (for the statistics).
+     * @return 0 or -2 if the tag was lost.
+     */
+    private int applyValueChanges(int sector, List<ValuePlan.Change> changes,
+            byte[][] keys, ValuePlan plan) {
+        int blockCount = mTransport.getBlockCountInSector(sector);
+        int firstBlock = mTransport.sectorToBlock(sector);
+        int available = ((keys[0] != null) ? 1 : 0)
+                | ((keys[1] != null) ? 2 : 0);
+        // Key of the current authentication (0 = A, 1 = B, -1 = none).
+        int authKey = -1;
+
+        // Read the Access Conditions.
+        SectorPermissions permissions = null;
+        for (int k = 0; k < 2 && permissions == null; k++) {
+            if (keys[k] == null) {
+                continue;
+            }
+            try {
+                authKey = valueAuth(sector, keys, k, -1, plan);
+                plan.countCommand();
+                byte[] trailer = mTransport.readBlock(
+                        firstBlock + blockCount - 1);
+                if (trailer != null && trailer.length >= 16) {
+                    permissions = SectorPermissions.decode(trailer, 6);
+                }
+            } catch (TagLostException e) {
+                return -2;
+            } catch (IOException e) {
+                authKey = -1;
+                if (!isConnected()) {
+                    return -2;
+                }
+            }
+        }
+        if (permissions == null) {
+            setValueResults(changes, ValuePlan.RESULT_ERROR);
+            return 0;
+        }
+
+        // Keys that can use the staging block (write, read and restore).
+        int staging = plan.getStagingBlock(sector);
+        int stagingKeys = 0;
+        if (staging >= 0 && staging < blockCount - 1
+                && !(sector == 0 && staging == 0)) {
+            int group = SectorPermissions.getGroup(staging, blockCount);
+            stagingKeys = permissions.getKeys(group, Operation.Write)
+                    & permissions.getKeys(group, Operation.Read)
+                    & permissions.getKeys(group, Operation.DecTransRest)
+                    & available;
+        }
+        byte[] stagingOriginal = null;
+        int stagingOriginalKey = -1;
+
+        for (ValuePlan.Change change : changes) {
+            int block = change.mBlock;
+            if (block < 0 || block >= blockCount - 1
+                    || (sector == 0 && block == 0) || block == staging) {
+                change.mResult = ValuePlan.RESULT_INVALID_BLOCK;
+                continue;
+            }
+            int group = SectorPermissions.getGroup(block, blockCount);
+            // Increment needs the transfer permission too.
+            int transferKeys = permissions.getKeys(group,
+                    Operation.DecTransRest) & available;
+            int incrementKeys = permissions.getKeys(group,
+                    Operation.Increment) & transferKeys;
+            int writeKeys = permissions.getKeys(group, Operation.Write)
+                    & available;
+            int readKeys = permissions.getKeys(group, Operation.Read)
+                    & available;
+            int absBlock = firstBlock + block;
+            try {
+                // Change by a delta without reading the block.
+                if (!change.mAbsolute && isValueOperand(change.mValue)) {
+                    int nativeKeys = (change.mValue >= 0)
+                            ? incrementKeys : transferKeys;
+                    if (nativeKeys != 0) {
+                        authKey = valueAuth(sector, keys,
+                                pickKey(nativeKeys, authKey), authKey, plan);
+                        changeValue(absBlock, change.mValue, plan);
+                        change.mMethod = ValuePlan.METHOD_NATIVE;
+                        change.mResult = ValuePlan.RESULT_OK;
+                        continue;
+                    }
+                }
+
+                // Read the current value (and address).
+                Integer current = null;
+                int address = absBlock & 0xFF;
+                if (readKeys != 0) {
+                    authKey = valueAuth(sector, keys,
+                            pickKey(readKeys, authKey), authKey, plan);
+                    plan.countCommand();
+                    byte[] data = mTransport.readBlock(absBlock);
+                    if (data != null && data.length >= 16
+                            && Common.isValueBlock(Common.bytes2Hex(
+                                    Arrays.copyOf(data, 16)))) {
+                        current = (data[0] & 0xFF) | (data[1] & 0xFF) << 8
+                                | (data[2] & 0xFF) << 16
+                                | (data[3] & 0xFF) << 24;
+                        address = data[12] & 0xFF;
+                    }
+                }
+                if (current == null && !change.mAbsolute) {
+                    // The new value is unknown.
+                    change.mResult = ValuePlan.RESULT_NOT_PERMITTED;
+                    continue;
+                }
+                long target = change.mAbsolute ? change.mValue
+                        : (long) current + change.mValue;
+                if (target != (int) target) {
+                    // The new value does not fit in a Value Block.
+                    change.mResult = ValuePlan.RESULT_OUT_OF_RANGE;
+                    continue;
+                }
+                int value = (int) target;
+
+                if (current != null && current == value) {
+                    // Nothing to do.
+                    change.mResult = ValuePlan.RESULT_OK;
+                    continue;
+                }
+                // The delta might not fit in the operand of an increment
+                // or decrement (e.g. from -2000000000 to 2000000000).
+                // Then the new Value Block is written.
+                int nativeKeys = 0;
+                long delta = 0;
+                if (current != null) {
+                    delta = (long) value - current;
+                    if (isValueOperand(delta)) {
+                        nativeKeys = (delta > 0)
+                                ? incrementKeys : transferKeys;
+                    }
+                }
+                if (nativeKeys != 0) {
+                    authKey = valueAuth(sector, keys,
+                            pickKey(nativeKeys, authKey), authKey, plan);
+                    changeValue(absBlock, (int) delta, plan);
+                    change.mMethod = ValuePlan.METHOD_NATIVE;
+                } else if (writeKeys != 0) {
+                    authKey = valueAuth(sector, keys,
+                            pickKey(writeKeys, authKey), authKey, plan);
+                    plan.countCommand();
+                    mTransport.writeBlock(absBlock,
+                            Common.encodeValueBlock(value, address));
+                    change.mMethod = ValuePlan.METHOD_WRITE;
+                } else if ((stagingKeys & transferKeys) != 0) {
+                    // Staging block, restore and transfer. This must
+                    // happen within one authentication.
+                    int key = pickKey(stagingKeys & transferKeys, authKey);
+                    authKey = valueAuth(sector, keys, key, authKey, plan);
+                    int stagingBlock = firstBlock + staging;
+                    if (stagingOriginal == null) {
+                        plan.countCommand();
+                        byte[] data = mTransport.readBlock(stagingBlock);
+                        if (data == null || data.length < 16) {
+                            throw new IOException(
+                                    "Could not read the staging block.");
+                        }
+                        stagingOriginal = Arrays.copyOf(data, 16);
+                        stagingOriginalKey = key;
+                    }
+                    plan.countCommand();
+                    mTransport.writeBlock(stagingBlock,
+                            Common.encodeValueBlock(value, address));
+                    plan.countCommand();
+                    mTransport.restore(stagingBlock);
+                    plan.countCommand();
+                    mTransport.transfer(absBlock);
+                    change.mMethod = ValuePlan.METHOD_STAGED;
+                } else {
+                    change.mResult = ValuePlan.RESULT_NOT_PERMITTED;
+                    continue;
+                }
+                change.mResult = ValuePlan.RESULT_OK;
+            } catch (TagLostException e) {
+                change.mResult = ValuePlan.RESULT_ERROR;
+                return -2;
+            } catch (IOException e) {
+                Log.d(LOG_TAG, "Error while changing Value Block "
+                        + absBlock + ".");
+                change.mResult = ValuePlan.RESULT_ERROR;
+                authKey = -1;
+                if (!isConnected()) {
+                    return -2;
+                }
+            }
+        }
+
+        // Restore the content of the staging block.
+        if (stagingOriginal != null) {
+            try {
+                valueAuth(sector, keys, stagingOriginalKey, authKey, plan);
+                plan.countCommand();
+                mTransport.writeBlock(firstBlock + staging, stagingOriginal);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error while restoring staging block.", e);
+                plan.setStagingRestoreFailed();
+                if (!isConnected()) {
+                    return -2;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Check if a delta can be applied with one increment or decrement.
+     * The operand of these commands is a positive 32 bit value.
+     * @param delta The delta.
+     * @return True if the delta is in the range of -(2^31 - 1) to
+     * 2^31 - 1.
+     */
+    private static boolean isValueOperand(long delta) {
+        return delta >= -Integer.MAX_VALUE && delta <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * Increment or decrement a Value Block and transfer the result.
+     * @param block The block (index on the tag).
+     * @param delta The value is changed by this
+     * (see {@link #isValueOperand(long)}).
+     * @param plan The plan (for the statistics).
+     * @throws IOException If the tag rejected the command or was lost.
+     */
+    private void changeValue(int block, int delta, ValuePlan plan)
+            throws IOException {
+        plan.countCommand();
+        if (delta >= 0) {
+            mTransport.increment(block, delta);
+        } else {
+            mTransport.decrement(block, -delta);
+        }
+        plan.countCommand();
+        mTransport.transfer(block);
+    }
+
+    /**
+     * Authenticate for a Value Block change (if not already authenticated
+     * with the key).
+     * @param sector The sector.
+     * @param keys Key A and key B of the sector.
+     * @param key The key to use (0 = A, 1 = B).
+     * @param authKey The key of the current authentication (-1 = none).
+     * @param plan The plan (for the statistics).
+     * @return The key of the (new) authentication.
+     * @throws IOException If the authentication failed
+     * ({@link TagLostException} if the tag was lost).
+     */
+    private int valueAuth(int sector, byte[][] keys, int key, int authKey,
+            ValuePlan plan) throws IOException {
+        if (key == authKey) {
+            return key;
+        }
+        plan.countAuth();
+        int auth = authenticate(sector, keys[key], key == 1);
+        if (auth == AUTH_TAG_LOST) {
+            throw new TagLostException("Tag removed during valueAuth(...)");
+        } else if (auth != AUTH_SUCCESS) {
+            throw new IOException("Authentication failed.");
+        }
+        return key;
+    }
+
+    /**
+     * Pick a key from a set of permitted keys. The key of the current
+     * authentication is preferred (no new authentication needed).
+     * @param keys The permitted keys (1 = A, 2 = B, 3 = A or B).
+     * @param authKey The key of the current authentication (-1 = none).
+     * @return The key to use (0 = A, 1 = B).
+     */
+    private static int pickKey(int keys, int authKey) {
+        if (authKey >= 0 && (keys & (1 << authKey)) != 0) {
+            return authKey;
+        }
+        return ((keys & 1) != 0) ? 0 : 1;
+    }
+
+    /**
+     * Set the result of Value Block changes.
+     * @param changes The changes.
+     * @param result The result.
+     */
+    private static void setValueResults(List<ValuePlan.Change> changes,
+            int result) {
+        for (ValuePlan.Change change : changes) {
+            change.mResult = result;
+        }
+    }
+
     /**
      * Build Key-Value Pairs in which keys represent the sector and
      * values are one or both of the MIFARE keys (A/B).
@@ -452,12 +1639,16 @@ public class MCReader {
      * key(s) and the information for what sector the key(s) are. You can get
      * this Key-Value Pairs by calling {@link #getKeyMap()}. A full
      * key map can be gained by calling this method as often as there are
-     * sectors on the tag (See {@link #getSectorCount()}). If you call
-     * this method once more after a full key map was created, it resets the
-     * key map and starts all over.
+     * sectors in the mapping range (see {@link #getKeyMapProgress()}).
+     * If you call this method once more after a full key map was created,
+     * it resets the key map and starts all over.<br /><br />
+     * The first call of a walk does a triage (if enabled, see
+     * {@link #setUseTriage(boolean)}). The sectors are not necessarily
+     * mapped in ascending order.
      * @return The sector that was just checked. On an error condition,
      * it returns "-1" and resets the key map to "null".
      * @see #getKeyMap()
+     * @see #getKeyMapProgress()
      * @see #setKeyFile(File[], Context)
      * @see #setMappingRange(int, int)
      * @see #readAsMuchAsPossible(SparseArray)
@@ -467,135 +1658,590 @@ public class MCReader {
         boolean error = false;
         cancelCreateKeyMap = false;
         if (mKeysWithOrder != null && mLastSector != -1) {
-            if (mKeyMapStatus == mLastSector+1) {
-                mKeyMapStatus = mFirstSector;
+            if (mSectorOrder == null
+                    || mKeyMapPosition == mSectorOrder.length) {
                 mKeyMap = new SparseArray<>();
+                mTagKeys = new long[0];
+                Arrays.fill(mKeyTierHits, 0);
+                if (!triage()) {
+                    // Canceled.
+                    return -1;
+                }
             }
+            mKeyMapStatus = mSectorOrder[mKeyMapPosition];
 
-            // Get auto reconnect setting.
-            boolean autoReconnect = Common.getPreferences().getBoolean(
-                    Preference.AutoReconnect.toString(), false);
-            // Get retry authentication option.
-            boolean retryAuth = Common.getPreferences().getBoolean(
-                    Preference.UseRetryAuthentication.toString(), false);
-            int retryAuthCount = Common.getPreferences().getInt(
-                    Preference.RetryAuthenticationCount.toString(), 1);
+            // Get auto reconnect and retry authentication settings.
+            boolean autoReconnect = mConfig.isAutoReconnect();
+            boolean retryAuth = mConfig.isRetryAuth();
+            int retryAuthCount = mConfig.getRetryAuthCount();
 
-            String[] keys = new String[2];
+            long[] keys = new long[2];
             boolean[] foundKeys = new boolean[] {false, false};
             boolean auth;
+            byte[] bytesKey = new byte[6];
+            // True if key B is readable and could not be used for
+            // authentication (no need to search for it).
+            boolean keyBIsData = false;
+            boolean keyBFromTrailer = false;
+
+            // Keys of this sector from the key map cache are used
+            // if they are still valid.
+            boolean cached = checkCachedKeys(keys, foundKeys);
+
+            // Keys found by the triage. The keys the triage tried
+            // will not be tried again.
+            int[] tiers = new int[] {-1, -1};
+            long[] triageTried = new long[0];
+            if (!cached && mTriageTried[mKeyMapStatus] != null) {
+                triageTried = mTriageTried[mKeyMapStatus];
+                for (int i = 0; i < 2; i++) {
+                    long key = mTriageKeys[2 * mKeyMapStatus + i];
+                    if (key != -1) {
+                        keys[i] = key;
+                        foundKeys[i] = true;
+                        tiers[i] = mTriageTiers[2 * mKeyMapStatus + i];
+                    }
+                }
+                keyBIsData = mTriageKeyBIsData[mKeyMapStatus];
+                keyBFromTrailer = tiers[1] == KEY_TIER_TRAILER;
+            }
+
+            // Try the keys of this tag and the ones with the most hits
+            // on this kind of tag first. Then try the key files.
+            long[] profileKeys = new long[0];
+            long[] preferredKeys = new long[0];
+            int keyCount = 0;
+            if (!cached && !(foundKeys[0] && (foundKeys[1] || keyBIsData))) {
+                profileKeys = getProfileKeys(mKeyMapStatus);
+                preferredKeys = removeKeys(getPreferredKeys(
+                        mKeyMapStatus, profileKeys), triageTried);
+                keyCount = preferredKeys.length + mKeysWithOrder.length;
+            }
+
+            // Resume an interrupted mapping of this sector. Keys of the
+            // key files before these offsets were already tried.
+            int offsetA = 0;
+            int offsetB = 0;
+            if (mKeyMapJournal != null) {
+                offsetA = mKeyMapJournal.getOffsetA(mKeyMapStatus);
+                offsetB = mKeyMapJournal.getOffsetB(mKeyMapStatus);
+            }
+            // Number of keys of the key files already tried.
+            int reached = 0;
+
+            // Events for the listener. Timing is only done if there is one.
+            KeyMapListener listener = mKeyMapListener;
+            int keysTried = 0;
+            int auths = 0;
+            long authNanos = 0;
+            int[] keyIndex = new int[] {-1, -1};
+            // Keys that were found by other readers.
+            boolean[] shared = new boolean[] {false, false};
+            if (listener != null) {
+                listener.onSectorStarted(mKeyMapStatus);
+            }
+
+            // Check next sector against all keys (lines) with
+            // authentication method A and B.
+            keysloop:
+            for (int i = 0; i < keyCount; i++) {
+                if (mKeyMapBoard != null) {
+                    keyBIsData = syncWithKeyMapBoard(
+                            keys, foundKeys, shared, keyBIsData);
+                    if (mKeyMapBoard.isCanceled()) {
+                        cancelCreateKeyMap = true;
+                    } else if (foundKeys[0] && (foundKeys[1] || keyBIsData)) {
+                        // Found by the other readers.
+                        break;
+                    }
+                }
+                long key;
+                boolean skipKeyA = false;
+                boolean skipKeyB = false;
+                if (i < preferredKeys.length) {
+                    key = preferredKeys[i];
+                } else {
+                    int index = i - preferredKeys.length;
+                    if (index < Math.min(offsetA, offsetB)) {
+                        // Already tried in a previous session.
+                        i = preferredKeys.length - 1
+                                + Math.min(Math.min(offsetA, offsetB),
+                                mKeysWithOrder.length);
+                        continue;
+                    }
+                    reached = index;
+                    if (mKeyMapJournal != null && index > 0
+                            && index % JOURNAL_INTERVAL == 0) {
+                        updateKeyMapJournal(keys, foundKeys,
+                                Math.max(offsetA, reached),
+                                Math.max(offsetB, reached));
+                    }
+                    key = mKeysWithOrder[index];
+                    if (contains(preferredKeys, key)
+                            || contains(triageTried, key)) {
+                        // Already tried.
+                        continue;
+                    }
+                    skipKeyA = index < offsetA;
+                    skipKeyB = index < offsetB;
+                }
+                KeyDictionary.toBytes(key, bytesKey, 0);
+                // Position of the key in the key files (-1 for
+                // the preferred keys).
+                int index = (i < preferredKeys.length)
+                        ? -1 : i - preferredKeys.length;
+                // An attempt that was interrupted by a lost tag is
+                // retried once after reconnecting.
+                boolean retriedAfterReconnect = false;
+                for (int j = 0; j < retryAuthCount+1;) {
+                    long start = (listener != null) ? System.nanoTime() : 0;
+                    try {
+                        if (cancelCreateKeyMap) {
+                            updateKeyMapJournal(keys, foundKeys,
+                                    Math.max(offsetA, reached),
+                                    Math.max(offsetB, reached));
+                            return -1;
+                        }
+                        if (!foundKeys[0] && !skipKeyA) {
+                            auths++;
+                            auth = mTransport.authenticateSectorWithKeyA(
+                                    mKeyMapStatus, bytesKey);
+                            if (auth) {
+                                keys[0] = key;
+                                foundKeys[0] = true;
+                                keyIndex[0] = index;
+                                // The sector is authenticated with key A.
+                                // Maybe key B can be read from the trailer.
+                                if (!foundKeys[1]) {
+                                    long keyB = readKeyBFromTrailer(
+                                            mKeyMapStatus);
+                                    if (keyB != -1) {
+                                        keys[1] = keyB;
+                                        foundKeys[1] = mTransport
+                                                .authenticateSectorWithKeyB(
+                                                mKeyMapStatus,
+                                                KeyDictionary.toBytes(keyB));
+                                        keyBIsData = !foundKeys[1];
+                                        keyBFromTrailer = foundKeys[1];
+                                    }
+                                }
+                            }
+                        }
+                        if (!foundKeys[1] && !keyBIsData && !skipKeyB) {
+                            auths++;
+                            auth = mTransport.authenticateSectorWithKeyB(
+                                    mKeyMapStatus, bytesKey);
+                            if (auth) {
+                                keys[1] = key;
+                                foundKeys[1] = true;
+                                keyIndex[1] = index;
+                            }
+                        }
+                        if (listener != null) {
+                            authNanos += System.nanoTime() - start;
+                        }
+                    } catch (Exception e) {
+                        Log.d(LOG_TAG,
+                                "Error while building next key map part");
+                        if (autoReconnect) {
+                            long waitStart = System.nanoTime();
+                            boolean reconnected = reconnect();
+                            if (mTimingStats != null) {
+                                mTimingStats.record(
+                                        TimingStats.Op.RECONNECT_WAIT,
+                                        System.nanoTime() - waitStart,
+                                        !reconnected);
+                            }
+                            if (!reconnected) {
+                                // Canceled or the tag did not come back.
+                                if (cancelCreateKeyMap) {
+                                    updateKeyMapJournal(keys, foundKeys,
+                                            Math.max(offsetA, reached),
+                                            Math.max(offsetB, reached));
+                                    return -1;
+                                }
+                                error = true;
+                                break keysloop;
+                            }
+                            if (listener != null) {
+                                listener.onReconnect(mKeyMapStatus);
+                            }
+                            if (!retriedAfterReconnect) {
+                                // Repeat last loop (do not incr. j).
+                                retriedAfterReconnect = true;
+                                continue;
+                            }
+                            // Interrupted again. Go on with the next key.
+                            break;
+                        } else {
+                            error = true;
+                            break keysloop;
+                        }
+                    }
+                    // Retry?
+                    if((foundKeys[0] && (foundKeys[1] || keyBIsData))
+                            || !retryAuth) {
+                        // Both keys found or no retry wanted. Stop retrying.
+                        break;
+                    }
+                    j++;
+                }
+                keysTried++;
+                if (listener != null && keysTried % KEYS_TRIED_INTERVAL == 0) {
+                    listener.onKeysTried(mKeyMapStatus, keysTried,
+                            authNanos, auths);
+                    authNanos = 0;
+                    auths = 0;
+                }
+                // Next key?
+                if (foundKeys[0] && (foundKeys[1] || keyBIsData)) {
+                    // Both keys found. Stop searching for keys.
+                    break;
+                }
+            }
+            if (mKeyMapBoard != null && !error) {
+                keyBIsData = syncWithKeyMapBoard(
+                        keys, foundKeys, shared, keyBIsData);
+            }
+            if (!error && !(foundKeys[0] && (foundKeys[1] || keyBIsData))) {
+                // All keys tried.
+                reached = mKeysWithOrder.length;
+            }
+            if (listener != null && !error
+                    && keysTried % KEYS_TRIED_INTERVAL != 0) {
+                listener.onKeysTried(mKeyMapStatus, keysTried,
+                        authNanos, auths);
+            }
+            if (!error && (foundKeys[0] || foundKeys[1])) {
+                // At least one key found. Add key(s).
+                byte[][] bytesKeys = new byte[2][];
+                for (int i = 0; i < 2; i++) {
+                    if (!foundKeys[i]) {
+                        continue;
+                    }
+                    bytesKeys[i] = KeyDictionary.toBytes(keys[i]);
+                    if (shared[i]) {
+                        // Counted by the reader that found it.
+                        continue;
+                    }
+                    if (mKeyHitStats != null) {
+                        mKeyHitStats.recordHit(mFingerprint,
+                                mKeyMapStatus, i == 1, keys[i]);
+                    }
+                    int tier;
+                    if (tiers[i] != -1) {
+                        // Found by the triage.
+                        tier = tiers[i];
+                    } else if (i == 1 && keyBFromTrailer) {
+                        tier = KEY_TIER_TRAILER;
+                    } else if (cached || contains(mTagKeys, keys[i])
+                            || (mKeyMapJournal != null && (keys[i]
+                            == mKeyMapJournal.getKeyA(mKeyMapStatus)
+                            || keys[i]
+                            == mKeyMapJournal.getKeyB(mKeyMapStatus)))) {
+                        tier = KEY_TIER_TAG;
+                    } else if (contains(profileKeys, keys[i])) {
+                        tier = KEY_TIER_PROFILE;
+                    } else {
+                        tier = KEY_TIER_DICTIONARY;
+                    }
+                    mKeyTierHits[tier]++;
+                    if (listener != null) {
+                        listener.onKeyFound(mKeyMapStatus, i == 1, keys[i],
+                                tier, (tier == KEY_TIER_TRAILER)
+                                ? -1 : keyIndex[i]);
+                    }
+                }
+                mKeyMap.put(mKeyMapStatus, bytesKeys);
+                // Most tags use only one or two keys. Try the found keys
+                // first on the following sectors.
+                for (int i = 0; i < 2; i++) {
+                    if (foundKeys[i] && !contains(mTagKeys, keys[i])) {
+                        mTagKeys = Arrays.copyOf(mTagKeys,
+                                mTagKeys.length + 1);
+                        mTagKeys[mTagKeys.length - 1] = keys[i];
+                    }
+                }
+            }
+            if (mKeyMapJournal != null) {
+                // Remember the progress, so that the mapping of this
+                // sector can be resumed after an error.
+                updateKeyMapJournal(keys, foundKeys,
+                        Math.max(offsetA, reached), keyBIsData
+                        ? mKeysWithOrder.length : Math.max(offsetB, reached));
+            }
+            if (listener != null && !error) {
+                listener.onSectorFinished(mKeyMapStatus,
+                        foundKeys[0], foundKeys[1]);
+            }
+            mKeyMapPosition++;
+            if (!error && mKeyMapPosition == mSectorOrder.length) {
+                // Key map complete. Nothing to resume.
+                if (mKeyMapJournal != null) {
+                    mKeyMapJournal.delete();
+                }
+                if (mKeyMapCache != null && mKeyMap.size() > 0) {
+                    mKeyMapCache.put(getKeyMapCacheId(), mKeyMap);
+                }
+            }
+        } else {
+            error = true;
+        }
+
+        if (error) {
+            mKeyMapStatus = 0;
+            mSectorOrder = null;
+            mKeyMap = null;
+            return -1;
+        }
+        return mKeyMapStatus;
+    }
+
+    /**
+     * Get the progress of the current walk of
+     * {@link #buildNextKeyMapPart()}.
+     * @return The number of sectors that were already mapped. If it is
+     * equal to the number of sectors in the mapping range, the key map
+     * is complete.
+     * @see #setMappingRange(int, int)
+     */
+    public int getKeyMapProgress() {
+        return (mSectorOrder != null) ? mKeyMapPosition : 0;
+    }
+
+    /**
+     * Enable or disable the triage of {@link #buildNextKeyMapPart()}
+     * (enabled by default). Before walking the key files, the triage
+     * tries a few keys (the all-F key, the keys already found on this tag
+     * and the keys with the most hits on this kind of tag) on all sectors.
+     * This way, keys found on a later sector help with the earlier ones.
+     * Then the sectors are mapped in this order: the ones the triage
+     * resolved, the ones with one key missing (one authentication per key)
+     * and finally the ones without a key. The keys tried by the triage
+     * are not tried again. If the tag is in the {@link KeyMapCache},
+     * there is no triage.
+     * @param useTriage True to enable the triage.
+     */
+    public void setUseTriage(boolean useTriage) {
+        mUseTriage = useTriage;
+    }
+
+    /**
+     * Do the triage (see {@link #setUseTriage(boolean)}) for all sectors of
+     * the mapping range and set the {@link #mSectorOrder}. If the triage is
+     * disabled, the sectors will be mapped in ascending order.
+     * If the tag is lost, the triage will be stopped and the remaining
+     * sectors are left to the regular key mapping.
+     * @return False if the key mapping was canceled. True otherwise.
+     */
+    private boolean triage() {
+        Arrays.fill(mTriageKeys, -1);
+        Arrays.fill(mTriageKeyBIsData, false);
+        Arrays.fill(mTriageTried, null);
+        int sectorCount = mLastSector - mFirstSector + 1;
+        mSectorOrder = new int[sectorCount];
+        mKeyMapPosition = 0;
+        for (int i = 0; i < sectorCount; i++) {
+            mSectorOrder[i] = mFirstSector + i;
+        }
+        if (!mUseTriage || mCachedKeys != null) {
+            return true;
+        }
 
-            // Check next sector against all keys (lines) with
-            // authentication method A and B.
-            keysloop:
-            for (int i = 0; i < mKeysWithOrder.size(); i++) {
-                String key = mKeysWithOrder.get(i);
-                byte[] bytesKey = Common.hex2Bytes(key);
-                for (int j = 0; j < retryAuthCount+1;) {
-                    try {
-                        if (cancelCreateKeyMap) {
-                            return -1;
-                        }
-                        if (!foundKeys[0]) {
-                            auth = mMFC.authenticateSectorWithKeyA(
-                                    mKeyMapStatus, bytesKey);
-                            if (auth) {
+        int retries = mConfig.isRetryAuth() ? mConfig.getRetryAuthCount() : 0;
+        byte[] bytesKey = new byte[6];
+        int auths = 0;
+        // 2: Both keys found (or key A found and key B is readable).
+        // 1: One key found. 0: No key found.
+        int[] resolved = new int[sectorCount];
+        sectorsloop:
+        for (int sector = mFirstSector; sector <= mLastSector; sector++) {
+            if (cancelCreateKeyMap) {
+                mSectorOrder = null;
+                return false;
+            }
+            long[] profileKeys = getProfileKeys(sector);
+            long[] candidates = getTriageKeys(sector, profileKeys);
+            long[] keys = new long[] {-1, -1};
+            boolean keyBIsData = false;
+            int tried = 0;
+            try {
+                for (long key : candidates) {
+                    KeyDictionary.toBytes(key, bytesKey, 0);
+                    for (int j = 0; j <= retries; j++) {
+                        if (keys[0] == -1) {
+                            auths++;
+                            if (mTransport.authenticateSectorWithKeyA(
+                                    sector, bytesKey)) {
                                 keys[0] = key;
-                                foundKeys[0] = true;
+                                mTriageTiers[2 * sector] =
+                                        getTriageTier(key, profileKeys);
+                                long keyB = (keys[1] == -1)
+                                        ? readKeyBFromTrailer(sector) : -1;
+                                if (keyB != -1) {
+                                    auths++;
+                                    if (mTransport.authenticateSectorWithKeyB(
+                                            sector,
+                                            KeyDictionary.toBytes(keyB))) {
+                                        keys[1] = keyB;
+                                        mTriageTiers[2 * sector + 1] =
+                                                KEY_TIER_TRAILER;
+                                    } else {
+                                        keyBIsData = true;
+                                    }
+                                }
                             }
                         }
-                        if (!foundKeys[1]) {
-                            auth = mMFC.authenticateSectorWithKeyB(
-                                    mKeyMapStatus, bytesKey);
-                            if (auth) {
+                        if (keys[1] == -1 && !keyBIsData) {
+                            auths++;
+                            if (mTransport.authenticateSectorWithKeyB(
+                                    sector, bytesKey)) {
                                 keys[1] = key;
-                                foundKeys[1] = true;
+                                mTriageTiers[2 * sector + 1] =
+                                        getTriageTier(key, profileKeys);
                             }
                         }
-                    } catch (Exception e) {
-                        Log.d(LOG_TAG,
-                                "Error while building next key map part");
-                        if (autoReconnect) {
-                            // Is the tag still in range?
-                            if (isConnectedButTagLost()) {
-                                close();
-                            }
-                            while (!isConnected()) {
-                                // Sleep for 500ms.
-                                try {
-                                    Thread.sleep(500);
-                                } catch (InterruptedException ex) {
-                                    // Do nothing.
-                                }
-                                // Try to reconnect.
-                                try {
-                                    connect();
-                                } catch (Exception ex) {
-                                    // Do nothing.
-                                }
-                            }
-                            // Repeat last loop (do not incr. j).
-                            continue;
-                        } else {
-                            error = true;
-                            break keysloop;
+                        if (keys[0] != -1 && (keys[1] != -1 || keyBIsData)) {
+                            break;
                         }
                     }
-                    // Retry?
-                    if((foundKeys[0] && foundKeys[1]) || !retryAuth) {
-                        // Both keys found or no retry wanted. Stop retrying.
+                    tried++;
+                    if (keys[0] != -1 && (keys[1] != -1 || keyBIsData)) {
                         break;
                     }
-                    j++;
                 }
-                // Next key?
-                if ((foundKeys[0] && foundKeys[1])) {
-                    // Both keys found. Stop searching for keys.
-                    break;
+            } catch (Exception e) {
+                // Tag lost? Let the regular key mapping handle it.
+                Log.d(LOG_TAG, "Error during the triage.");
+                saveTriageResult(sector, keys, keyBIsData,
+                        Arrays.copyOf(candidates, tried));
+                break sectorsloop;
+            }
+            resolved[sector - mFirstSector] = saveTriageResult(
+                    sector, keys, keyBIsData, candidates);
+        }
+
+        // Resolved sectors first, then the ones with one key missing,
+        // then the rest.
+        int position = 0;
+        int[] counts = new int[3];
+        for (int state = 2; state >= 0; state--) {
+            for (int i = 0; i < sectorCount; i++) {
+                if (resolved[i] == state) {
+                    mSectorOrder[position++] = mFirstSector + i;
+                    counts[state]++;
                 }
             }
-            if (!error && (foundKeys[0] || foundKeys[1])) {
-                // At least one key found. Add key(s).
-                byte[][] bytesKeys = new byte[2][];
-                bytesKeys[0] = Common.hex2Bytes(keys[0]);
-                bytesKeys[1] = Common.hex2Bytes(keys[1]);
-                mKeyMap.put(mKeyMapStatus, bytesKeys);
-                // Key reuse is very likely, so try the found keys first or,
-                // if a all all-0 key is present, second.
-                // The all-F key has to be tested always first if there
-                // is a all-0 key in the key file, because of a bug in
-                // some tags and/or devices.
-                // https://github.com/ikarus23/MifareClassicTool/issues/66
-                if (mKeysWithOrder.size() > 2) {
-                    if (foundKeys[0]) {
-                        mKeysWithOrder.remove(keys[0]);
-                        if (mHasAllZeroKey && !keys[0].equals(DEFAULT_KEY)) {
-                            mKeysWithOrder.add(1, keys[0]);
-                        } else {
-                            mKeysWithOrder.add(0, keys[0]);
-                        }
-                    }
-                    if (foundKeys[1]) {
-                        mKeysWithOrder.remove(keys[1]);
-                        if (mHasAllZeroKey && !keys[1].equals(DEFAULT_KEY)) {
-                            mKeysWithOrder.add(1, keys[1]);
-                        } else {
-                            mKeysWithOrder.add(0, keys[1]);
-                        }
-                    }
+        }
+        if (mKeyMapListener != null) {
+            mKeyMapListener.onTriageFinished(counts[2], counts[1], auths);
+        }
+        return true;
+    }
+
+    /**
+     * Save the result of the triage of a sector. Found keys will be
+     * added to {@link #mTagKeys}, so they are tried on the following
+     * sectors.
+     * @param sector The sector.
+     * @param keys The keys (A and B) or -1 if not found.
+     * @param keyBIsData True if key B is readable.
+     * @param tried The keys that were tried.
+     * @return 2 if the sector is resolved (both keys found or key A found
+     * and key B is readable), 1 if one key was found and 0 otherwise.
+     */
+    private int saveTriageResult(int sector, long[] keys, boolean keyBIsData,
+            long[] tried) {
+        mTriageTried[sector] = tried;
+        mTriageKeyBIsData[sector] = keyBIsData;
+        int found = 0;
+        for (int i = 0; i < 2; i++) {
+            mTriageKeys[2 * sector + i] = keys[i];
+            if (keys[i] == -1) {
+                continue;
+            }
+            found++;
+            if (!contains(mTagKeys, keys[i])) {
+                mTagKeys = Arrays.copyOf(mTagKeys, mTagKeys.length + 1);
+                mTagKeys[mTagKeys.length - 1] = keys[i];
+            }
+        }
+        if (keys[0] != -1 && keyBIsData) {
+            return 2;
+        }
+        return found;
+    }
+
+    /**
+     * Get the keys the triage tries on a sector: The all-F key (if it is
+     * in the key files), the keys found on this tag and the given profile
+     * keys. At most {@link #TRIAGE_KEYS} keys.
+     * @param sector The sector.
+     * @param profileKeys Keys of the profile tier
+     * (see {@link #getProfileKeys(int)}).
+     * @return The keys for the triage.
+     */
+    private long[] getTriageKeys(int sector, long[] profileKeys) {
+        long[] ret = new long[TRIAGE_KEYS];
+        int count = 0;
+        if (mHasAllZeroKey || mKeyDictionary.contains(DEFAULT_KEY_VALUE)) {
+            // Also, the all-F key has to be the first one if there
+            // is an all-0 key (see setKeyDictionary()).
+            ret[count++] = DEFAULT_KEY_VALUE;
+        }
+        long[] journalKeys = new long[0];
+        if (mKeyMapJournal != null) {
+            journalKeys = new long[] {mKeyMapJournal.getKeyA(sector),
+                    mKeyMapJournal.getKeyB(sector)};
+        }
+        long[][] sources = new long[][] {journalKeys, mTagKeys, profileKeys};
+        for (long[] source : sources) {
+            for (long key : source) {
+                if (count == TRIAGE_KEYS) {
+                    return ret;
+                }
+                if (key != KeyMapJournal.NO_KEY
+                        && !contains(ret, count, key)) {
+                    ret[count++] = key;
                 }
             }
-            mKeyMapStatus++;
-        } else {
-            error = true;
         }
+        return Arrays.copyOf(ret, count);
+    }
 
-        if (error) {
-            mKeyMapStatus = 0;
-            mKeyMap = null;
-            return -1;
+    /**
+     * Get the tier of a key found by the triage.
+     * @param key The key.
+     * @param profileKeys Keys of the profile tier of the sector.
+     * @return The tier.
+     */
+    private int getTriageTier(long key, long[] profileKeys) {
+        if (contains(mTagKeys, key)) {
+            return KEY_TIER_TAG;
+        } else if (contains(profileKeys, key)) {
+            return KEY_TIER_PROFILE;
+        }
+        return KEY_TIER_DICTIONARY;
+    }
+
+    /**
+     * Remove keys from an array.
+     * @param keys The keys.
+     * @param remove The keys to remove.
+     * @return The keys without the removed ones.
+     */
+    private static long[] removeKeys(long[] keys, long[] remove) {
+        if (remove.length == 0) {
+            return keys;
+        }
+        int count = 0;
+        long[] ret = new long[keys.length];
+        for (long key : keys) {
+            if (!contains(remove, key)) {
+                ret[count++] = key;
+            }
         }
-        return mKeyMapStatus - 1;
+        return Arrays.copyOf(ret, count);
     }
 
     /**
@@ -708,26 +2354,32 @@ public class MCReader {
                 byte[] ac;
                 // Authenticate.
                 if (keys[0] != null) {
-                    if (!authenticate(sector, keys[0], false)) {
+                    if (authenticate(sector, keys[0], false)
+                            != AUTH_SUCCESS) {
                         return null;
                     }
                 } else if (keys[1] != null) {
-                    if (!authenticate(sector, keys[1], true)) {
+                    if (authenticate(sector, keys[1], true)
+                            != AUTH_SUCCESS) {
                         return null;
                     }
                 } else {
                     return null;
                 }
                 // Read MIFARE Access Conditions.
-                int acBlock = mMFC.sectorToBlock(sector)
-                        + mMFC.getBlockCountInSector(sector) -1;
+                int acBlock = mTransport.sectorToBlock(sector)
+                        + mTransport.getBlockCountInSector(sector) -1;
                 try {
-                    ac = mMFC.readBlock(acBlock);
+                    ac = mTransport.readBlock(acBlock);
                 } catch (Exception e) {
+                    if (e instanceof TagLostException || !isConnected()) {
+                        // No need to try the other sectors.
+                        return null;
+                    }
                     ret.put(sector, null);
                     continue;
                 }
-                // mMFC.readBlock(i) must return 16 bytes or throw an error.
+                // readBlock(i) must return 16 bytes or throw an error.
                 // At least this is what the documentation says.
                 // On Samsung's Galaxy S5 and Sony's Xperia Z2 however, it
                 // sometimes returns < 16 bytes for unknown reasons.
@@ -738,14 +2390,12 @@ public class MCReader {
                     continue;
                 }
 
-                ac = Arrays.copyOfRange(ac, 6, 9);
-                byte[][] acMatrix = Common.acBytesToACMatrix(ac);
-                if (acMatrix == null) {
+                SectorPermissions permissions =
+                        SectorPermissions.decode(ac, 6);
+                if (permissions == null) {
                     ret.put(sector, null);
                     continue;
                 }
-                boolean isKeyBReadable = Common.isKeyBReadable(
-                        acMatrix[0][3], acMatrix[1][3], acMatrix[2][3]);
 
                 // Check all Blocks with data (!= null).
                 HashMap<Integer, Integer> blockWithWriteInfo =
@@ -755,20 +2405,14 @@ public class MCReader {
                             || (block == 15 && sector >= 32)) {
                         // Sector Trailer.
                         // Are the Access Bits writable?
-                        int acValue = Common.getOperationRequirements(
-                                acMatrix[0][3],
-                                acMatrix[1][3],
-                                acMatrix[2][3],
-                                Operation.WriteAC,
-                                true, isKeyBReadable);
+                        int acValue = permissions.getKeys(
+                                SectorPermissions.TRAILER_GROUP,
+                                Operation.WriteAC);
                         // Is key A writable? (If so, key B will be writable
                         // with the same key.)
-                        int keyABValue = Common.getOperationRequirements(
-                                acMatrix[0][3],
-                                acMatrix[1][3],
-                                acMatrix[2][3],
-                                Operation.WriteKeyA,
-                                true, isKeyBReadable);
+                        int keyABValue = permissions.getKeys(
+                                SectorPermissions.TRAILER_GROUP,
+                                Operation.WriteKeyA);
 
                         int result = keyABValue;
                         if (acValue == 0 && keyABValue != 0) {
@@ -782,24 +2426,11 @@ public class MCReader {
                         blockWithWriteInfo.put(block, result);
                     } else {
                         // Data block.
-                        int acBitsForBlock = block;
-                        // Handle MIFARE Classic 4k Tags.
-                        if (sector >= 32) {
-                            if (block >= 0 && block <= 4) {
-                                acBitsForBlock = 0;
-                            } else if (block >= 5 && block <= 9) {
-                                acBitsForBlock = 1;
-                            } else if (block >= 10 && block <= 14) {
-                                acBitsForBlock = 2;
-                            }
-                        }
-                        blockWithWriteInfo.put(
-                                block, Common.getOperationRequirements(
-                                        acMatrix[0][acBitsForBlock],
-                                        acMatrix[1][acBitsForBlock],
-                                        acMatrix[2][acBitsForBlock],
-                                        Operation.Write,
-                                        false, isKeyBReadable));
+                        blockWithWriteInfo.put(block,
+                                permissions.getOperationRequirements(
+                                        SectorPermissions.getGroup(block,
+                                        (sector >= 32) ? 16 : 4),
+                                        Operation.Write));
                     }
 
                 }
@@ -819,7 +2450,9 @@ public class MCReader {
      * @param key Key to validate.
      * @param useAsKeyB True if key should be used as key B during authentication.
      * @return Decrement/transfer/restore permissions for the key according to
-     * {@link Common#getOperationRequirements(byte, byte, byte, Operation, boolean, boolean)}.
+     * {@link Common#getOperationRequirements(byte, byte, byte, Operation, boolean, boolean)},
+     * -1 if the authentication failed or the Access Conditions could not be
+     * read or -2 if the tag was lost.
      */
     public int hasDecTransRestPermission(int sector, int block, byte[] key, boolean useAsKeyB) {
         // Check for sector trailer.
@@ -829,56 +2462,45 @@ public class MCReader {
         }
 
         // Authenticate.
-        if (!authenticate(sector, key, useAsKeyB)) {
+        int auth = authenticate(sector, key, useAsKeyB);
+        if (auth == AUTH_TAG_LOST) {
+            return -2;
+        } else if (auth != AUTH_SUCCESS) {
             return -1;
         }
 
         // Read MIFARE Access Conditions.
         byte[] ac;
-        int acBlock = mMFC.sectorToBlock(sector)
-            + mMFC.getBlockCountInSector(sector) -1;
+        int acBlock = mTransport.sectorToBlock(sector)
+            + mTransport.getBlockCountInSector(sector) -1;
         try {
-            ac = mMFC.readBlock(acBlock);
+            ac = mTransport.readBlock(acBlock);
+        } catch (TagLostException e) {
+            return -2;
         } catch (Exception e) {
-            return -1;
+            return isConnected() ? -1 : -2;
         }
         // Fix/Check: see isWritableOnPositions()
         if (ac.length < 16) {
             return -1;
         }
 
-        ac = Arrays.copyOfRange(ac, 6, 9);
-        byte[][] acMatrix = Common.acBytesToACMatrix(ac);
-        if (acMatrix == null) {
+        SectorPermissions permissions = SectorPermissions.decode(ac, 6);
+        if (permissions == null) {
             return -1;
         }
-        boolean isKeyBReadable = Common.isKeyBReadable(
-            acMatrix[0][3], acMatrix[1][3], acMatrix[2][3]);
-
-        // Handle MIFARE Classic 4k Tags.
-        int acBitsForBlock = block;
-        if (sector >= 32) {
-            if (block >= 0 && block <= 4) {
-                acBitsForBlock = 0;
-            } else if (block >= 5 && block <= 9) {
-                acBitsForBlock = 1;
-            } else if (block >= 10 && block <= 14) {
-                acBitsForBlock = 2;
-            }
-        }
 
         // Check for restore permission on block.
-        return Common.getOperationRequirements(
-                        acMatrix[0][acBitsForBlock],
-                        acMatrix[1][acBitsForBlock],
-                        acMatrix[2][acBitsForBlock],
-                        Operation.DecTransRest,
-                        false, isKeyBReadable);
+        return permissions.getOperationRequirements(
+                SectorPermissions.getGroup(block, (sector >= 32) ? 16 : 4),
+                Operation.DecTransRest);
     }
 
     /**
      * Set the key files for {@link #buildNextKeyMapPart()}.
-     * Key duplicates from the key file will be removed.
+     * Key duplicates from the key file will be removed. The keys are
+     * loaded from the compiled index of the key files
+     * (see {@link KeyDictionary}).
      * @param keyFiles One or more key files.
      * These files are simple text files with one key
      * per line. Empty lines and lines STARTING with "#"
@@ -891,39 +2513,430 @@ public class MCReader {
         if (keyFiles == null || keyFiles.length == 0 || context == null) {
             return -1;
         }
-        HashSet<String> keys = new HashSet<>();
-        for (File file : keyFiles) {
-            String[] lines = Common.readFileLineByLine(file, false, context);
-            if (lines != null) {
-                for (String line : lines) {
-                    if (!line.isEmpty() && line.length() == 12
-                            && line.matches("[0-9A-Fa-f]+")) {
-                        try {
-                            keys.add(line);
-                        } catch (OutOfMemoryError e) {
-                            // Error. Too many keys (out of memory).
-                            Toast.makeText(context, R.string.info_to_many_keys,
-                                    Toast.LENGTH_LONG).show();
-                            return -1;
-                        }
-                    }
+        KeyDictionary keys;
+        try {
+            keys = KeyDictionary.load(keyFiles);
+        } catch (OutOfMemoryError e) {
+            // Error. Too many keys (out of memory).
+            Toast.makeText(context, R.string.info_to_many_keys,
+                    Toast.LENGTH_LONG).show();
+            return -1;
+        }
+        return setKeyDictionary(keys);
+    }
+
+    /**
+     * Set the keys for {@link #buildNextKeyMapPart()} from an already
+     * loaded dictionary. The dictionary is not changed, so it can be
+     * shared by readers that map keys at the same time
+     * (see {@link KeyMapJobScheduler}).
+     * @param keys The keys.
+     * @return Number of keys. 0 if there are none.
+     * @see #setKeyFile(File[], Context)
+     */
+    public int setKeyDictionary(KeyDictionary keys) {
+        if (keys == null || keys.size() == 0) {
+            return 0;
+        }
+        mKeyDictionary = keys;
+        mHasAllZeroKey = keys.contains(0L);
+        mKeysWithOrder = keys.toArray();
+        if (mHasAllZeroKey) {
+            // NOTE: The all-F key has to be tested always first if there
+            // is a all-0 key in the key file, because of a bug in
+            // some tags and/or devices.
+            // https://github.com/ikarus23/MifareClassicTool/issues/66
+            if (!keys.contains(DEFAULT_KEY_VALUE)) {
+                mKeysWithOrder = Arrays.copyOf(
+                        mKeysWithOrder, mKeysWithOrder.length + 1);
+                mKeysWithOrder[mKeysWithOrder.length - 1] =
+                        DEFAULT_KEY_VALUE;
+            }
+            moveKey(DEFAULT_KEY_VALUE, 0);
+        }
+        return keys.size();
+    }
+
+    /**
+     * Only use every n-th key of the key files for
+     * {@link #buildNextKeyMapPart()}, so that several readers can split
+     * the keys (see {@link ShardedKeyMapper}). The keys are split
+     * round-robin, so each shard gets some of the most common keys at
+     * the beginning of the key files. The key files must be set before
+     * calling this method.
+     * @param shard Index of the shard (0 to shardCount - 1).
+     * @param shardCount Number of shards.
+     * @return True if the shard was set. False otherwise.
+     */
+    public boolean setKeyShard(int shard, int shardCount) {
+        if (mKeysWithOrder == null || shardCount < 1 || shard < 0
+                || shard >= shardCount) {
+            return false;
+        }
+        // The all-F key has to stay the first key of each shard if there
+        // is an all-0 key (see setKeyDictionary()).
+        int first = mHasAllZeroKey ? 1 : 0;
+        int count = mKeysWithOrder.length - first;
+        long[] keys = new long[first
+                + (count - shard + shardCount - 1) / shardCount];
+        if (mHasAllZeroKey) {
+            keys[0] = DEFAULT_KEY_VALUE;
+        }
+        for (int i = first; i < keys.length; i++) {
+            keys[i] = mKeysWithOrder[first + shard
+                    + (i - first) * shardCount];
+        }
+        mKeysWithOrder = keys;
+        return true;
+    }
+
+    /**
+     * Share the keys found by {@link #buildNextKeyMapPart()} with other
+     * readers that map the same tag (or clones of it) at the same time.
+     * The reader stops searching for keys the other readers already found
+     * and stops mapping if the board is canceled.
+     * @param board The board of all readers or null to map alone.
+     * @see ShardedKeyMapper
+     */
+    public void setKeyMapBoard(KeyMapBoard board) {
+        mKeyMapBoard = board;
+    }
+
+    /**
+     * Exchange the keys of the current sector with {@link #mKeyMapBoard}.
+     * Keys found by this reader are added to the board, keys found by
+     * other readers are taken from it.
+     * @param keys The keys (A and B) of the sector.
+     * @param foundKeys Which of the keys were found.
+     * @param shared Which of the keys were taken from the board.
+     * @param keyBIsData True if this reader found key B to be readable.
+     * @return True if key B is readable (according to this reader or
+     * the board).
+     */
+    private boolean syncWithKeyMapBoard(long[] keys, boolean[] foundKeys,
+            boolean[] shared, boolean keyBIsData) {
+        for (int i = 0; i < 2; i++) {
+            if (foundKeys[i]) {
+                mKeyMapBoard.offer(mKeyMapStatus, i == 1, keys[i]);
+                continue;
+            }
+            long key = mKeyMapBoard.getKey(mKeyMapStatus, i == 1);
+            if (key != KeyMapBoard.NO_KEY) {
+                keys[i] = key;
+                foundKeys[i] = true;
+                shared[i] = true;
+            }
+        }
+        if (keyBIsData) {
+            mKeyMapBoard.setKeyBIsData(mKeyMapStatus);
+            return true;
+        }
+        return mKeyMapBoard.isKeyBData(mKeyMapStatus);
+    }
+
+    /**
+     * Set the statistics that will be used by {@link #buildNextKeyMapPart()}
+     * to try the most promising keys first. Found keys will be recorded
+     * (but not saved, see {@link KeyHitStats#save()}).
+     * @param keyHitStats The statistics or null to disable this feature.
+     */
+    public void setKeyHitStats(KeyHitStats keyHitStats) {
+        mKeyHitStats = keyHitStats;
+        if (keyHitStats != null) {
+            byte[] uid = mTransport.getUid();
+            mFingerprint = KeyHitStats.fingerprint(mTransport.getAtqa(),
+                    mTransport.getSak(), (uid != null) ? uid.length : 0);
+        }
+    }
+
+    /**
+     * Get the number of keys found by {@link #buildNextKeyMapPart()}
+     * during the current (or last) walk through the sectors,
+     * grouped by the tier they came from. Key A and key B
+     * count separately.
+     * @return The number of found keys. The index is the tier
+     * ({@link #KEY_TIER_TAG}, {@link #KEY_TIER_PROFILE},
+     * {@link #KEY_TIER_DICTIONARY} or {@link #KEY_TIER_TRAILER}).
+     */
+    public int[] getKeyTierHits() {
+        return mKeyTierHits.clone();
+    }
+
+    /**
+     * Get the keys with the most hits for a sector on this kind of tag
+     * from {@link #mKeyHitStats}. Only keys of the key files are used.
+     * @param sector The sector.
+     * @return Keys of the profile tier. Might be empty.
+     * @see #setKeyHitStats(KeyHitStats)
+     */
+    private long[] getProfileKeys(int sector) {
+        if (mKeyHitStats == null || mKeyDictionary == null) {
+            return new long[0];
+        }
+        long[] ranked = mKeyHitStats.rankKeys(
+                mFingerprint, sector, MAX_RANKED_KEYS);
+        int count = 0;
+        for (long key : ranked) {
+            if (mKeyDictionary.contains(key)) {
+                ranked[count++] = key;
+            }
+        }
+        return Arrays.copyOf(ranked, count);
+    }
+
+    /**
+     * Enable or disable the {@link KeyMapJournal} for
+     * {@link #buildNextKeyMapPart()}. If enabled, the progress of the
+     * key mapping will be saved, and an interrupted key mapping of the
+     * same tag with the same key files will be resumed. The key files
+     * must be set before calling this method
+     * (use {@link #setKeyFile(File[], Context)}).
+     * @param useJournal True to enable the journal.
+     * @return True if the journal was enabled. False otherwise.
+     */
+    public boolean setUseKeyMapJournal(boolean useJournal) {
+        mKeyMapJournal = null;
+        if (useJournal && mKeysWithOrder != null) {
+            mKeyMapJournal = KeyMapJournal.open(
+                    mTransport.getUid(), mKeysWithOrder);
+        }
+        return mKeyMapJournal != null;
+    }
+
+    /**
+     * Set the key map cache that will be used by
+     * {@link #buildNextKeyMapPart()}. If the tag is cached, the cached keys
+     * of each sector will be checked (one authentication per key) and
+     * used if they are valid. Only sectors without valid cached keys
+     * will be mapped with the key files. A complete key map will be
+     * added to the cache (but not saved, see {@link KeyMapCache#save()}).
+     * @param keyMapCache The cache or null to disable this feature.
+     * @return True if the tag is in the cache. False otherwise.
+     */
+    public boolean setKeyMapCache(KeyMapCache keyMapCache) {
+        mKeyMapCache = keyMapCache;
+        mCachedKeys = null;
+        if (keyMapCache != null) {
+            mCachedKeys = keyMapCache.get(getKeyMapCacheId());
+        }
+        return mCachedKeys != null;
+    }
+
+    /**
+     * Get the ID of the tag for the {@link KeyMapCache}.
+     * @return The ID of the tag.
+     * @see KeyMapCache#getId(byte[], byte[], short)
+     */
+    private String getKeyMapCacheId() {
+        return KeyMapCache.getId(mTransport.getUid(),
+                mTransport.getAtqa(), mTransport.getSak());
+    }
+
+    /**
+     * Check the cached keys ({@link #mCachedKeys}) of the sector that is
+     * currently mapped by {@link #buildNextKeyMapPart()}. Each cached
+     * key is checked with one authentication.
+     * @param keys The keys (A and B) of the sector. The valid cached
+     * keys will be stored here.
+     * @param foundKeys Whether key A or key B was found. Will be set
+     * for the valid cached keys.
+     * @return True if there were cached keys and all of them are valid.
+     * False otherwise (the sector has to be mapped with the key files).
+     */
+    private boolean checkCachedKeys(long[] keys, boolean[] foundKeys) {
+        if (mCachedKeys == null || mKeyMapStatus >= TagImage.MAX_SECTORS) {
+            return false;
+        }
+        boolean valid = false;
+        try {
+            for (int i = 0; i < 2; i++) {
+                long key = mCachedKeys[2 * mKeyMapStatus + i];
+                if (key == KeyMapCache.NO_KEY) {
+                    continue;
+                }
+                byte[] bytesKey = KeyDictionary.toBytes(key);
+                boolean auth = (i == 0)
+                        ? mTransport.authenticateSectorWithKeyA(
+                                mKeyMapStatus, bytesKey)
+                        : mTransport.authenticateSectorWithKeyB(
+                                mKeyMapStatus, bytesKey);
+                if (!auth) {
+                    return false;
                 }
+                keys[i] = key;
+                foundKeys[i] = true;
+                valid = true;
+            }
+        } catch (Exception e) {
+            // Tag lost? Let the regular key mapping handle it.
+            Log.d(LOG_TAG, "Error while checking cached keys.");
+            return false;
+        }
+        return valid;
+    }
+
+    /**
+     * Save the state of the sector that is currently mapped by
+     * {@link #buildNextKeyMapPart()} to the {@link #mKeyMapJournal}
+     * (if enabled).
+     * @param keys The keys (A and B) of the sector.
+     * @param foundKeys Whether key A or key B was found.
+     * @param offsetA The number of keys of the key files tried as key A.
+     * @param offsetB The number of keys of the key files tried as key B.
+     */
+    private void updateKeyMapJournal(long[] keys, boolean[] foundKeys,
+            int offsetA, int offsetB) {
+        if (mKeyMapJournal == null) {
+            return;
+        }
+        mKeyMapJournal.setSector(mKeyMapStatus,
+                foundKeys[0] ? keys[0] : KeyMapJournal.NO_KEY,
+                foundKeys[1] ? keys[1] : KeyMapJournal.NO_KEY,
+                offsetA, offsetB);
+        mKeyMapJournal.save();
+    }
+
+    /**
+     * Get the keys that should be tried before the key files. These are
+     * the keys found on this tag (the ones of the {@link #mKeyMapJournal}
+     * and {@link #mTagKeys}) followed by the given profile keys.
+     * If there is an all-0 key in the key files, the all-F key will
+     * always be the first one.
+     * @param sector The sector.
+     * @param profileKeys Keys of the profile tier
+     * (see {@link #getProfileKeys(int)}).
+     * @return Keys that should be tried first. Might be empty.
+     */
+    private long[] getPreferredKeys(int sector, long[] profileKeys) {
+        long[] journalKeys = new long[0];
+        if (mKeyMapJournal != null) {
+            journalKeys = new long[] {mKeyMapJournal.getKeyA(sector),
+                    mKeyMapJournal.getKeyB(sector)};
+        }
+        if (profileKeys.length == 0 && mTagKeys.length == 0
+                && journalKeys.length == 0) {
+            return profileKeys;
+        }
+        long[] ret = new long[journalKeys.length + mTagKeys.length
+                + profileKeys.length + 1];
+        int count = 0;
+        if (mHasAllZeroKey) {
+            // The all-F key has to be tested always first if there
+            // is a all-0 key in the key file, because of a bug in
+            // some tags and/or devices.
+            // https://github.com/ikarus23/MifareClassicTool/issues/66
+            ret[count++] = DEFAULT_KEY_VALUE;
+        }
+        for (long key : journalKeys) {
+            if (key != KeyMapJournal.NO_KEY && !contains(ret, count, key)) {
+                ret[count++] = key;
             }
         }
-        if (!keys.isEmpty()) {
-            mHasAllZeroKey = keys.contains("000000000000");
-            mKeysWithOrder = new ArrayList<>(keys);
-            if (mHasAllZeroKey) {
-                // NOTE: The all-F key has to be tested always first if there
-                // is a all-0 key in the key file, because of a bug in
-                // some tags and/or devices.
-                // https://github.com/ikarus23/MifareClassicTool/issues/66
-                mKeysWithOrder.remove(DEFAULT_KEY);
-                mKeysWithOrder.add(0, DEFAULT_KEY);
+        for (long key : mTagKeys) {
+            if (!contains(ret, count, key)) {
+                ret[count++] = key;
             }
-            return keys.size();
         }
-        return 0;
+        for (long key : profileKeys) {
+            if (!contains(ret, count, key)) {
+                ret[count++] = key;
+            }
+        }
+        if (count == 1 && mHasAllZeroKey) {
+            // Only the all-F key. No need to change the order.
+            count = 0;
+        }
+        return Arrays.copyOf(ret, count);
+    }
+
+    /**
+     * Read key B from the sector trailer. This is only possible if the
+     * sector was just authenticated with key A and the Access Conditions
+     * allow reading key B (in this case, key B is just data).
+     * @param sectorIndex The sector (authenticated with key A).
+     * @return Key B as 48 bit value (see {@link KeyDictionary}) or -1
+     * if key B is not readable.
+     * @throws TagLostException If the tag was removed.
+     * @see SectorPermissions#isKeyBReadable()
+     */
+    private long readKeyBFromTrailer(int sectorIndex)
+            throws TagLostException {
+        int trailer = mTransport.sectorToBlock(sectorIndex)
+                + mTransport.getBlockCountInSector(sectorIndex) - 1;
+        byte[] blockBytes;
+        try {
+            blockBytes = mTransport.readBlock(trailer);
+        } catch (TagLostException e) {
+            throw e;
+        } catch (IOException e) {
+            if (!isConnected()) {
+                throw new TagLostException(
+                        "Tag removed during readKeyBFromTrailer(...)");
+            }
+            return -1;
+        }
+        if (blockBytes == null || blockBytes.length < 16) {
+            return -1;
+        }
+        SectorPermissions permissions = SectorPermissions.decode(
+                blockBytes, 6);
+        if (permissions == null || !permissions.isKeyBReadable()) {
+            return -1;
+        }
+        return KeyDictionary.toLong(Arrays.copyOfRange(blockBytes, 10, 16));
+    }
+
+    /**
+     * Check if an array contains a key.
+     * @param keys The keys.
+     * @param key The key to look for.
+     * @return True if the key is in the array.
+     */
+    private static boolean contains(long[] keys, long key) {
+        return contains(keys, keys.length, key);
+    }
+
+    /**
+     * Check if the first part of an array contains a key.
+     * @param keys The keys.
+     * @param length Number of keys to check.
+     * @param key The key to look for.
+     * @return True if the key is in the first part of the array.
+     */
+    private static boolean contains(long[] keys, int length, long key) {
+        for (int i = 0; i < length; i++) {
+            if (keys[i] == key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Move a key of {@link #mKeysWithOrder} to a new position. The keys
+     * between the old and the new position will be shifted.
+     * @param key The key to move.
+     * @param position The new position of the key.
+     */
+    private void moveKey(long key, int position) {
+        int index = -1;
+        for (int i = 0; i < mKeysWithOrder.length; i++) {
+            if (mKeysWithOrder[i] == key) {
+                index = i;
+                break;
+            }
+        }
+        if (index == -1 || index == position) {
+            return;
+        }
+        if (index > position) {
+            System.arraycopy(mKeysWithOrder, position,
+                    mKeysWithOrder, position + 1, index - position);
+        } else {
+            System.arraycopy(mKeysWithOrder, index + 1,
+                    mKeysWithOrder, index, position - index);
+        }
+        mKeysWithOrder[position] = key;
     }
 
     /**
@@ -938,7 +2951,7 @@ public class MCReader {
             mFirstSector = firstSector;
             mLastSector = lastSector;
             // Init. status of buildNextKeyMapPart to create a new key map.
-            mKeyMapStatus = lastSector+1;
+            mSectorOrder = null;
             return true;
         }
         return false;
@@ -949,6 +2962,8 @@ public class MCReader {
      * then RESTORE from staging into the temp transfer buffer,
      * then TRANSFER to the destination value block.
      * Finally, restore the original content of the staging block.
+     * For many changes, use {@link #applyValuePlan(ValuePlan,
+     * SparseArray)}. It only stages values if necessary.
      *
      * @return 0 on success.
      *         1 if writing to sector trailers or the manufacturer block
@@ -963,12 +2978,12 @@ public class MCReader {
 
         try {
             if (!isConnected()) {
-                mMFC.connect();
+                mTransport.connect();
             }
 
             // Block numbers validation.
-            int stageBlocks = mMFC.getBlockCountInSector(stageSector);
-            int destBlocks  = mMFC.getBlockCountInSector(destSector);
+            int stageBlocks = mTransport.getBlockCountInSector(stageSector);
+            int destBlocks  = mTransport.getBlockCountInSector(destSector);
             if (stageBlock < 0 || stageBlock >= stageBlocks) return 2;
             if (destBlock  < 0 || destBlock  >= destBlocks)  return 2;
 
@@ -976,99 +2991,118 @@ public class MCReader {
             if (stageBlock == stageBlocks - 1 || (stageSector == 0 && stageBlock == 0)) return 1;
             if (destBlock  == destBlocks - 1  || (destSector  == 0 && destBlock  == 0)) return 1;
 
-            int stageAbs = mMFC.sectorToBlock(stageSector) + stageBlock;
-            int destAbs  = mMFC.sectorToBlock(destSector)  + destBlock;
+            int stageAbs = mTransport.sectorToBlock(stageSector) + stageBlock;
+            int destAbs  = mTransport.sectorToBlock(destSector)  + destBlock;
 
             boolean ok = useKeyBStage
-                ? mMFC.authenticateSectorWithKeyB(stageSector, keyStage)
-                : mMFC.authenticateSectorWithKeyA(stageSector, keyStage);
+                ? mTransport.authenticateSectorWithKeyB(stageSector, keyStage)
+                : mTransport.authenticateSectorWithKeyA(stageSector, keyStage);
             if (!ok)
                 return -1;
 
             // Save original content, from the staging block.
-            byte[] original = mMFC.readBlock(stageAbs);
+            byte[] original = mTransport.readBlock(stageAbs);
 
 
             // Write the prepared value block in correct format.
-            mMFC.writeBlock(stageAbs, valueBlock16);
+            mTransport.writeBlock(stageAbs, valueBlock16);
 
             // Perform a RESTORE on staging block.
-            mMFC.restore(stageAbs);
+            mTransport.restore(stageAbs);
 
             ok = useKeyBDest
-                ? mMFC.authenticateSectorWithKeyB(destSector, keyDest)
-                : mMFC.authenticateSectorWithKeyA(destSector, keyDest);
+                ? mTransport.authenticateSectorWithKeyB(destSector, keyDest)
+                : mTransport.authenticateSectorWithKeyA(destSector, keyDest);
             if (!ok)
                 return -1;
 
             // Perform a TRANSFER on the destination block.
-            mMFC.transfer(destAbs);
+            mTransport.transfer(destAbs);
 
             // Write the original content back to the staging block.
             if (stageSector != destSector) {
                 ok = useKeyBStage
-                    ? mMFC.authenticateSectorWithKeyB(stageSector, keyStage)
-                    : mMFC.authenticateSectorWithKeyA(stageSector, keyStage);
+                    ? mTransport.authenticateSectorWithKeyB(stageSector, keyStage)
+                    : mTransport.authenticateSectorWithKeyA(stageSector, keyStage);
                 if (!ok) return -1;
             }
-            mMFC.writeBlock(stageAbs, original);
+            mTransport.writeBlock(stageAbs, original);
 
             return 0;
         } catch (Exception e) {
             return -1;
         } finally {
-            try { mMFC.close(); } catch (Exception ignored) { }
+            try { mTransport.close(); } catch (Exception ignored) { }
         }
     }
 
 
 
-    // TODO: Make this a function with three return values.
-    // 0 = Auth. successful.
-    // 1 = Auth. not successful.
-    // 2 = Error. Most likely tag lost.
-    // Once done, update the code of buildNextKeyMapPart().
     /**
-     * Authenticate with given sector of the tag.
+     * Authenticate with given sector of the tag. A failed authentication
+     * is retried (if enabled, see {@link ReaderConfig#isRetryAuth()}),
+     * but not if the tag was lost.
      * @param sectorIndex The sector with which to authenticate.
      * @param key Key for the authentication.
      * @param useAsKeyB If true, key will be treated as key B
      * for authentication.
-     * @return True if authentication was successful. False otherwise.
+     * @return {@link #AUTH_SUCCESS} if authentication was successful,
+     * {@link #AUTH_FAILED} if not (wrong key, no key or a recoverable
+     * error) and {@link #AUTH_TAG_LOST} if the tag was lost.
+     * @see #checkAuth(int)
      */
-    private boolean authenticate(int sectorIndex, byte[] key,
+    private int authenticate(int sectorIndex, byte[] key,
             boolean useAsKeyB) {
         // Fetch the retry authentication option. Some tags and
         // devices have strange issues and need a retry in order to work...
         // Info: https://github.com/ikarus23/MifareClassicTool/issues/134
         // and https://github.com/ikarus23/MifareClassicTool/issues/106
-        boolean retryAuth = Common.getPreferences().getBoolean(
-                Preference.UseRetryAuthentication.toString(), false);
-        int retryCount = Common.getPreferences().getInt(
-                Preference.RetryAuthenticationCount.toString(), 1);
+        boolean retryAuth = mConfig.isRetryAuth();
+        int retryCount = mConfig.getRetryAuthCount();
         if (key == null) {
-            return false;
+            return AUTH_FAILED;
         }
         boolean ret = false;
         for (int i = 0; i < retryCount+1; i++) {
             try {
                 if (!useAsKeyB) {
                     // Key A.
-                    ret = mMFC.authenticateSectorWithKeyA(sectorIndex, key);
+                    ret = mTransport.authenticateSectorWithKeyA(sectorIndex, key);
                 } else {
                     // Key B.
-                    ret = mMFC.authenticateSectorWithKeyB(sectorIndex, key);
+                    ret = mTransport.authenticateSectorWithKeyB(sectorIndex, key);
                 }
-            } catch (IOException | ArrayIndexOutOfBoundsException | SecurityException e) {
+            } catch (TagLostException | SecurityException e) {
+                // The SecurityException is thrown if an old Tag object
+                // is used (see connect()).
+                Log.d(LOG_TAG, "Tag lost while authenticating.");
+                return AUTH_TAG_LOST;
+            } catch (IOException | ArrayIndexOutOfBoundsException e) {
                 Log.d(LOG_TAG, "Error authenticating with tag.");
-                return false;
+                return isConnected() ? AUTH_FAILED : AUTH_TAG_LOST;
             }
             // Retry?
             if (ret || !retryAuth) {
                 break;
             }
         }
-        return ret;
+        return ret ? AUTH_SUCCESS : AUTH_FAILED;
+    }
+
+    /**
+     * Throw a {@link TagLostException} if the tag was lost during an
+     * authentication, so that reading stops right away instead of
+     * trying the remaining keys and sectors.
+     * @param auth Result of {@link #authenticate(int, byte[], boolean)}.
+     * @return The result of the authentication.
+     * @throws TagLostException If the result is {@link #AUTH_TAG_LOST}.
+     */
+    private static int checkAuth(int auth) throws TagLostException {
+        if (auth == AUTH_TAG_LOST) {
+            throw new TagLostException(
+                    "Tag removed during authentication");
+        }
+        return auth;
     }
 
     /**
@@ -1079,20 +3113,15 @@ public class MCReader {
      * <li>C1 = 0, C2 = 0, C3 = 1</li>
      * <li>C1 = 0, C2 = 1, C3 = 0</li>
      * </ul>
-     * @param ac The access conditions (4 bytes).
-     * @return True if key B is readable. False otherwise.
+     * @param sectorTrailer The Sector Trailer (16 bytes).
+     * @return True if key B is readable. False otherwise
+     * (also if the Access Conditions are invalid).
+     * @see SectorPermissions#isKeyBReadable()
      */
-    private boolean isKeyBReadable(byte[] ac) {
-        if (ac == null) {
-            return false;
-        }
-        byte c1 = (byte) ((ac[1] & 0x80) >>> 7);
-        byte c2 = (byte) ((ac[2] & 0x08) >>> 3);
-        byte c3 = (byte) ((ac[2] & 0x80) >>> 7);
-        return c1 == 0
-                && (c2 == 0 && c3 == 0)
-                || (c2 == 1 && c3 == 0)
-                || (c2 == 0 && c3 == 1);
+    private boolean isKeyBReadable(byte[] sectorTrailer) {
+        SectorPermissions permissions =
+                SectorPermissions.decode(sectorTrailer, 6);
+        return permissions != null && permissions.isKeyBReadable();
     }
 
     /**
@@ -1115,7 +3144,7 @@ public class MCReader {
     }
 
     public boolean isMifareClassic() {
-        return mMFC != null;
+        return mTransport != null;
     }
 
     /**
@@ -1124,7 +3153,7 @@ public class MCReader {
      * @return The size of the current tag.
      */
     public int getSize() {
-        return mMFC.getSize();
+        return mTransport.getSize();
     }
 
     /**
@@ -1132,14 +3161,10 @@ public class MCReader {
      * @return The sector count of the current tag.
      */
     public int getSectorCount() {
-        boolean useCustomSectorCount = Common.getPreferences().getBoolean(
-                Preference.UseCustomSectorCount.toString(), false);
-        if (useCustomSectorCount) {
-            return Common.getPreferences().getInt(
-                    Preference.CustomSectorCount.toString(), 16);
-
+        if (mConfig.isUseCustomSectorCount()) {
+            return mConfig.getCustomSectorCount();
         }
-        return mMFC.getSectorCount();
+        return mTransport.getSectorCount();
     }
 
     /**
@@ -1147,7 +3172,7 @@ public class MCReader {
      * @return The block count of the current tag.
      */
     public int getBlockCount() {
-        return mMFC.getBlockCount();
+        return mTransport.getBlockCount();
     }
 
     /**
@@ -1156,7 +3181,7 @@ public class MCReader {
      * @return Block count in given sector.
      */
     public int getBlockCountInSector(int sectorIndex) {
-        return mMFC.getBlockCountInSector(sectorIndex);
+        return mTransport.getBlockCountInSector(sectorIndex);
     }
 
     /**
@@ -1185,7 +3210,7 @@ public class MCReader {
     public boolean isConnected() {
         boolean isConnected = false;
         try {
-            isConnected = mMFC.isConnected();
+            isConnected = mTransport.isConnected();
         } catch (RuntimeException ex) {
             isConnected = false;
         }
@@ -1200,7 +3225,7 @@ public class MCReader {
     public boolean isConnectedButTagLost() {
         if (isConnected()) {
             try {
-                mMFC.readBlock(0);
+                mTransport.readBlock(0);
             } catch (IOException e) {
                 return true;
             }
@@ -1208,6 +3233,47 @@ public class MCReader {
         return false;
     }
 
+    /**
+     * Reconnect to a lost tag. Reconnecting is tried right away and then
+     * with a growing delay (see {@link ReconnectScheduler}) until it
+     * succeeds, the maximum wait time is exceeded or the key mapping
+     * is canceled ({@link #cancelCreateKeyMap()}).
+     * @return True if the tag is connected again. False otherwise.
+     */
+    private boolean reconnect() {
+        // Is the tag still in range?
+        if (isConnectedButTagLost()) {
+            close();
+        }
+        ReconnectScheduler scheduler = mReconnectScheduler;
+        scheduler.start();
+        while (!isConnected()) {
+            if (cancelCreateKeyMap) {
+                return false;
+            }
+            try {
+                connect();
+            } catch (Exception ex) {
+                // Do nothing.
+            }
+            if (isConnected()) {
+                break;
+            }
+            long delay = scheduler.nextDelay();
+            if (delay < 0) {
+                Log.d(LOG_TAG, "Tag did not come back. Stop reconnecting.");
+                return false;
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ex) {
+                return false;
+            }
+        }
+        scheduler.onReconnected();
+        return true;
+    }
+
     /**
      * Connect the reader to the tag. If the reader is already connected the
      * "connect" will be skipped. If "connect" will block for more than 500ms
@@ -1217,7 +3283,7 @@ public class MCReader {
     public void connect() throws Exception {
         final AtomicBoolean error = new AtomicBoolean(false);
 
-        if (mMFC == null || mMFC.getTag() == null) {
+        if (mTransport == null) {
             error.set(true);
         }
 
@@ -1230,7 +3296,7 @@ public class MCReader {
         if (error.get() == false) {
             Thread t = new Thread(() -> {
                 try {
-                    mMFC.connect();
+                    mTransport.connect();
                 } catch (IOException | RuntimeException ex) {
                     // The SecurityException (RuntimeException subclass) is thrown
                     // when an old stored Tag object is used.
@@ -1263,7 +3329,7 @@ public class MCReader {
      */
     public void close() {
         try {
-            mMFC.close();
+            mTransport.close();
         }
         catch (IOException | RuntimeException  ex) {
             // See connect()
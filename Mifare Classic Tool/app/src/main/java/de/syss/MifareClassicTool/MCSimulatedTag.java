@@ -0,0 +1,733 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A simulated MIFARE Classic tag (Mini, 1K, 2K or 4K) that can be used
+ * as {@link MCTransport} without any NFC hardware. Keys and Access
+ * Conditions are stored in the sector trailers and are enforced like
+ * on a real tag (including the "key B is readable and therefore can not
+ * be used" rule). To get realistic timings, a latency per command can be
+ * configured. Failures (random RF errors or the tag being removed after
+ * a number of commands) can be injected as well.<br />
+ * This class only depends on the Java standard library, so it runs on
+ * a plain JVM.
+ * @author Gerhard Klostermeier
+ */
+public class MCSimulatedTag implements MCTransport {
+
+    /**
+     * Size of a MIFARE Classic Mini tag (5 sectors).
+     */
+    public static final int SIZE_MINI = 320;
+    /**
+     * Size of a MIFARE Classic 1K tag (16 sectors).
+     */
+    public static final int SIZE_1K = 1024;
+    /**
+     * Size of a MIFARE Classic 2K tag (32 sectors).
+     */
+    public static final int SIZE_2K = 2048;
+    /**
+     * Size of a MIFARE Classic 4K tag (40 sectors).
+     */
+    public static final int SIZE_4K = 4096;
+
+    private static final int BLOCK_SIZE = 16;
+    private static final int KEY_A = 1;
+    private static final int KEY_B = 2;
+    private static final byte[] FACTORY_TRAILER = {
+            -1, -1, -1, -1, -1, -1, -1, 7, -128, 105, -1, -1, -1, -1, -1, -1};
+
+    // Permissions for data blocks indexed by C1C2C3 (as 3 bit number).
+    // Values are: read, write, increment, decrement/transfer/restore.
+    // 1 = key A, 2 = key B, 3 = key A|B, 0 = never.
+    private static final int[][] DATA_PERMISSIONS = {
+            {3, 3, 3, 3},   // 000
+            {3, 0, 0, 3},   // 001
+            {3, 0, 0, 0},   // 010
+            {2, 2, 0, 0},   // 011
+            {3, 2, 0, 0},   // 100
+            {2, 0, 0, 0},   // 101
+            {3, 2, 2, 3},   // 110
+            {0, 0, 0, 0}};  // 111
+    // Permissions for sector trailers indexed by C1C2C3 (as 3 bit number).
+    // Values are: read AC, write AC, read key B, write keys.
+    private static final int[][] TRAILER_PERMISSIONS = {
+            {1, 0, 1, 1},   // 000
+            {1, 1, 1, 1},   // 001
+            {1, 0, 1, 0},   // 010
+            {3, 2, 0, 2},   // 011
+            {3, 0, 0, 2},   // 100
+            {3, 2, 0, 0},   // 101
+            {3, 0, 0, 0},   // 110
+            {3, 0, 0, 0}};  // 111
+    private static final int READ = 0;
+    private static final int WRITE = 1;
+    private static final int INCREMENT = 2;
+    private static final int DEC_TRANS_REST = 3;
+    private static final int READ_AC = 0;
+    private static final int WRITE_AC = 1;
+    private static final int READ_KEY_B = 2;
+    private static final int WRITE_KEYS = 3;
+
+    private final int mSize;
+    private final int mSectorCount;
+    private final byte[] mMemory;
+    private final byte[] mUid;
+    private final byte[] mAtqa;
+    private final byte mSak;
+
+    private boolean mConnected = false;
+    private boolean mPresent = true;
+    // The tag was removed while connected. Like the Android NFC stack,
+    // the connection is dead until the next connect().
+    private boolean mLinkLost = false;
+    private int mAuthSector = -1;
+    private int mAuthKey = 0;
+    private byte[] mTransferBuffer = null;
+
+    private long mAuthLatencyNanos = 0;
+    private long mFailedAuthLatencyNanos = 0;
+    private long mCommandLatencyNanos = 0;
+    private Random mRandom = null;
+    private double mFailureRate = 0;
+    private int mRemoveAfter = -1;
+    private long mCommandCount = 0;
+    private long mAuthCount = 0;
+
+    /**
+     * Create a factory formatted simulated tag with a random 4 byte UID.
+     * @param size Size of the tag ({@link #SIZE_MINI}, {@link #SIZE_1K},
+     * {@link #SIZE_2K} or {@link #SIZE_4K}).
+     */
+    public MCSimulatedTag(int size) {
+        this(size, randomUid());
+    }
+
+    /**
+     * Create a factory formatted simulated tag.
+     * All keys are 0xFFFFFFFFFFFF and the Access Conditions are
+     * 0xFF0780 (transport configuration).
+     * @param size Size of the tag ({@link #SIZE_MINI}, {@link #SIZE_1K},
+     * {@link #SIZE_2K} or {@link #SIZE_4K}).
+     * @param uid UID of the tag (4 or 7 bytes).
+     * @throws IllegalArgumentException If size or UID length are invalid.
+     */
+    public MCSimulatedTag(int size, byte[] uid) {
+        switch (size) {
+            case SIZE_MINI: mSectorCount = 5; break;
+            case SIZE_1K: mSectorCount = 16; break;
+            case SIZE_2K: mSectorCount = 32; break;
+            case SIZE_4K: mSectorCount = 40; break;
+            default:
+                throw new IllegalArgumentException("Invalid tag size.");
+        }
+        if (uid == null || (uid.length != 4 && uid.length != 7)) {
+            throw new IllegalArgumentException("UID must be 4 or 7 bytes.");
+        }
+        mSize = size;
+        mUid = uid.clone();
+        mAtqa = new byte[] {(byte) (size == SIZE_4K ? 0x02 : 0x04), 0x00};
+        if (uid.length == 7) {
+            mAtqa[0] |= 0x40;
+        }
+        mSak = (byte) (size == SIZE_4K ? 0x18 : (size == SIZE_MINI ? 0x09 : 0x08));
+        mMemory = new byte[getBlockCount() * BLOCK_SIZE];
+
+        // Manufacturer block.
+        System.arraycopy(mUid, 0, mMemory, 0, mUid.length);
+        int pos = mUid.length;
+        if (mUid.length == 4) {
+            byte bcc = mUid[0];
+            for (int i = 1; i < mUid.length; i++) {
+                bcc ^= mUid[i];
+            }
+            mMemory[pos++] = bcc;
+        }
+        mMemory[pos++] = mSak;
+        mMemory[pos++] = mAtqa[0];
+        mMemory[pos] = mAtqa[1];
+        // Sector trailers.
+        for (int i = 0; i < mSectorCount; i++) {
+            System.arraycopy(FACTORY_TRAILER, 0, mMemory,
+                    trailerBlock(i) * BLOCK_SIZE, BLOCK_SIZE);
+        }
+    }
+
+    /**
+     * Set the latency of the simulated RF commands. Typical values for
+     * Android phones are about 5-15 ms for an authentication and
+     * 2-5 ms for a read/write. Failed authentications often take longer
+     * because the tag has to be re-selected afterwards.
+     * All values are in microseconds.
+     * @param authMicros Latency of a successful authentication.
+     * @param failedAuthMicros Latency of a failed authentication.
+     * @param commandMicros Latency of all other commands.
+     */
+    public synchronized void setLatency(long authMicros, long failedAuthMicros,
+            long commandMicros) {
+        mAuthLatencyNanos = authMicros * 1000;
+        mFailedAuthLatencyNanos = failedAuthMicros * 1000;
+        mCommandLatencyNanos = commandMicros * 1000;
+    }
+
+    /**
+     * Let a fraction of all commands fail with an {@link IOException}
+     * (like a RF error). After such an error, the authentication is lost.
+     * @param rate Failure rate (0.0 - 1.0).
+     * @param seed Seed for the random generator (to get reproducible
+     * results).
+     */
+    public synchronized void setFailureRate(double rate, long seed) {
+        mFailureRate = rate;
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Simulate the removal of the tag after a number of commands.
+     * @param commands Number of commands that will succeed before the tag
+     * is removed. -1 disables the removal.
+     */
+    public synchronized void setRemoveAfter(int commands) {
+        mRemoveAfter = commands;
+    }
+
+    /**
+     * Simulate the removal or the re-presentation of the tag.
+     * Like with the Android NFC stack, removing the tag does not close
+     * the connection, but {@link #isConnected()} returns false. All
+     * commands will fail until the tag is present again and
+     * {@link #connect()} was called.
+     * @param present True to put the tag (back) in range. False to remove it.
+     */
+    public synchronized void setPresent(boolean present) {
+        mPresent = present;
+        if (!present) {
+            mAuthSector = -1;
+            mRemoveAfter = -1;
+            mLinkLost = mConnected;
+        }
+    }
+
+    /**
+     * Check if the tag is in range.
+     * @return True if the tag is in range.
+     */
+    public synchronized boolean isPresent() {
+        return mPresent;
+    }
+
+    /**
+     * Get the number of RF commands (including authentications) that
+     * were sent to this tag.
+     * @return Number of commands.
+     */
+    public synchronized long getCommandCount() {
+        return mCommandCount;
+    }
+
+    /**
+     * Get the number of authentications (successful or not) that were
+     * sent to this tag.
+     * @return Number of authentications.
+     */
+    public synchronized long getAuthenticationCount() {
+        return mAuthCount;
+    }
+
+    /**
+     * Reset the command and authentication counters.
+     */
+    public synchronized void resetCounters() {
+        mCommandCount = 0;
+        mAuthCount = 0;
+    }
+
+    /**
+     * Get the UID of the tag.
+     * @return The UID (4 or 7 bytes).
+     */
+    @Override
+    public byte[] getUid() {
+        return mUid.clone();
+    }
+
+    /**
+     * Get the ATQA of the tag.
+     * @return The ATQA (2 bytes).
+     */
+    @Override
+    public byte[] getAtqa() {
+        return mAtqa.clone();
+    }
+
+    /**
+     * Get the SAK of the tag.
+     * @return The SAK.
+     */
+    @Override
+    public short getSak() {
+        return (short) (mSak & 0xFF);
+    }
+
+    /**
+     * Directly set the content of a block (bypassing keys and Access
+     * Conditions). Use this to prepare the tag.
+     * @param blockIndex Index of the block (absolute).
+     * @param data 16 bytes of data.
+     */
+    public synchronized void setBlock(int blockIndex, byte[] data) {
+        checkBlock(blockIndex);
+        if (data == null || data.length != BLOCK_SIZE) {
+            throw new IllegalArgumentException("Data must be 16 bytes.");
+        }
+        System.arraycopy(data, 0, mMemory, blockIndex * BLOCK_SIZE, BLOCK_SIZE);
+    }
+
+    /**
+     * Directly get the content of a block (bypassing keys and Access
+     * Conditions). Use this to check the result of write operations.
+     * @param blockIndex Index of the block (absolute).
+     * @return A copy of the 16 bytes of the block.
+     */
+    public synchronized byte[] getBlock(int blockIndex) {
+        checkBlock(blockIndex);
+        int offset = blockIndex * BLOCK_SIZE;
+        return Arrays.copyOfRange(mMemory, offset, offset + BLOCK_SIZE);
+    }
+
+    /**
+     * Directly set the keys and Access Conditions of a sector (bypassing
+     * keys and Access Conditions). Use this to prepare the tag.
+     * @param sectorIndex Index of the sector.
+     * @param keyA Key A (6 bytes).
+     * @param ac Access Conditions (3 bytes, like "FF0780") or 4 bytes
+     * (Access Conditions + general purpose byte).
+     * @param keyB Key B (6 bytes).
+     */
+    public synchronized void setSectorTrailer(int sectorIndex, byte[] keyA,
+            byte[] ac, byte[] keyB) {
+        checkSector(sectorIndex);
+        if (keyA == null || keyA.length != 6 || keyB == null
+                || keyB.length != 6 || ac == null
+                || (ac.length != 3 && ac.length != 4)) {
+            throw new IllegalArgumentException("Invalid sector trailer.");
+        }
+        int offset = trailerBlock(sectorIndex) * BLOCK_SIZE;
+        System.arraycopy(keyA, 0, mMemory, offset, 6);
+        System.arraycopy(ac, 0, mMemory, offset + 6, ac.length);
+        System.arraycopy(keyB, 0, mMemory, offset + 10, 6);
+    }
+
+    @Override
+    public synchronized void connect() throws IOException {
+        if (!mPresent) {
+            throw new IOException("Tag is not in range.");
+        }
+        mConnected = true;
+        mLinkLost = false;
+        mAuthSector = -1;
+    }
+
+    @Override
+    public synchronized void close() {
+        mConnected = false;
+        mLinkLost = false;
+        mAuthSector = -1;
+    }
+
+    /**
+     * Like {@link android.nfc.tech.MifareClassic#isConnected()}, this is
+     * false if the tag was removed (even if the connection was not closed).
+     * @return True if connected and the tag was not removed since.
+     */
+    @Override
+    public synchronized boolean isConnected() {
+        return mConnected && !mLinkLost;
+    }
+
+    @Override
+    public int getSize() {
+        return mSize;
+    }
+
+    @Override
+    public int getSectorCount() {
+        return mSectorCount;
+    }
+
+    @Override
+    public int getBlockCount() {
+        return mSize / BLOCK_SIZE;
+    }
+
+    @Override
+    public int getBlockCountInSector(int sectorIndex) {
+        checkSector(sectorIndex);
+        return (sectorIndex < 32) ? 4 : 16;
+    }
+
+    @Override
+    public int sectorToBlock(int sectorIndex) {
+        checkSector(sectorIndex);
+        if (sectorIndex < 32) {
+            return sectorIndex * 4;
+        }
+        return 32 * 4 + (sectorIndex - 32) * 16;
+    }
+
+    @Override
+    public synchronized boolean authenticateSectorWithKeyA(int sectorIndex,
+            byte[] key) throws IOException {
+        return authenticate(sectorIndex, key, KEY_A);
+    }
+
+    @Override
+    public synchronized boolean authenticateSectorWithKeyB(int sectorIndex,
+            byte[] key) throws IOException {
+        return authenticate(sectorIndex, key, KEY_B);
+    }
+
+    @Override
+    public synchronized byte[] readBlock(int blockIndex) throws IOException {
+        int sector = startCommand(blockIndex);
+        int offset = blockIndex * BLOCK_SIZE;
+        byte[] ret = Arrays.copyOfRange(mMemory, offset, offset + BLOCK_SIZE);
+        if (blockIndex == trailerBlock(sector)) {
+            int[] perm = trailerPermissions(sector);
+            if (!isAllowed(perm[READ_AC], sector)) {
+                throw deny();
+            }
+            // Key A is never readable.
+            Arrays.fill(ret, 0, 6, (byte) 0);
+            if (!isAllowed(perm[READ_KEY_B], sector)) {
+                Arrays.fill(ret, 10, 16, (byte) 0);
+            }
+        } else if (!isAllowed(dataPermissions(blockIndex)[READ], sector)) {
+            throw deny();
+        }
+        return ret;
+    }
+
+    @Override
+    public synchronized void writeBlock(int blockIndex, byte[] data)
+            throws IOException {
+        int sector = startCommand(blockIndex);
+        if (data == null || data.length != BLOCK_SIZE) {
+            throw deny();
+        }
+        int offset = blockIndex * BLOCK_SIZE;
+        if (blockIndex == trailerBlock(sector)) {
+            int[] perm = trailerPermissions(sector);
+            boolean writeKeys = isAllowed(perm[WRITE_KEYS], sector);
+            boolean writeAC = isAllowed(perm[WRITE_AC], sector);
+            if (!writeKeys && !writeAC) {
+                throw deny();
+            }
+            if (writeAC) {
+                // Do not brick the simulated sector with invalid ACs.
+                if (decodeAC(Arrays.copyOfRange(data, 6, 9)) == null) {
+                    throw deny();
+                }
+                System.arraycopy(data, 6, mMemory, offset + 6, 4);
+            }
+            if (writeKeys) {
+                System.arraycopy(data, 0, mMemory, offset, 6);
+                System.arraycopy(data, 10, mMemory, offset + 10, 6);
+            }
+        } else {
+            if (blockIndex == 0
+                    || !isAllowed(dataPermissions(blockIndex)[WRITE], sector)) {
+                throw deny();
+            }
+            System.arraycopy(data, 0, mMemory, offset, BLOCK_SIZE);
+        }
+    }
+
+    @Override
+    public synchronized void increment(int blockIndex, int value)
+            throws IOException {
+        valueOperation(blockIndex, value, INCREMENT);
+    }
+
+    @Override
+    public synchronized void decrement(int blockIndex, int value)
+            throws IOException {
+        valueOperation(blockIndex, -value, DEC_TRANS_REST);
+    }
+
+    @Override
+    public synchronized void restore(int blockIndex) throws IOException {
+        valueOperation(blockIndex, 0, DEC_TRANS_REST);
+    }
+
+    @Override
+    public synchronized void transfer(int blockIndex) throws IOException {
+        int sector = startCommand(blockIndex);
+        if (blockIndex == trailerBlock(sector) || blockIndex == 0
+                || mTransferBuffer == null
+                || !isAllowed(dataPermissions(blockIndex)[DEC_TRANS_REST],
+                        sector)) {
+            throw deny();
+        }
+        System.arraycopy(mTransferBuffer, 0, mMemory,
+                blockIndex * BLOCK_SIZE, BLOCK_SIZE);
+        mTransferBuffer = null;
+    }
+
+    /**
+     * Authenticate with a sector.
+     * @param sectorIndex Sector to authenticate with.
+     * @param key Key to check.
+     * @param keyType {@link #KEY_A} or {@link #KEY_B}.
+     * @return True if the key was correct.
+     * @throws IOException On simulated RF errors or tag loss.
+     */
+    private boolean authenticate(int sectorIndex, byte[] key, int keyType)
+            throws IOException {
+        checkSector(sectorIndex);
+        mAuthCount++;
+        checkLink();
+        mAuthSector = -1;
+        mTransferBuffer = null;
+        int offset = trailerBlock(sectorIndex) * BLOCK_SIZE
+                + ((keyType == KEY_A) ? 0 : 10);
+        boolean ok = key != null && key.length == 6;
+        for (int i = 0; ok && i < 6; i++) {
+            ok = mMemory[offset + i] == key[i];
+        }
+        delay(ok ? mAuthLatencyNanos : mFailedAuthLatencyNanos);
+        if (ok) {
+            mAuthSector = sectorIndex;
+            mAuthKey = keyType;
+        }
+        return ok;
+    }
+
+    /**
+     * Execute an increment, decrement or restore command.
+     * @param blockIndex Index of the value block.
+     * @param delta Value that gets added to the value block.
+     * @param operation {@link #INCREMENT} or {@link #DEC_TRANS_REST}.
+     * @throws IOException If the operation is not allowed or the block
+     * is not a valid value block.
+     */
+    private void valueOperation(int blockIndex, int delta, int operation)
+            throws IOException {
+        int sector = startCommand(blockIndex);
+        if (blockIndex == trailerBlock(sector) || blockIndex == 0
+                || !isAllowed(dataPermissions(blockIndex)[operation], sector)) {
+            throw deny();
+        }
+        int offset = blockIndex * BLOCK_SIZE;
+        byte[] b = Arrays.copyOfRange(mMemory, offset, offset + BLOCK_SIZE);
+        for (int i = 0; i < 4; i++) {
+            if (b[i] != b[i + 8] || (byte) ~b[i] != b[i + 4]) {
+                throw deny();
+            }
+        }
+        if (b[12] != b[14] || b[13] != b[15] || (byte) ~b[12] != b[13]) {
+            throw deny();
+        }
+        int value = (b[0] & 0xFF) | (b[1] & 0xFF) << 8
+                | (b[2] & 0xFF) << 16 | (b[3] & 0xFF) << 24;
+        value += delta;
+        for (int i = 0; i < 4; i++) {
+            b[i] = b[i + 8] = (byte) (value >>> (8 * i));
+            b[i + 4] = (byte) ~b[i];
+        }
+        mTransferBuffer = b;
+    }
+
+    /**
+     * Run the checks every block command needs (link, authentication
+     * state) and simulate the latency.
+     * @param blockIndex The block the command is for.
+     * @return The sector of the block.
+     * @throws IOException On RF errors, tag loss or if the sector of the
+     * block is not authenticated.
+     */
+    private int startCommand(int blockIndex) throws IOException {
+        checkBlock(blockIndex);
+        checkLink();
+        delay(mCommandLatencyNanos);
+        int sector = blockToSector(blockIndex);
+        if (sector != mAuthSector) {
+            throw deny();
+        }
+        return sector;
+    }
+
+    /**
+     * Count the command and check if the tag is still reachable.
+     * Also inject random failures and the tag removal.
+     * @throws IOException If the tag is not reachable.
+     */
+    private void checkLink() throws IOException {
+        mCommandCount++;
+        if (!mConnected) {
+            throw new IllegalStateException("Call connect() first.");
+        }
+        if (mRemoveAfter == 0) {
+            setPresent(false);
+        } else if (mRemoveAfter > 0) {
+            mRemoveAfter--;
+        }
+        if (!mPresent || mLinkLost) {
+            throw new IOException("Tag was lost.");
+        }
+        if (mRandom != null && mRandom.nextDouble() < mFailureRate) {
+            mAuthSector = -1;
+            throw new IOException("Transceive failed.");
+        }
+    }
+
+    /**
+     * A denied command ends the authenticated state (like a NACK from
+     * a real tag).
+     * @return The exception to throw.
+     */
+    private IOException deny() {
+        mAuthSector = -1;
+        mTransferBuffer = null;
+        return new IOException("Transceive failed.");
+    }
+
+    /**
+     * Check a permission against the current authentication.
+     * If key B is readable, it can not be used for any operation.
+     * @param permission Permission value (1 = A, 2 = B, 3 = A|B).
+     * @param sector The authenticated sector.
+     * @return True if the operation is allowed.
+     */
+    private boolean isAllowed(int permission, int sector) {
+        int trailerConfig = acConfig(sector, 3);
+        if (trailerConfig <= 2) {
+            // Key B is readable. Only key A is usable.
+            permission &= KEY_A;
+        }
+        return (permission & mAuthKey) != 0;
+    }
+
+    private int[] dataPermissions(int blockIndex) {
+        int sector = blockToSector(blockIndex);
+        int block = blockIndex - sectorToBlock(sector);
+        if (sector >= 32) {
+            // 4K sectors with 16 blocks: 5 blocks share one AC group.
+            block = block / 5;
+        }
+        return DATA_PERMISSIONS[acConfig(sector, block)];
+    }
+
+    private int[] trailerPermissions(int sector) {
+        return TRAILER_PERMISSIONS[acConfig(sector, 3)];
+    }
+
+    /**
+     * Get the C1C2C3 bits of a block group as 3 bit number.
+     * @param sector The sector.
+     * @param group Block group (0-3, 3 = sector trailer).
+     * @return C1C2C3 as number (0-7). Invalid ACs are treated as 111
+     * (never).
+     */
+    private int acConfig(int sector, int group) {
+        int offset = trailerBlock(sector) * BLOCK_SIZE + 6;
+        int[][] ac = decodeAC(Arrays.copyOfRange(mMemory, offset, offset + 3));
+        if (ac == null) {
+            return 7;
+        }
+        return ac[0][group] << 2 | ac[1][group] << 1 | ac[2][group];
+    }
+
+    /**
+     * Decode the 3 Access Condition bytes.
+     * @param ac The Access Condition bytes.
+     * @return C1-C3 (first dimension) for block 0-3 (second dimension)
+     * or null if the inverted bits do not match.
+     */
+    private static int[][] decodeAC(byte[] ac) {
+        int b6 = ac[0] & 0xFF;
+        int b7 = ac[1] & 0xFF;
+        int b8 = ac[2] & 0xFF;
+        if ((b7 >>> 4) != (~b6 & 0x0F) || (b8 & 0x0F) != (~b6 >>> 4 & 0x0F)
+                || (b8 >>> 4) != (~b7 & 0x0F)) {
+            return null;
+        }
+        int[][] ret = new int[3][4];
+        for (int i = 0; i < 4; i++) {
+            ret[0][i] = (b7 >>> (4 + i)) & 1;
+            ret[1][i] = (b8 >>> i) & 1;
+            ret[2][i] = (b8 >>> (4 + i)) & 1;
+        }
+        return ret;
+    }
+
+    private int trailerBlock(int sector) {
+        return sectorToBlock(sector) + getBlockCountInSector(sector) - 1;
+    }
+
+    private static int blockToSector(int blockIndex) {
+        if (blockIndex < 32 * 4) {
+            return blockIndex / 4;
+        }
+        return 32 + (blockIndex - 32 * 4) / 16;
+    }
+
+    private void checkSector(int sectorIndex) {
+        if (sectorIndex < 0 || sectorIndex >= mSectorCount) {
+            throw new IndexOutOfBoundsException(
+                    "Sector out of bounds: " + sectorIndex);
+        }
+    }
+
+    private void checkBlock(int blockIndex) {
+        if (blockIndex < 0 || blockIndex >= getBlockCount()) {
+            throw new IndexOutOfBoundsException(
+                    "Block out of bounds: " + blockIndex);
+        }
+    }
+
+    /**
+     * Simulate the RF latency.
+     * @param nanos Time to wait in ns.
+     */
+    private static void delay(long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        long end = System.nanoTime() + nanos;
+        long left = nanos;
+        while (left > 0) {
+            LockSupport.parkNanos(left);
+            left = end - System.nanoTime();
+        }
+    }
+
+    private static byte[] randomUid() {
+        byte[] uid = new byte[4];
+        new Random().nextBytes(uid);
+        return uid;
+    }
+}
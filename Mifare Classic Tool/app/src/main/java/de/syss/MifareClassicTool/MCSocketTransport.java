@@ -0,0 +1,422 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * A {@link MCTransport} for external readers (e.g. PN53x based USB
+ * readers on a bench station) that are served over TCP by another
+ * process (see {@link MCTransportServer} for a reference server).<br /><br />
+ * The protocol is a simple request/response protocol of frames.
+ * A frame is a 2 byte length (big endian) followed by the payload.
+ * A request payload is a command byte followed by the arguments.
+ * A response payload is a status byte ({@link #STATUS_OK},
+ * {@link #STATUS_NAK}, {@link #STATUS_TAG_LOST} or {@link #STATUS_ERROR})
+ * followed by the data. Block indices are 2 bytes, sector indices 1 byte
+ * and values 4 bytes (all big endian).
+ * <ul>
+ * <li>{@link #CMD_CONNECT} - Select the tag. Response data: size
+ * (4 bytes), SAK (1 byte), ATQA (2 bytes), UID.</li>
+ * <li>{@link #CMD_CLOSE} - Release the tag.</li>
+ * <li>{@link #CMD_AUTH_A}, {@link #CMD_AUTH_B} - Sector, key (6 bytes).
+ * {@link #STATUS_NAK} if the key is wrong.</li>
+ * <li>{@link #CMD_READ} - Block. Response data: 16 bytes.</li>
+ * <li>{@link #CMD_WRITE} - Block, data (16 bytes).</li>
+ * <li>{@link #CMD_INCREMENT}, {@link #CMD_DECREMENT} - Block, value.</li>
+ * <li>{@link #CMD_RESTORE}, {@link #CMD_TRANSFER} - Block.</li>
+ * </ul>
+ * @author Gerhard Klostermeier
+ */
+public class MCSocketTransport implements MCTransport {
+
+    public static final byte CMD_CONNECT = 0x01;
+    public static final byte CMD_CLOSE = 0x02;
+    public static final byte CMD_AUTH_A = 0x10;
+    public static final byte CMD_AUTH_B = 0x11;
+    public static final byte CMD_READ = 0x20;
+    public static final byte CMD_WRITE = 0x21;
+    public static final byte CMD_INCREMENT = 0x30;
+    public static final byte CMD_DECREMENT = 0x31;
+    public static final byte CMD_RESTORE = 0x32;
+    public static final byte CMD_TRANSFER = 0x33;
+
+    public static final byte STATUS_OK = 0x00;
+    /**
+     * The command was refused by the tag (e.g. wrong key).
+     */
+    public static final byte STATUS_NAK = 0x01;
+    /**
+     * The tag is not in range anymore.
+     */
+    public static final byte STATUS_TAG_LOST = 0x02;
+    /**
+     * Other errors (e.g. a transceive error or an invalid request).
+     */
+    public static final byte STATUS_ERROR = 0x03;
+
+    /**
+     * Maximum size of a frame payload.
+     */
+    public static final int MAX_FRAME_SIZE = 256;
+    /**
+     * Default timeout (in ms) for connecting and for a response.
+     */
+    public static final int DEFAULT_TIMEOUT = 2000;
+
+    private final String mHost;
+    private final int mPort;
+    private final int mTimeout;
+    private Socket mSocket;
+    private DataInputStream mIn;
+    private DataOutputStream mOut;
+    private boolean mConnected = false;
+    private int mSize = 0;
+    private short mSak = 0;
+    private byte[] mAtqa;
+    private byte[] mUid;
+
+    /**
+     * Create a transport for a reader served over TCP
+     * (with {@link #DEFAULT_TIMEOUT}).
+     * @param host Host of the reader server.
+     * @param port Port of the reader server.
+     */
+    public MCSocketTransport(String host, int port) {
+        this(host, port, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Create a transport for a reader served over TCP.
+     * @param host Host of the reader server.
+     * @param port Port of the reader server.
+     * @param timeout Timeout (in ms) for connecting and for a response.
+     */
+    public MCSocketTransport(String host, int port, int timeout) {
+        mHost = host;
+        mPort = port;
+        mTimeout = timeout;
+    }
+
+    @Override
+    public synchronized void connect() throws IOException {
+        if (mSocket == null) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(mHost, mPort), mTimeout);
+                socket.setSoTimeout(mTimeout);
+                socket.setTcpNoDelay(true);
+                mIn = new DataInputStream(new BufferedInputStream(
+                        socket.getInputStream()));
+                mOut = new DataOutputStream(new BufferedOutputStream(
+                        socket.getOutputStream()));
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            mSocket = socket;
+        }
+        byte[] info = request(new byte[] {CMD_CONNECT});
+        if (info.length < 8) {
+            throw new IOException("Invalid tag information.");
+        }
+        mSize = ((info[0] & 0xFF) << 24) | ((info[1] & 0xFF) << 16)
+                | ((info[2] & 0xFF) << 8) | (info[3] & 0xFF);
+        mSak = (short) (info[4] & 0xFF);
+        mAtqa = Arrays.copyOfRange(info, 5, 7);
+        mUid = Arrays.copyOfRange(info, 7, info.length);
+        mConnected = true;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mConnected = false;
+        if (mSocket == null) {
+            return;
+        }
+        try {
+            request(new byte[] {CMD_CLOSE});
+        } catch (IOException e) {
+            // Ignore. The socket will be closed anyway.
+        }
+        closeSocket();
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        return mConnected;
+    }
+
+    @Override
+    public byte[] getUid() {
+        return (mUid != null) ? mUid.clone() : null;
+    }
+
+    @Override
+    public byte[] getAtqa() {
+        return (mAtqa != null) ? mAtqa.clone() : null;
+    }
+
+    @Override
+    public short getSak() {
+        return mSak;
+    }
+
+    @Override
+    public int getSize() {
+        return mSize;
+    }
+
+    @Override
+    public int getSectorCount() {
+        switch (mSize) {
+            case MCSimulatedTag.SIZE_MINI: return 5;
+            case MCSimulatedTag.SIZE_1K: return 16;
+            case MCSimulatedTag.SIZE_2K: return 32;
+            case MCSimulatedTag.SIZE_4K: return 40;
+            default: return 0;
+        }
+    }
+
+    @Override
+    public int getBlockCount() {
+        return mSize / 16;
+    }
+
+    @Override
+    public int getBlockCountInSector(int sectorIndex) {
+        return (sectorIndex < 32) ? 4 : 16;
+    }
+
+    @Override
+    public int sectorToBlock(int sectorIndex) {
+        if (sectorIndex < 32) {
+            return sectorIndex * 4;
+        }
+        return 32 * 4 + (sectorIndex - 32) * 16;
+    }
+
+    @Override
+    public boolean authenticateSectorWithKeyA(int sectorIndex, byte[] key)
+            throws IOException {
+        return authenticate(CMD_AUTH_A, sectorIndex, key);
+    }
+
+    @Override
+    public boolean authenticateSectorWithKeyB(int sectorIndex, byte[] key)
+            throws IOException {
+        return authenticate(CMD_AUTH_B, sectorIndex, key);
+    }
+
+    @Override
+    public byte[] readBlock(int blockIndex) throws IOException {
+        byte[] data = request(blockCommand(CMD_READ, blockIndex, 0));
+        if (data.length != 16) {
+            throw new IOException("Invalid block size.");
+        }
+        return data;
+    }
+
+    @Override
+    public void writeBlock(int blockIndex, byte[] data) throws IOException {
+        if (data == null || data.length != 16) {
+            throw new IllegalArgumentException("Data must be 16 bytes.");
+        }
+        byte[] cmd = blockCommand(CMD_WRITE, blockIndex, 16);
+        System.arraycopy(data, 0, cmd, 3, 16);
+        request(cmd);
+    }
+
+    @Override
+    public void increment(int blockIndex, int value) throws IOException {
+        request(valueCommand(CMD_INCREMENT, blockIndex, value));
+    }
+
+    @Override
+    public void decrement(int blockIndex, int value) throws IOException {
+        request(valueCommand(CMD_DECREMENT, blockIndex, value));
+    }
+
+    @Override
+    public void restore(int blockIndex) throws IOException {
+        request(blockCommand(CMD_RESTORE, blockIndex, 0));
+    }
+
+    @Override
+    public void transfer(int blockIndex) throws IOException {
+        request(blockCommand(CMD_TRANSFER, blockIndex, 0));
+    }
+
+    /**
+     * Authenticate with a sector.
+     * @param cmd {@link #CMD_AUTH_A} or {@link #CMD_AUTH_B}.
+     * @param sectorIndex The sector.
+     * @param key The key (6 bytes).
+     * @return True if the authentication was successful.
+     * @throws IOException On communication errors or if the tag was lost.
+     */
+    private boolean authenticate(byte cmd, int sectorIndex, byte[] key)
+            throws IOException {
+        byte[] request = new byte[8];
+        request[0] = cmd;
+        request[1] = (byte) sectorIndex;
+        System.arraycopy(key, 0, request, 2, 6);
+        try {
+            request(request);
+        } catch (NakException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Create a request with a block index.
+     * @param cmd The command.
+     * @param blockIndex The block.
+     * @param extra Number of additional bytes.
+     * @return The request.
+     */
+    private static byte[] blockCommand(byte cmd, int blockIndex, int extra) {
+        byte[] request = new byte[3 + extra];
+        request[0] = cmd;
+        request[1] = (byte) (blockIndex >> 8);
+        request[2] = (byte) blockIndex;
+        return request;
+    }
+
+    /**
+     * Create a request with a block index and a value.
+     * @param cmd The command.
+     * @param blockIndex The block.
+     * @param value The value.
+     * @return The request.
+     */
+    private static byte[] valueCommand(byte cmd, int blockIndex, int value) {
+        byte[] request = blockCommand(cmd, blockIndex, 4);
+        for (int i = 0; i < 4; i++) {
+            request[3 + i] = (byte) (value >> (24 - 8 * i));
+        }
+        return request;
+    }
+
+    /**
+     * Send a request and wait for the response.
+     * @param request The request payload.
+     * @return The response data (without status).
+     * @throws NakException If the tag refused the command.
+     * @throws IOException On other errors. If the tag or the server was
+     * lost, the transport is not connected anymore.
+     */
+    private synchronized byte[] request(byte[] request) throws IOException {
+        if (mSocket == null) {
+            throw new IOException("Not connected.");
+        }
+        byte[] response;
+        try {
+            writeFrame(mOut, request);
+            response = readFrame(mIn);
+        } catch (IOException e) {
+            // The connection to the server is broken.
+            mConnected = false;
+            closeSocket();
+            throw e;
+        }
+        if (response.length == 0) {
+            throw new IOException("Empty response.");
+        }
+        byte[] data = Arrays.copyOfRange(response, 1, response.length);
+        switch (response[0]) {
+            case STATUS_OK:
+                return data;
+            case STATUS_NAK:
+                throw new NakException();
+            case STATUS_TAG_LOST:
+                mConnected = false;
+                throw new IOException("Tag was lost.");
+            default:
+                throw new IOException("Reader error.");
+        }
+    }
+
+    /**
+     * Close the socket (without further requests).
+     */
+    private void closeSocket() {
+        try {
+            if (mSocket != null) {
+                mSocket.close();
+            }
+        } catch (IOException e) {
+            // Ignore.
+        }
+        mSocket = null;
+        mIn = null;
+        mOut = null;
+    }
+
+    /**
+     * Write a frame (length + payload).
+     * @param out The stream to write to.
+     * @param payload The payload.
+     * @throws IOException On errors.
+     */
+    static void writeFrame(DataOutputStream out, byte[] payload)
+            throws IOException {
+        if (payload.length > MAX_FRAME_SIZE) {
+            throw new IOException("Frame too large.");
+        }
+        out.writeShort(payload.length);
+        out.write(payload);
+        out.flush();
+    }
+
+    /**
+     * Read a frame (length + payload).
+     * @param in The stream to read from.
+     * @return The payload.
+     * @throws EOFException If the stream ended.
+     * @throws IOException On other errors.
+     */
+    static byte[] readFrame(DataInputStream in) throws IOException {
+        int length = in.readUnsignedShort();
+        if (length > MAX_FRAME_SIZE) {
+            throw new IOException("Frame too large.");
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    /**
+     * The tag refused a command ({@link #STATUS_NAK}).
+     */
+    private static class NakException extends IOException {
+        NakException() {
+            super("Command refused by the tag.");
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import java.io.IOException;
+
+import de.syss.MifareClassicTool.TimingStats.Op;
+
+/**
+ * A {@link MCTransport} that measures the duration of authentications,
+ * reads, writes and connects of another transport and records them in
+ * {@link TimingStats}. All other commands are passed through.
+ * @author Gerhard Klostermeier
+ * @see ReaderConfig#isCollectTimings()
+ */
+public class MCTimingTransport implements MCTransport {
+
+    private final MCTransport mTransport;
+    private final TimingStats mStats;
+
+    /**
+     * Measure the commands of a transport.
+     * @param transport The transport to measure.
+     * @param stats The statistics to record to.
+     */
+    public MCTimingTransport(MCTransport transport, TimingStats stats) {
+        mTransport = transport;
+        mStats = stats;
+    }
+
+    /**
+     * @return The measured transport.
+     */
+    public MCTransport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * @return The statistics this transport records to.
+     */
+    public TimingStats getStats() {
+        return mStats;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        long start = System.nanoTime();
+        try {
+            mTransport.connect();
+        } catch (IOException | RuntimeException e) {
+            mStats.record(Op.CONNECT, System.nanoTime() - start, true);
+            throw e;
+        }
+        mStats.record(Op.CONNECT, System.nanoTime() - start, false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mTransport.close();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mTransport.isConnected();
+    }
+
+    @Override
+    public byte[] getUid() {
+        return mTransport.getUid();
+    }
+
+    @Override
+    public byte[] getAtqa() {
+        return mTransport.getAtqa();
+    }
+
+    @Override
+    public short getSak() {
+        return mTransport.getSak();
+    }
+
+    @Override
+    public int getSize() {
+        return mTransport.getSize();
+    }
+
+    @Override
+    public int getSectorCount() {
+        return mTransport.getSectorCount();
+    }
+
+    @Override
+    public int getBlockCount() {
+        return mTransport.getBlockCount();
+    }
+
+    @Override
+    public int getBlockCountInSector(int sectorIndex) {
+        return mTransport.getBlockCountInSector(sectorIndex);
+    }
+
+    @Override
+    public int sectorToBlock(int sectorIndex) {
+        return mTransport.sectorToBlock(sectorIndex);
+    }
+
+    @Override
+    public boolean authenticateSectorWithKeyA(int sectorIndex, byte[] key)
+            throws IOException {
+        long start = System.nanoTime();
+        boolean auth;
+        try {
+            auth = mTransport.authenticateSectorWithKeyA(sectorIndex, key);
+        } catch (IOException | RuntimeException e) {
+            mStats.record(Op.AUTH_A_FAILED, System.nanoTime() - start, true);
+            throw e;
+        }
+        mStats.record(auth ? Op.AUTH_A : Op.AUTH_A_FAILED,
+                System.nanoTime() - start, false);
+        return auth;
+    }
+
+    @Override
+    public boolean authenticateSectorWithKeyB(int sectorIndex, byte[] key)
+            throws IOException {
+        long start = System.nanoTime();
+        boolean auth;
+        try {
+            auth = mTransport.authenticateSectorWithKeyB(sectorIndex, key);
+        } catch (IOException | RuntimeException e) {
+            mStats.record(Op.AUTH_B_FAILED, System.nanoTime() - start, true);
+            throw e;
+        }
+        mStats.record(auth ? Op.AUTH_B : Op.AUTH_B_FAILED,
+                System.nanoTime() - start, false);
+        return auth;
+    }
+
+    @Override
+    public byte[] readBlock(int blockIndex) throws IOException {
+        long start = System.nanoTime();
+        byte[] data;
+        try {
+            data = mTransport.readBlock(blockIndex);
+        } catch (IOException | RuntimeException e) {
+            mStats.record(Op.READ, System.nanoTime() - start, true);
+            throw e;
+        }
+        mStats.record(Op.READ, System.nanoTime() - start, false);
+        return data;
+    }
+
+    @Override
+    public void writeBlock(int blockIndex, byte[] data) throws IOException {
+        long start = System.nanoTime();
+        try {
+            mTransport.writeBlock(blockIndex, data);
+        } catch (IOException | RuntimeException e) {
+            mStats.record(Op.WRITE, System.nanoTime() - start, true);
+            throw e;
+        }
+        mStats.record(Op.WRITE, System.nanoTime() - start, false);
+    }
+
+    @Override
+    public void increment(int blockIndex, int value) throws IOException {
+        mTransport.increment(blockIndex, value);
+    }
+
+    @Override
+    public void decrement(int blockIndex, int value) throws IOException {
+        mTransport.decrement(blockIndex, value);
+    }
+
+    @Override
+    public void restore(int blockIndex) throws IOException {
+        mTransport.restore(blockIndex);
+    }
+
+    @Override
+    public void transfer(int blockIndex) throws IOException {
+        mTransport.transfer(blockIndex);
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import java.io.IOException;
+
+/**
+ * The low level MIFARE Classic commands {@link MCReader} needs to talk
+ * to a tag. The methods follow the semantics of
+ * {@link android.nfc.tech.MifareClassic} so that the Android NFC stack
+ * ({@link MCNfcTransport}) as well as other readers or a simulated tag
+ * ({@link MCSimulatedTag}) can be used.
+ * Implementations should not depend on the Android framework if they
+ * do not have to. This way they can be used on a plain JVM.
+ * @author Gerhard Klostermeier
+ * @see MCReader#get(MCTransport)
+ */
+public interface MCTransport {
+
+    /**
+     * Connect to the tag.
+     * @throws IOException If the tag is not in range or the connection
+     * could not be established.
+     */
+    void connect() throws IOException;
+
+    /**
+     * Close the connection to the tag.
+     * @throws IOException If something went wrong while closing.
+     */
+    void close() throws IOException;
+
+    /**
+     * Check if there is a connection to the tag.
+     * Like with the Android NFC stack, this is NOT an indicator that the
+     * tag is still in range.
+     * @return True if connected. False otherwise.
+     */
+    boolean isConnected();
+
+    /**
+     * Get the UID of the tag.
+     * @return The UID (4, 7 or 10 bytes).
+     */
+    byte[] getUid();
+
+    /**
+     * Get the ATQA of the tag.
+     * @return The ATQA (2 bytes) or null if unknown.
+     */
+    byte[] getAtqa();
+
+    /**
+     * Get the SAK of the tag.
+     * @return The SAK or 0 if unknown.
+     */
+    short getSak();
+
+    /**
+     * Get the size of the tag in bytes (e.g. 1024 for a MIFARE Classic 1K).
+     * @return Size of the tag.
+     */
+    int getSize();
+
+    /**
+     * Get the number of sectors of the tag.
+     * @return Number of sectors.
+     */
+    int getSectorCount();
+
+    /**
+     * Get the number of blocks of the tag.
+     * @return Number of blocks.
+     */
+    int getBlockCount();
+
+    /**
+     * Get the number of blocks in a sector.
+     * @param sectorIndex Index of the sector.
+     * @return 4 or 16 blocks.
+     */
+    int getBlockCountInSector(int sectorIndex);
+
+    /**
+     * Get the index of the first block of a sector.
+     * @param sectorIndex Index of the sector.
+     * @return Index of the first block of the sector.
+     */
+    int sectorToBlock(int sectorIndex);
+
+    /**
+     * Authenticate a sector using key A.
+     * @param sectorIndex Sector to authenticate with.
+     * @param key The 6 byte key.
+     * @return True on success. False if the key was wrong.
+     * @throws IOException If the tag was lost or another error occurred.
+     */
+    boolean authenticateSectorWithKeyA(int sectorIndex, byte[] key)
+            throws IOException;
+
+    /**
+     * Authenticate a sector using key B.
+     * @param sectorIndex Sector to authenticate with.
+     * @param key The 6 byte key.
+     * @return True on success. False if the key was wrong.
+     * @throws IOException If the tag was lost or another error occurred.
+     */
+    boolean authenticateSectorWithKeyB(int sectorIndex, byte[] key)
+            throws IOException;
+
+    /**
+     * Read a block (16 bytes) of an authenticated sector.
+     * @param blockIndex Index of the block (absolute).
+     * @return The block data.
+     * @throws IOException If the read was denied or the tag was lost.
+     */
+    byte[] readBlock(int blockIndex) throws IOException;
+
+    /**
+     * Write a block (16 bytes) of an authenticated sector.
+     * @param blockIndex Index of the block (absolute).
+     * @param data 16 bytes of data.
+     * @throws IOException If the write was denied or the tag was lost.
+     */
+    void writeBlock(int blockIndex, byte[] data) throws IOException;
+
+    /**
+     * Increment a value block and store the result in the transfer buffer.
+     * @param blockIndex Index of the value block (absolute).
+     * @param value Value to add.
+     * @throws IOException If the operation was denied or the tag was lost.
+     */
+    void increment(int blockIndex, int value) throws IOException;
+
+    /**
+     * Decrement a value block and store the result in the transfer buffer.
+     * @param blockIndex Index of the value block (absolute).
+     * @param value Value to subtract.
+     * @throws IOException If the operation was denied or the tag was lost.
+     */
+    void decrement(int blockIndex, int value) throws IOException;
+
+    /**
+     * Copy a value block into the transfer buffer.
+     * @param blockIndex Index of the value block (absolute).
+     * @throws IOException If the operation was denied or the tag was lost.
+     */
+    void restore(int blockIndex) throws IOException;
+
+    /**
+     * Write the transfer buffer to a value block.
+     * @param blockIndex Index of the value block (absolute).
+     * @throws IOException If the operation was denied or the tag was lost.
+     */
+    void transfer(int blockIndex) throws IOException;
+}
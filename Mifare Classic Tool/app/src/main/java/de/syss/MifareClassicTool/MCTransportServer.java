@@ -0,0 +1,282 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * Reference server for {@link MCSocketTransport}. It serves one
+ * {@link MCTransport} (e.g. a driver for a PN53x based reader or a
+ * {@link MCSimulatedTag}) to one client at a time. See
+ * {@link MCSocketTransport} for the protocol.
+ * @author Gerhard Klostermeier
+ */
+public class MCTransportServer {
+
+    private final MCTransport mTransport;
+    private final ServerSocket mServerSocket;
+    private Thread mThread;
+    private volatile Socket mClient;
+    private volatile boolean mRunning = false;
+
+    /**
+     * Create a server for a transport on the loopback interface.
+     * @param transport The transport to serve.
+     * @param port The port. 0 to use any free port (see {@link #getPort()}).
+     * @throws IOException If the port could not be bound.
+     */
+    public MCTransportServer(MCTransport transport, int port)
+            throws IOException {
+        this(transport, port, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Create a server for a transport.
+     * @param transport The transport to serve.
+     * @param port The port. 0 to use any free port (see {@link #getPort()}).
+     * @param address The address to bind to.
+     * @throws IOException If the port could not be bound.
+     */
+    public MCTransportServer(MCTransport transport, int port,
+            InetAddress address) throws IOException {
+        mTransport = transport;
+        mServerSocket = new ServerSocket(port, 1, address);
+    }
+
+    /**
+     * @return The port the server is bound to.
+     */
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    /**
+     * Start serving clients in a background thread.
+     */
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(this::serve, "MCTransportServer-" + getPort());
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Stop the server. The connection to the current client and the
+     * served transport will be closed.
+     */
+    public synchronized void close() {
+        mRunning = false;
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            // Ignore.
+        }
+        Socket client = mClient;
+        if (client != null) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+        if (mThread != null) {
+            try {
+                mThread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mThread = null;
+        }
+        closeTransport();
+    }
+
+    /**
+     * Accept clients and handle their requests (one client at a time).
+     */
+    private void serve() {
+        while (mRunning) {
+            try (Socket socket = mServerSocket.accept()) {
+                mClient = socket;
+                if (!mRunning) {
+                    // Closed while accepting.
+                    break;
+                }
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(socket.getOutputStream()));
+                while (mRunning) {
+                    byte[] request = MCSocketTransport.readFrame(in);
+                    MCSocketTransport.writeFrame(out, handle(request));
+                }
+            } catch (IOException e) {
+                // Client disconnected or server closed.
+            }
+            mClient = null;
+            closeTransport();
+        }
+    }
+
+    /**
+     * Handle a request.
+     * @param request The request payload.
+     * @return The response payload.
+     */
+    private byte[] handle(byte[] request) {
+        try {
+            if (request.length == 0) {
+                return status(MCSocketTransport.STATUS_ERROR);
+            }
+            switch (request[0]) {
+                case MCSocketTransport.CMD_CONNECT:
+                    if (!mTransport.isConnected()) {
+                        mTransport.connect();
+                    }
+                    return tagInfo();
+                case MCSocketTransport.CMD_CLOSE:
+                    mTransport.close();
+                    return status(MCSocketTransport.STATUS_OK);
+                case MCSocketTransport.CMD_AUTH_A:
+                case MCSocketTransport.CMD_AUTH_B:
+                    if (request.length != 8) {
+                        return status(MCSocketTransport.STATUS_ERROR);
+                    }
+                    int sector = request[1] & 0xFF;
+                    byte[] key = Arrays.copyOfRange(request, 2, 8);
+                    boolean auth =
+                            (request[0] == MCSocketTransport.CMD_AUTH_A)
+                            ? mTransport.authenticateSectorWithKeyA(
+                                    sector, key)
+                            : mTransport.authenticateSectorWithKeyB(
+                                    sector, key);
+                    return status(auth ? MCSocketTransport.STATUS_OK
+                            : MCSocketTransport.STATUS_NAK);
+                case MCSocketTransport.CMD_READ:
+                    if (request.length != 3) {
+                        return status(MCSocketTransport.STATUS_ERROR);
+                    }
+                    byte[] data = mTransport.readBlock(block(request));
+                    byte[] response = new byte[1 + data.length];
+                    System.arraycopy(data, 0, response, 1, data.length);
+                    return response;
+                case MCSocketTransport.CMD_WRITE:
+                    if (request.length != 19) {
+                        return status(MCSocketTransport.STATUS_ERROR);
+                    }
+                    mTransport.writeBlock(block(request),
+                            Arrays.copyOfRange(request, 3, 19));
+                    return status(MCSocketTransport.STATUS_OK);
+                case MCSocketTransport.CMD_INCREMENT:
+                case MCSocketTransport.CMD_DECREMENT:
+                    if (request.length != 7) {
+                        return status(MCSocketTransport.STATUS_ERROR);
+                    }
+                    int value = ((request[3] & 0xFF) << 24)
+                            | ((request[4] & 0xFF) << 16)
+                            | ((request[5] & 0xFF) << 8)
+                            | (request[6] & 0xFF);
+                    if (request[0] == MCSocketTransport.CMD_INCREMENT) {
+                        mTransport.increment(block(request), value);
+                    } else {
+                        mTransport.decrement(block(request), value);
+                    }
+                    return status(MCSocketTransport.STATUS_OK);
+                case MCSocketTransport.CMD_RESTORE:
+                case MCSocketTransport.CMD_TRANSFER:
+                    if (request.length != 3) {
+                        return status(MCSocketTransport.STATUS_ERROR);
+                    }
+                    if (request[0] == MCSocketTransport.CMD_RESTORE) {
+                        mTransport.restore(block(request));
+                    } else {
+                        mTransport.transfer(block(request));
+                    }
+                    return status(MCSocketTransport.STATUS_OK);
+                default:
+                    return status(MCSocketTransport.STATUS_ERROR);
+            }
+        } catch (IOException | RuntimeException e) {
+            // Like MCReader, treat an error with a dropped connection
+            // as a lost tag.
+            return status(mTransport.isConnected()
+                    ? MCSocketTransport.STATUS_ERROR
+                    : MCSocketTransport.STATUS_TAG_LOST);
+        }
+    }
+
+    /**
+     * @return The response to {@link MCSocketTransport#CMD_CONNECT}.
+     */
+    private byte[] tagInfo() {
+        byte[] uid = mTransport.getUid();
+        byte[] atqa = mTransport.getAtqa();
+        int size = mTransport.getSize();
+        byte[] response = new byte[8 + uid.length];
+        response[0] = MCSocketTransport.STATUS_OK;
+        response[1] = (byte) (size >> 24);
+        response[2] = (byte) (size >> 16);
+        response[3] = (byte) (size >> 8);
+        response[4] = (byte) size;
+        response[5] = (byte) mTransport.getSak();
+        System.arraycopy(atqa, 0, response, 6, 2);
+        System.arraycopy(uid, 0, response, 8, uid.length);
+        return response;
+    }
+
+    /**
+     * Close the served transport (if it is connected).
+     */
+    private void closeTransport() {
+        try {
+            if (mTransport.isConnected()) {
+                mTransport.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            // Ignore.
+        }
+    }
+
+    /**
+     * @param request A request with a block index.
+     * @return The block index of the request.
+     */
+    private static int block(byte[] request) {
+        return ((request[1] & 0xFF) << 8) | (request[2] & 0xFF);
+    }
+
+    /**
+     * @param status The status.
+     * @return A response without data.
+     */
+    private static byte[] status(byte status) {
+        return new byte[] {status};
+    }
+}
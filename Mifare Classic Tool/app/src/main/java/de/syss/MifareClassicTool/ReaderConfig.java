@@ -0,0 +1,174 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import android.content.SharedPreferences;
+
+import de.syss.MifareClassicTool.Activities.Preferences.Preference;
+
+/**
+ * Immutable snapshot of the preferences used by {@link MCReader}
+ * (retry authentication, auto reconnect, custom sector count and
+ * timing statistics).
+ * A reader takes the snapshot once (see {@link #getCurrent()}) instead
+ * of reading the preferences on every authentication.
+ * @author Gerhard Klostermeier
+ */
+public final class ReaderConfig {
+
+    private static volatile ReaderConfig mCurrent;
+    /**
+     * The listener has to be referenced, because the preferences only
+     * keep a weak reference.
+     */
+    private static SharedPreferences.OnSharedPreferenceChangeListener
+            mListener;
+
+    private final boolean mAutoReconnect;
+    private final boolean mRetryAuth;
+    private final int mRetryAuthCount;
+    private final boolean mUseCustomSectorCount;
+    private final int mCustomSectorCount;
+    private final boolean mCollectTimings;
+
+    /**
+     * Create a reader configuration.
+     * @param autoReconnect Reconnect to the tag if it was lost during
+     * the key mapping.
+     * @param retryAuth Retry failed authentications.
+     * @param retryAuthCount How often a failed authentication is retried.
+     * @param useCustomSectorCount Use a custom sector count instead of the
+     * one reported by the tag.
+     * @param customSectorCount The custom sector count.
+     */
+    public ReaderConfig(boolean autoReconnect, boolean retryAuth,
+            int retryAuthCount, boolean useCustomSectorCount,
+            int customSectorCount) {
+        this(autoReconnect, retryAuth, retryAuthCount, useCustomSectorCount,
+                customSectorCount, false);
+    }
+
+    /**
+     * Create a reader configuration.
+     * @param autoReconnect Reconnect to the tag if it was lost during
+     * the key mapping.
+     * @param retryAuth Retry failed authentications.
+     * @param retryAuthCount How often a failed authentication is retried.
+     * @param useCustomSectorCount Use a custom sector count instead of the
+     * one reported by the tag.
+     * @param customSectorCount The custom sector count.
+     * @param collectTimings Measure the tag operations
+     * (see {@link MCTimingTransport}).
+     */
+    public ReaderConfig(boolean autoReconnect, boolean retryAuth,
+            int retryAuthCount, boolean useCustomSectorCount,
+            int customSectorCount, boolean collectTimings) {
+        mAutoReconnect = autoReconnect;
+        mRetryAuth = retryAuth;
+        mRetryAuthCount = retryAuthCount;
+        mUseCustomSectorCount = useCustomSectorCount;
+        mCustomSectorCount = customSectorCount;
+        mCollectTimings = collectTimings;
+    }
+
+    /**
+     * Create a reader configuration from the preferences.
+     * @param prefs The preferences.
+     * @return The reader configuration.
+     */
+    public static ReaderConfig fromPreferences(SharedPreferences prefs) {
+        return new ReaderConfig(
+                prefs.getBoolean(Preference.AutoReconnect.toString(), false),
+                prefs.getBoolean(
+                        Preference.UseRetryAuthentication.toString(), false),
+                prefs.getInt(
+                        Preference.RetryAuthenticationCount.toString(), 1),
+                prefs.getBoolean(
+                        Preference.UseCustomSectorCount.toString(), false),
+                prefs.getInt(Preference.CustomSectorCount.toString(), 16),
+                prefs.getBoolean(
+                        Preference.CollectTimings.toString(), false));
+    }
+
+    /**
+     * Get the current reader configuration of the app. It will be
+     * updated if the preferences change.
+     * @return The current reader configuration.
+     */
+    public static ReaderConfig getCurrent() {
+        ReaderConfig config = mCurrent;
+        if (config == null) {
+            synchronized (ReaderConfig.class) {
+                if (mCurrent == null) {
+                    SharedPreferences prefs = Common.getPreferences();
+                    mListener = (p, key) -> mCurrent = fromPreferences(p);
+                    prefs.registerOnSharedPreferenceChangeListener(mListener);
+                    mCurrent = fromPreferences(prefs);
+                }
+                config = mCurrent;
+            }
+        }
+        return config;
+    }
+
+    /**
+     * @return True if the tag should be reconnected if it was lost
+     * during the key mapping.
+     */
+    public boolean isAutoReconnect() {
+        return mAutoReconnect;
+    }
+
+    /**
+     * @return True if failed authentications should be retried.
+     */
+    public boolean isRetryAuth() {
+        return mRetryAuth;
+    }
+
+    /**
+     * @return How often a failed authentication should be retried.
+     */
+    public int getRetryAuthCount() {
+        return mRetryAuthCount;
+    }
+
+    /**
+     * @return True if {@link #getCustomSectorCount()} should be used
+     * instead of the sector count reported by the tag.
+     */
+    public boolean isUseCustomSectorCount() {
+        return mUseCustomSectorCount;
+    }
+
+    /**
+     * @return The custom sector count.
+     */
+    public int getCustomSectorCount() {
+        return mCustomSectorCount;
+    }
+
+    /**
+     * @return True if the duration of the tag operations should be
+     * recorded in {@link TimingStats}.
+     */
+    public boolean isCollectTimings() {
+        return mCollectTimings;
+    }
+}
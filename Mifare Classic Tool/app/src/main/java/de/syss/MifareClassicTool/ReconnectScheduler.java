@@ -0,0 +1,108 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+/**
+ * Backoff policy for reconnecting to a lost tag during the key mapping
+ * (see {@link ReaderConfig#isAutoReconnect()}). The first reconnect is
+ * tried without delay, so a tag that is presented again right away
+ * costs only a few milliseconds. After that, the delay doubles from
+ * {@link #INITIAL_DELAY} up to {@link #MAX_DELAY}. If the tag is not
+ * back after {@link #MAX_WAIT}, reconnecting is given up.
+ * @author Gerhard Klostermeier
+ */
+public class ReconnectScheduler {
+
+    /**
+     * Delay (in ms) after the first failed reconnect.
+     */
+    public static final long INITIAL_DELAY = 10;
+    /**
+     * Maximum delay (in ms) between two reconnects.
+     */
+    public static final long MAX_DELAY = 500;
+    /**
+     * Maximum time (in ms) to wait for a lost tag.
+     */
+    public static final long MAX_WAIT = 30000;
+
+    private final long mInitialDelay;
+    private final long mMaxDelay;
+    private final long mMaxWait;
+    private long mDelay;
+    private long mStart;
+    private int mReconnects;
+
+    /**
+     * Create a reconnect scheduler with the default values
+     * ({@link #INITIAL_DELAY}, {@link #MAX_DELAY}, {@link #MAX_WAIT}).
+     */
+    public ReconnectScheduler() {
+        this(INITIAL_DELAY, MAX_DELAY, MAX_WAIT);
+    }
+
+    /**
+     * Create a reconnect scheduler.
+     * @param initialDelay Delay (in ms) after the first failed reconnect.
+     * @param maxDelay Maximum delay (in ms) between two reconnects.
+     * @param maxWait Maximum time (in ms) to wait for a lost tag.
+     */
+    public ReconnectScheduler(long initialDelay, long maxDelay,
+            long maxWait) {
+        mInitialDelay = Math.max(1, initialDelay);
+        mMaxDelay = Math.max(mInitialDelay, maxDelay);
+        mMaxWait = maxWait;
+    }
+
+    /**
+     * Start waiting for a lost tag. This resets the delay.
+     */
+    public void start() {
+        mStart = System.nanoTime();
+        mDelay = mInitialDelay;
+    }
+
+    /**
+     * Get the delay before the next reconnect.
+     * @return The delay in ms or -1 if {@link #MAX_WAIT} is exceeded.
+     */
+    public long nextDelay() {
+        long remaining = mMaxWait - (System.nanoTime() - mStart) / 1000000;
+        if (remaining <= 0) {
+            return -1;
+        }
+        long delay = Math.min(mDelay, remaining);
+        mDelay = Math.min(mDelay * 2, mMaxDelay);
+        return delay;
+    }
+
+    /**
+     * The tag was reconnected.
+     */
+    public void onReconnected() {
+        mReconnects++;
+    }
+
+    /**
+     * @return How often the tag was reconnected.
+     */
+    public int getReconnectCount() {
+        return mReconnects;
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import de.syss.MifareClassicTool.Common.Operation;
+
+/**
+ * The decoded Access Conditions of a sector. All 4 groups (data blocks
+ * 0-2 and the Sector Trailer) are decoded at once from the 3 Access
+ * Condition bytes. For each group, there is a bit mask with the keys
+ * that allow each operation (see {@link #getMask(int)}), so checking
+ * a block does not need {@link Common#getOperationRequirements(byte, byte,
+ * byte, Operation, boolean, boolean)} anymore.
+ * @author Gerhard Klostermeier
+ */
+public final class SectorPermissions {
+
+    /**
+     * Index of the group of the Sector Trailer.
+     */
+    public static final int TRAILER_GROUP = 3;
+
+    /**
+     * The masks (see {@link #getMask(int)}) for each combination of
+     * Access Condition bits, Sector Trailer flag and key B readable flag.
+     */
+    private static final int[] MASKS = buildMasks();
+
+    /**
+     * The decoded Access Conditions, indexed by the 12 bits
+     * C3 &lt;&lt; 8 | C2 &lt;&lt; 4 | C1 of a valid Access Condition.
+     * There are only 4096 valid Access Conditions, so each of them is
+     * decoded once and then shared (the objects are immutable).
+     * The table is filled on demand.
+     */
+    private static final SectorPermissions[] CACHE =
+            new SectorPermissions[1 << 12];
+
+    private final int mAccessBits;
+    private final boolean mKeyBReadable;
+    private final int[] mMasks = new int[4];
+
+    /**
+     * Decode the Access Conditions.
+     * @param accessBits The Access Condition bits of the 4 groups
+     * (3 bits each, C1 &lt;&lt; 2 | C2 &lt;&lt; 1 | C3, group 0 first).
+     */
+    private SectorPermissions(int accessBits) {
+        mAccessBits = accessBits;
+        int trailerBits = getAccessBits(TRAILER_GROUP);
+        // C1C2C3 = 000, 010 or 001.
+        mKeyBReadable = trailerBits == 0 || trailerBits == 2
+                || trailerBits == 1;
+        for (int group = 0; group < 4; group++) {
+            mMasks[group] = MASKS[(getAccessBits(group) << 2)
+                    | ((group == TRAILER_GROUP) ? 2 : 0)
+                    | (mKeyBReadable ? 1 : 0)];
+        }
+    }
+
+    /**
+     * Build {@link #MASKS} from
+     * {@link Common#getOperationRequirements(int, Operation, boolean,
+     * boolean)}.
+     * @return The masks.
+     */
+    private static int[] buildMasks() {
+        int[] masks = new int[8 * 4];
+        for (int i = 0; i < masks.length; i++) {
+            for (Operation op : Operation.values()) {
+                int keys = Common.getOperationRequirements(i >> 2, op,
+                        (i & 2) != 0, (i & 1) != 0);
+                if (keys > 0 && keys <= 3) {
+                    masks[i] |= keys << (2 * op.ordinal());
+                }
+            }
+        }
+        return masks;
+    }
+
+    /**
+     * Decode the Access Conditions of a sector.
+     * @param acBytes The Access Condition bytes (bytes 6-8 of the
+     * Sector Trailer).
+     * @return The permissions or null if the Access Conditions
+     * are invalid.
+     */
+    public static SectorPermissions decode(byte[] acBytes) {
+        return decode(acBytes, 0);
+    }
+
+    /**
+     * Decode the Access Conditions of a sector.
+     * @param src The array containing the Access Condition bytes
+     * (e.g. the Sector Trailer).
+     * @param offset The offset of the Access Condition bytes in src
+     * (6 for a Sector Trailer).
+     * @return The permissions or null if the Access Conditions
+     * are invalid or if src is too short. The returned object is shared
+     * by all callers that decode the same Access Conditions.
+     */
+    public static SectorPermissions decode(byte[] src, int offset) {
+        if (src == null || offset < 0 || src.length < offset + 3) {
+            return null;
+        }
+        int b6 = src[offset] & 0xFF;
+        int b7 = src[offset + 1] & 0xFF;
+        int b8 = src[offset + 2] & 0xFF;
+        int c1 = b7 >>> 4;
+        int c2 = b8 & 0x0F;
+        int c3 = b8 >>> 4;
+        // The inverted bits must match.
+        if (((~b6) & 0x0F) != c1 || (((~b6) >>> 4) & 0x0F) != c2
+                || ((~b7) & 0x0F) != c3) {
+            return null;
+        }
+        int index = (c3 << 8) | (c2 << 4) | c1;
+        SectorPermissions permissions = CACHE[index];
+        if (permissions == null) {
+            // Racing threads might both decode the Access Conditions.
+            // This is fine, because the objects are immutable
+            // (final fields) and equal.
+            permissions = new SectorPermissions(pack(c1, c2, c3));
+            CACHE[index] = permissions;
+        }
+        return permissions;
+    }
+
+    /**
+     * Pack the Access Condition bits of the 4 groups.
+     * @param c1 Bit "C1" of the groups (bit 0 = group 0).
+     * @param c2 Bit "C2" of the groups.
+     * @param c3 Bit "C3" of the groups.
+     * @return The Access Condition bits (3 bits per group).
+     */
+    private static int pack(int c1, int c2, int c3) {
+        int bits = 0;
+        for (int group = 0; group < 4; group++) {
+            bits |= ((((c1 >>> group) & 1) << 2) | (((c2 >>> group) & 1) << 1)
+                    | ((c3 >>> group) & 1)) << (3 * group);
+        }
+        return bits;
+    }
+
+    /**
+     * Get the group of Access Conditions of a block. On MIFARE Classic 4K
+     * tags, sectors with 16 blocks have one group for 5 blocks.
+     * @param blockIndex The index of the block in the sector.
+     * @param blockCount The number of blocks of the sector (4 or 16).
+     * @return The group (0-2 for data blocks, {@link #TRAILER_GROUP}
+     * for the Sector Trailer).
+     */
+    public static int getGroup(int blockIndex, int blockCount) {
+        if (blockIndex == blockCount - 1) {
+            return TRAILER_GROUP;
+        }
+        return (blockCount == 16) ? blockIndex / 5 : blockIndex;
+    }
+
+    /**
+     * @param group The group (0-3).
+     * @return The Access Condition bits of the group
+     * (C1 &lt;&lt; 2 | C2 &lt;&lt; 1 | C3).
+     */
+    public int getAccessBits(int group) {
+        return (mAccessBits >>> (3 * group)) & 0x07;
+    }
+
+    /**
+     * Get the Access Condition bits in the same layout as
+     * {@link Common#acBytesToACMatrix(byte[])}.
+     * @return A new matrix (the caller might modify it):
+     * matrix[0][0-3] = C1 of group 0-3, matrix[1] = C2, matrix[2] = C3.
+     */
+    public byte[][] toACMatrix() {
+        byte[][] acMatrix = new byte[3][4];
+        for (int group = 0; group < 4; group++) {
+            int bits = getAccessBits(group);
+            acMatrix[0][group] = (byte) ((bits >>> 2) & 1);
+            acMatrix[1][group] = (byte) ((bits >>> 1) & 1);
+            acMatrix[2][group] = (byte) (bits & 1);
+        }
+        return acMatrix;
+    }
+
+    /**
+     * @return True if key B is readable (and therefore can not be used
+     * for authentication).
+     */
+    public boolean isKeyBReadable() {
+        return mKeyBReadable;
+    }
+
+    /**
+     * Get the keys that allow the operations on a group.
+     * @param group The group (0-3).
+     * @return A bit mask with 2 bits per operation (bit 0 for key A and
+     * bit 1 for key B, shifted by 2 * {@link Operation#ordinal()}).
+     */
+    public int getMask(int group) {
+        return mMasks[group];
+    }
+
+    /**
+     * Get the keys that allow an operation on a group.
+     * @param group The group (0-3).
+     * @param op The operation.
+     * @return 0 - Never, 1 - Key A, 2 - Key B, 3 - Key A or B.
+     * Operations that do not apply to the group (e.g. {@link Operation#Read}
+     * on the Sector Trailer) are never allowed.
+     */
+    public int getKeys(int group, Operation op) {
+        return (mMasks[group] >>> (2 * op.ordinal())) & 0x03;
+    }
+
+    /**
+     * Get the keys that allow an operation on a block.
+     * @param blockIndex The index of the block in the sector.
+     * @param blockCount The number of blocks of the sector (4 or 16).
+     * @param op The operation.
+     * @return See {@link #getKeys(int, Operation)}.
+     */
+    public int getBlockKeys(int blockIndex, int blockCount, Operation op) {
+        return getKeys(getGroup(blockIndex, blockCount), op);
+    }
+
+    /**
+     * Check if an operation on a group is allowed with a key.
+     * @param group The group (0-3).
+     * @param op The operation.
+     * @param keyB True for key B, false for key A.
+     * @return True if the operation is allowed.
+     */
+    public boolean isAllowed(int group, Operation op, boolean keyB) {
+        return (getKeys(group, op) & (keyB ? 2 : 1)) != 0;
+    }
+
+    /**
+     * Get the keys that allow an operation on a group the same way as
+     * {@link Common#getOperationRequirements(byte, byte, byte, Operation,
+     * boolean, boolean)} (including its error values).
+     * @param group The group (0-3).
+     * @param op The operation.
+     * @return See {@link Common#getOperationRequirements(byte, byte, byte,
+     * Operation, boolean, boolean)}.
+     */
+    public int getOperationRequirements(int group, Operation op) {
+        return Common.getOperationRequirements(getAccessBits(group), op,
+                group == TRAILER_GROUP, mKeyBReadable);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof SectorPermissions
+                && ((SectorPermissions) o).mAccessBits == mAccessBits;
+    }
+
+    @Override
+    public int hashCode() {
+        return mAccessBits;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import android.util.SparseArray;
+
+import java.util.List;
+
+/**
+ * Map the keys of one tag with several readers at the same time. Each
+ * reader needs a transport to the same tag, a clone or an emulator of it.
+ * The work can be split by keys (each reader tries every n-th key on all
+ * sectors, see {@link #SPLIT_KEYS}) or by sectors (each reader maps a
+ * range of sectors, see {@link #SPLIT_SECTORS}). The found keys are
+ * merged on a {@link KeyMapBoard} (first hit wins). If one reader fails
+ * or {@link #cancel()} is called, all readers stop.
+ * @author Gerhard Klostermeier
+ */
+public class ShardedKeyMapper {
+
+    /**
+     * Split the keys of the key files between the readers.
+     * Good for tags with many unknown keys.
+     */
+    public static final int SPLIT_KEYS = 0;
+    /**
+     * Split the sectors between the readers.
+     */
+    public static final int SPLIT_SECTORS = 1;
+
+    private final KeyDictionary mKeys;
+    private final ReaderConfig mConfig;
+    private KeyMapBoard mBoard;
+
+    /**
+     * Create a mapper.
+     * @param keys The keys for the key mapping.
+     * @param config The configuration of the readers.
+     */
+    public ShardedKeyMapper(KeyDictionary keys, ReaderConfig config) {
+        mKeys = keys;
+        mConfig = config;
+    }
+
+    /**
+     * Map the keys of a tag. This blocks until all readers are done.
+     * @param transports The transports to the tag (or its clones).
+     * They will be connected and closed by this method.
+     * @param mode {@link #SPLIT_KEYS} or {@link #SPLIT_SECTORS}.
+     * @param firstSector The first sector of the key map.
+     * @param lastSector The last sector of the key map.
+     * @return The key map (see {@link MCReader#getKeyMap()}) or null
+     * on error or if the mapping was canceled.
+     */
+    public SparseArray<byte[][]> map(List<MCTransport> transports, int mode,
+            int firstSector, int lastSector) {
+        if (transports == null || transports.isEmpty()
+                || firstSector > lastSector) {
+            return null;
+        }
+        final KeyMapBoard board = new KeyMapBoard();
+        synchronized (this) {
+            mBoard = board;
+        }
+        int shards = transports.size();
+        if (mode == SPLIT_SECTORS) {
+            shards = Math.min(shards, lastSector - firstSector + 1);
+        }
+        Thread[] threads = new Thread[shards];
+        for (int i = 0; i < shards; i++) {
+            final MCTransport transport = transports.get(i);
+            int first = firstSector;
+            int last = lastSector;
+            if (mode == SPLIT_SECTORS) {
+                int sectors = lastSector - firstSector + 1;
+                first = firstSector + sectors * i / shards;
+                last = firstSector + sectors * (i + 1) / shards - 1;
+            }
+            final int shard = i;
+            final int shardCount = (mode == SPLIT_KEYS) ? shards : 1;
+            final int from = first;
+            final int to = last;
+            threads[i] = new Thread(() -> {
+                if (!mapShard(transport, shard % shardCount, shardCount,
+                        from, to, board)) {
+                    // Stop the other readers. The key map is incomplete.
+                    board.cancel();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                board.cancel();
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (board.isCanceled()) {
+            return null;
+        }
+        return board.toKeyMap(firstSector, lastSector);
+    }
+
+    /**
+     * Cancel the current mapping. All readers will stop after
+     * the key they are trying.
+     */
+    public synchronized void cancel() {
+        if (mBoard != null) {
+            mBoard.cancel();
+        }
+    }
+
+    /**
+     * Map the keys of a range of sectors with a part of the keys.
+     * @param transport The transport to the tag.
+     * @param shard The part of the keys (see
+     * {@link MCReader#setKeyShard(int, int)}).
+     * @param shardCount Number of parts.
+     * @param firstSector The first sector.
+     * @param lastSector The last sector.
+     * @param board The board for the found keys.
+     * @return True if all sectors were mapped. False on error or
+     * if the board was canceled.
+     */
+    private boolean mapShard(MCTransport transport, int shard,
+            int shardCount, int firstSector, int lastSector,
+            KeyMapBoard board) {
+        MCReader reader = MCReader.get(transport);
+        if (reader == null) {
+            return false;
+        }
+        reader.setConfig(mConfig);
+        try {
+            reader.connect();
+        } catch (Exception e) {
+            return false;
+        }
+        boolean ok = reader.setKeyDictionary(mKeys) > 0
+                && reader.setKeyShard(shard, shardCount)
+                && reader.setMappingRange(firstSector, lastSector);
+        if (ok) {
+            reader.setKeyMapBoard(board);
+            // The triage keys are the same for all shards of the keys.
+            // One triage is enough.
+            reader.setUseTriage(shard == 0);
+            int sectorCount = lastSector - firstSector + 1;
+            int status;
+            do {
+                status = reader.buildNextKeyMapPart();
+            } while (status != -1 && reader.getKeyMapProgress() < sectorCount
+                    && !board.isCanceled());
+            ok = status != -1 && !board.isCanceled();
+        }
+        reader.close();
+        return ok;
+    }
+}
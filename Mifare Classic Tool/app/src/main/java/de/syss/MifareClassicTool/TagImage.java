@@ -0,0 +1,721 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import android.util.SparseArray;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The content of a MIFARE Classic tag (or a part of it) as bytes.
+ * All blocks are stored in a single byte array (max. 4096 bytes for a
+ * MIFARE Classic 4K) in the same order as on the tag. Which blocks
+ * are known is tracked per block. For sector trailers, key A, key B
+ * and the Access Conditions (incl. the general purpose byte) are tracked
+ * separately. Blocks can be accessed without copying them (see
+ * {@link #getData()}, {@link #getBlockView(int, int)}).<br />
+ * The old string based format (one hex string per block with
+ * {@link MCReader#NO_DATA} and {@link MCReader#NO_KEY} for unknown data)
+ * is still available via {@link #getBlockAsHex(int, int)},
+ * {@link #toSparseArray()}, {@link #toDump()} and {@link #fromDump(String[])}.
+ * @author Gerhard Klostermeier
+ */
+public class TagImage {
+
+    /**
+     * Maximum number of sectors (MIFARE Classic 4K).
+     */
+    public static final int MAX_SECTORS = 40;
+    /**
+     * Maximum number of blocks (MIFARE Classic 4K).
+     */
+    public static final int MAX_BLOCKS = 256;
+    /**
+     * Size of a block in bytes.
+     */
+    public static final int BLOCK_SIZE = 16;
+    /**
+     * Size of a key in bytes.
+     */
+    public static final int KEY_SIZE = 6;
+
+    private static final int AC_OFFSET = 6;
+    private static final int AC_SIZE = 4;
+    private static final int KEY_B_OFFSET = 10;
+
+    private final int mSectorCount;
+    private final int mBlockCount;
+    private final byte[] mData;
+    /**
+     * One bit per block. For sector trailers the bit indicates that
+     * the Access Conditions (and the general purpose byte) are known.
+     */
+    private final long[] mValidBlocks = new long[MAX_BLOCKS / 64];
+    /**
+     * One bit per sector.
+     */
+    private long mKeyAKnown;
+    /**
+     * One bit per sector.
+     */
+    private long mKeyBKnown;
+    /**
+     * One bit per sector. Set for every sector that had a sector header
+     * in the dump or of which something was set, even if all of its data
+     * is unknown.
+     */
+    private long mSectorPresent;
+
+    /**
+     * Create an empty image big enough for a MIFARE Classic 4K.
+     */
+    public TagImage() {
+        this(MAX_SECTORS);
+    }
+
+    /**
+     * Create an empty image for the given number of sectors.
+     * @param sectorCount Number of sectors (1-40).
+     * @throws IllegalArgumentException If the sector count is out of range.
+     */
+    public TagImage(int sectorCount) {
+        if (sectorCount < 1 || sectorCount > MAX_SECTORS) {
+            throw new IllegalArgumentException(
+                    "Invalid sector count: " + sectorCount);
+        }
+        mSectorCount = sectorCount;
+        mBlockCount = sectorToBlock(sectorCount);
+        mData = new byte[mBlockCount * BLOCK_SIZE];
+    }
+
+    /**
+     * Get the index of the first block of a sector.
+     * @param sectorIndex Index of the sector.
+     * @return Index of the first block of the sector (absolute).
+     */
+    public static int sectorToBlock(int sectorIndex) {
+        if (sectorIndex < 32) {
+            return sectorIndex * 4;
+        }
+        return 32 * 4 + (sectorIndex - 32) * 16;
+    }
+
+    /**
+     * Get the number of blocks of a sector.
+     * @param sectorIndex Index of the sector.
+     * @return 4 for sectors 0-31. 16 for sectors 32-39.
+     */
+    public static int blockCountInSector(int sectorIndex) {
+        return (sectorIndex < 32) ? 4 : 16;
+    }
+
+    /**
+     * Get the number of sectors this image can hold.
+     * @return Number of sectors.
+     */
+    public int getSectorCount() {
+        return mSectorCount;
+    }
+
+    /**
+     * Get the number of blocks this image can hold.
+     * @return Number of blocks.
+     */
+    public int getBlockCount() {
+        return mBlockCount;
+    }
+
+    /**
+     * Get the backing array of this image (no copy). Use
+     * {@link #getOffset(int, int)} to locate a block. The content of
+     * unknown blocks (or unknown parts of sector trailers) is undefined.
+     * @return The backing array.
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    /**
+     * Get the offset of a block in the backing array.
+     * @param sectorIndex Index of the sector.
+     * @param blockIndex Index of the block within the sector.
+     * @return Offset of the block in {@link #getData()}.
+     * @throws IndexOutOfBoundsException If the position is not part
+     * of this image.
+     */
+    public int getOffset(int sectorIndex, int blockIndex) {
+        return index(sectorIndex, blockIndex) * BLOCK_SIZE;
+    }
+
+    /**
+     * Get a read-only view of a block (no copy).
+     * @param sectorIndex Index of the sector.
+     * @param blockIndex Index of the block within the sector.
+     * @return A view of the 16 bytes of the block.
+     */
+    public ByteBuffer getBlockView(int sectorIndex, int blockIndex) {
+        return ByteBuffer.wrap(mData, getOffset(sectorIndex, blockIndex),
+                BLOCK_SIZE).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Get a read-only view of a sector (no copy).
+     * @param sectorIndex Index of the sector.
+     * @return A view of all blocks of the sector.
+     */
+    public ByteBuffer getSectorView(int sectorIndex) {
+        return ByteBuffer.wrap(mData, getOffset(sectorIndex, 0),
+                blockCountInSector(sectorIndex) * BLOCK_SIZE)
+                .slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Check if the data of a block is known. For sector trailers this
+     * means the Access Conditions are known. Use
+     * {@link #isKeyAKnown(int)} and {@link #isKeyBKnown(int)} for the keys.
+     * @param sectorIndex Index of the sector.
+     * @param blockIndex Index of the block within the sector.
+     * @return True if the block is known.
+     */
+    public boolean isBlockValid(int sectorIndex, int blockIndex) {
+        int index = index(sectorIndex, blockIndex);
+        return (mValidBlocks[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Check if all 16 bytes of a block are known (for sector trailers
+     * this includes both keys).
+     * @param sectorIndex Index of the sector.
+     * @param blockIndex Index of the block within the sector.
+     * @return True if the whole block is known.
+     */
+    public boolean isBlockComplete(int sectorIndex, int blockIndex) {
+        if (!isBlockValid(sectorIndex, blockIndex)) {
+            return false;
+        }
+        return !isSectorTrailer(sectorIndex, blockIndex)
+                || (isKeyAKnown(sectorIndex) && isKeyBKnown(sectorIndex));
+    }
+
+    /**
+     * Check if key A of a sector is known.
+     * @param sectorIndex Index of the sector.
+     * @return True if key A is known.
+     */
+    public boolean isKeyAKnown(int sectorIndex) {
+        checkSector(sectorIndex);
+        return (mKeyAKnown & (1L << sectorIndex)) != 0;
+    }
+
+    /**
+     * Check if key B of a sector is known.
+     * @param sectorIndex Index of the sector.
+     * @return True if key B is known.
+     */
+    public boolean isKeyBKnown(int sectorIndex) {
+        checkSector(sectorIndex);
+        return (mKeyBKnown & (1L << sectorIndex)) != 0;
+    }
+
+    /**
+     * Check if a sector is part of the image. This is the case if it had
+     * a sector header in the dump (even if all of its blocks are unknown
+     * or it was marked with "*") or if something of it was set.
+     * @param sectorIndex Index of the sector.
+     * @return True if the sector is part of the image. False otherwise.
+     */
+    public boolean hasSector(int sectorIndex) {
+        if (sectorIndex < 0 || sectorIndex >= mSectorCount) {
+            return false;
+        }
+        return (mSectorPresent & (1L << sectorIndex)) != 0;
+    }
+
+    /**
+     * Mark a sector as part of the image without setting any of its
+     * data (like a sector header without known blocks).
+     * @param sectorIndex Index of the sector.
+     * @see #hasSector(int)
+     */
+    public void addSector(int sectorIndex) {
+        checkSector(sectorIndex);
+        mSectorPresent |= 1L << sectorIndex;
+    }
+
+    /**
+     * Check if nothing at all is known.
+     * @return True if the image is empty.
+     */
+    public boolean isEmpty() {
+        if (mKeyAKnown != 0 || mKeyBKnown != 0) {
+            return false;
+        }
+        for (long valid : mValidBlocks) {
+            if (valid != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check if a block is the sector trailer of its sector.
+     * @param sectorIndex Index of the sector.
+     * @param blockIndex Index of the block within the sector.
+     * @return True if the block is the sector trailer.
+     */
+    public static boolean isSectorTrailer(int sectorIndex, int blockIndex) {
+        return blockIndex == blockCountInSector(sectorIndex) - 1;
+    }
+
+    /**
+     * Get a copy of a block.
+     * @param sectorIndex Index of the sector.
+     * @param blockIndex Index of the block within the sector.
+     * @return A copy of the 16 bytes of the block or null if the block is
+     * not known. Unknown keys of a sector trailer are set to 0x00.
+     */
+    public byte[] getBlock(int sectorIndex, int blockIndex) {
+        if (!isBlockValid(sectorIndex, blockIndex)) {
+            return null;
+        }
+        int offset = getOffset(sectorIndex, blockIndex);
+        byte[] ret = Arrays.copyOfRange(mData, offset, offset + BLOCK_SIZE);
+        if (isSectorTrailer(sectorIndex, blockIndex)) {
+            if (!isKeyAKnown(sectorIndex)) {
+                Arrays.fill(ret, 0, KEY_SIZE, (byte) 0);
+            }
+            if (!isKeyBKnown(sectorIndex)) {
+                Arrays.fill(ret, KEY_B_OFFSET, BLOCK_SIZE, (byte) 0);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Get a copy of key A of a sector.
+     * @param sectorIndex Index of the sector.
+     * @return Key A or null if it is not known.
+     */
+    public byte[] getKeyA(int sectorIndex) {
+        if (!isKeyAKnown(sectorIndex)) {
+            return null;
+        }
+        int offset = getOffset(sectorIndex,
+                blockCountInSector(sectorIndex) - 1);
+        return Arrays.copyOfRange(mData, offset, offset + KEY_SIZE);
+    }
+
+    /**
+     * Get a copy of key B of a sector.
+     * @param sectorIndex Index of the sector.
+     * @return Key B or null if it is not known.
+     */
+    public byte[] getKeyB(int sectorIndex) {
+        if (!isKeyBKnown(sectorIndex)) {
+            return null;
+        }
+        int offset = getOffset(sectorIndex,
+                blockCountInSector(sectorIndex) - 1) + KEY_B_OFFSET;
+        return Arrays.copyOfRange(mData, offset, offset + KEY_SIZE);
+    }
+
+    /**
+     * Set a block and mark it as known. If the block is a sector trailer,
+     * both keys will be marked as known too.
+     * @param sectorIndex Index of the sector.
+     * @param blockIndex Index of the block within the sector.
+     * @param src Array containing the 16 bytes of the block.
+     * @param srcOffset Offset of the block in {@code src}.
+     */
+    public void setBlock(int sectorIndex, int blockIndex, byte[] src,
+            int srcOffset) {
+        int index = index(sectorIndex, blockIndex);
+        System.arraycopy(src, srcOffset, mData, index * BLOCK_SIZE,
+                BLOCK_SIZE);
+        mValidBlocks[index >>> 6] |= 1L << index;
+        mSectorPresent |= 1L << sectorIndex;
+        if (isSectorTrailer(sectorIndex, blockIndex)) {
+            mKeyAKnown |= 1L << sectorIndex;
+            mKeyBKnown |= 1L << sectorIndex;
+        }
+    }
+
+    /**
+     * Set the Access Conditions (3 bytes) and the general purpose
+     * byte of a sector and mark the sector trailer as known. The keys
+     * will not be touched.
+     * @param sectorIndex Index of the sector.
+     * @param src Array containing the 4 bytes.
+     * @param srcOffset Offset of the Access Conditions in {@code src}.
+     */
+    public void setAccessConditions(int sectorIndex, byte[] src,
+            int srcOffset) {
+        int index = index(sectorIndex, blockCountInSector(sectorIndex) - 1);
+        System.arraycopy(src, srcOffset, mData,
+                index * BLOCK_SIZE + AC_OFFSET, AC_SIZE);
+        mValidBlocks[index >>> 6] |= 1L << index;
+        mSectorPresent |= 1L << sectorIndex;
+    }
+
+    /**
+     * Set key A of a sector and mark it as known.
+     * @param sectorIndex Index of the sector.
+     * @param src Array containing the 6 byte key.
+     * @param srcOffset Offset of the key in {@code src}.
+     */
+    public void setKeyA(int sectorIndex, byte[] src, int srcOffset) {
+        System.arraycopy(src, srcOffset, mData, getOffset(sectorIndex,
+                blockCountInSector(sectorIndex) - 1), KEY_SIZE);
+        mKeyAKnown |= 1L << sectorIndex;
+        mSectorPresent |= 1L << sectorIndex;
+    }
+
+    /**
+     * Set key B of a sector and mark it as known.
+     * @param sectorIndex Index of the sector.
+     * @param src Array containing the 6 byte key.
+     * @param srcOffset Offset of the key in {@code src}.
+     */
+    public void setKeyB(int sectorIndex, byte[] src, int srcOffset) {
+        System.arraycopy(src, srcOffset, mData, getOffset(sectorIndex,
+                blockCountInSector(sectorIndex) - 1) + KEY_B_OFFSET,
+                KEY_SIZE);
+        mKeyBKnown |= 1L << sectorIndex;
+        mSectorPresent |= 1L << sectorIndex;
+    }
+
+    /**
+     * Mark a block as unknown. If the block is a sector trailer, the keys
+     * will be marked as unknown too. The sector stays part of the image
+     * (see {@link #hasSector(int)}).
+     * @param sectorIndex Index of the sector.
+     * @param blockIndex Index of the block within the sector.
+     */
+    public void clearBlock(int sectorIndex, int blockIndex) {
+        int index = index(sectorIndex, blockIndex);
+        Arrays.fill(mData, index * BLOCK_SIZE, (index + 1) * BLOCK_SIZE,
+                (byte) 0);
+        mValidBlocks[index >>> 6] &= ~(1L << index);
+        if (isSectorTrailer(sectorIndex, blockIndex)) {
+            mKeyAKnown &= ~(1L << sectorIndex);
+            mKeyBKnown &= ~(1L << sectorIndex);
+        }
+    }
+
+    /**
+     * Check if a block has the same known content in this and in another
+     * image (unknown parts are compared as unknown).
+     * @param sectorIndex Index of the sector.
+     * @param blockIndex Index of the block within the sector.
+     * @param other The other image.
+     * @return True if the block is equal in both images.
+     */
+    public boolean blockEquals(int sectorIndex, int blockIndex,
+            TagImage other) {
+        boolean valid = isBlockValid(sectorIndex, blockIndex);
+        if (valid != other.isBlockValid(sectorIndex, blockIndex)) {
+            return false;
+        }
+        int offset = getOffset(sectorIndex, blockIndex);
+        int otherOffset = other.getOffset(sectorIndex, blockIndex);
+        if (!isSectorTrailer(sectorIndex, blockIndex)) {
+            return !valid || rangeEquals(mData, offset, other.mData,
+                    otherOffset, BLOCK_SIZE);
+        }
+        boolean keyA = isKeyAKnown(sectorIndex);
+        boolean keyB = isKeyBKnown(sectorIndex);
+        if (keyA != other.isKeyAKnown(sectorIndex)
+                || keyB != other.isKeyBKnown(sectorIndex)) {
+            return false;
+        }
+        return (!keyA || rangeEquals(mData, offset, other.mData,
+                        otherOffset, KEY_SIZE))
+                && (!valid || rangeEquals(mData, offset + AC_OFFSET,
+                        other.mData, otherOffset + AC_OFFSET, AC_SIZE))
+                && (!keyB || rangeEquals(mData, offset + KEY_B_OFFSET,
+                        other.mData, otherOffset + KEY_B_OFFSET, KEY_SIZE));
+    }
+
+    /**
+     * Get a block as hex string (like the blocks of a dump file).
+     * @param sectorIndex Index of the sector.
+     * @param blockIndex Index of the block within the sector.
+     * @return The block as 32 hex chars. Unknown data is marked with
+     * {@link MCReader#NO_DATA}, unknown keys with {@link MCReader#NO_KEY}.
+     */
+    public String getBlockAsHex(int sectorIndex, int blockIndex) {
+        int index = index(sectorIndex, blockIndex);
+        boolean valid = (mValidBlocks[index >>> 6] & (1L << index)) != 0;
+        boolean isTrailer = isSectorTrailer(sectorIndex, blockIndex);
+        if (!valid && (!isTrailer || !hasKey(sectorIndex))) {
+            return MCReader.NO_DATA;
+        }
+        char[] hex = new char[BLOCK_SIZE * 2];
+        int offset = index * BLOCK_SIZE;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            hex[i * 2] = Common.HEX_DIGITS[(mData[offset + i] >>> 4) & 0x0F];
+            hex[i * 2 + 1] = Common.HEX_DIGITS[mData[offset + i] & 0x0F];
+        }
+        if (isTrailer) {
+            if (!isKeyAKnown(sectorIndex)) {
+                Arrays.fill(hex, 0, KEY_SIZE * 2, '-');
+            }
+            if (!valid) {
+                Arrays.fill(hex, AC_OFFSET * 2, KEY_B_OFFSET * 2, '-');
+            }
+            if (!isKeyBKnown(sectorIndex)) {
+                Arrays.fill(hex, KEY_B_OFFSET * 2, BLOCK_SIZE * 2, '-');
+            }
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Get all blocks of a sector as hex strings.
+     * @param sectorIndex Index of the sector.
+     * @return The blocks of the sector (see
+     * {@link #getBlockAsHex(int, int)}) or null if the sector is not
+     * part of the image (see {@link #hasSector(int)}).
+     */
+    public String[] getSectorAsHex(int sectorIndex) {
+        if (!hasSector(sectorIndex)) {
+            return null;
+        }
+        String[] ret = new String[blockCountInSector(sectorIndex)];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = getBlockAsHex(sectorIndex, i);
+        }
+        return ret;
+    }
+
+    /**
+     * Set a block from a hex string (like the blocks of a dump file).
+     * Blocks and parts of sector trailers (key A, Access Conditions,
+     * key B) that contain unknown data ("-") are marked as unknown.
+     * @param sectorIndex Index of the sector.
+     * @param blockIndex Index of the block within the sector.
+     * @param hex The block as 32 hex chars.
+     * @return True if the block was parsed. False if the string
+     * is not 32 chars long or contains chars other than hex and "-".
+     */
+    public boolean setBlockFromHex(int sectorIndex, int blockIndex,
+            String hex) {
+        if (hex == null || hex.length() != BLOCK_SIZE * 2) {
+            return false;
+        }
+        for (int i = 0; i < hex.length(); i++) {
+            char c = hex.charAt(i);
+            if (c != '-' && Common.hexDigit(c) == -1) {
+                return false;
+            }
+        }
+        int index = index(sectorIndex, blockIndex);
+        int offset = index * BLOCK_SIZE;
+        clearBlock(sectorIndex, blockIndex);
+        mSectorPresent |= 1L << sectorIndex;
+        if (!isSectorTrailer(sectorIndex, blockIndex)) {
+            if (decodeHex(hex, 0, BLOCK_SIZE, offset)) {
+                mValidBlocks[index >>> 6] |= 1L << index;
+            }
+            return true;
+        }
+        if (decodeHex(hex, 0, KEY_SIZE, offset)) {
+            mKeyAKnown |= 1L << sectorIndex;
+        }
+        if (decodeHex(hex, AC_OFFSET, AC_SIZE, offset + AC_OFFSET)) {
+            mValidBlocks[index >>> 6] |= 1L << index;
+        }
+        if (decodeHex(hex, KEY_B_OFFSET, KEY_SIZE, offset + KEY_B_OFFSET)) {
+            mKeyBKnown |= 1L << sectorIndex;
+        }
+        return true;
+    }
+
+    /**
+     * Convert the image into the format of
+     * {@link MCReader#readAsMuchAsPossible(SparseArray)}.
+     * @return Sector numbers mapped to their blocks as hex strings. All
+     * sectors of the image are included, even if nothing of them is
+     * known (see {@link #hasSector(int)}).
+     * @see #getSectorAsHex(int)
+     */
+    public SparseArray<String[]> toSparseArray() {
+        SparseArray<String[]> ret = new SparseArray<>();
+        for (int i = 0; i < mSectorCount; i++) {
+            String[] sector = getSectorAsHex(i);
+            if (sector != null) {
+                ret.put(i, sector);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Convert the image into the format of a dump file (sector headers
+     * marked with "+"). All sectors of the image are included, even if
+     * nothing of them is known (see {@link #hasSector(int)}).
+     * @return The dump.
+     */
+    public String[] toDump() {
+        int lines = 0;
+        for (int i = 0; i < mSectorCount; i++) {
+            if (hasSector(i)) {
+                lines += 1 + blockCountInSector(i);
+            }
+        }
+        String[] ret = new String[lines];
+        int line = 0;
+        for (int i = 0; i < mSectorCount; i++) {
+            if (!hasSector(i)) {
+                continue;
+            }
+            ret[line++] = Common.SECTOR_HEADER + i;
+            for (int j = 0; j < blockCountInSector(i); j++) {
+                ret[line++] = getBlockAsHex(i, j);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Create an image from a dump in the format of a dump file.
+     * The dump must be valid (see
+     * {@link Common#isValidDump(String[], boolean)}). Sectors marked
+     * with "*" (no keys found or dead sector) will be left empty.
+     * Every sector with a header is part of the image, even if all of
+     * its data is unknown (see {@link #hasSector(int)}).
+     * The image will have as many sectors as needed for the highest
+     * sector of the dump.
+     * @param dump The dump.
+     * @return The image or null if the dump has no sectors.
+     */
+    public static TagImage fromDump(String[] dump) {
+        if (dump == null) {
+            return null;
+        }
+        int lastSector = -1;
+        for (String line : dump) {
+            if (line.startsWith("+")) {
+                lastSector = Math.max(lastSector,
+                        Common.parseSectorHeader(line));
+            }
+        }
+        if (lastSector == -1 || lastSector >= MAX_SECTORS) {
+            return null;
+        }
+        TagImage image = new TagImage(lastSector + 1);
+        int sector = -1;
+        int block = 0;
+        for (String line : dump) {
+            if (line.startsWith("+")) {
+                sector = Common.parseSectorHeader(line);
+                image.addSector(sector);
+                block = 0;
+            } else if (line.startsWith("*")) {
+                // Dead sector. Nothing is known.
+                sector = -1;
+            } else if (sector != -1 && block < blockCountInSector(sector)) {
+                image.setBlockFromHex(sector, block++, line);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Check if any of the keys of a sector is known.
+     * @param sectorIndex Index of the sector.
+     * @return True if key A or key B is known.
+     */
+    private boolean hasKey(int sectorIndex) {
+        return ((mKeyAKnown | mKeyBKnown) & (1L << sectorIndex)) != 0;
+    }
+
+    /**
+     * Decode a part of a hex string into the backing array. Nothing
+     * will be written if the part contains unknown data ("-").
+     * @param hex The hex string (already checked for invalid chars).
+     * @param byteOffset Offset in bytes (not chars) within {@code hex}.
+     * @param length Number of bytes to decode.
+     * @param dataOffset Offset within the backing array.
+     * @return True if the part was decoded. False if it contains "-".
+     */
+    private boolean decodeHex(String hex, int byteOffset, int length,
+            int dataOffset) {
+        int from = byteOffset * 2;
+        int to = from + length * 2;
+        for (int i = from; i < to; i++) {
+            if (hex.charAt(i) == '-') {
+                return false;
+            }
+        }
+        for (int i = 0; i < length; i++) {
+            int c = from + i * 2;
+            mData[dataOffset + i] = (byte) (
+                    (Common.hexDigit(hex.charAt(c)) << 4)
+                    | Common.hexDigit(hex.charAt(c + 1)));
+        }
+        return true;
+    }
+
+    /**
+     * Get the absolute block index of a position and check its bounds.
+     * @param sectorIndex Index of the sector.
+     * @param blockIndex Index of the block within the sector.
+     * @return The absolute block index.
+     * @throws IndexOutOfBoundsException If the position is not part
+     * of this image.
+     */
+    private int index(int sectorIndex, int blockIndex) {
+        checkSector(sectorIndex);
+        if (blockIndex < 0 || blockIndex >= blockCountInSector(sectorIndex)) {
+            throw new IndexOutOfBoundsException(
+                    "Block out of bounds: " + blockIndex);
+        }
+        return sectorToBlock(sectorIndex) + blockIndex;
+    }
+
+    /**
+     * Check if a sector is part of this image.
+     * @param sectorIndex Index of the sector.
+     * @throws IndexOutOfBoundsException If the sector is not part of
+     * this image.
+     */
+    private void checkSector(int sectorIndex) {
+        if (sectorIndex < 0 || sectorIndex >= mSectorCount) {
+            throw new IndexOutOfBoundsException(
+                    "Sector out of bounds: " + sectorIndex);
+        }
+    }
+
+    /**
+     * Compare two ranges of byte arrays.
+     * @return True if both ranges are equal.
+     */
+    private static boolean rangeEquals(byte[] a, int aOffset, byte[] b,
+            int bOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[aOffset + i] != b[bOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import android.os.Build;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free counters and latency histograms of the tag operations
+ * (see {@link MCTimingTransport}). The histograms have a fixed size:
+ * values (in µs) are sorted into buckets with 8 sub-buckets per power
+ * of two, so the error of a percentile is at most 12.5%.
+ * The statistics can be exported as JSON or CSV
+ * (see {@link #toJson()} and {@link #toCsv()}) to compare readers
+ * and tune the retry settings.
+ * @author Gerhard Klostermeier
+ */
+public class TimingStats {
+
+    /**
+     * The measured operations.
+     */
+    public enum Op {
+        AUTH_A("auth_a"),
+        AUTH_A_FAILED("auth_a_failed"),
+        AUTH_B("auth_b"),
+        AUTH_B_FAILED("auth_b_failed"),
+        READ("read"),
+        WRITE("write"),
+        CONNECT("connect"),
+        RECONNECT_WAIT("reconnect_wait");
+
+        private final String text;
+
+        Op(final String text) {
+            this.text = text;
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /**
+     * Values above 2^36 µs (about 19 h) are counted in the last bucket.
+     */
+    private static final int MAX_EXPONENT = 35;
+    private static final int BUCKETS =
+            (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+    private static final int OPS = Op.values().length;
+    // Indices of the counters of an operation.
+    private static final int COUNT = 0;
+    private static final int ERRORS = 1;
+    private static final int TOTAL = 2;
+    private static final int MAX = 3;
+    private static final int COUNTERS = 4;
+
+    private static final TimingStats mInstance = new TimingStats();
+
+    private final AtomicLongArray mCounters =
+            new AtomicLongArray(OPS * COUNTERS);
+    private final AtomicLongArray mHistograms =
+            new AtomicLongArray(OPS * BUCKETS);
+    private volatile long mStartTime = System.currentTimeMillis();
+
+    /**
+     * Get the timing statistics of the app.
+     * @return The timing statistics.
+     */
+    public static TimingStats getInstance() {
+        return mInstance;
+    }
+
+    /**
+     * Record one operation.
+     * @param op The operation.
+     * @param nanos The duration in ns.
+     * @param error True if the operation failed with an error
+     * (e.g. an IOException).
+     */
+    public void record(Op op, long nanos, boolean error) {
+        int base = op.ordinal() * COUNTERS;
+        mCounters.incrementAndGet(base + COUNT);
+        if (error) {
+            mCounters.incrementAndGet(base + ERRORS);
+        }
+        mCounters.addAndGet(base + TOTAL, nanos);
+        long max;
+        do {
+            max = mCounters.get(base + MAX);
+        } while (nanos > max
+                && !mCounters.compareAndSet(base + MAX, max, nanos));
+        mHistograms.incrementAndGet(
+                op.ordinal() * BUCKETS + bucketIndex(nanos / 1000));
+    }
+
+    /**
+     * Reset all counters and histograms.
+     */
+    public void reset() {
+        for (int i = 0; i < mCounters.length(); i++) {
+            mCounters.set(i, 0);
+        }
+        for (int i = 0; i < mHistograms.length(); i++) {
+            mHistograms.set(i, 0);
+        }
+        mStartTime = System.currentTimeMillis();
+    }
+
+    /**
+     * @param op The operation.
+     * @return How often the operation was recorded.
+     */
+    public long getCount(Op op) {
+        return mCounters.get(op.ordinal() * COUNTERS + COUNT);
+    }
+
+    /**
+     * @param op The operation.
+     * @return How often the operation failed with an error.
+     */
+    public long getErrorCount(Op op) {
+        return mCounters.get(op.ordinal() * COUNTERS + ERRORS);
+    }
+
+    /**
+     * @param op The operation.
+     * @return The total duration of the operation in ns.
+     */
+    public long getTotalNanos(Op op) {
+        return mCounters.get(op.ordinal() * COUNTERS + TOTAL);
+    }
+
+    /**
+     * @param op The operation.
+     * @return The longest duration of the operation in ns.
+     */
+    public long getMaxNanos(Op op) {
+        return mCounters.get(op.ordinal() * COUNTERS + MAX);
+    }
+
+    /**
+     * @return True if no operation was recorded.
+     */
+    public boolean isEmpty() {
+        for (Op op : Op.values()) {
+            if (getCount(op) > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get a percentile of the duration of an operation.
+     * @param op The operation.
+     * @param percentile The percentile (0.0 - 100.0).
+     * @return The duration in µs (upper bound of the histogram bucket)
+     * or 0 if the operation was not recorded.
+     */
+    public long getPercentileMicros(Op op, double percentile) {
+        int base = op.ordinal() * BUCKETS;
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += mHistograms.get(base + i);
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mHistograms.get(base + i);
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), getMaxNanos(op) / 1000);
+            }
+        }
+        return getMaxNanos(op) / 1000;
+    }
+
+    /**
+     * Export the statistics as JSON.
+     * @return The statistics as JSON object.
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n  \"device\": \"").append(getDevice())
+                .append("\",\n  \"start_time\": ").append(mStartTime)
+                .append(",\n  \"end_time\": ")
+                .append(System.currentTimeMillis())
+                .append(",\n  \"operations\": {");
+        Op[] ops = Op.values();
+        for (int i = 0; i < ops.length; i++) {
+            Op op = ops[i];
+            sb.append((i == 0) ? "\n" : ",\n");
+            sb.append("    \"").append(op).append("\": {")
+                    .append("\"count\": ").append(getCount(op))
+                    .append(", \"errors\": ").append(getErrorCount(op))
+                    .append(", \"total_us\": ")
+                    .append(getTotalNanos(op) / 1000)
+                    .append(", \"mean_us\": ").append(getMeanMicros(op))
+                    .append(", \"p50_us\": ")
+                    .append(getPercentileMicros(op, 50))
+                    .append(", \"p90_us\": ")
+                    .append(getPercentileMicros(op, 90))
+                    .append(", \"p99_us\": ")
+                    .append(getPercentileMicros(op, 99))
+                    .append(", \"max_us\": ")
+                    .append(getMaxNanos(op) / 1000)
+                    .append(", \"histogram\": [");
+            // Only non-empty buckets: [upper bound in µs, count].
+            boolean first = true;
+            for (int j = 0; j < BUCKETS; j++) {
+                long n = mHistograms.get(op.ordinal() * BUCKETS + j);
+                if (n == 0) {
+                    continue;
+                }
+                sb.append(first ? "" : ", ").append("[")
+                        .append(bucketUpperBound(j)).append(", ")
+                        .append(n).append("]");
+                first = false;
+            }
+            sb.append("]}");
+        }
+        sb.append("\n  }\n}");
+        return sb.toString();
+    }
+
+    /**
+     * Export the statistics as CSV (one operation per line).
+     * @return The lines of the CSV file (including a header).
+     */
+    public String[] toCsv() {
+        Op[] ops = Op.values();
+        String[] lines = new String[ops.length + 1];
+        lines[0] = "operation,count,errors,total_us,mean_us,p50_us,p90_us,"
+                + "p99_us,max_us,device";
+        for (int i = 0; i < ops.length; i++) {
+            Op op = ops[i];
+            lines[i + 1] = String.format(Locale.US,
+                    "%s,%d,%d,%d,%d,%d,%d,%d,%d,\"%s\"", op, getCount(op),
+                    getErrorCount(op), getTotalNanos(op) / 1000,
+                    getMeanMicros(op), getPercentileMicros(op, 50),
+                    getPercentileMicros(op, 90),
+                    getPercentileMicros(op, 99), getMaxNanos(op) / 1000,
+                    getDevice());
+        }
+        return lines;
+    }
+
+    /**
+     * @param op The operation.
+     * @return The mean duration of the operation in µs.
+     */
+    private long getMeanMicros(Op op) {
+        long count = getCount(op);
+        return (count > 0) ? getTotalNanos(op) / count / 1000 : 0;
+    }
+
+    /**
+     * @return Manufacturer and model of this device (without quotes).
+     */
+    private static String getDevice() {
+        return (Build.MANUFACTURER + " " + Build.MODEL).replace("\"", "'");
+    }
+
+    /**
+     * Get the histogram bucket of a value.
+     * @param micros The value in µs.
+     * @return The index of the bucket.
+     */
+    private static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) Math.max(0, micros);
+        }
+        int exp = Math.min(63 - Long.numberOfLeadingZeros(micros),
+                MAX_EXPONENT);
+        if (exp == MAX_EXPONENT && micros >= (2L << MAX_EXPONENT)) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (micros >>> (exp - SUB_BUCKET_BITS))
+                & (SUB_BUCKETS - 1);
+        return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Get the largest value of a histogram bucket.
+     * @param index The index of the bucket.
+     * @return The largest value (in µs) of the bucket.
+     */
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exp = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = index % SUB_BUCKETS;
+        long width = 1L << (exp - SUB_BUCKET_BITS);
+        return (SUB_BUCKETS + sub) * width + width - 1;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A list of changes to Value Blocks that are applied to a tag with
+ * {@link MCReader#applyValuePlan(ValuePlan, SparseArray)}. For each
+ * change, the first method the Access Conditions permit is used:
+ * <ol>
+ * <li>{@link #METHOD_NATIVE} - Increment or decrement and transfer.</li>
+ * <li>{@link #METHOD_WRITE} - Write the new Value Block.</li>
+ * <li>{@link #METHOD_STAGED} - Write the new Value Block to a staging
+ * block, restore it and transfer it to the Value Block (only if a
+ * staging block was set, see {@link #setStagingBlock(int, int)}).</li>
+ * </ol>
+ * The changes are applied sector by sector. Changes of the same block
+ * are applied in the order they were added.
+ * @author Gerhard Klostermeier
+ */
+public class ValuePlan {
+
+    /**
+     * Method: Not applied (yet).
+     */
+    public static final int METHOD_NONE = 0;
+    /**
+     * Method: Increment or decrement and transfer.
+     */
+    public static final int METHOD_NATIVE = 1;
+    /**
+     * Method: The new Value Block was written.
+     */
+    public static final int METHOD_WRITE = 2;
+    /**
+     * Method: Write to the staging block, restore and transfer.
+     */
+    public static final int METHOD_STAGED = 3;
+
+    /**
+     * Result: The change was applied.
+     */
+    public static final int RESULT_OK = 0;
+    /**
+     * Result: The block is not a data block of the tag (or it is the
+     * manufacturer block).
+     */
+    public static final int RESULT_INVALID_BLOCK = 1;
+    /**
+     * Result: There is no key that permits the change (or the block is
+     * not a valid Value Block and the new value can not be computed).
+     */
+    public static final int RESULT_NOT_PERMITTED = 2;
+    /**
+     * Result: The new value does not fit in a Value Block (signed 32 bit).
+     */
+    public static final int RESULT_OUT_OF_RANGE = 3;
+    /**
+     * Result: Error while changing the block.
+     */
+    public static final int RESULT_ERROR = -1;
+    /**
+     * Result: The tag was lost before the change was applied.
+     */
+    public static final int RESULT_TAG_LOST = -2;
+
+    /**
+     * A change of a Value Block.
+     */
+    static final class Change {
+        final int mSector;
+        final int mBlock;
+        final boolean mAbsolute;
+        final int mValue;
+        int mMethod = METHOD_NONE;
+        int mResult = RESULT_TAG_LOST;
+
+        private Change(int sector, int block, boolean absolute, int value) {
+            mSector = sector;
+            mBlock = block;
+            mAbsolute = absolute;
+            mValue = value;
+        }
+    }
+
+    private final List<Change> mChanges = new ArrayList<>();
+    private final SparseArray<Integer> mStagingBlocks = new SparseArray<>();
+
+    // Statistics of the last run of MCReader.applyValuePlan().
+    private int mAuthCount;
+    private int mCommandCount;
+    private boolean mStagingRestoreFailed;
+
+    /**
+     * Add a change that increases or decreases a Value Block.
+     * If the block is incremented or decremented, the tag computes the new
+     * value (without a range check by the app). Otherwise the change
+     * fails with {@link #RESULT_OUT_OF_RANGE} if the new value does not
+     * fit in 32 bits.
+     * @param sector The sector.
+     * @param block The block (index in the sector).
+     * @param delta The value is changed by this (negative to decrease).
+     */
+    public void addDelta(int sector, int block, int delta) {
+        mChanges.add(new Change(sector, block, false, delta));
+    }
+
+    /**
+     * Add a change that sets a Value Block to a value. The address byte
+     * of the Value Block is kept (if it can be read).
+     * @param sector The sector.
+     * @param block The block (index in the sector).
+     * @param value The new value.
+     */
+    public void addSetValue(int sector, int block, int value) {
+        mChanges.add(new Change(sector, block, true, value));
+    }
+
+    /**
+     * Set a block that may be used as staging block for the changes of
+     * a sector that can not be applied otherwise (e.g. increasing a
+     * Value Block that can only be decremented). The staging block must be
+     * in the same sector as the Value Blocks, because the transfer buffer
+     * does not survive an authentication. Its content is restored after
+     * the changes of the sector.
+     * @param sector The sector.
+     * @param block The staging block (index in the sector).
+     */
+    public void setStagingBlock(int sector, int block) {
+        mStagingBlocks.put(sector, block);
+    }
+
+    /**
+     * @param sector The sector.
+     * @return The staging block of the sector or -1.
+     */
+    int getStagingBlock(int sector) {
+        Integer block = mStagingBlocks.get(sector);
+        return (block != null) ? block : -1;
+    }
+
+    /**
+     * @return The changes (in the order they were added).
+     */
+    List<Change> getChanges() {
+        return mChanges;
+    }
+
+    /**
+     * @return The number of changes.
+     */
+    public int getChangeCount() {
+        return mChanges.size();
+    }
+
+    /**
+     * Get the result of a change of the last run.
+     * @param index The index of the change (in the order they were added).
+     * @return One of the RESULT_* constants (e.g. {@link #RESULT_OK}).
+     */
+    public int getResult(int index) {
+        return mChanges.get(index).mResult;
+    }
+
+    /**
+     * Get the method that was used for a change in the last run.
+     * @param index The index of the change (in the order they were added).
+     * @return One of the METHOD_* constants (e.g. {@link #METHOD_NATIVE}).
+     */
+    public int getMethod(int index) {
+        return mChanges.get(index).mMethod;
+    }
+
+    /**
+     * Count the changes of the last run that were applied with a method.
+     * @param method One of the METHOD_* constants.
+     * @return The number of changes.
+     */
+    public int getMethodCount(int method) {
+        int count = 0;
+        for (Change change : mChanges) {
+            if (change.mResult == RESULT_OK && change.mMethod == method) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of changes of the last run that were not applied.
+     */
+    public int getFailedCount() {
+        int count = 0;
+        for (Change change : mChanges) {
+            if (change.mResult != RESULT_OK) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Reset the results and statistics before a run.
+     */
+    void resetStats() {
+        for (Change change : mChanges) {
+            change.mMethod = METHOD_NONE;
+            change.mResult = RESULT_TAG_LOST;
+        }
+        mAuthCount = 0;
+        mCommandCount = 0;
+        mStagingRestoreFailed = false;
+    }
+
+    void countAuth() {
+        mAuthCount++;
+    }
+
+    void countCommand() {
+        mCommandCount++;
+    }
+
+    void setStagingRestoreFailed() {
+        mStagingRestoreFailed = true;
+    }
+
+    /**
+     * @return The number of authentications of the last run.
+     */
+    public int getAuthCount() {
+        return mAuthCount;
+    }
+
+    /**
+     * @return The number of read, write and value commands of the
+     * last run.
+     */
+    public int getCommandCount() {
+        return mCommandCount;
+    }
+
+    /**
+     * @return True if the original content of a staging block could not
+     * be written back in the last run.
+     */
+    public boolean isStagingRestoreFailed() {
+        return mStagingRestoreFailed;
+    }
+}
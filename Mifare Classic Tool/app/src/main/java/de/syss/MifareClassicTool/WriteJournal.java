@@ -0,0 +1,469 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Append-only on-disk journal of a dump write. It is used by
+ * {@link MCReader#writeWithPlan(WritePlan, WriteJournal)} to make
+ * an interrupted write (tag removed) recoverable. When the journal is
+ * created, the data to write and the keys of the sectors are stored.
+ * Before the blocks of a step of the plan are written, their current
+ * content (pre-image) is appended and synced to disk. A journal that
+ * still exists when the tag is presented again belongs to an unfinished
+ * write. It can be resumed or rolled back
+ * (see {@link MCReader#planJournalReplay(WriteJournal, boolean)}).
+ * A journal is bound to the UID of the tag.
+ * @author Gerhard Klostermeier
+ */
+public class WriteJournal {
+
+    private static final String LOG_TAG = WriteJournal.class.getSimpleName();
+
+    /**
+     * Directory (relative to {@link Common#HOME_DIR}) of the journals.
+     * Not in the cache directory, because the system may clear it
+     * while a journal is still needed.
+     */
+    public static final String JOURNAL_DIR = "write-journal";
+    /**
+     * Journals older than this (in ms, 30 days) will be removed
+     * by {@link #open(byte[])}.
+     */
+    public static final long MAX_AGE = 30L * 24 * 60 * 60 * 1000;
+
+    private static final int MAGIC = 0x4D43574A;
+    private static final int VERSION = 1;
+    private static final int RECORD_KEYS = 'K';
+    private static final int RECORD_DATA = 'D';
+    private static final int RECORD_PRE_IMAGE = 'P';
+    private static final int FLAG_KEY_A = 1;
+    private static final int FLAG_KEY_B = 2;
+    private static final int FLAG_KNOWN = 1;
+    private static final int FLAG_COMPLETE = 2;
+
+    private final File mFile;
+    private final HashMap<Integer, byte[][]> mKeys = new HashMap<>();
+    private final HashMap<Integer, HashMap<Integer, byte[]>> mData =
+            new HashMap<>();
+    private final HashMap<Integer, HashMap<Integer, byte[]>> mPreImages =
+            new HashMap<>();
+    private final HashSet<Integer> mJournaled = new HashSet<>();
+    private int mUnrestorableCount = 0;
+    private FileOutputStream mFileOut;
+    private DataOutputStream mOut;
+
+    /**
+     * Create an empty journal.
+     * @param file The file of the journal.
+     */
+    private WriteJournal(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Create a new journal for a write (an old journal of the tag
+     * will be replaced). The data and the keys of the plan are
+     * stored and synced to disk.
+     * @param uid The UID of the tag.
+     * @param plan The write plan.
+     * @return The journal or null on error.
+     */
+    public static WriteJournal create(byte[] uid, WritePlan plan) {
+        if (uid == null || uid.length == 0) {
+            return null;
+        }
+        File dir = Common.getFile(JOURNAL_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            return null;
+        }
+        WriteJournal journal = new WriteJournal(getFile(uid));
+        if (journal.mFile.exists() && !journal.mFile.delete()) {
+            return null;
+        }
+        try {
+            journal.openForAppend();
+            for (WritePlan.Step step : plan.getSteps()) {
+                if (!journal.mKeys.containsKey(step.mSector)) {
+                    journal.writeKeys(step.mSector, step.mSectorKeys);
+                }
+                for (int i = 0; i < step.mBlocks.length; i++) {
+                    journal.writeData(step.mSector, step.mBlocks[i],
+                            step.mData[i]);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while creating write journal.", e);
+            journal.delete();
+            return null;
+        }
+        if (!journal.sync()) {
+            journal.delete();
+            return null;
+        }
+        return journal;
+    }
+
+    /**
+     * Open the journal of an unfinished write to a tag.
+     * @param uid The UID of the tag.
+     * @return The journal or null if there is no (valid) journal
+     * for the tag.
+     */
+    public static WriteJournal open(byte[] uid) {
+        if (uid == null || uid.length == 0) {
+            return null;
+        }
+        removeOldJournals(Common.getFile(JOURNAL_DIR));
+        WriteJournal journal = new WriteJournal(getFile(uid));
+        if (!journal.load()) {
+            return null;
+        }
+        return journal;
+    }
+
+    /**
+     * @param uid The UID of the tag.
+     * @return The file of the journal of the tag.
+     */
+    private static File getFile(byte[] uid) {
+        return new File(Common.getFile(JOURNAL_DIR),
+                Common.bytes2Hex(uid) + ".bin");
+    }
+
+    /**
+     * Check if the pre-image of a block was already stored (e.g. because
+     * an interrupted write is resumed).
+     * @param sector The sector.
+     * @param block The block (index in the sector).
+     * @return True if the pre-image is stored.
+     */
+    public boolean hasPreImage(int sector, int block) {
+        return mJournaled.contains((sector << 8) | block);
+    }
+
+    /**
+     * Append the pre-image of a block. The pre-image is not on disk
+     * until {@link #sync()} is called.
+     * @param sector The sector.
+     * @param block The block (index in the sector).
+     * @param data The current content of the block (16 bytes).
+     * Null if it could not be read.
+     * @param complete False if the pre-image is a Sector Trailer and one
+     * of its keys is unknown.
+     * @return True if the pre-image was appended. False on error.
+     */
+    public boolean addPreImage(int sector, int block, byte[] data,
+            boolean complete) {
+        int flags = (data != null ? FLAG_KNOWN : 0)
+                | (complete ? FLAG_COMPLETE : 0);
+        try {
+            openForAppend();
+            mOut.writeByte(RECORD_PRE_IMAGE);
+            mOut.writeByte(sector);
+            mOut.writeByte(block);
+            mOut.writeByte(flags);
+            mOut.write(data != null ? data : new byte[16]);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while writing write journal.", e);
+            return false;
+        }
+        putPreImage(sector, block, data, flags);
+        return true;
+    }
+
+    /**
+     * Write all appended records to disk. This is done once per step of
+     * a write plan (and not once per block) because syncing is slow.
+     * @return True if the records are on disk. False on error.
+     */
+    public boolean sync() {
+        if (mOut == null) {
+            return true;
+        }
+        try {
+            mOut.flush();
+            mFileOut.getFD().sync();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while syncing write journal.", e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Close the journal file. The journal can still be used
+     * (it will be reopened if needed).
+     */
+    public void close() {
+        if (mOut == null) {
+            return;
+        }
+        try {
+            mOut.close();
+        } catch (IOException e) {
+            Log.d(LOG_TAG, "Error while closing write journal.");
+        }
+        mOut = null;
+        mFileOut = null;
+    }
+
+    /**
+     * Remove the journal (e.g. because the write is complete or
+     * was rolled back).
+     */
+    public void delete() {
+        close();
+        if (mFile.exists() && !mFile.delete()) {
+            Log.d(LOG_TAG, "Could not delete write journal.");
+        }
+    }
+
+    /**
+     * @return The data of the write (key = sector, value = map of
+     * block and its 16 bytes).
+     */
+    public HashMap<Integer, HashMap<Integer, byte[]>> getData() {
+        return mData;
+    }
+
+    /**
+     * @return The pre-images of the blocks that can be restored
+     * (key = sector, value = map of block and its 16 bytes). Blocks
+     * that could not be read and Sector Trailers with an unknown key
+     * are not included (see {@link #getUnrestorableCount()}).
+     */
+    public HashMap<Integer, HashMap<Integer, byte[]>> getPreImages() {
+        return mPreImages;
+    }
+
+    /**
+     * @return The number of blocks that might have been written but
+     * can not be restored by a rollback.
+     */
+    public int getUnrestorableCount() {
+        return mUnrestorableCount;
+    }
+
+    /**
+     * Get the keys that might be valid for a sector: The keys used for
+     * the write and the keys of the Sector Trailer that was written.
+     * @param sector The sector.
+     * @param keyB True for key B candidates, false for key A candidates.
+     * @return The keys (might be empty).
+     */
+    public List<byte[]> getKeyCandidates(int sector, boolean keyB) {
+        List<byte[]> candidates = new ArrayList<>(2);
+        int index = keyB ? 1 : 0;
+        byte[][] keys = mKeys.get(sector);
+        if (keys != null && keys[index] != null) {
+            candidates.add(keys[index]);
+        }
+        HashMap<Integer, byte[]> blocks = mData.get(sector);
+        if (blocks != null) {
+            byte[] trailer = blocks.get((sector < 32) ? 3 : 15);
+            if (trailer != null) {
+                byte[] key = keyB ? Arrays.copyOfRange(trailer, 10, 16)
+                        : Arrays.copyOf(trailer, 6);
+                if (candidates.isEmpty()
+                        || !Arrays.equals(candidates.get(0), key)) {
+                    candidates.add(key);
+                }
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Open {@link #mFile} for appending (if not already open). If the
+     * file is new, the header is written.
+     * @throws IOException If the file could not be opened.
+     */
+    private void openForAppend() throws IOException {
+        if (mOut != null) {
+            return;
+        }
+        boolean isNew = !mFile.exists() || mFile.length() == 0;
+        mFileOut = new FileOutputStream(mFile, true);
+        mOut = new DataOutputStream(new BufferedOutputStream(mFileOut));
+        if (isNew) {
+            mOut.writeInt(MAGIC);
+            mOut.writeInt(VERSION);
+        }
+    }
+
+    /**
+     * Append the keys of a sector.
+     * @param sector The sector.
+     * @param keys Key A and key B (each might be null).
+     * @throws IOException If writing failed.
+     */
+    private void writeKeys(int sector, byte[][] keys) throws IOException {
+        byte[] keyA = (keys != null) ? keys[0] : null;
+        byte[] keyB = (keys != null) ? keys[1] : null;
+        mOut.writeByte(RECORD_KEYS);
+        mOut.writeByte(sector);
+        mOut.writeByte((keyA != null ? FLAG_KEY_A : 0)
+                | (keyB != null ? FLAG_KEY_B : 0));
+        mOut.write(keyA != null ? keyA : new byte[6]);
+        mOut.write(keyB != null ? keyB : new byte[6]);
+        mKeys.put(sector, new byte[][] {keyA, keyB});
+    }
+
+    /**
+     * Append the data to write to a block.
+     * @param sector The sector.
+     * @param block The block (index in the sector).
+     * @param data The data (16 bytes).
+     * @throws IOException If writing failed.
+     */
+    private void writeData(int sector, int block, byte[] data)
+            throws IOException {
+        mOut.writeByte(RECORD_DATA);
+        mOut.writeByte(sector);
+        mOut.writeByte(block);
+        mOut.write(data);
+        putBlock(mData, sector, block, data);
+    }
+
+    /**
+     * Store a pre-image in memory.
+     * @param sector The sector.
+     * @param block The block (index in the sector).
+     * @param data The pre-image or null if unknown.
+     * @param flags The flags of the record.
+     */
+    private void putPreImage(int sector, int block, byte[] data,
+            int flags) {
+        if (!mJournaled.add((sector << 8) | block)) {
+            // Only the first pre-image is the original content.
+            return;
+        }
+        if ((flags & FLAG_KNOWN) == 0 || (flags & FLAG_COMPLETE) == 0) {
+            mUnrestorableCount++;
+            return;
+        }
+        putBlock(mPreImages, sector, block, data);
+    }
+
+    /**
+     * Put a block into a map of sectors and blocks.
+     * @param map The map.
+     * @param sector The sector.
+     * @param block The block (index in the sector).
+     * @param data The data of the block.
+     */
+    private static void putBlock(HashMap<Integer, HashMap<Integer, byte[]>> map,
+            int sector, int block, byte[] data) {
+        HashMap<Integer, byte[]> blocks = map.get(sector);
+        if (blocks == null) {
+            blocks = new HashMap<>();
+            map.put(sector, blocks);
+        }
+        blocks.put(block, data);
+    }
+
+    /**
+     * Load the journal from {@link #mFile}. An incomplete last record
+     * (the app was killed while appending) is ignored.
+     * @return True if the journal contains data to write.
+     */
+    private boolean load() {
+        if (!mFile.isFile()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return false;
+            }
+            while (true) {
+                int type = in.read();
+                if (type == -1) {
+                    break;
+                }
+                int sector = in.readUnsignedByte();
+                if (type == RECORD_KEYS) {
+                    int flags = in.readUnsignedByte();
+                    byte[] keyA = new byte[6];
+                    byte[] keyB = new byte[6];
+                    in.readFully(keyA);
+                    in.readFully(keyB);
+                    mKeys.put(sector, new byte[][] {
+                            (flags & FLAG_KEY_A) != 0 ? keyA : null,
+                            (flags & FLAG_KEY_B) != 0 ? keyB : null});
+                } else if (type == RECORD_DATA) {
+                    int block = in.readUnsignedByte();
+                    byte[] data = new byte[16];
+                    in.readFully(data);
+                    putBlock(mData, sector, block, data);
+                } else if (type == RECORD_PRE_IMAGE) {
+                    int block = in.readUnsignedByte();
+                    int flags = in.readUnsignedByte();
+                    byte[] data = new byte[16];
+                    in.readFully(data);
+                    putPreImage(sector, block,
+                            (flags & FLAG_KNOWN) != 0 ? data : null, flags);
+                } else {
+                    Log.d(LOG_TAG, "Unknown record in write journal.");
+                    break;
+                }
+            }
+        } catch (EOFException e) {
+            Log.d(LOG_TAG, "Incomplete record at the end of write journal.");
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while loading write journal.", e);
+            return false;
+        }
+        return !mData.isEmpty();
+    }
+
+    /**
+     * Remove journals older than {@link #MAX_AGE}.
+     * @param dir The journal directory.
+     */
+    private static void removeOldJournals(File dir) {
+        File[] journals = dir.listFiles();
+        if (journals == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (File journal : journals) {
+            if (now - journal.lastModified() > MAX_AGE) {
+                journal.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The order in which the blocks of a dump are written to a tag
+ * (see {@link MCReader#writeWithPlan(WritePlan)}). The blocks are
+ * grouped by sector and by the key used for writing, so there is only
+ * one authentication per group. In each sector, the Sector Trailer is
+ * written last, because writing it might change the keys and the
+ * Access Conditions of the data blocks.
+ * In differential mode (see {@link #setDifferential(boolean)}), blocks
+ * that already contain the data are not written.
+ * @author Gerhard Klostermeier
+ */
+public class WritePlan {
+
+    /**
+     * The blocks of a sector that are written with the same key
+     * (one authentication).
+     */
+    static final class Step {
+        final int mSector;
+        final boolean mKeyB;
+        final byte[] mKey;
+        final int[] mBlocks;
+        final byte[][] mData;
+        final int[] mWriteInfo;
+        // Key A and key B of the sector from the key map
+        // (needed for the pre-image of the Sector Trailer).
+        final byte[][] mSectorKeys;
+
+        private Step(int sector, boolean keyB, byte[] key, int[] blocks,
+                byte[][] data, int[] writeInfo, byte[][] sectorKeys) {
+            mSector = sector;
+            mKeyB = keyB;
+            mKey = key;
+            mBlocks = blocks;
+            mData = data;
+            mWriteInfo = writeInfo;
+            mSectorKeys = sectorKeys;
+        }
+    }
+
+    private final List<Step> mSteps;
+    private final int mBlockCount;
+    private boolean mDifferential = false;
+
+    // Statistics of the last run of MCReader.writeWithPlan().
+    private int mAuthCount;
+    private int mWriteCount;
+    private int mWrittenBlockCount;
+    private int mSkippedBlockCount;
+    private int mRetryCount;
+    private int mUnverifiedCount;
+    private int mFailedSector = -1;
+    private int mFailedBlock = -1;
+
+    private WritePlan(List<Step> steps, int blockCount) {
+        mSteps = Collections.unmodifiableList(steps);
+        mBlockCount = blockCount;
+    }
+
+    /**
+     * Create a write plan.
+     * @param writeOnPos The blocks to write and the keys to use, like
+     * returned from {@link MCReader#isWritableOnPositions(HashMap,
+     * SparseArray)} (key = sector, value = map of block and write info).
+     * Blocks with write info 0 (never) or -1 (error) are skipped.
+     * Write info 3 (key A or B) uses the key that is used for the other
+     * blocks of the sector, if possible.
+     * @param keyMap A key map generated by
+     * {@link de.syss.MifareClassicTool.Activities.KeyMapCreator}.
+     * @param data The data of the blocks (key = sector, value = map of
+     * block and its 16 bytes).
+     * @return The write plan.
+     */
+    public static WritePlan compile(
+            HashMap<Integer, HashMap<Integer, Integer>> writeOnPos,
+            SparseArray<byte[][]> keyMap,
+            HashMap<Integer, HashMap<Integer, byte[]>> data) {
+        List<Step> steps = new ArrayList<>();
+        int blockCount = 0;
+        Integer[] sectors = writeOnPos.keySet().toArray(new Integer[0]);
+        Arrays.sort(sectors);
+        for (int sector : sectors) {
+            HashMap<Integer, Integer> blockInfo = writeOnPos.get(sector);
+            HashMap<Integer, byte[]> sectorData = data.get(sector);
+            byte[][] keys = keyMap.get(sector);
+            if (blockInfo == null || sectorData == null || keys == null) {
+                continue;
+            }
+            Integer[] blocks = blockInfo.keySet().toArray(new Integer[0]);
+            Arrays.sort(blocks);
+
+            // Which keys are needed anyway?
+            boolean needsKeyA = false;
+            boolean needsKeyB = false;
+            for (int block : blocks) {
+                int wi = blockInfo.get(block);
+                needsKeyA |= wi == 1 || wi == 4;
+                needsKeyB |= wi == 2 || wi == 5 || wi == 6;
+            }
+
+            // Group the blocks by key. The group with the
+            // Sector Trailer (the highest block) is written last.
+            List<Integer> groupA = new ArrayList<>();
+            List<Integer> groupB = new ArrayList<>();
+            boolean trailerInA = false;
+            int trailer = (sector < 32) ? 3 : 15;
+            for (int block : blocks) {
+                int wi = blockInfo.get(block);
+                boolean useKeyB;
+                if (wi == 1 || wi == 4) {
+                    useKeyB = false;
+                } else if (wi == 2 || wi == 5 || wi == 6) {
+                    useKeyB = true;
+                } else if (wi == 3) {
+                    // Key A or B. Avoid a second authentication.
+                    useKeyB = needsKeyB
+                            || (!needsKeyA && keys[0] == null);
+                } else {
+                    // Not writable.
+                    continue;
+                }
+                if (sectorData.get(block) == null) {
+                    continue;
+                }
+                if (useKeyB) {
+                    groupB.add(block);
+                } else {
+                    groupA.add(block);
+                    trailerInA |= block == trailer;
+                }
+            }
+            if (trailerInA) {
+                addStep(steps, sector, true, keys, groupB,
+                        sectorData, blockInfo);
+                addStep(steps, sector, false, keys, groupA,
+                        sectorData, blockInfo);
+            } else {
+                addStep(steps, sector, false, keys, groupA,
+                        sectorData, blockInfo);
+                addStep(steps, sector, true, keys, groupB,
+                        sectorData, blockInfo);
+            }
+            blockCount += groupA.size() + groupB.size();
+        }
+        return new WritePlan(steps, blockCount);
+    }
+
+    /**
+     * Add a step for a group of blocks (if the group is not empty).
+     * @param steps The steps of the plan.
+     * @param sector The sector.
+     * @param keyB True if the blocks are written with key B.
+     * @param keys Key A and key B of the sector.
+     * @param blocks The blocks (in write order).
+     * @param sectorData The data of the blocks of the sector.
+     * @param blockInfo The write info of the blocks of the sector.
+     */
+    private static void addStep(List<Step> steps, int sector, boolean keyB,
+            byte[][] keys, List<Integer> blocks,
+            HashMap<Integer, byte[]> sectorData,
+            HashMap<Integer, Integer> blockInfo) {
+        if (blocks.isEmpty()) {
+            return;
+        }
+        int[] blockArray = new int[blocks.size()];
+        byte[][] data = new byte[blocks.size()][];
+        int[] writeInfo = new int[blocks.size()];
+        for (int i = 0; i < blockArray.length; i++) {
+            blockArray[i] = blocks.get(i);
+            data[i] = sectorData.get(blockArray[i]);
+            writeInfo[i] = blockInfo.get(blockArray[i]);
+        }
+        steps.add(new Step(sector, keyB, keys[keyB ? 1 : 0], blockArray,
+                data, writeInfo, keys));
+    }
+
+    /**
+     * @return The steps of the plan (in write order).
+     */
+    List<Step> getSteps() {
+        return mSteps;
+    }
+
+    /**
+     * @return The number of blocks to write.
+     */
+    public int getBlockCount() {
+        return mBlockCount;
+    }
+
+    /**
+     * @return The number of authentications the plan needs
+     * (if nothing goes wrong).
+     */
+    public int getStepCount() {
+        return mSteps.size();
+    }
+
+    /**
+     * Only write blocks that differ from the data on the tag. Each block
+     * is read before it is written and skipped if it already contains the
+     * data. Sector Trailers are only skipped if all their parts are known
+     * to match: Key A (never readable) must be the key used for
+     * authentication and key B must be readable. Useful to update tags
+     * that already contain most of the data (e.g. only a Value Block
+     * changed).
+     * @param differential True to enable the differential mode.
+     * Default is false.
+     * @see #getSkippedBlockCount()
+     */
+    public void setDifferential(boolean differential) {
+        mDifferential = differential;
+    }
+
+    /**
+     * @return True if the differential mode is enabled.
+     * @see #setDifferential(boolean)
+     */
+    public boolean isDifferential() {
+        return mDifferential;
+    }
+
+    /**
+     * Reset the statistics before a run.
+     */
+    void resetStats() {
+        mAuthCount = 0;
+        mWriteCount = 0;
+        mWrittenBlockCount = 0;
+        mSkippedBlockCount = 0;
+        mRetryCount = 0;
+        mUnverifiedCount = 0;
+        mFailedSector = -1;
+        mFailedBlock = -1;
+    }
+
+    void countAuth() {
+        mAuthCount++;
+    }
+
+    void countWrite() {
+        mWriteCount++;
+    }
+
+    void countWrittenBlock() {
+        mWrittenBlockCount++;
+    }
+
+    void countSkippedBlock() {
+        mSkippedBlockCount++;
+    }
+
+    void countRetry() {
+        mRetryCount++;
+    }
+
+    void countUnverified() {
+        mUnverifiedCount++;
+    }
+
+    void setFailed(int sector, int block) {
+        mFailedSector = sector;
+        mFailedBlock = block;
+    }
+
+    /**
+     * @return The number of authentications of the last run.
+     */
+    public int getAuthCount() {
+        return mAuthCount;
+    }
+
+    /**
+     * @return The number of write commands of the last run
+     * (including retries).
+     */
+    public int getWriteCount() {
+        return mWriteCount;
+    }
+
+    /**
+     * @return The number of blocks written in the last run.
+     */
+    public int getWrittenBlockCount() {
+        return mWrittenBlockCount;
+    }
+
+    /**
+     * @return The number of blocks of the last run that were not written,
+     * because they already contained the data
+     * (see {@link #setDifferential(boolean)}).
+     */
+    public int getSkippedBlockCount() {
+        return mSkippedBlockCount;
+    }
+
+    /**
+     * @return How often a block was written again in the last run,
+     * because the write failed or the read back data did not match.
+     */
+    public int getRetryCount() {
+        return mRetryCount;
+    }
+
+    /**
+     * @return The number of blocks of the last run that were written,
+     * but could not be read back for verification.
+     */
+    public int getUnverifiedCount() {
+        return mUnverifiedCount;
+    }
+
+    /**
+     * @return The sector where the last run failed or -1.
+     */
+    public int getFailedSector() {
+        return mFailedSector;
+    }
+
+    /**
+     * @return The block (index in the sector) where the last run failed
+     * or -1 (also if the authentication failed).
+     */
+    public int getFailedBlock() {
+        return mFailedBlock;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import de.syss.MifareClassicTool.Common.Operation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of the table based Access Condition lookup. Each benchmark
+ * has a twin with the suffix "Legacy" that runs the old if/else
+ * implementation ({@link LegacyCommon}) on the same input. The results
+ * are compared by {@link AccessConditionsTest}.
+ * Run with <code>./gradlew jmh -Pjmh=AccessConditions</code>.
+ * @author Gerhard Klostermeier
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccessConditionsBenchmark {
+
+    private static final Operation[] OPERATIONS = Operation.values();
+    // Access Conditions found on real tags (transport configuration,
+    // key B secret, read only, value blocks) with the general purpose byte.
+    private static final String[] COMMON_ACS =
+            {"FF078069", "7F078800", "787788C1", "08778F00"};
+
+    private byte[][] mTrailers;
+
+    /**
+     * Create the Sector Trailers of a 4K tag with common and random
+     * (valid) Access Conditions.
+     */
+    @Setup
+    public void setUp() {
+        mTrailers = new byte[40][];
+        Random random = new Random(42);
+        for (int i = 0; i < mTrailers.length; i++) {
+            String ac;
+            if (i % 2 == 0) {
+                ac = COMMON_ACS[(i / 2) % COMMON_ACS.length];
+            } else {
+                byte[][] matrix = new byte[3][4];
+                for (int j = 0; j < 12; j++) {
+                    matrix[j / 4][j % 4] = (byte) (random.nextInt() & 1);
+                }
+                ac = Common.bytes2Hex(Common.acMatrixToACBytes(matrix)) + "00";
+            }
+            mTrailers[i] = Common.hex2Bytes(
+                    "FFFFFFFFFFFF" + ac + "FFFFFFFFFFFF");
+        }
+    }
+
+    /**
+     * All 160 combinations of access bits, operations and block types.
+     */
+    @Benchmark
+    public long getOperationRequirements() {
+        long sum = 0;
+        for (int bits = 0; bits < 8; bits++) {
+            byte c1 = (byte) (bits >>> 2);
+            byte c2 = (byte) ((bits >>> 1) & 1);
+            byte c3 = (byte) (bits & 1);
+            for (Operation op : OPERATIONS) {
+                sum += Common.getOperationRequirements(
+                        c1, c2, c3, op, false, false);
+                sum += Common.getOperationRequirements(
+                        c1, c2, c3, op, true, false);
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long getOperationRequirementsLegacy() {
+        long sum = 0;
+        for (int bits = 0; bits < 8; bits++) {
+            byte c1 = (byte) (bits >>> 2);
+            byte c2 = (byte) ((bits >>> 1) & 1);
+            byte c3 = (byte) (bits & 1);
+            for (Operation op : OPERATIONS) {
+                sum += LegacyCommon.getOperationRequirements(
+                        c1, c2, c3, op, false, false);
+                sum += LegacyCommon.getOperationRequirements(
+                        c1, c2, c3, op, true, false);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * The write permissions of all blocks of a 4K tag, decoded from
+     * the Sector Trailers.
+     */
+    @Benchmark
+    public long writePermissions() {
+        long sum = 0;
+        for (int sector = 0; sector < mTrailers.length; sector++) {
+            SectorPermissions permissions =
+                    SectorPermissions.decode(mTrailers[sector], 6);
+            int blockCount = (sector < 32) ? 4 : 16;
+            for (int block = 0; block < blockCount; block++) {
+                int group = SectorPermissions.getGroup(block, blockCount);
+                sum += permissions.getOperationRequirements(group,
+                        group == SectorPermissions.TRAILER_GROUP
+                                ? Operation.WriteAC
+                                : Operation.Write);
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long writePermissionsLegacy() {
+        long sum = 0;
+        for (int sector = 0; sector < mTrailers.length; sector++) {
+            byte[][] acMatrix = LegacyCommon.acBytesToACMatrix(
+                    Arrays.copyOfRange(mTrailers[sector], 6, 9));
+            boolean isKeyBReadable = LegacyCommon.isKeyBReadable(
+                    acMatrix[0][3], acMatrix[1][3], acMatrix[2][3]);
+            int blockCount = (sector < 32) ? 4 : 16;
+            for (int block = 0; block < blockCount; block++) {
+                int group = SectorPermissions.getGroup(block, blockCount);
+                boolean isTrailer = group == SectorPermissions.TRAILER_GROUP;
+                sum += LegacyCommon.getOperationRequirements(
+                        acMatrix[0][group], acMatrix[1][group],
+                        acMatrix[2][group], isTrailer
+                                ? Operation.WriteAC
+                                : Operation.Write,
+                        isTrailer, isKeyBReadable);
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import de.syss.MifareClassicTool.Common.Operation;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/**
+ * Check the table based Access Condition lookup
+ * ({@link Common#getOperationRequirements(byte, byte, byte, Operation,
+ * boolean, boolean)} and {@link SectorPermissions}) against the old
+ * if/else implementation ({@link LegacyCommon}) for all inputs.
+ * @author Gerhard Klostermeier
+ */
+@RunWith(RobolectricTestRunner.class)
+public class AccessConditionsTest {
+
+    @Test
+    public void operationRequirements() {
+        // Including invalid Access Condition bits.
+        for (byte c1 = -2; c1 <= 3; c1++) {
+            for (byte c2 = -2; c2 <= 3; c2++) {
+                for (byte c3 = -2; c3 <= 3; c3++) {
+                    for (Operation op : Operation.values()) {
+                        for (int flags = 0; flags < 4; flags++) {
+                            boolean isTrailer = (flags & 1) != 0;
+                            boolean isKeyBReadable = (flags & 2) != 0;
+                            assertEquals(c1 + " " + c2 + " " + c3 + " " + op
+                                    + " " + isTrailer + " " + isKeyBReadable,
+                                    LegacyCommon.getOperationRequirements(
+                                            c1, c2, c3, op, isTrailer,
+                                            isKeyBReadable),
+                                    Common.getOperationRequirements(
+                                            c1, c2, c3, op, isTrailer,
+                                            isKeyBReadable));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void isKeyBReadable() {
+        for (byte c1 = -1; c1 <= 2; c1++) {
+            for (byte c2 = -1; c2 <= 2; c2++) {
+                for (byte c3 = -1; c3 <= 2; c3++) {
+                    assertEquals(LegacyCommon.isKeyBReadable(c1, c2, c3),
+                            Common.isKeyBReadable(c1, c2, c3));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void allAccessConditionBytes() {
+        byte[] acBytes = new byte[3];
+        int valid = 0;
+        for (int i = 0; i < (1 << 24); i++) {
+            acBytes[0] = (byte) (i >>> 16);
+            acBytes[1] = (byte) (i >>> 8);
+            acBytes[2] = (byte) i;
+            byte[][] legacy = LegacyCommon.acBytesToACMatrix(acBytes);
+            SectorPermissions permissions = SectorPermissions.decode(acBytes);
+            if (legacy == null) {
+                assertNull(Common.bytes2Hex(acBytes), permissions);
+                continue;
+            }
+            assertNotNull(Common.bytes2Hex(acBytes), permissions);
+            assertPermissionsEqual(legacy, permissions);
+            valid++;
+        }
+        // Each of the 12 bits has its own inverted copy.
+        assertEquals(1 << 12, valid);
+    }
+
+    @Test
+    public void benchmarkInput() {
+        // The trailers of AccessConditionsBenchmark (decoded with an
+        // offset).
+        AccessConditionsBenchmark benchmark = new AccessConditionsBenchmark();
+        benchmark.setUp();
+        assertEquals(benchmark.getOperationRequirementsLegacy(),
+                benchmark.getOperationRequirements());
+        assertEquals(benchmark.writePermissionsLegacy(),
+                benchmark.writePermissions());
+    }
+
+    private static void assertPermissionsEqual(byte[][] legacy,
+            SectorPermissions permissions) {
+        byte[][] matrix = permissions.toACMatrix();
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(legacy[i], matrix[i]);
+        }
+        boolean isKeyBReadable = LegacyCommon.isKeyBReadable(
+                legacy[0][3], legacy[1][3], legacy[2][3]);
+        assertEquals(isKeyBReadable, permissions.isKeyBReadable());
+        for (int group = 0; group < 4; group++) {
+            boolean isTrailer = group == SectorPermissions.TRAILER_GROUP;
+            for (Operation op : Operation.values()) {
+                int expected = LegacyCommon.getOperationRequirements(
+                        legacy[0][group], legacy[1][group], legacy[2][group],
+                        op, isTrailer, isKeyBReadable);
+                assertEquals(expected,
+                        permissions.getOperationRequirements(group, op));
+                // The key mask has no error values.
+                int keys = (expected >= 1 && expected <= 3) ? expected : 0;
+                assertEquals(keys, permissions.getKeys(group, op));
+                assertEquals((keys & 1) != 0,
+                        permissions.isAllowed(group, op, false));
+                assertEquals((keys & 2) != 0,
+                        permissions.isAllowed(group, op, true));
+            }
+        }
+    }
+}
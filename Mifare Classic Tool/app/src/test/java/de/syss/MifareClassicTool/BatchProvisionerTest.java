@@ -0,0 +1,259 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Provision simulated tags ({@link MCSimulatedTag}) with a
+ * {@link BatchProvisioner} and check the per-tag fields, the card index
+ * and the audit log.
+ * @author Gerhard Klostermeier
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BatchProvisionerTest {
+
+    private static final byte[] TRAILER =
+            Common.hex2Bytes("A0A1A2A3A4A57F0788FFB0B1B2B3B4B5");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private HashMap<Integer, HashMap<Integer, byte[]>> mTemplate;
+    private KeyDictionary mKeys;
+    private File mAuditLog;
+
+    @Before
+    public void setUp() throws IOException {
+        File keyFile = mFolder.newFile("batch.keys");
+        try (FileOutputStream out = new FileOutputStream(keyFile)) {
+            out.write(("FFFFFFFFFFFF\nA0A1A2A3A4A5\nB0B1B2B3B4B5\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+        }
+        mKeys = KeyDictionary.load(new File[] {keyFile});
+        Random random = new Random(1);
+        mTemplate = new HashMap<>();
+        for (int sector = 0; sector < 16; sector++) {
+            HashMap<Integer, byte[]> blocks = new HashMap<>();
+            for (int block = 0; block < 3; block++) {
+                byte[] data = new byte[16];
+                random.nextBytes(data);
+                blocks.put(block, data);
+            }
+            blocks.put(3, TRAILER.clone());
+            mTemplate.put(sector, blocks);
+        }
+        mAuditLog = new File(mFolder.getRoot(), "audit.jsonl");
+    }
+
+    @Test
+    public void invalidFields() {
+        BatchProvisioner batch = newBatch();
+        // Sector Trailer.
+        assertFalse(batch.addFields("counter:1:3:0:4:1"));
+        // Not in the template.
+        assertFalse(batch.addCounterField(16, 0, 0, 4, 1));
+        assertFalse(batch.addValueBlockField(1, 3, 1, 1));
+        // Not in the block.
+        assertFalse(batch.addCounterField(1, 0, 14, 4, 1));
+        // Negative or too big start.
+        assertFalse(batch.addCounterField(1, 0, 0, 1, -1));
+        assertFalse(batch.addCounterField(1, 0, 0, 1, 256));
+        assertFalse(batch.addFields("counter:1:0"));
+        assertFalse(batch.addFields("value:2:1:x:1"));
+        assertTrue(batch.addFields(
+                " counter:1:0:12:4:1000 ; value:2:1:5:0;"));
+    }
+
+    @Test
+    public void provisionTags() throws Exception {
+        BatchProvisioner batch = newBatch();
+        assertTrue(batch.addFields("counter:1:0:12:4:1000;value:2:1:500:-5"));
+        for (int i = 0; i < 4; i++) {
+            byte[] uid = {0x10, 0x20, 0x30, (byte) i};
+            MCSimulatedTag tag = new MCSimulatedTag((i % 2 == 0)
+                    ? MCSimulatedTag.SIZE_1K : MCSimulatedTag.SIZE_4K, uid);
+            MCReader reader = connect(tag);
+            BatchProvisioner.Result result = batch.provision(reader, uid);
+            assertEquals(BatchProvisioner.RESULT_OK, result.getCode());
+            assertEquals(i, result.getCardIndex());
+            assertTrue(result.isCardIndexUsed());
+            assertEquals(63, result.getBlockCount());
+            // The same tag again.
+            assertEquals(BatchProvisioner.RESULT_DUPLICATE,
+                    batch.provision(reader, uid).getCode());
+
+            assertEquals(1000 + i, getCounter(tag.getBlock(4)));
+            assertEquals(500 - 5 * i, getValue(tag.getBlock(9)));
+            // The address byte of the Value Block.
+            assertEquals(9, tag.getBlock(9)[12]);
+            assertArrayEquals(mTemplate.get(1).get(1), tag.getBlock(5));
+            assertArrayEquals(TRAILER, tag.getBlock(63));
+        }
+        assertEquals(4, batch.getCardIndex());
+
+        List<String> log = Files.readAllLines(mAuditLog.toPath(),
+                StandardCharsets.UTF_8);
+        assertEquals(8, log.size());
+        assertTrue(log.get(0).contains("\"uid\": \"10203000\""));
+        assertTrue(log.get(0).contains("\"result\": \"ok\""));
+        assertTrue(log.get(0).contains("\"fields\": [1000, 500]"));
+        assertTrue(log.get(1).contains("\"result\": \"duplicate\""));
+        assertTrue(log.get(1).contains("\"card_used\": false"));
+    }
+
+    @Test
+    public void provisionAlreadyProvisionedTag() throws Exception {
+        // The keys of the template are needed.
+        BatchProvisioner batch = newBatch();
+        byte[] uid = Common.hex2Bytes("AABBCCDD");
+        MCSimulatedTag tag = new MCSimulatedTag(MCSimulatedTag.SIZE_1K, uid);
+        MCReader reader = connect(tag);
+        assertEquals(BatchProvisioner.RESULT_OK,
+                batch.provision(reader, uid).getCode());
+        assertEquals(BatchProvisioner.RESULT_OK, batch.provision(reader,
+                Common.hex2Bytes("AABBCCDE")).getCode());
+    }
+
+    @Test
+    public void tagTooSmall() throws Exception {
+        HashMap<Integer, byte[]> sector = new HashMap<>();
+        sector.put(0, new byte[16]);
+        mTemplate.put(20, sector);
+        BatchProvisioner batch = newBatch();
+        byte[] uid = Common.hex2Bytes("01020304");
+        MCSimulatedTag tag = new MCSimulatedTag(MCSimulatedTag.SIZE_1K, uid);
+        BatchProvisioner.Result result = batch.provision(connect(tag), uid);
+        assertEquals(BatchProvisioner.RESULT_TAG_TOO_SMALL, result.getCode());
+        assertFalse(result.isCardIndexUsed());
+        assertEquals(0, batch.getCardIndex());
+    }
+
+    @Test
+    public void notWritable() throws Exception {
+        BatchProvisioner batch = newBatch();
+        byte[] uid = Common.hex2Bytes("01020304");
+        MCSimulatedTag tag = new MCSimulatedTag(MCSimulatedTag.SIZE_1K, uid);
+        // Unknown keys.
+        tag.setSectorTrailer(5, Common.hex2Bytes("010203040506"),
+                Common.hex2Bytes("FF078069"),
+                Common.hex2Bytes("010203040506"));
+        BatchProvisioner.Result result = batch.provision(connect(tag), uid);
+        assertEquals(BatchProvisioner.RESULT_NOT_WRITABLE, result.getCode());
+        assertEquals(0, result.getBlockCount());
+        assertFalse(result.isCardIndexUsed());
+        assertArrayEquals(new byte[16], tag.getBlock(4));
+    }
+
+    @Test
+    public void outOfRange() throws Exception {
+        BatchProvisioner batch = newBatch();
+        assertTrue(batch.addFields(
+                "counter:1:0:12:1:254;value:2:1:2147483646:1"));
+        assertTrue(batch.isInRange(1));
+        assertFalse(batch.isInRange(2));
+        for (int i = 0; i < 3; i++) {
+            byte[] uid = {1, 2, 3, (byte) i};
+            MCSimulatedTag tag = new MCSimulatedTag(
+                    MCSimulatedTag.SIZE_1K, uid);
+            BatchProvisioner.Result result = batch.provision(
+                    connect(tag), uid);
+            if (i < 2) {
+                assertEquals(BatchProvisioner.RESULT_OK, result.getCode());
+                continue;
+            }
+            assertEquals(BatchProvisioner.RESULT_OUT_OF_RANGE,
+                    result.getCode());
+            assertFalse(result.isCardIndexUsed());
+            assertEquals(0, tag.getCommandCount());
+        }
+        assertEquals(2, batch.getCardIndex());
+    }
+
+    @Test
+    public void partiallyWrittenTagUsesCardIndex() throws Exception {
+        BatchProvisioner batch = newBatch();
+        assertTrue(batch.addFields("counter:1:0:12:4:1000"));
+        byte[] uid = {1, 2, 3, 4};
+        MCSimulatedTag tag = new MCSimulatedTag(MCSimulatedTag.SIZE_1K, uid);
+        MCReader reader = connect(tag);
+        tag.setRemoveAfter(200);
+        BatchProvisioner.Result result = batch.provision(reader, uid);
+        assertEquals(BatchProvisioner.RESULT_TAG_LOST, result.getCode());
+        assertTrue(result.isCardIndexUsed());
+        assertEquals(1, batch.getCardIndex());
+
+        // The next tag gets the next card index.
+        tag.setPresent(true);
+        reader.connect();
+        result = batch.provision(reader, uid);
+        assertEquals(BatchProvisioner.RESULT_OK, result.getCode());
+        assertEquals(1, result.getCardIndex());
+        assertEquals(1001, getCounter(tag.getBlock(4)));
+    }
+
+    private BatchProvisioner newBatch() {
+        return new BatchProvisioner(mTemplate, mKeys,
+                new ReaderConfig(false, false, 0, false, 0), mAuditLog);
+    }
+
+    private static MCReader connect(MCSimulatedTag tag) throws Exception {
+        MCReader reader = MCReader.get(tag);
+        reader.connect();
+        tag.resetCounters();
+        return reader;
+    }
+
+    /**
+     * @param block A block with a 4 byte counter at offset 12.
+     * @return The counter (big endian).
+     */
+    private static int getCounter(byte[] block) {
+        return ((block[12] & 0xFF) << 24) | ((block[13] & 0xFF) << 16)
+                | ((block[14] & 0xFF) << 8) | (block[15] & 0xFF);
+    }
+
+    /**
+     * @param block A Value Block.
+     * @return The value (little endian).
+     */
+    private static int getValue(byte[] block) {
+        return (block[0] & 0xFF) | ((block[1] & 0xFF) << 8)
+                | ((block[2] & 0xFF) << 16) | (block[3] << 24);
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import android.util.SparseArray;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of the hex conversion, the dump and key file checks, the
+ * Access Condition decoding and the dump diff. Each benchmark has a twin
+ * with the suffix "Legacy" that runs the old version ({@link LegacyCommon})
+ * on the same input. The results of both are compared by
+ * {@link CommonTest}. Run with <code>./gradlew jmh</code>.
+ * @author Gerhard Klostermeier
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommonBenchmark {
+
+    static final String KEY_FILE =
+            "src/main/assets/key-files/extended-std.keys";
+    // Access Conditions found on real tags (transport configuration,
+    // key B secret, read only, value blocks).
+    private static final String[] COMMON_ACS =
+            {"FF0780", "7F0788", "787788", "08778F"};
+
+    byte[][] mBlocks;
+    String[] mHexBlocks;
+    byte[][] mACBytes;
+    String[] mDump;
+    String[] mKeyFile;
+    SparseArray<String[]> mDiff1;
+    SparseArray<String[]> mDiff2;
+
+    /**
+     * Create a synthetic 4K dump (40 sectors, 256 blocks) with valid
+     * Access Conditions, a second dump that differs in some blocks and
+     * sectors and load the bundled extended-std.keys.
+     * @throws IOException If the key file could not be read.
+     */
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(42);
+        mBlocks = new byte[256][16];
+        mHexBlocks = new String[256];
+        mACBytes = new byte[40][];
+        List<String> dump = new ArrayList<>();
+        mDiff1 = new SparseArray<>();
+        mDiff2 = new SparseArray<>();
+        int block = 0;
+        for (int sector = 0; sector < 40; sector++) {
+            int blocks = (sector < 32) ? 4 : 16;
+            String[] sector1 = new String[blocks];
+            String[] sector2 = new String[blocks];
+            dump.add("+Sector: " + sector);
+            for (int i = 0; i < blocks; i++, block++) {
+                random.nextBytes(mBlocks[block]);
+                if (i == blocks - 1) {
+                    mACBytes[sector] = newACBytes(sector, random);
+                    System.arraycopy(mACBytes[sector], 0,
+                            mBlocks[block], 6, 3);
+                }
+                mHexBlocks[block] = Common.bytes2Hex(mBlocks[block]);
+                sector1[i] = mHexBlocks[block];
+                // Every 8th block of the second dump differs a bit.
+                if (block % 8 == 0) {
+                    byte[] changed = mBlocks[block].clone();
+                    changed[block % 16] ^= 0x5A;
+                    sector2[i] = Common.bytes2Hex(changed);
+                } else {
+                    sector2[i] = mHexBlocks[block];
+                }
+                // Some blocks could not be read.
+                dump.add((block % 50 == 7) ? MCReader.NO_DATA
+                        : mHexBlocks[block]);
+            }
+            mDiff1.put(sector, sector1);
+            // Sector 3 is missing in the first, sector 5 in the second dump.
+            if (sector != 5) {
+                mDiff2.put(sector, sector2);
+            }
+        }
+        mDiff1.remove(3);
+        mDump = dump.toArray(new String[0]);
+        mKeyFile = Files.readAllLines(new File(KEY_FILE).toPath(),
+                StandardCharsets.UTF_8).toArray(new String[0]);
+    }
+
+    @Benchmark
+    public void bytes2Hex(Blackhole bh) {
+        for (byte[] b : mBlocks) {
+            bh.consume(Common.bytes2Hex(b));
+        }
+    }
+
+    @Benchmark
+    public void bytes2HexLegacy(Blackhole bh) {
+        for (byte[] b : mBlocks) {
+            bh.consume(LegacyCommon.bytes2Hex(b));
+        }
+    }
+
+    @Benchmark
+    public void hex2Bytes(Blackhole bh) {
+        for (String h : mHexBlocks) {
+            bh.consume(Common.hex2Bytes(h));
+        }
+    }
+
+    @Benchmark
+    public void hex2BytesLegacy(Blackhole bh) {
+        for (String h : mHexBlocks) {
+            bh.consume(LegacyCommon.hex2Bytes(h));
+        }
+    }
+
+    @Benchmark
+    public void hex2Ascii(Blackhole bh) {
+        for (String h : mHexBlocks) {
+            bh.consume(Common.hex2Ascii(h));
+        }
+    }
+
+    @Benchmark
+    public void hex2AsciiLegacy(Blackhole bh) {
+        for (String h : mHexBlocks) {
+            bh.consume(LegacyCommon.hex2Ascii(h));
+        }
+    }
+
+    @Benchmark
+    public int isValidDump() {
+        return Common.isValidDump(mDump, false);
+    }
+
+    @Benchmark
+    public int isValidDumpLegacy() {
+        return LegacyCommon.isValidDump(mDump, false);
+    }
+
+    @Benchmark
+    public int isValidKeyFile() {
+        return Common.isValidKeyFile(mKeyFile);
+    }
+
+    @Benchmark
+    public int isValidKeyFileLegacy() {
+        return LegacyCommon.isValidKeyFile(mKeyFile);
+    }
+
+    @Benchmark
+    public void acBytesToACMatrix(Blackhole bh) {
+        for (byte[] ac : mACBytes) {
+            bh.consume(Common.acBytesToACMatrix(ac));
+        }
+    }
+
+    @Benchmark
+    public void acBytesToACMatrixLegacy(Blackhole bh) {
+        for (byte[] ac : mACBytes) {
+            bh.consume(LegacyCommon.acBytesToACMatrix(ac));
+        }
+    }
+
+    @Benchmark
+    public SparseArray<Integer[][]> diffIndices() {
+        return MCDiffUtils.diffIndices(mDiff1, mDiff2);
+    }
+
+    @Benchmark
+    public SparseArray<Integer[][]> diffIndicesLegacy() {
+        return LegacyCommon.diffIndices(mDiff1, mDiff2);
+    }
+
+    /**
+     * Get the Access Condition bytes of a sector. Every other sector has
+     * common Access Conditions, the others have random (valid) ones.
+     */
+    private static byte[] newACBytes(int sector, Random random) {
+        if (sector % 2 == 0) {
+            return Common.hex2Bytes(
+                    COMMON_ACS[(sector / 2) % COMMON_ACS.length]);
+        }
+        byte[][] matrix = new byte[3][4];
+        for (byte[] row : matrix) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] = (byte) (random.nextInt() & 1);
+            }
+        }
+        return Common.acMatrixToACBytes(matrix);
+    }
+}
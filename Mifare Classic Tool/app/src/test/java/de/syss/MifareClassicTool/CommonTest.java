@@ -0,0 +1,167 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import android.util.SparseArray;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compare the hex conversion, the dump and key file checks, the Access
+ * Condition decoding and the dump diff with their old versions
+ * ({@link LegacyCommon}). The input is the one of {@link CommonBenchmark}
+ * plus malformed dumps, key files and hex strings.
+ * @author Gerhard Klostermeier
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CommonTest {
+
+    private static final String[] HEX = {"", "0", "0A", "0a1B2c", "0G",
+            "+1", " 01", "-1", "A0A1A2A3A4A5", "7F1F20217E",
+            "00112233445566778899AABBCCDDEEFF"};
+
+    private CommonBenchmark mData;
+
+    @Before
+    public void setUp() throws IOException {
+        mData = new CommonBenchmark();
+        mData.setUp();
+    }
+
+    @Test
+    public void hexConversion() {
+        for (byte[] b : mData.mBlocks) {
+            assertEquals(LegacyCommon.bytes2Hex(b), Common.bytes2Hex(b));
+        }
+        assertEquals(LegacyCommon.bytes2Hex(null), Common.bytes2Hex(null));
+        for (String h : mData.mHexBlocks) {
+            assertArrayEquals(LegacyCommon.hex2Bytes(h), Common.hex2Bytes(h));
+            assertEquals(LegacyCommon.hex2Ascii(h), Common.hex2Ascii(h));
+        }
+        for (String h : HEX) {
+            assertArrayEquals(h, LegacyCommon.hex2Bytes(h),
+                    Common.hex2Bytes(h));
+            assertEquals(h, LegacyCommon.hex2Ascii(h), Common.hex2Ascii(h));
+        }
+        assertArrayEquals(LegacyCommon.hex2Bytes(null),
+                Common.hex2Bytes(null));
+        assertEquals(LegacyCommon.hex2Ascii(null), Common.hex2Ascii(null));
+    }
+
+    @Test
+    public void isValidDump() {
+        for (String[] dump : invalidDumps()) {
+            for (boolean ignoreAsterisk : new boolean[] {false, true}) {
+                assertEquals(String.join("\n", dump),
+                        LegacyCommon.isValidDump(dump, ignoreAsterisk),
+                        Common.isValidDump(dump, ignoreAsterisk));
+            }
+        }
+        assertEquals(0, Common.isValidDump(mData.mDump, false));
+    }
+
+    @Test
+    public void isValidKeyFile() {
+        String[][] keyFiles = {mData.mKeyFile, {}, {"# Only a comment."},
+                {" A0A1A2A3A4A5 # Comment", ""}, {"A0A1A2A3A4"},
+                {"A0A1A2A3A4A5A6"}, {"A0A1A2A3A4AX"}, {"#", "  #", "FFFFFF#"}};
+        for (String[] keyFile : keyFiles) {
+            assertEquals(String.join("\n", keyFile),
+                    LegacyCommon.isValidKeyFile(keyFile),
+                    Common.isValidKeyFile(keyFile));
+        }
+        assertEquals(0, Common.isValidKeyFile(mData.mKeyFile));
+    }
+
+    @Test
+    public void acBytesToACMatrix() {
+        // All 2^24 Access Condition bytes are compared by
+        // SectorPermissionsTest. These are the ones of the benchmark.
+        for (byte[] ac : mData.mACBytes) {
+            byte[][] legacy = LegacyCommon.acBytesToACMatrix(ac);
+            assertNotNull(legacy);
+            byte[][] matrix = Common.acBytesToACMatrix(ac);
+            for (int i = 0; i < 3; i++) {
+                assertArrayEquals(legacy[i], matrix[i]);
+            }
+        }
+    }
+
+    @Test
+    public void diffIndices() {
+        assertDiffEquals(LegacyCommon.diffIndices(mData.mDiff1, mData.mDiff2),
+                MCDiffUtils.diffIndices(mData.mDiff1, mData.mDiff2));
+        assertDiffEquals(LegacyCommon.diffIndices(mData.mDiff2, mData.mDiff1),
+                MCDiffUtils.diffIndices(mData.mDiff2, mData.mDiff1));
+    }
+
+    private String[][] invalidDumps() {
+        String block = "00112233445566778899AABBCCDDEEFF";
+        String[] start = {"+Sector: 0", block, block, block};
+        List<String[]> dumps = new ArrayList<>();
+        dumps.add(mData.mDump);
+        dumps.add(new String[0]);
+        dumps.add(concat(start, block, "+Sector: 0", block));
+        dumps.add(concat(start, "00112233445566778899AABBCCDDEEF"));
+        dumps.add(concat(start, "00112233445566778899AABBCCDDEEFG"));
+        dumps.add(concat(start, block.toLowerCase()));
+        dumps.add(concat(start, block, "+Sector: 40"));
+        dumps.add(concat(start, block, "+Sector: 123"));
+        dumps.add(concat(start, block, "+Sector: 1 "));
+        dumps.add(concat(start, block, "+Sector:1"));
+        dumps.add(concat(start, block, "*No keys found or dead sector",
+                "+Sector: 1", block));
+        dumps.add(concat(start, block, "+Sector: 07", block));
+        dumps.add(concat(new String[] {"+Sector: 0"}, "*", "+Sector: 32",
+                block, block, block, block, block));
+        return dumps.toArray(new String[0][]);
+    }
+
+    private static String[] concat(String[] first, String... rest) {
+        String[] ret = new String[first.length + rest.length];
+        System.arraycopy(first, 0, ret, 0, first.length);
+        System.arraycopy(rest, 0, ret, first.length, rest.length);
+        return ret;
+    }
+
+    private static void assertDiffEquals(SparseArray<Integer[][]> expected,
+            SparseArray<Integer[][]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.keyAt(i), actual.keyAt(i));
+            Integer[][] e = expected.valueAt(i);
+            Integer[][] a = actual.valueAt(i);
+            assertEquals(e.length, a.length);
+            for (int j = 0; j < e.length; j++) {
+                assertArrayEquals(e[j], a[j]);
+            }
+        }
+    }
+}
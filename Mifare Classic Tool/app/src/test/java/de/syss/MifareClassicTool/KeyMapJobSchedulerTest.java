@@ -0,0 +1,237 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.util.SparseArray;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Run key mapping sessions with a {@link KeyMapJobScheduler} on
+ * {@link MCSimulatedTag}s, directly and over a {@link MCTransportServer}.
+ * @author Gerhard Klostermeier
+ */
+@RunWith(RobolectricTestRunner.class)
+public class KeyMapJobSchedulerTest {
+
+    private static final byte[] KEY_A = Common.hex2Bytes("A0A1A2A3A4A5");
+    private static final byte[] KEY_B = Common.hex2Bytes("B0B1B2B3B4B5");
+    // Data blocks: everything with key A|B. Sector trailer: key B
+    // can not be read (and therefore can be used).
+    private static final byte[] AC = Common.hex2Bytes("7F078800");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private KeyMapJobScheduler mScheduler;
+
+    @Before
+    public void setUp() throws IOException {
+        File keyFile = mFolder.newFile("test.keys");
+        try (FileOutputStream out = new FileOutputStream(keyFile)) {
+            out.write(("FFFFFFFFFFFF\nD3F7D3F7D3F7\nA0A1A2A3A4A5\n"
+                    + "B0B1B2B3B4B5\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        mScheduler = new KeyMapJobScheduler(
+                KeyDictionary.load(new File[] {keyFile}), null, null,
+                new ReaderConfig(false, false, 0, false, 0));
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdownNow();
+    }
+
+    @Test
+    public void sessions() throws Exception {
+        List<SessionTag> tags = new ArrayList<>();
+        List<Future<KeyMapJobScheduler.Result>> results = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            SessionTag tag = new SessionTag(i);
+            tags.add(tag);
+            // Two sessions per transport.
+            results.add(mScheduler.submit(tag));
+            results.add(mScheduler.submit(tag));
+        }
+        mScheduler.shutdown();
+        for (int i = 0; i < results.size(); i++) {
+            assertSession(tags.get(i / 2),
+                    results.get(i).get(10, TimeUnit.SECONDS));
+        }
+        // Sessions on the same transport run one after another.
+        for (SessionTag tag : tags) {
+            assertEquals(2, tag.mSessions.get());
+            assertEquals(1, tag.mMaxParallel);
+        }
+    }
+
+    @Test
+    public void socketTransport() throws Exception {
+        SessionTag tag = new SessionTag(7);
+        MCTransportServer server = new MCTransportServer(tag, 0);
+        server.start();
+        try {
+            MCSocketTransport transport =
+                    new MCSocketTransport("127.0.0.1", server.getPort());
+            assertSession(tag,
+                    mScheduler.submit(transport).get(10, TimeUnit.SECONDS));
+            // The session closed the transport, the server
+            // accepts the next one.
+            assertSession(tag,
+                    mScheduler.submit(transport).get(10, TimeUnit.SECONDS));
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void tagNotPresent() throws Exception {
+        SessionTag tag = new SessionTag(1);
+        tag.setPresent(false);
+        KeyMapJobScheduler.Result result =
+                mScheduler.submit(tag).get(10, TimeUnit.SECONDS);
+        assertTrue(result.isError());
+        assertNull(result.getUid());
+        assertNull(result.getKeyMap());
+        assertNull(result.getTagImage());
+    }
+
+    @Test
+    public void tagLost() throws Exception {
+        SessionTag tag = new SessionTag(1);
+        tag.setRemoveAfter(10);
+        KeyMapJobScheduler.Result result =
+                mScheduler.submit(tag).get(10, TimeUnit.SECONDS);
+        assertTrue(result.isError());
+        assertArrayEquals(tag.getUid(), result.getUid());
+        assertNull(result.getKeyMap());
+        assertNull(result.getTagImage());
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        SessionTag tag = new SessionTag(1);
+        // 5 ms per authentication. A session takes about 0.5 s.
+        tag.setLatency(5000, 5000, 500);
+        Future<KeyMapJobScheduler.Result> first = mScheduler.submit(tag);
+        Future<KeyMapJobScheduler.Result> second = mScheduler.submit(tag);
+        while (tag.getAuthenticationCount() == 0) {
+            Thread.sleep(5);
+        }
+        assertTrue(first.cancel(true));
+        assertTrue(first.isCancelled());
+        // The next session starts after the first one stopped.
+        KeyMapJobScheduler.Result result = second.get(10, TimeUnit.SECONDS);
+        assertSession(tag, result);
+        assertEquals(2, tag.mSessions.get());
+        assertEquals(1, tag.mMaxParallel);
+    }
+
+    private static void assertSession(SessionTag tag,
+            KeyMapJobScheduler.Result result) {
+        assertFalse(result.isError());
+        assertArrayEquals(tag.getUid(), result.getUid());
+        SparseArray<byte[][]> keyMap = result.getKeyMap();
+        assertNotNull(keyMap);
+        assertEquals(tag.getSectorCount(), keyMap.size());
+        for (int sector = 0; sector < tag.getSectorCount(); sector++) {
+            assertArrayEquals(KEY_A, keyMap.get(sector)[0]);
+            assertArrayEquals(KEY_B, keyMap.get(sector)[1]);
+        }
+        TagImage image = result.getTagImage();
+        assertNotNull(image);
+        for (int block = 0; block < tag.getBlockCount(); block++) {
+            int sector = MCReader.blockToSector(block);
+            int index = block - TagImage.sectorToBlock(sector);
+            if (!TagImage.isSectorTrailer(sector, index)) {
+                assertArrayEquals(tag.getBlock(block),
+                        image.getBlock(sector, index));
+            }
+        }
+        assertEquals(0, result.getReconnectCount());
+        assertTrue(result.getDuration() >= 0);
+    }
+
+    /**
+     * A 1K tag with distinct data in each block that counts its sessions
+     * (connect to close) and how many of them ran at the same time.
+     */
+    private static class SessionTag extends MCSimulatedTag {
+        private final AtomicInteger mSessions = new AtomicInteger();
+        private int mParallel = 0;
+        private volatile int mMaxParallel = 0;
+
+        SessionTag(int number) {
+            super(SIZE_1K, new byte[] {0x04, 0x10, 0x20, (byte) number});
+            for (int sector = 0; sector < getSectorCount(); sector++) {
+                setSectorTrailer(sector, KEY_A, AC, KEY_B);
+            }
+            for (int block = 1; block < getBlockCount(); block++) {
+                if (block % 4 != 3) {
+                    byte[] data = new byte[16];
+                    data[0] = (byte) number;
+                    data[1] = (byte) block;
+                    setBlock(block, data);
+                }
+            }
+        }
+
+        @Override
+        public synchronized void connect() throws IOException {
+            boolean wasConnected = isConnected();
+            super.connect();
+            if (!wasConnected) {
+                mSessions.incrementAndGet();
+                mParallel++;
+                mMaxParallel = Math.max(mMaxParallel, mParallel);
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            if (isConnected()) {
+                mParallel--;
+            }
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of the per authentication overhead of the key mapping:
+ * loading and deduplicating the keys ({@link KeyDictionary}), converting
+ * them to bytes and looking them up. Each benchmark has a twin with the
+ * suffix "Legacy" that runs the old implementation ({@link LegacyCommon})
+ * on the same key files. The results are compared by
+ * {@link KeyMappingTest}, which also checks the retry options. (They come
+ * from the shared preferences and can not be read without an app context.)
+ * Run with <code>./gradlew jmh -Pjmh=KeyMapping</code>.
+ * @author Gerhard Klostermeier
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyMappingBenchmark {
+
+    private File mDir;
+    File[] mKeyFiles;
+    ArrayList<String> mLegacyKeys;
+    private HashSet<String> mLegacySet;
+    KeyDictionary mDictionary;
+
+    /**
+     * Load the bundled dictionary and a custom one with 5000 random keys,
+     * some of them twice and some of them also in the bundled one. The
+     * files and the indices are stored in a temporary directory.
+     * @throws IOException If the custom key file could not be written.
+     */
+    @Setup
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("mct-keys").toFile();
+        KeyDictionary.sIndexDir = new File(mDir, KeyDictionary.INDEX_DIR);
+        File custom = new File(mDir, "custom.keys");
+        Random random = new Random(42);
+        byte[] key = new byte[6];
+        try (Writer out = new OutputStreamWriter(
+                new FileOutputStream(custom), StandardCharsets.US_ASCII)) {
+            out.write("# Custom keys.\n000000000000\n");
+            for (int i = 0; i < 5000; i++) {
+                random.nextBytes(key);
+                String hex = Common.bytes2Hex(key);
+                out.write(hex + "\n");
+                if (i % 10 == 0) {
+                    out.write(hex.toLowerCase() + " # Again.\n");
+                }
+            }
+            out.write("A0A1A2A3A4A5\nD3F7D3F7D3F7\n");
+        }
+        mKeyFiles = new File[] {new File(CommonBenchmark.KEY_FILE), custom};
+        mLegacyKeys = LegacyCommon.loadKeys(mKeyFiles);
+        mLegacySet = new HashSet<>(mLegacyKeys);
+        mDictionary = KeyDictionary.load(mKeyFiles);
+    }
+
+    /**
+     * Remove the temporary key file and the indices.
+     */
+    @TearDown
+    public void tearDown() {
+        KeyDictionary.sIndexDir = null;
+        delete(mDir);
+    }
+
+    @Benchmark
+    public KeyDictionary loadKeys() {
+        return KeyDictionary.load(mKeyFiles);
+    }
+
+    @Benchmark
+    public ArrayList<String> loadKeysLegacy() {
+        return LegacyCommon.loadKeys(mKeyFiles);
+    }
+
+    @Benchmark
+    public long keyToBytes() {
+        long sum = 0;
+        byte[] key = new byte[6];
+        for (int i = 0; i < mDictionary.size(); i++) {
+            KeyDictionary.toBytes(mDictionary.getKey(i), key, 0);
+            sum += key[5];
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long keyToBytesLegacy() {
+        long sum = 0;
+        for (String key : mLegacyKeys) {
+            sum += LegacyCommon.hex2Bytes(key)[5];
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int contains() {
+        int found = 0;
+        for (int i = 0; i < mDictionary.size(); i++) {
+            found += mDictionary.contains(mDictionary.getKey(i)) ? 1 : 0;
+        }
+        return found;
+    }
+
+    @Benchmark
+    public int containsLegacy() {
+        int found = 0;
+        for (String key : mLegacyKeys) {
+            found += mLegacySet.contains(key) ? 1 : 0;
+        }
+        return found;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import de.syss.MifareClassicTool.Activities.Preferences.Preference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.util.HashSet;
+
+/**
+ * Compare the key mapping ({@link KeyDictionary}, {@link ReaderConfig})
+ * with the old implementation ({@link LegacyCommon}). The key files are
+ * the ones of {@link KeyMappingBenchmark}.
+ * @author Gerhard Klostermeier
+ */
+@RunWith(RobolectricTestRunner.class)
+public class KeyMappingTest {
+
+    private KeyMappingBenchmark mData;
+
+    @Before
+    public void setUp() throws IOException {
+        mData = new KeyMappingBenchmark();
+        mData.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        mData.tearDown();
+    }
+
+    @Test
+    public void keys() {
+        // The old implementation kept the case of the key file (and did
+        // not dedup keys that only differ in case).
+        HashSet<Long> legacy = new HashSet<>();
+        for (String key : mData.mLegacyKeys) {
+            legacy.add(KeyDictionary.toLong(Common.hex2Bytes(key)));
+        }
+        KeyDictionary dictionary = mData.mDictionary;
+        assertEquals(legacy.size(), dictionary.size());
+        for (long key : dictionary.toArray()) {
+            assertTrue(legacy.contains(key));
+            assertTrue(dictionary.contains(key));
+        }
+        assertFalse(dictionary.contains(0x5A3C96E1B2D4L));
+        assertTrue(dictionary.contains(0L));
+        // Loaded from the index.
+        assertTrue(KeyDictionary.getIndexFile(mData.mKeyFiles[1]).isFile());
+        assertEquals(dictionary.size(), mData.loadKeys().size());
+        // All keys are found.
+        assertEquals(mData.mLegacyKeys.size(), mData.containsLegacy());
+        assertEquals(dictionary.size(), mData.contains());
+    }
+
+    @Test
+    public void retryOptions() {
+        for (int count = 0; count < 3; count++) {
+            Common.getPreferences().edit()
+                    .putBoolean(Preference.UseRetryAuthentication.toString(),
+                            count > 0)
+                    .putInt(Preference.RetryAuthenticationCount.toString(),
+                            count)
+                    .commit();
+            ReaderConfig config =
+                    ReaderConfig.fromPreferences(Common.getPreferences());
+            // The lookup of the retry options, as done by
+            // MCReader for each authentication.
+            int attempts = config.isRetryAuth()
+                    ? config.getRetryAuthCount() + 1 : 1;
+            assertEquals(LegacyCommon.getAuthAttempts(), attempts);
+        }
+    }
+}
@@ -0,0 +1,462 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import android.util.SparseArray;
+
+import de.syss.MifareClassicTool.Activities.Preferences.Preference;
+import de.syss.MifareClassicTool.Common.Operation;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Copies of the old versions of functions that were rewritten for speed.
+ * They are the reference for the equivalence tests and the baseline for
+ * the benchmarks. Do not "fix" or optimize them.
+ * @author Gerhard Klostermeier
+ */
+final class LegacyCommon {
+
+    private LegacyCommon() { }
+
+    /**
+     * Old {@link Common#bytes2Hex(byte[])}.
+     */
+    static String bytes2Hex(byte[] bytes) {
+        StringBuilder ret = new StringBuilder();
+        if (bytes != null) {
+            for (Byte b : bytes) {
+                ret.append(String.format("%02X", b.intValue() & 0xFF));
+            }
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Old {@link Common#hex2Bytes(String)}.
+     */
+    static byte[] hex2Bytes(String hex) {
+        if (!(hex != null && hex.length() % 2 == 0
+                && hex.matches("[0-9A-Fa-f]+"))) {
+            return null;
+        }
+        int len = hex.length();
+        byte[] data = new byte[len / 2];
+        for (int i = 0; i < len; i += 2) {
+            data[i / 2] = (byte) ((Character.digit(hex.charAt(i), 16) << 4)
+                                 + Character.digit(hex.charAt(i+1), 16));
+        }
+        return data;
+    }
+
+    /**
+     * Old {@link Common#hex2Ascii(String)}.
+     */
+    static String hex2Ascii(String hex) {
+        if (!(hex != null && hex.length() % 2 == 0
+                && hex.matches("[0-9A-Fa-f]+"))) {
+            return null;
+        }
+        byte[] bytes = hex2Bytes(hex);
+        String ret;
+        // Replace non printable ASCII with ".".
+        for(int i = 0; i < bytes.length; i++) {
+            if (bytes[i] < (byte)0x20 || bytes[i] == (byte)0x7F) {
+                bytes[i] = (byte)0x2E;
+            }
+        }
+        // Hex to ASCII.
+        ret = new String(bytes, StandardCharsets.US_ASCII);
+        return ret;
+    }
+
+    /**
+     * Old {@link Common#isValidDump(String[], boolean)}.
+     */
+    static int isValidDump(String[] lines, boolean ignoreAsterisk) {
+        ArrayList<Integer> knownSectors = new ArrayList<>();
+        int blocksSinceLastSectorHeader = 4;
+        boolean is16BlockSector = false;
+        if (lines == null || lines.length == 0) {
+            // There are no lines.
+            return 6;
+        }
+        for(String line : lines) {
+            if ((!is16BlockSector && blocksSinceLastSectorHeader == 4)
+                    || (is16BlockSector && blocksSinceLastSectorHeader == 16)) {
+                // A sector header is expected.
+                if (!line.matches("^\\+Sector: [0-9]{1,2}$")) {
+                    // Not a valid sector length or not a valid sector header.
+                    return 1;
+                }
+                int sector;
+                try {
+                    sector = Integer.parseInt(line.split(": ")[1]);
+                } catch (Exception ex) {
+                    // Not a valid sector header.
+                    // Should not occur due to the previous check (regex).
+                    return 1;
+                }
+                if (sector < 0 || sector > 39) {
+                    // Sector out of range.
+                    return 4;
+                }
+                if (knownSectors.contains(sector)) {
+                    // Two times the same sector number (index).
+                    return 5;
+                }
+                knownSectors.add(sector);
+                is16BlockSector = (sector >= 32);
+                blocksSinceLastSectorHeader = 0;
+                continue;
+            }
+            if (line.startsWith("*") && ignoreAsterisk) {
+                // Ignore line and move to the next sector.
+                is16BlockSector = false;
+                blocksSinceLastSectorHeader = 4;
+                continue;
+            }
+            if (!line.matches("[0-9A-Fa-f-]+")) {
+                // Not pure hex (or NO_DATA).
+                return 2;
+            }
+            if (line.length() != 32) {
+                // Not 32 chars per line.
+                return 3;
+            }
+            blocksSinceLastSectorHeader++;
+        }
+        return 0;
+    }
+
+    /**
+     * Old {@link Common#isValidKeyFile(String[])}.
+     */
+    static int isValidKeyFile(String[] lines) {
+        boolean keyFound = false;
+        if (lines == null || lines.length == 0) {
+            return 1;
+        }
+        for (String line : lines) {
+            // Remove comments.
+            if (line.startsWith("#")) {
+                continue;
+            }
+            line = line.split("#")[0];
+
+            // Ignore leading/tailing whitespaces.
+            line = line.trim();
+
+            // Ignore empty lines.
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            // Is hex?
+            if (!line.matches("[0-9A-Fa-f]+")) {
+                return 2;
+            }
+
+            // Is 6 byte long (12 chars)?
+            if (line.length() != 12) {
+                return 3;
+            }
+
+            // At least one key found.
+            keyFound = true;
+        }
+
+        if (!keyFound) {
+            // No key found.
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Old {@link MCDiffUtils#diffIndices(SparseArray, SparseArray)}.
+     */
+    static SparseArray<Integer[][]> diffIndices(
+            SparseArray<String[]> dump1, SparseArray<String[]> dump2) {
+        SparseArray<Integer[][]> ret =
+                new SparseArray<>();
+        // Walk through all sectors of dump1.
+        for (int i = 0; i < dump1.size(); i++) {
+            String[] sector1 = dump1.valueAt(i);
+            int sectorNr = dump1.keyAt(i);
+            String[] sector2 = dump2.get(sectorNr);
+
+            // Check if dump2 has the current sector of dump1.
+            if (sector2 == null) {
+                ret.put(sectorNr, new Integer[0][0]);
+                continue;
+            }
+
+            // Check the blocks.
+            Integer[][] diffSector = new Integer[sector1.length][];
+            // Walk through all blocks.
+            for (int j = 0; j < sector1.length; j++) {
+                ArrayList<Integer> diffIndices = new ArrayList<>();
+                // Walk through all symbols.
+                for (int k = 0; k < sector1[j].length(); k++) {
+                    if (sector1[j].charAt(k) != sector2[j].charAt(k)) {
+                        // Found different symbol at index k.
+                        diffIndices.add(k);
+                    }
+                }
+                if (diffIndices.isEmpty()) {
+                    // Block was identical.
+                    diffSector[j] = new Integer[0];
+                } else {
+                    diffSector[j] = diffIndices.toArray(
+                            new Integer[0]);
+                }
+            }
+            ret.put(sectorNr, diffSector);
+        }
+
+        // Are there sectors that occur only in dump2?
+        for (int i = 0; i < dump2.size(); i++) {
+            int sectorNr = dump2.keyAt(i);
+            if (dump1.get(sectorNr) == null) {
+                // Sector only exists in dump2.
+                ret.put(sectorNr, new Integer[1][0]);
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Old key loading of {@link MCReader} (setKeyFile()). The context
+     * is only used for error Toasts and therefore null.
+     * @return The keys in the order they were tried during the mapping.
+     */
+    static ArrayList<String> loadKeys(File[] keyFiles) {
+        HashSet<String> keys = new HashSet<>();
+        for (File file : keyFiles) {
+            String[] lines = Common.readFileLineByLine(file, false, null);
+            if (lines != null) {
+                for (String line : lines) {
+                    if (!line.isEmpty() && line.length() == 12
+                            && line.matches("[0-9A-Fa-f]+")) {
+                        keys.add(line);
+                    }
+                }
+            }
+        }
+        ArrayList<String> keysWithOrder = new ArrayList<>(keys);
+        if (keys.contains("000000000000")) {
+            keysWithOrder.remove(MCReader.DEFAULT_KEY);
+            keysWithOrder.add(0, MCReader.DEFAULT_KEY);
+        }
+        return keysWithOrder;
+    }
+
+    /**
+     * Old lookup of the retry options, done by MCReader for
+     * each authentication.
+     * @return The number of authentication attempts.
+     */
+    static int getAuthAttempts() {
+        boolean retryAuth = Common.getPreferences().getBoolean(
+                Preference.UseRetryAuthentication.toString(), false);
+        int retryCount = Common.getPreferences().getInt(
+                Preference.RetryAuthenticationCount.toString(), 1);
+        return retryAuth ? retryCount + 1 : 1;
+    }
+
+    /**
+     * Old {@link Common#getOperationRequirements(byte, byte, byte,
+     * Operation, boolean, boolean)}.
+     */
+    static int getOperationRequirements (byte c1, byte c2, byte c3,
+                Operation op, boolean isSectorTrailer, boolean isKeyBReadable) {
+        // Is Sector Trailer?
+        if (isSectorTrailer) {
+            // Sector Trailer.
+            if (op != Operation.ReadKeyA && op != Operation.ReadKeyB
+                    && op != Operation.ReadAC
+                    && op != Operation.WriteKeyA
+                    && op != Operation.WriteKeyB
+                    && op != Operation.WriteAC) {
+                // Error. Sector Trailer but no Sector Trailer permissions.
+                return 4;
+            }
+            if          (c1 == 0 && c2 == 0 && c3 == 0) {
+                if (op == Operation.WriteKeyA
+                        || op == Operation.WriteKeyB
+                        || op == Operation.ReadKeyB
+                        || op == Operation.ReadAC) {
+                    return 1;
+                }
+                return 0;
+            } else if   (c1 == 0 && c2 == 1 && c3 == 0) {
+                if (op == Operation.ReadKeyB
+                        || op == Operation.ReadAC) {
+                    return 1;
+                }
+                return 0;
+            } else if   (c1 == 1 && c2 == 0 && c3 == 0) {
+                if (op == Operation.WriteKeyA
+                        || op == Operation.WriteKeyB) {
+                    return 2;
+                }
+                if (op == Operation.ReadAC) {
+                    return 3;
+                }
+                return 0;
+            } else if   (c1 == 1 && c2 == 1 && c3 == 0) {
+                if (op == Operation.ReadAC) {
+                    return 3;
+                }
+                return 0;
+            } else if   (c1 == 0 && c2 == 0 && c3 == 1) {
+                if (op == Operation.ReadKeyA) {
+                    return 0;
+                }
+                return 1;
+            } else if   (c1 == 0 && c2 == 1 && c3 == 1) {
+                if (op == Operation.ReadAC) {
+                    return 3;
+                }
+                if (op == Operation.ReadKeyA
+                        || op == Operation.ReadKeyB) {
+                    return 0;
+                }
+                return 2;
+            } else if   (c1 == 1 && c2 == 0 && c3 == 1) {
+                if (op == Operation.ReadAC) {
+                    return 3;
+                }
+                if (op == Operation.WriteAC) {
+                    return 2;
+                }
+                return 0;
+            } else if   (c1 == 1 && c2 == 1 && c3 == 1) {
+                if (op == Operation.ReadAC) {
+                    return 3;
+                }
+                return 0;
+            } else {
+                return -1;
+            }
+        } else {
+            // Data Block.
+            if (op != Operation.Read && op != Operation.Write
+                    && op != Operation.Increment
+                    && op != Operation.DecTransRest) {
+                // Error. Data block but no data block permissions.
+                return -1;
+            }
+            if          (c1 == 0 && c2 == 0 && c3 == 0) {
+                return (isKeyBReadable) ? 1 : 3;
+            } else if   (c1 == 0 && c2 == 1 && c3 == 0) {
+                if (op == Operation.Read) {
+                    return (isKeyBReadable) ? 1 : 3;
+                }
+                return 0;
+            } else if   (c1 == 1 && c2 == 0 && c3 == 0) {
+                if (op == Operation.Read) {
+                    return (isKeyBReadable) ? 1 : 3;
+                }
+                if (op == Operation.Write) {
+                    return 2;
+                }
+                return 0;
+            } else if   (c1 == 1 && c2 == 1 && c3 == 0) {
+                if (op == Operation.Read
+                        || op == Operation.DecTransRest) {
+                    return (isKeyBReadable) ? 1 : 3;
+                }
+                return 2;
+            } else if   (c1 == 0 && c2 == 0 && c3 == 1) {
+                if (op == Operation.Read
+                        || op == Operation.DecTransRest) {
+                    return (isKeyBReadable) ? 1 : 3;
+                }
+                return 0;
+            } else if   (c1 == 0 && c2 == 1 && c3 == 1) {
+                if (op == Operation.Read || op == Operation.Write) {
+                    return 2;
+                }
+                return 0;
+            } else if   (c1 == 1 && c2 == 0 && c3 == 1) {
+                if (op == Operation.Read) {
+                    return 2;
+                }
+                return 0;
+            } else if   (c1 == 1 && c2 == 1 && c3 == 1) {
+                return 0;
+            } else {
+                // Error.
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Old {@link Common#isKeyBReadable(byte, byte, byte)}.
+     */
+    static boolean isKeyBReadable(byte c1, byte c2, byte c3) {
+        return c1 == 0
+                && ((c2 == 0 && c3 == 0)
+                || (c2 == 1 && c3 == 0)
+                || (c2 == 0 && c3 == 1));
+    }
+
+    /**
+     * Old {@link Common#acBytesToACMatrix(byte[])}.
+     */
+    static byte[][] acBytesToACMatrix(byte[] acBytes) {
+        if (acBytes == null) {
+            return null;
+        }
+        // ACs correct?
+        // C1 (Byte 7, 4-7) == ~C1 (Byte 6, 0-3) and
+        // C2 (Byte 8, 0-3) == ~C2 (Byte 6, 4-7) and
+        // C3 (Byte 8, 4-7) == ~C3 (Byte 7, 0-3)
+        byte[][] acMatrix = new byte[3][4];
+        if (acBytes.length > 2 &&
+                (byte)((acBytes[1]>>>4)&0x0F)  ==
+                        (byte)((acBytes[0]^0xFF)&0x0F) &&
+                (byte)(acBytes[2]&0x0F) ==
+                        (byte)(((acBytes[0]^0xFF)>>>4)&0x0F) &&
+                (byte)((acBytes[2]>>>4)&0x0F)  ==
+                        (byte)((acBytes[1]^0xFF)&0x0F)) {
+            // C1, Block 0-3
+            for (int i = 0; i < 4; i++) {
+                acMatrix[0][i] = (byte)((acBytes[1]>>>4+i)&0x01);
+            }
+            // C2, Block 0-3
+            for (int i = 0; i < 4; i++) {
+                acMatrix[1][i] = (byte)((acBytes[2]>>>i)&0x01);
+            }
+            // C3, Block 0-3
+            for (int i = 0; i < 4; i++) {
+                acMatrix[2][i] = (byte)((acBytes[2]>>>4+i)&0x01);
+            }
+            return acMatrix;
+        }
+        return null;
+    }
+}
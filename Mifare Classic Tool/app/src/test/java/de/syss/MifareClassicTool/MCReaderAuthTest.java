@@ -0,0 +1,201 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.nfc.TagLostException;
+import android.util.SparseArray;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Script authentication failures, tag loss and reconnects with a
+ * {@link MCSimulatedTag} and check that {@link MCReader} keeps the three
+ * results of an authentication apart (success, failed, tag lost).
+ * @author Gerhard Klostermeier
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MCReaderAuthTest {
+
+    private static final byte[] KEY_A = Common.hex2Bytes("A0A1A2A3A4A5");
+    private static final byte[] KEY_B = Common.hex2Bytes("B0B1B2B3B4B5");
+    private static final byte[] WRONG_KEY = Common.hex2Bytes("FFFFFFFFFFFF");
+    // Data blocks: everything with key A|B. Sector trailer: key B
+    // can not be read (and therefore can be used).
+    private static final byte[] AC = Common.hex2Bytes("7F078800");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private MCSimulatedTag mTag;
+    private MCReader mReader;
+
+    @Before
+    public void setUp() throws Exception {
+        mTag = new MCSimulatedTag(MCSimulatedTag.SIZE_1K,
+                Common.hex2Bytes("01020304"));
+        for (int sector = 0; sector < mTag.getSectorCount(); sector++) {
+            mTag.setSectorTrailer(sector, KEY_A, AC, KEY_B);
+        }
+        mReader = MCReader.get(mTag);
+        mReader.setConfig(new ReaderConfig(false, false, 0, false, 0));
+        mReader.connect();
+    }
+
+    @Test
+    public void authSuccess() throws Exception {
+        assertNotNull(mReader.readSector(1, KEY_A, false));
+        assertNotNull(mReader.readSector(1, KEY_B, true));
+    }
+
+    @Test
+    public void authFailedKeepsTheConnection() throws Exception {
+        assertNull(mReader.readSector(1, WRONG_KEY, false));
+        assertNull(mReader.readSector(1, KEY_A, true));
+        assertTrue(mReader.isConnected());
+        assertNotNull(mReader.readSector(1, KEY_A, false));
+    }
+
+    @Test
+    public void authFailedIsRetried() throws Exception {
+        mReader.setConfig(new ReaderConfig(false, true, 2, false, 0));
+        mTag.resetCounters();
+        assertNull(mReader.readSector(1, WRONG_KEY, false));
+        assertEquals(3, mTag.getAuthenticationCount());
+    }
+
+    @Test
+    public void tagLostIsNotAuthFailed() {
+        mReader.setConfig(new ReaderConfig(false, true, 2, false, 0));
+        mTag.setPresent(false);
+        mTag.resetCounters();
+        try {
+            mReader.readSector(1, KEY_A, false);
+            fail("Tag loss was reported as failed authentication.");
+        } catch (TagLostException e) {
+            // Expected.
+        }
+        // A lost tag is not retried.
+        assertEquals(1, mTag.getAuthenticationCount());
+        assertFalse(mReader.isConnected());
+    }
+
+    @Test
+    public void tagLostAfterCommands() {
+        mTag.setRemoveAfter(2);
+        try {
+            for (int sector = 0; sector < mTag.getSectorCount(); sector++) {
+                mReader.readSector(sector, KEY_A, false);
+            }
+            fail("Tag loss was not reported.");
+        } catch (TagLostException e) {
+            // Expected.
+        }
+        assertFalse(mTag.isPresent());
+    }
+
+    @Test
+    public void reconnectAfterTagLoss() throws Exception {
+        mTag.setPresent(false);
+        try {
+            mReader.readSector(1, KEY_A, false);
+            fail("Tag loss was not reported.");
+        } catch (TagLostException e) {
+            // Expected.
+        }
+        mTag.setPresent(true);
+        // The old connection stays dead until the reader reconnects.
+        assertFalse(mReader.isConnected());
+        mReader.connect();
+        assertTrue(mReader.isConnected());
+        assertNotNull(mReader.readSector(1, KEY_A, false));
+    }
+
+    @Test
+    public void decTransRestPermission() {
+        // Key A|B.
+        assertEquals(3, mReader.hasDecTransRestPermission(1, 0, KEY_A, false));
+        // Sector trailer.
+        assertEquals(0, mReader.hasDecTransRestPermission(1, 3, KEY_A, false));
+        // Failed authentication.
+        assertEquals(-1,
+                mReader.hasDecTransRestPermission(1, 0, WRONG_KEY, false));
+        // Tag lost.
+        mTag.setPresent(false);
+        assertEquals(-2, mReader.hasDecTransRestPermission(1, 0, KEY_A, false));
+    }
+
+    @Test
+    public void keyMappingReconnectsToLostTag() throws Exception {
+        // The tag is back as soon as the reader tries to reconnect.
+        MCSimulatedTag tag = new MCSimulatedTag(MCSimulatedTag.SIZE_1K,
+                Common.hex2Bytes("01020305")) {
+            @Override
+            public synchronized void connect() throws IOException {
+                setPresent(true);
+                super.connect();
+            }
+        };
+        for (int sector = 0; sector < tag.getSectorCount(); sector++) {
+            tag.setSectorTrailer(sector, KEY_A, AC, KEY_B);
+        }
+        MCReader reader = MCReader.get(tag);
+        reader.setConfig(new ReaderConfig(true, false, 0, false, 0));
+        reader.setReconnectScheduler(new ReconnectScheduler(1, 1, 5000));
+        reader.connect();
+
+        File keyFile = mFolder.newFile("test.keys");
+        try (FileOutputStream out = new FileOutputStream(keyFile)) {
+            out.write(("FFFFFFFFFFFF\nA0A1A2A3A4A5\nB0B1B2B3B4B5\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+        }
+        assertEquals(3, reader.setKeyDictionary(
+                KeyDictionary.load(new File[] {keyFile})));
+        assertTrue(reader.setMappingRange(0, tag.getSectorCount() - 1));
+        tag.setRemoveAfter(20);
+        while (reader.getKeyMapProgress() < tag.getSectorCount()) {
+            assertTrue(reader.buildNextKeyMapPart() != -1);
+        }
+
+        assertEquals(1, reader.getReconnectCount());
+        SparseArray<byte[][]> keyMap = reader.getKeyMap();
+        assertEquals(tag.getSectorCount(), keyMap.size());
+        for (int sector = 0; sector < tag.getSectorCount(); sector++) {
+            assertArrayEquals(KEY_A, keyMap.get(sector)[0]);
+            assertArrayEquals(KEY_B, keyMap.get(sector)[1]);
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Serve a {@link MCSimulatedTag} with a {@link MCTransportServer} on the
+ * loopback interface and use it with a {@link MCSocketTransport}: all
+ * commands, the status codes (NAK, tag lost, error) and the framing.
+ * @author Gerhard Klostermeier
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MCSocketTransportTest {
+
+    private static final byte[] KEY_A = Common.hex2Bytes("A0A1A2A3A4A5");
+    private static final byte[] KEY_B = Common.hex2Bytes("B0B1B2B3B4B5");
+    private static final byte[] WRONG_KEY = Common.hex2Bytes("FFFFFFFFFFFF");
+    // Data blocks: everything with key A|B. Sector trailer: key B
+    // can not be read (and therefore can be used).
+    private static final byte[] AC = Common.hex2Bytes("7F078800");
+
+    private MCSimulatedTag mTag;
+    private MCTransportServer mServer;
+    private MCSocketTransport mTransport;
+
+    @Before
+    public void setUp() throws IOException {
+        mTag = new MCSimulatedTag(MCSimulatedTag.SIZE_1K,
+                Common.hex2Bytes("01020304"));
+        for (int sector = 0; sector < mTag.getSectorCount(); sector++) {
+            mTag.setSectorTrailer(sector, KEY_A, AC, KEY_B);
+        }
+        mServer = new MCTransportServer(mTag, 0);
+        mServer.start();
+        mTransport = new MCSocketTransport("127.0.0.1", mServer.getPort());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mTransport.close();
+        mServer.close();
+    }
+
+    @Test
+    public void connect() throws IOException {
+        assertFalse(mTransport.isConnected());
+        mTransport.connect();
+        assertTrue(mTransport.isConnected());
+        assertTrue(mTag.isConnected());
+        assertArrayEquals(mTag.getUid(), mTransport.getUid());
+        assertArrayEquals(mTag.getAtqa(), mTransport.getAtqa());
+        assertEquals(mTag.getSak(), mTransport.getSak());
+        assertEquals(mTag.getSize(), mTransport.getSize());
+        assertEquals(16, mTransport.getSectorCount());
+        assertEquals(64, mTransport.getBlockCount());
+        // A second connect only refreshes the tag information.
+        mTransport.connect();
+        assertTrue(mTransport.isConnected());
+
+        mTransport.close();
+        assertFalse(mTransport.isConnected());
+        assertFalse(mTag.isConnected());
+        // The server accepts the next client.
+        mTransport.connect();
+        assertTrue(mTag.isConnected());
+    }
+
+    @Test
+    public void readWrite() throws IOException {
+        mTransport.connect();
+        assertFalse(mTransport.authenticateSectorWithKeyA(1, WRONG_KEY));
+        // A refused authentication keeps the connection.
+        assertTrue(mTransport.isConnected());
+        assertTrue(mTransport.authenticateSectorWithKeyA(1, KEY_A));
+        assertArrayEquals(mTag.getBlock(4), mTransport.readBlock(4));
+
+        byte[] data = Common.hex2Bytes("00112233445566778899AABBCCDDEEFF");
+        assertTrue(mTransport.authenticateSectorWithKeyB(1, KEY_B));
+        mTransport.writeBlock(5, data);
+        assertArrayEquals(data, mTag.getBlock(5));
+        assertArrayEquals(data, mTransport.readBlock(5));
+        // The sector trailer as read from the tag (key A is hidden).
+        byte[] trailer = mTransport.readBlock(7);
+        assertArrayEquals(new byte[6], Arrays.copyOfRange(trailer, 0, 6));
+        assertArrayEquals(AC, Arrays.copyOfRange(trailer, 6, 10));
+    }
+
+    @Test
+    public void valueBlocks() throws IOException {
+        mTag.setBlock(8, Common.encodeValueBlock(100, 8));
+        mTransport.connect();
+        assertTrue(mTransport.authenticateSectorWithKeyA(2, KEY_A));
+        mTransport.increment(8, 0x01020304);
+        mTransport.transfer(8);
+        assertArrayEquals(Common.encodeValueBlock(100 + 0x01020304, 8),
+                mTag.getBlock(8));
+        mTransport.decrement(8, 0x01020304 + 1);
+        mTransport.transfer(9);
+        assertArrayEquals(Common.encodeValueBlock(99, 8), mTag.getBlock(9));
+        mTransport.restore(9);
+        mTransport.transfer(10);
+        assertArrayEquals(mTag.getBlock(9), mTag.getBlock(10));
+    }
+
+    @Test
+    public void readerError() throws IOException {
+        mTransport.connect();
+        // Not authenticated.
+        try {
+            mTransport.readBlock(4);
+            fail("Read without authentication.");
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertTrue(mTransport.isConnected());
+        assertTrue(mTransport.authenticateSectorWithKeyA(1, KEY_A));
+        assertNotNull(mTransport.readBlock(4));
+    }
+
+    @Test
+    public void tagLost() throws IOException {
+        mTransport.connect();
+        assertTrue(mTransport.authenticateSectorWithKeyA(1, KEY_A));
+        mTag.setPresent(false);
+        try {
+            mTransport.readBlock(4);
+            fail("Tag loss was not reported.");
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertFalse(mTransport.isConnected());
+        // Reconnect over the same socket once the tag is back.
+        mTag.setPresent(true);
+        mTransport.connect();
+        assertTrue(mTransport.authenticateSectorWithKeyA(1, KEY_A));
+        assertArrayEquals(mTag.getBlock(4), mTransport.readBlock(4));
+    }
+
+    @Test
+    public void serverClosed() throws IOException {
+        mTransport.connect();
+        mServer.close();
+        try {
+            mTransport.authenticateSectorWithKeyA(1, KEY_A);
+            fail("The broken connection was not reported.");
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertFalse(mTransport.isConnected());
+        try {
+            mTransport.connect();
+            fail("Connected to a closed server.");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void mcReader() throws Exception {
+        MCReader reader = MCReader.get(mTransport);
+        assertNotNull(reader);
+        reader.setConfig(new ReaderConfig(false, false, 0, false, 0));
+        reader.connect();
+        String[] sector = reader.readSector(3, KEY_A, false);
+        assertNotNull(sector);
+        assertEquals(4, sector.length);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Common.bytes2Hex(mTag.getBlock(12 + i)), sector[i]);
+        }
+        reader.close();
+    }
+
+    @Test
+    public void framing() throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        byte[] payload = new byte[MCSocketTransport.MAX_FRAME_SIZE];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        MCSocketTransport.writeFrame(out, new byte[0]);
+        MCSocketTransport.writeFrame(out, payload);
+        byte[] frames = buffer.toByteArray();
+        // Big endian length + payload.
+        assertEquals(2 + 2 + payload.length, frames.length);
+        assertEquals(0x01, frames[2]);
+        assertEquals(0x00, frames[3]);
+
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(frames));
+        assertEquals(0, MCSocketTransport.readFrame(in).length);
+        assertArrayEquals(payload, MCSocketTransport.readFrame(in));
+        try {
+            MCSocketTransport.readFrame(in);
+            fail("End of stream was not reported.");
+        } catch (EOFException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void invalidFrames() {
+        try {
+            MCSocketTransport.writeFrame(new DataOutputStream(
+                    new ByteArrayOutputStream()),
+                    new byte[MCSocketTransport.MAX_FRAME_SIZE + 1]);
+            fail("Too large frame was written.");
+        } catch (IOException e) {
+            // Expected.
+        }
+        // Too large.
+        assertReadFails(new byte[] {0x01, 0x01});
+        // Truncated payload.
+        assertReadFails(new byte[] {0x00, 0x04, 0x01, 0x02});
+        // Truncated length.
+        assertReadFails(new byte[] {0x00});
+    }
+
+    private static void assertReadFails(byte[] frame) {
+        try {
+            MCSocketTransport.readFrame(new DataInputStream(
+                    new ByteArrayInputStream(frame)));
+            fail("Invalid frame was read.");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+}
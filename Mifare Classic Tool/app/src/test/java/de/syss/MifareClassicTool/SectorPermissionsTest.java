@@ -0,0 +1,163 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import de.syss.MifareClassicTool.Common.Operation;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/**
+ * Test the decoding and caching of Access Conditions by
+ * {@link SectorPermissions} and its use by
+ * {@link Common#acBytesToACMatrix(byte[])}.
+ * @author Gerhard Klostermeier
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SectorPermissionsTest {
+
+    // Transport configuration: everything with key A, key B readable.
+    private static final byte[] TRANSPORT = Common.hex2Bytes("FF0780");
+    // Data blocks: key A|B. Sector Trailer: key B not readable.
+    private static final byte[] KEY_B_SECRET = Common.hex2Bytes("7F0788");
+
+    @Test
+    public void decodeTransportConfiguration() {
+        SectorPermissions permissions = SectorPermissions.decode(TRANSPORT);
+        assertNotNull(permissions);
+        assertTrue(permissions.isKeyBReadable());
+        for (int group = 0; group < 3; group++) {
+            assertEquals(0, permissions.getAccessBits(group));
+            // Key B is readable and can not be used.
+            assertEquals(1, permissions.getKeys(group, Operation.Read));
+            assertEquals(1, permissions.getKeys(group, Operation.Write));
+            // Not an operation of a data block.
+            assertEquals(0, permissions.getKeys(group, Operation.WriteAC));
+        }
+        assertEquals(1, permissions.getAccessBits(
+                SectorPermissions.TRAILER_GROUP));
+        assertEquals(1, permissions.getKeys(
+                SectorPermissions.TRAILER_GROUP, Operation.WriteAC));
+        assertEquals(0, permissions.getKeys(
+                SectorPermissions.TRAILER_GROUP, Operation.ReadKeyA));
+        assertEquals(0, permissions.getKeys(
+                SectorPermissions.TRAILER_GROUP, Operation.Read));
+    }
+
+    @Test
+    public void decodeKeyBSecret() {
+        SectorPermissions permissions =
+                SectorPermissions.decode(KEY_B_SECRET);
+        assertNotNull(permissions);
+        assertFalse(permissions.isKeyBReadable());
+        assertEquals(3, permissions.getKeys(0, Operation.Write));
+        assertTrue(permissions.isAllowed(0, Operation.Write, true));
+        assertEquals(2, permissions.getKeys(
+                SectorPermissions.TRAILER_GROUP, Operation.WriteAC));
+        assertFalse(permissions.isAllowed(
+                SectorPermissions.TRAILER_GROUP, Operation.WriteAC, false));
+    }
+
+    @Test
+    public void decodeSectorTrailer() {
+        byte[] trailer = Common.hex2Bytes(
+                "A0A1A2A3A4A57F078869B0B1B2B3B4B5");
+        assertSame(SectorPermissions.decode(KEY_B_SECRET),
+                SectorPermissions.decode(trailer, 6));
+    }
+
+    @Test
+    public void decodeInvalid() {
+        assertNull(SectorPermissions.decode(null));
+        assertNull(SectorPermissions.decode(new byte[2]));
+        assertNull(SectorPermissions.decode(TRANSPORT, 1));
+        assertNull(SectorPermissions.decode(TRANSPORT, -1));
+        // One inverted bit does not match.
+        assertNull(SectorPermissions.decode(Common.hex2Bytes("FF0781")));
+        assertNull(SectorPermissions.decode(Common.hex2Bytes("000000")));
+        assertNull(Common.acBytesToACMatrix(null));
+        assertNull(Common.acBytesToACMatrix(Common.hex2Bytes("FF07")));
+    }
+
+    @Test
+    public void decodedObjectsAreShared() {
+        SectorPermissions permissions = SectorPermissions.decode(TRANSPORT);
+        assertSame(permissions, SectorPermissions.decode(TRANSPORT.clone()));
+        assertEquals(permissions, SectorPermissions.decode(TRANSPORT));
+        assertEquals(permissions.hashCode(),
+                SectorPermissions.decode(TRANSPORT).hashCode());
+        assertFalse(permissions.equals(
+                SectorPermissions.decode(KEY_B_SECRET)));
+    }
+
+    @Test
+    public void matrixIsACopy() {
+        SectorPermissions permissions = SectorPermissions.decode(TRANSPORT);
+        byte[][] matrix = permissions.toACMatrix();
+        assertNotSame(matrix, permissions.toACMatrix());
+        matrix[0][0] = 1;
+        assertEquals(0, permissions.getAccessBits(0));
+        assertEquals(0, Common.acBytesToACMatrix(TRANSPORT)[0][0]);
+    }
+
+    @Test
+    public void acBytesToACMatrix() {
+        // All Access Condition bytes (and the round trip for valid ones).
+        byte[] acBytes = new byte[3];
+        for (int i = 0; i < (1 << 24); i++) {
+            acBytes[0] = (byte) (i >>> 16);
+            acBytes[1] = (byte) (i >>> 8);
+            acBytes[2] = (byte) i;
+            byte[][] legacy = LegacyCommon.acBytesToACMatrix(acBytes);
+            byte[][] matrix = Common.acBytesToACMatrix(acBytes);
+            if (legacy == null) {
+                assertNull(matrix);
+                continue;
+            }
+            for (int j = 0; j < 3; j++) {
+                assertArrayEquals(legacy[j], matrix[j]);
+            }
+            assertArrayEquals(acBytes, Common.acMatrixToACBytes(matrix));
+        }
+    }
+
+    @Test
+    public void getGroup() {
+        for (int block = 0; block < 3; block++) {
+            assertEquals(block, SectorPermissions.getGroup(block, 4));
+        }
+        assertEquals(SectorPermissions.TRAILER_GROUP,
+                SectorPermissions.getGroup(3, 4));
+        for (int block = 0; block < 15; block++) {
+            assertEquals(block / 5, SectorPermissions.getGroup(block, 16));
+        }
+        assertEquals(SectorPermissions.TRAILER_GROUP,
+                SectorPermissions.getGroup(15, 16));
+    }
+}
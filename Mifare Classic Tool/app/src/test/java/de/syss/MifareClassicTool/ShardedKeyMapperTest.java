@@ -0,0 +1,261 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.util.SparseArray;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Map the keys of a {@link MCSimulatedTag} (1K) with several readers
+ * ({@link ShardedKeyMapper}) and compare the merged key map with the one
+ * of a single {@link MCReader}. Each reader gets its own clone of the tag.
+ * @author Gerhard Klostermeier
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ShardedKeyMapperTest {
+
+    // Keys of the tag. The key file has them in between other keys.
+    private static final String[] KEYS = {"A0A1A2A3A4A5", "B0B1B2B3B4B5",
+            "D3F7D3F7D3F7", "4D3A99C351DD", "1A982C7E459A", "AABBCCDDEEFF",
+            "714C5C886E97", "587EE5F9350F"};
+    // Key B can not be read.
+    private static final byte[] AC = Common.hex2Bytes("7F078800");
+    // Key B is readable with key A (and therefore can not be used).
+    private static final byte[] AC_KEY_B_READABLE =
+            Common.hex2Bytes("FF078069");
+    // Not in the key file.
+    private static final byte[] UNKNOWN_KEY =
+            Common.hex2Bytes("5A3C96E1B2D4");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private KeyDictionary mKeys;
+    private ReaderConfig mConfig;
+
+    @Before
+    public void setUp() throws IOException {
+        File keyFile = mFolder.newFile("test.keys");
+        StringBuilder keys = new StringBuilder("FFFFFFFFFFFF\n");
+        for (int i = 0; i < KEYS.length; i++) {
+            keys.append(String.format("%012X\n", 0x100000000000L + i));
+            keys.append(KEYS[i]).append('\n');
+        }
+        try (FileOutputStream out = new FileOutputStream(keyFile)) {
+            out.write(keys.toString().getBytes(StandardCharsets.US_ASCII));
+        }
+        mKeys = KeyDictionary.load(new File[] {keyFile});
+        mConfig = new ReaderConfig(false, false, 0, false, 0);
+    }
+
+    @Test
+    public void oneReader() {
+        SparseArray<byte[][]> keyMap = mapWithOneReader(0, 15);
+        assertEquals(16, keyMap.size());
+        assertNull(keyMap.get(9)[0]);
+        assertNull(keyMap.get(10)[1]);
+        assertArrayEquals(Common.hex2Bytes(KEYS[5]), keyMap.get(5)[0]);
+        assertArrayEquals(Common.hex2Bytes(KEYS[0]), keyMap.get(5)[1]);
+    }
+
+    @Test
+    public void splitKeys() {
+        for (int readers = 2; readers <= 3; readers++) {
+            List<MCSimulatedTag> tags = newTags(readers);
+            SparseArray<byte[][]> keyMap = new ShardedKeyMapper(mKeys,
+                    mConfig).map(transports(tags),
+                    ShardedKeyMapper.SPLIT_KEYS, 0, 15);
+            assertKeyMapEquals(mapWithOneReader(0, 15), keyMap);
+            // Every reader did a part of the work.
+            for (MCSimulatedTag tag : tags) {
+                assertTrue(tag.getAuthenticationCount() > 0);
+            }
+        }
+    }
+
+    @Test
+    public void splitSectors() {
+        for (int readers = 2; readers <= 3; readers++) {
+            List<MCSimulatedTag> tags = newTags(readers);
+            SparseArray<byte[][]> keyMap = new ShardedKeyMapper(mKeys,
+                    mConfig).map(transports(tags),
+                    ShardedKeyMapper.SPLIT_SECTORS, 0, 15);
+            assertKeyMapEquals(mapWithOneReader(0, 15), keyMap);
+            for (MCSimulatedTag tag : tags) {
+                assertTrue(tag.getAuthenticationCount() > 0);
+            }
+        }
+    }
+
+    @Test
+    public void moreReadersThanSectors() {
+        // 3 readers, but only 2 sectors. The last reader is not used.
+        List<MCSimulatedTag> tags = newTags(3);
+        SparseArray<byte[][]> keyMap = new ShardedKeyMapper(mKeys, mConfig)
+                .map(transports(tags), ShardedKeyMapper.SPLIT_SECTORS, 6, 7);
+        assertKeyMapEquals(mapWithOneReader(6, 7), keyMap);
+        assertTrue(tags.get(0).getAuthenticationCount() > 0);
+        assertTrue(tags.get(1).getAuthenticationCount() > 0);
+        assertEquals(0, tags.get(2).getCommandCount());
+        assertFalse(tags.get(2).isConnected());
+    }
+
+    @Test
+    public void failedReaderCancelsMapping() {
+        for (int mode : new int[] {ShardedKeyMapper.SPLIT_KEYS,
+                ShardedKeyMapper.SPLIT_SECTORS}) {
+            List<MCSimulatedTag> tags = newTags(3);
+            // The second reader can not connect.
+            tags.get(1).setPresent(false);
+            assertNull(new ShardedKeyMapper(mKeys, mConfig)
+                    .map(transports(tags), mode, 0, 15));
+            // The third reader loses its tag while mapping.
+            tags = newTags(3);
+            tags.get(2).setRemoveAfter(10);
+            assertNull(new ShardedKeyMapper(mKeys, mConfig)
+                    .map(transports(tags), mode, 0, 15));
+        }
+    }
+
+    @Test
+    public void invalidArguments() {
+        ShardedKeyMapper mapper = new ShardedKeyMapper(mKeys, mConfig);
+        assertNull(mapper.map(null, ShardedKeyMapper.SPLIT_KEYS, 0, 15));
+        assertNull(mapper.map(new ArrayList<>(),
+                ShardedKeyMapper.SPLIT_KEYS, 0, 15));
+        assertNull(mapper.map(transports(newTags(2)),
+                ShardedKeyMapper.SPLIT_KEYS, 5, 4));
+    }
+
+    @Test
+    public void firstHitWins() {
+        KeyMapBoard board = new KeyMapBoard();
+        long keyA = KeyDictionary.toLong(Common.hex2Bytes(KEYS[0]));
+        long keyB = KeyDictionary.toLong(Common.hex2Bytes(KEYS[1]));
+        assertEquals(KeyMapBoard.NO_KEY, board.getKey(3, false));
+        assertEquals(keyA, board.offer(3, false, keyA));
+        // A later hit for the same sector and key type is ignored.
+        assertEquals(keyA, board.offer(3, false, keyB));
+        assertEquals(keyA, board.getKey(3, false));
+        // Key B and the other sectors are independent.
+        assertEquals(KeyMapBoard.NO_KEY, board.getKey(3, true));
+        assertEquals(keyB, board.offer(3, true, keyB));
+        assertEquals(keyB, board.offer(4, false, keyB));
+
+        SparseArray<byte[][]> keyMap = board.toKeyMap(0, 15);
+        assertEquals(2, keyMap.size());
+        assertArrayEquals(Common.hex2Bytes(KEYS[0]), keyMap.get(3)[0]);
+        assertArrayEquals(Common.hex2Bytes(KEYS[1]), keyMap.get(3)[1]);
+        assertArrayEquals(Common.hex2Bytes(KEYS[1]), keyMap.get(4)[0]);
+        assertNull(keyMap.get(4)[1]);
+        assertFalse(board.isCanceled());
+        board.cancel();
+        assertTrue(board.isCanceled());
+    }
+
+    /**
+     * Create clones of a 1K tag. Each sector has a different pair of keys
+     * from {@link #KEYS}. The keys B of sectors 4 and 12 are readable,
+     * key A of sector 9 and key B of sector 10 are not in the key file.
+     * @param count Number of clones.
+     * @return The tags.
+     */
+    private static List<MCSimulatedTag> newTags(int count) {
+        List<MCSimulatedTag> tags = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            MCSimulatedTag tag = new MCSimulatedTag(MCSimulatedTag.SIZE_1K,
+                    Common.hex2Bytes("01020304"));
+            for (int sector = 0; sector < tag.getSectorCount(); sector++) {
+                byte[] keyA = Common.hex2Bytes(KEYS[sector % KEYS.length]);
+                byte[] keyB = Common.hex2Bytes(
+                        KEYS[(sector * 3 + 1) % KEYS.length]);
+                if (sector == 9) {
+                    keyA = UNKNOWN_KEY;
+                } else if (sector == 10) {
+                    keyB = UNKNOWN_KEY;
+                }
+                tag.setSectorTrailer(sector, keyA,
+                        (sector % 8 == 4) ? AC_KEY_B_READABLE : AC, keyB);
+            }
+            tags.add(tag);
+        }
+        return tags;
+    }
+
+    private static List<MCTransport> transports(List<MCSimulatedTag> tags) {
+        return new ArrayList<>(tags);
+    }
+
+    /**
+     * Map the keys of a clone of the tag with one reader.
+     */
+    private SparseArray<byte[][]> mapWithOneReader(int firstSector,
+            int lastSector) {
+        MCSimulatedTag tag = newTags(1).get(0);
+        MCReader reader = MCReader.get(tag);
+        reader.setConfig(mConfig);
+        try {
+            reader.connect();
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+        assertTrue(reader.setKeyDictionary(mKeys) > 0);
+        assertTrue(reader.setMappingRange(firstSector, lastSector));
+        int sectors = lastSector - firstSector + 1;
+        while (reader.getKeyMapProgress() < sectors) {
+            assertTrue(reader.buildNextKeyMapPart() != -1);
+        }
+        reader.close();
+        return reader.getKeyMap();
+    }
+
+    private static void assertKeyMapEquals(SparseArray<byte[][]> expected,
+            SparseArray<byte[][]> actual) {
+        assertNotNull(actual);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            int sector = expected.keyAt(i);
+            assertEquals(sector, actual.keyAt(i));
+            assertArrayEquals("Sector " + sector + " key A",
+                    expected.valueAt(i)[0], actual.valueAt(i)[0]);
+            assertArrayEquals("Sector " + sector + " key B",
+                    expected.valueAt(i)[1], actual.valueAt(i)[1]);
+        }
+    }
+}
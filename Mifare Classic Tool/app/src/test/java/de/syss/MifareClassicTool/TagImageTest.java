@@ -0,0 +1,147 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.util.SparseArray;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/**
+ * Check that every sector with a header in a dump is part of a
+ * {@link TagImage}, even if nothing of it is known, and that such sectors
+ * are listed and compared like before.
+ * @author Gerhard Klostermeier
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TagImageTest {
+
+    private static final String BLOCK = "00112233445566778899AABBCCDDEEFF";
+    private static final String TRAILER = "A0A1A2A3A4A5FF078069B0B1B2B3B4B5";
+    private static final String[] DUMP = {
+            "+Sector: 0", BLOCK, BLOCK, BLOCK, TRAILER,
+            // Nothing of sector 1 is known.
+            "+Sector: 1", MCReader.NO_DATA, MCReader.NO_DATA,
+            MCReader.NO_DATA, MCReader.NO_DATA,
+            "+Sector: 2", "*No keys found or dead sector",
+            // Sector 3 is missing.
+            "+Sector: 4", BLOCK, MCReader.NO_DATA, MCReader.NO_DATA,
+            "------------FF078069------------"};
+
+    @Test
+    public void sectorHeaders() {
+        TagImage image = TagImage.fromDump(DUMP);
+        assertNotNull(image);
+        assertEquals(5, image.getSectorCount());
+        assertTrue(image.hasSector(0));
+        assertTrue(image.hasSector(1));
+        assertTrue(image.hasSector(2));
+        assertFalse(image.hasSector(3));
+        assertTrue(image.hasSector(4));
+        assertFalse(image.hasSector(5));
+        assertFalse(image.isKeyAKnown(1));
+        assertFalse(image.isBlockValid(1, 0));
+
+        String[] sector1 = image.getSectorAsHex(1);
+        assertNotNull(sector1);
+        for (String block : sector1) {
+            assertEquals(MCReader.NO_DATA, block);
+        }
+        SparseArray<String[]> sectors = image.toSparseArray();
+        assertEquals(4, sectors.size());
+        assertEquals(-1, sectors.indexOfKey(3));
+    }
+
+    @Test
+    public void toDump() {
+        String[] dump = TagImage.fromDump(DUMP).toDump();
+        // Sector 2 ("*") is written with unknown blocks.
+        String[] expected = {
+                "+Sector: 0", BLOCK, BLOCK, BLOCK, TRAILER,
+                "+Sector: 1", MCReader.NO_DATA, MCReader.NO_DATA,
+                MCReader.NO_DATA, MCReader.NO_DATA,
+                "+Sector: 2", MCReader.NO_DATA, MCReader.NO_DATA,
+                MCReader.NO_DATA, MCReader.NO_DATA,
+                "+Sector: 4", BLOCK, MCReader.NO_DATA, MCReader.NO_DATA,
+                "------------FF078069------------"};
+        assertArrayEquals(expected, dump);
+    }
+
+    @Test
+    public void setAndClear() {
+        TagImage image = new TagImage(16);
+        assertFalse(image.hasSector(7));
+        image.setKeyA(7, Common.hex2Bytes("A0A1A2A3A4A5"), 0);
+        assertTrue(image.hasSector(7));
+        // Sectors stay part of the image when their data is cleared.
+        image.clearBlock(7, 3);
+        assertTrue(image.hasSector(7));
+        assertTrue(image.isEmpty());
+        image.addSector(9);
+        assertTrue(image.hasSector(9));
+        image.setBlockFromHex(11, 0, MCReader.NO_DATA);
+        assertTrue(image.hasSector(11));
+        assertFalse(image.hasSector(10));
+    }
+
+    @Test
+    public void diffIndices() {
+        // Sector 1 is unknown in both dumps and sector 2 only has a header
+        // in the first one.
+        String[] other = {
+                "+Sector: 0", BLOCK, BLOCK, BLOCK, TRAILER,
+                "+Sector: 1", MCReader.NO_DATA, MCReader.NO_DATA,
+                MCReader.NO_DATA, MCReader.NO_DATA,
+                "+Sector: 4", BLOCK, MCReader.NO_DATA, MCReader.NO_DATA,
+                "------------FF078069------------"};
+        TagImage image1 = TagImage.fromDump(DUMP);
+        TagImage image2 = TagImage.fromDump(other);
+        SparseArray<Integer[][]> diff =
+                MCDiffUtils.diffIndices(image1, image2);
+        assertEquals(4, diff.size());
+        Integer[][] sector1 = diff.get(1);
+        assertEquals(4, sector1.length);
+        for (Integer[] block : sector1) {
+            assertEquals(0, block.length);
+        }
+        // Only in the first dump.
+        assertEquals(0, diff.get(2).length);
+
+        // Same result as the diff of the dumps as strings.
+        SparseArray<Integer[][]> expected = MCDiffUtils.diffIndices(
+                image1.toSparseArray(), image2.toSparseArray());
+        assertEquals(expected.size(), diff.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.keyAt(i), diff.keyAt(i));
+            Integer[][] e = expected.valueAt(i);
+            Integer[][] a = diff.valueAt(i);
+            assertEquals(e.length, a.length);
+            for (int j = 0; j < e.length; j++) {
+                assertArrayEquals(e[j], a[j]);
+            }
+        }
+    }
+}
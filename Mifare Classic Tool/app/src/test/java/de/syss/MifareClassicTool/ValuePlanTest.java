@@ -0,0 +1,235 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.util.SparseArray;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/**
+ * Apply {@link ValuePlan}s to a {@link MCSimulatedTag} with
+ * {@link MCReader#applyValuePlan(ValuePlan, SparseArray)} and check the
+ * method chosen for each change, the results and the values on the tag.
+ * @author Gerhard Klostermeier
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ValuePlanTest {
+
+    private static final byte[] KEY_A = Common.hex2Bytes("A0A1A2A3A4A5");
+    private static final byte[] KEY_B = Common.hex2Bytes("B0B1B2B3B4B5");
+    // Access bits (C1C2C3) of the data blocks.
+    private static final int AC_ALL = 0b000;
+    private static final int AC_DECREMENT_ONLY = 0b001;
+    private static final int AC_WRITE_KEY_B = 0b100;
+    // Sector Trailer: key A|B can read the Access Conditions.
+    private static final int AC_TRAILER = 0b011;
+
+    private MCSimulatedTag mTag;
+    private SparseArray<byte[][]> mKeyMap;
+
+    @Before
+    public void setUp() {
+        mTag = new MCSimulatedTag(MCSimulatedTag.SIZE_1K,
+                Common.hex2Bytes("01020304"));
+        mKeyMap = new SparseArray<>();
+    }
+
+    @Test
+    public void methodSelection() throws Exception {
+        // Sector 1: everything with key A|B.
+        // Sector 2: decrement only (increment with the staging block 1).
+        // Sector 3: write with key B only.
+        setSector(1, ac(AC_ALL, AC_ALL, AC_ALL));
+        setSector(2, ac(AC_DECREMENT_ONLY, AC_ALL, AC_DECREMENT_ONLY));
+        setSector(3, ac(AC_WRITE_KEY_B, AC_WRITE_KEY_B, AC_WRITE_KEY_B));
+        byte[] staging = mTag.getBlock(9);
+        ValuePlan plan = new ValuePlan();
+        for (int sector = 1; sector < 4; sector++) {
+            plan.addDelta(sector, 0, 5);
+            plan.addDelta(sector, 2, -3);
+            plan.addSetValue(sector, 2, 77 * sector);
+        }
+        plan.setStagingBlock(2, 1);
+
+        MCReader reader = connect();
+        assertEquals(0, reader.applyValuePlan(plan, mKeyMap));
+        assertEquals(0, plan.getFailedCount());
+        int[] methods = {
+                ValuePlan.METHOD_NATIVE, ValuePlan.METHOD_NATIVE,
+                ValuePlan.METHOD_NATIVE,
+                ValuePlan.METHOD_STAGED, ValuePlan.METHOD_NATIVE,
+                ValuePlan.METHOD_NATIVE,
+                ValuePlan.METHOD_WRITE, ValuePlan.METHOD_WRITE,
+                ValuePlan.METHOD_WRITE};
+        for (int i = 0; i < methods.length; i++) {
+            assertEquals(ValuePlan.RESULT_OK, plan.getResult(i));
+            assertEquals("change " + i, methods[i], plan.getMethod(i));
+        }
+        assertEquals(5, plan.getMethodCount(ValuePlan.METHOD_NATIVE));
+        for (int sector = 1; sector < 4; sector++) {
+            int block = sector * 4;
+            assertValueBlock(1000 * sector + 5, block, mTag.getBlock(block));
+            assertValueBlock(77 * sector, block + 2,
+                    mTag.getBlock(block + 2));
+        }
+        // The staging block was restored.
+        assertArrayEquals(staging, mTag.getBlock(9));
+        assertFalse(plan.isStagingRestoreFailed());
+        // One authentication per sector (reading the Access Conditions
+        // with key A) and one more for the key B only sector.
+        assertEquals(4, plan.getAuthCount());
+        assertEquals(4, mTag.getAuthenticationCount());
+        assertEquals(mTag.getCommandCount() - plan.getAuthCount(),
+                plan.getCommandCount());
+    }
+
+    @Test
+    public void outOfRange() throws Exception {
+        setSector(1, ac(AC_ALL, AC_ALL, AC_ALL));
+        setSector(2, ac(AC_WRITE_KEY_B, AC_WRITE_KEY_B, AC_WRITE_KEY_B));
+        mTag.setBlock(4, Common.encodeValueBlock(-2000000000, 4));
+        mTag.setBlock(6, Common.encodeValueBlock(-10, 6));
+        mTag.setBlock(8, Common.encodeValueBlock(Integer.MAX_VALUE - 1, 8));
+        ValuePlan plan = new ValuePlan();
+        // The delta does not fit in the operand of a decrement.
+        plan.addSetValue(1, 0, 2000000000);
+        // The new value does not fit in 32 bits.
+        plan.addDelta(1, 2, Integer.MIN_VALUE);
+        plan.addDelta(2, 0, 5);
+
+        MCReader reader = connect();
+        assertEquals(-1, reader.applyValuePlan(plan, mKeyMap));
+        assertEquals(ValuePlan.RESULT_OK, plan.getResult(0));
+        assertEquals(ValuePlan.METHOD_WRITE, plan.getMethod(0));
+        assertValueBlock(2000000000, 4, mTag.getBlock(4));
+        assertEquals(ValuePlan.RESULT_OUT_OF_RANGE, plan.getResult(1));
+        assertValueBlock(-10, 6, mTag.getBlock(6));
+        assertEquals(ValuePlan.RESULT_OUT_OF_RANGE, plan.getResult(2));
+        assertValueBlock(Integer.MAX_VALUE - 1, 8, mTag.getBlock(8));
+        assertEquals(2, plan.getFailedCount());
+    }
+
+    @Test
+    public void invalidChanges() throws Exception {
+        setSector(1, ac(AC_WRITE_KEY_B, AC_ALL, AC_ALL));
+        // Not a Value Block.
+        mTag.setBlock(4, new byte[16]);
+        ValuePlan plan = new ValuePlan();
+        plan.addDelta(1, 3, 1);
+        plan.addDelta(1, -1, 1);
+        plan.addDelta(16, 0, 1);
+        // No keys.
+        plan.addDelta(5, 0, 1);
+        // The new value is unknown.
+        plan.addDelta(1, 0, 1);
+        mKeyMap.put(0, new byte[][] {Common.hex2Bytes("FFFFFFFFFFFF"), null});
+        plan.addDelta(0, 0, 1);
+
+        MCReader reader = connect();
+        assertEquals(-1, reader.applyValuePlan(plan, mKeyMap));
+        assertEquals(ValuePlan.RESULT_INVALID_BLOCK, plan.getResult(0));
+        assertEquals(ValuePlan.RESULT_INVALID_BLOCK, plan.getResult(1));
+        assertEquals(ValuePlan.RESULT_INVALID_BLOCK, plan.getResult(2));
+        assertEquals(ValuePlan.RESULT_NOT_PERMITTED, plan.getResult(3));
+        assertEquals(ValuePlan.RESULT_NOT_PERMITTED, plan.getResult(4));
+        assertEquals(ValuePlan.RESULT_INVALID_BLOCK, plan.getResult(5));
+        assertEquals(6, plan.getFailedCount());
+        assertArrayEquals(new byte[16], mTag.getBlock(4));
+    }
+
+    @Test
+    public void tagLost() throws Exception {
+        ValuePlan plan = new ValuePlan();
+        for (int sector = 1; sector < 16; sector++) {
+            setSector(sector, ac(AC_ALL, AC_ALL, AC_ALL));
+            plan.addDelta(sector, 0, 1);
+        }
+        MCReader reader = connect();
+        mTag.setRemoveAfter(20);
+        assertEquals(-2, reader.applyValuePlan(plan, mKeyMap));
+        int applied = plan.getChangeCount() - plan.getFailedCount();
+        assertTrue(applied > 0 && applied < plan.getChangeCount());
+        for (int i = 0; i < plan.getChangeCount(); i++) {
+            int block = (i + 1) * 4;
+            if (i < applied) {
+                assertEquals(ValuePlan.RESULT_OK, plan.getResult(i));
+                assertValueBlock(1000 * (i + 1) + 1, block,
+                        mTag.getBlock(block));
+            } else if (i > applied) {
+                assertEquals(ValuePlan.RESULT_TAG_LOST, plan.getResult(i));
+                assertValueBlock(1000 * (i + 1), block, mTag.getBlock(block));
+            }
+        }
+    }
+
+    /**
+     * Set the keys and Access Conditions of a sector and fill its data
+     * blocks with Value Blocks (value = 1000 * sector + block).
+     */
+    private void setSector(int sector, byte[] ac) {
+        mTag.setSectorTrailer(sector, KEY_A, ac, KEY_B);
+        for (int block = 0; block < 3; block++) {
+            int absBlock = sector * 4 + block;
+            mTag.setBlock(absBlock, Common.encodeValueBlock(
+                    1000 * sector + block, absBlock));
+        }
+        mKeyMap.put(sector, new byte[][] {KEY_A, KEY_B});
+    }
+
+    private MCReader connect() throws Exception {
+        MCReader reader = MCReader.get(mTag);
+        reader.connect();
+        mTag.resetCounters();
+        return reader;
+    }
+
+    /**
+     * Build the 4 Access Condition bytes of a sector (with
+     * {@link #AC_TRAILER} for the Sector Trailer).
+     * @param acs The access bits (C1C2C3) of the 3 data block groups.
+     */
+    private static byte[] ac(int... acs) {
+        byte[][] matrix = new byte[3][4];
+        for (int group = 0; group < 4; group++) {
+            int bits = (group < 3) ? acs[group] : AC_TRAILER;
+            matrix[0][group] = (byte) ((bits >> 2) & 1);
+            matrix[1][group] = (byte) ((bits >> 1) & 1);
+            matrix[2][group] = (byte) (bits & 1);
+        }
+        byte[] acBytes = Common.acMatrixToACBytes(matrix);
+        return new byte[] {acBytes[0], acBytes[1], acBytes[2], 0x69};
+    }
+
+    private static void assertValueBlock(int value, int address,
+            byte[] block) {
+        assertTrue(Common.isValueBlock(Common.bytes2Hex(block)));
+        int actual = (block[0] & 0xFF) | ((block[1] & 0xFF) << 8)
+                | ((block[2] & 0xFF) << 16) | (block[3] << 24);
+        assertEquals(value, actual);
+        assertEquals(address, block[12] & 0xFF);
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.util.SparseArray;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Test the {@link WriteJournal} file and the resume and rollback of
+ * interrupted writes ({@link MCReader#planJournalReplay(WriteJournal,
+ * boolean)}) with a {@link MCSimulatedTag}.
+ * @author Gerhard Klostermeier
+ */
+@RunWith(RobolectricTestRunner.class)
+public class WriteJournalTest {
+
+    private static final byte[] UID = Common.hex2Bytes("01020304");
+    private static final byte[] KEY_A = Common.hex2Bytes("A0A1A2A3A4A5");
+    private static final byte[] KEY_B = Common.hex2Bytes("B0B1B2B3B4B5");
+    private static final byte[] DEFAULT_KEY =
+            Common.hex2Bytes("FFFFFFFFFFFF");
+
+    @Test
+    public void createAndOpen() {
+        WritePlan plan = newPlan(new Random(1), null);
+        WriteJournal journal = WriteJournal.create(UID, plan);
+        assertNotNull(journal);
+        assertFalse(journal.hasPreImage(1, 0));
+        byte[] block = Common.hex2Bytes("00112233445566778899AABBCCDDEEFF");
+        assertTrue(journal.addPreImage(1, 0, block, true));
+        // Only the first pre-image is the original content.
+        assertTrue(journal.addPreImage(1, 0, new byte[16], true));
+        // Could not be read.
+        assertTrue(journal.addPreImage(1, 1, null, true));
+        // Sector Trailer with an unknown key.
+        assertTrue(journal.addPreImage(1, 3, new byte[16], false));
+        assertTrue(journal.sync());
+        journal.close();
+
+        WriteJournal loaded = WriteJournal.open(UID);
+        assertNotNull(loaded);
+        assertEquals(journal.getData().keySet(), loaded.getData().keySet());
+        for (int sector : journal.getData().keySet()) {
+            HashMap<Integer, byte[]> blocks = journal.getData().get(sector);
+            for (int b : blocks.keySet()) {
+                assertArrayEquals(blocks.get(b),
+                        loaded.getData().get(sector).get(b));
+            }
+        }
+        assertTrue(loaded.hasPreImage(1, 0));
+        assertTrue(loaded.hasPreImage(1, 1));
+        assertFalse(loaded.hasPreImage(1, 2));
+        assertArrayEquals(block, loaded.getPreImages().get(1).get(0));
+        assertEquals(1, loaded.getPreImages().get(1).size());
+        assertEquals(2, loaded.getUnrestorableCount());
+
+        // Keys used for the write and keys of the new Sector Trailer.
+        List<byte[]> candidates = loaded.getKeyCandidates(1, false);
+        assertEquals(2, candidates.size());
+        assertArrayEquals(DEFAULT_KEY, candidates.get(0));
+        assertArrayEquals(KEY_A, candidates.get(1));
+        assertArrayEquals(KEY_B, loaded.getKeyCandidates(1, true).get(1));
+
+        loaded.delete();
+        assertNull(WriteJournal.open(UID));
+    }
+
+    @Test
+    public void journalIsNotInTheCache() {
+        WriteJournal journal = WriteJournal.create(UID,
+                newPlan(new Random(1), null));
+        assertNotNull(journal);
+        File dir = Common.getFile(WriteJournal.JOURNAL_DIR);
+        assertTrue(new File(dir, Common.bytes2Hex(UID) + ".bin").isFile());
+        assertNotEquals(Common.getCacheFile(WriteJournal.JOURNAL_DIR), dir);
+        journal.delete();
+    }
+
+    @Test
+    public void incompleteLastRecordIsIgnored() throws Exception {
+        WriteJournal journal = WriteJournal.create(UID,
+                newPlan(new Random(1), null));
+        assertNotNull(journal);
+        journal.addPreImage(1, 0, new byte[16], true);
+        journal.addPreImage(1, 1, new byte[16], true);
+        journal.close();
+        File file = new File(Common.getFile(WriteJournal.JOURNAL_DIR),
+                Common.bytes2Hex(UID) + ".bin");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 5);
+        }
+        WriteJournal loaded = WriteJournal.open(UID);
+        assertNotNull(loaded);
+        assertTrue(loaded.hasPreImage(1, 0));
+        assertFalse(loaded.hasPreImage(1, 1));
+        loaded.delete();
+    }
+
+    @Test
+    public void noJournal() {
+        assertNull(WriteJournal.open(UID));
+        assertNull(WriteJournal.open(null));
+        assertNull(WriteJournal.create(new byte[0],
+                newPlan(new Random(1), null)));
+    }
+
+    @Test
+    public void resumeAndRollback() throws Exception {
+        // Interrupt the write after a number of commands, then
+        // resume or roll it back.
+        int interrupted = 0;
+        for (int cut = 5; cut < 200; cut += 13) {
+            for (boolean rollback : new boolean[] {false, true}) {
+                MCSimulatedTag tag = new MCSimulatedTag(
+                        MCSimulatedTag.SIZE_1K, UID);
+                Random random = new Random(cut);
+                WritePlan plan = newPlan(random, tag);
+                byte[][] original = new byte[tag.getBlockCount()][];
+                for (int i = 0; i < original.length; i++) {
+                    original[i] = tag.getBlock(i);
+                }
+                HashMap<Integer, HashMap<Integer, byte[]>> data =
+                        getData(plan);
+
+                MCReader reader = MCReader.get(tag);
+                reader.connect();
+                WriteJournal journal = WriteJournal.create(UID, plan);
+                assertNotNull(journal);
+                tag.setRemoveAfter(cut);
+                int ret = reader.writeWithPlan(plan, journal);
+                journal.close();
+                if (ret == 0) {
+                    journal.delete();
+                    continue;
+                }
+                assertEquals(-2, ret);
+                interrupted++;
+
+                // The tag is back. Journal from disk.
+                tag.setPresent(true);
+                reader = MCReader.get(tag);
+                reader.connect();
+                journal = WriteJournal.open(UID);
+                assertNotNull(journal);
+                WritePlan replay = reader.planJournalReplay(journal, rollback);
+                assertNotNull(replay);
+                assertEquals(0, reader.writeWithPlan(replay,
+                        rollback ? null : journal));
+                journal.delete();
+
+                for (int i = 0; i < original.length; i++) {
+                    int sector = i / 4;
+                    int block = i % 4;
+                    byte[] expected = (rollback || i == 0) ? original[i]
+                            : data.get(sector).get(block);
+                    assertArrayEquals("cut " + cut + " rollback " + rollback
+                            + " block " + i, expected, tag.getBlock(i));
+                }
+            }
+        }
+        assertTrue(interrupted > 10);
+    }
+
+    /**
+     * Create a plan that writes random data and new keys to all blocks of
+     * a 1K tag with default keys (except the manufacturer block).
+     * @param random The source of the data.
+     * @param tag If not null, the data blocks of the tag are filled
+     * with random data too.
+     */
+    private static WritePlan newPlan(Random random, MCSimulatedTag tag) {
+        byte[] trailer = Common.hex2Bytes("A0A1A2A3A4A5FF078069B0B1B2B3B4B5");
+        HashMap<Integer, HashMap<Integer, Integer>> writeOnPos =
+                new HashMap<>();
+        HashMap<Integer, HashMap<Integer, byte[]>> data = new HashMap<>();
+        SparseArray<byte[][]> keyMap = new SparseArray<>();
+        for (int sector = 0; sector < 16; sector++) {
+            HashMap<Integer, Integer> blockInfo = new HashMap<>();
+            HashMap<Integer, byte[]> blocks = new HashMap<>();
+            for (int block = (sector == 0) ? 1 : 0; block < 3; block++) {
+                if (tag != null) {
+                    byte[] current = new byte[16];
+                    random.nextBytes(current);
+                    tag.setBlock(sector * 4 + block, current);
+                }
+                byte[] d = new byte[16];
+                random.nextBytes(d);
+                blocks.put(block, d);
+                blockInfo.put(block, 1);
+            }
+            blocks.put(3, trailer.clone());
+            blockInfo.put(3, 1);
+            writeOnPos.put(sector, blockInfo);
+            data.put(sector, blocks);
+            keyMap.put(sector, new byte[][] {DEFAULT_KEY, DEFAULT_KEY});
+        }
+        return WritePlan.compile(writeOnPos, keyMap, data);
+    }
+
+    private static HashMap<Integer, HashMap<Integer, byte[]>> getData(
+            WritePlan plan) {
+        HashMap<Integer, HashMap<Integer, byte[]>> data = new HashMap<>();
+        for (WritePlan.Step step : plan.getSteps()) {
+            HashMap<Integer, byte[]> blocks = new HashMap<>();
+            for (int i = 0; i < step.mBlocks.length; i++) {
+                blocks.put(step.mBlocks[i], step.mData[i]);
+            }
+            data.put(step.mSector, blocks);
+        }
+        return data;
+    }
+}
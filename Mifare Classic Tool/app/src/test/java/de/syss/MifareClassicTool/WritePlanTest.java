@@ -0,0 +1,291 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.util.SparseArray;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Test how {@link WritePlan#compile(HashMap, SparseArray, HashMap)} groups
+ * the blocks by key and how {@link MCReader#writeWithPlan(WritePlan)}
+ * executes a plan on a {@link MCSimulatedTag}.
+ * @author Gerhard Klostermeier
+ */
+@RunWith(RobolectricTestRunner.class)
+public class WritePlanTest {
+
+    private static final byte[] KEY_A = Common.hex2Bytes("A0A1A2A3A4A5");
+    private static final byte[] KEY_B = Common.hex2Bytes("B0B1B2B3B4B5");
+    private static final byte[] WRONG_KEY = Common.hex2Bytes("FFFFFFFFFFFF");
+    // Data blocks: everything with key A|B. Sector Trailer: key B
+    // can not be read (and therefore can be used).
+    private static final byte[] AC = Common.hex2Bytes("7F078800");
+
+    private HashMap<Integer, HashMap<Integer, Integer>> mWriteOnPos;
+    private HashMap<Integer, HashMap<Integer, byte[]>> mData;
+    private SparseArray<byte[][]> mKeyMap;
+
+    @Before
+    public void setUp() {
+        mWriteOnPos = new HashMap<>();
+        mData = new HashMap<>();
+        mKeyMap = new SparseArray<>();
+    }
+
+    @Test
+    public void blocksAreGroupedByKey() {
+        // Key A|B blocks use the key that is needed anyway.
+        addBlock(1, 0, 1);
+        addBlock(1, 1, 3);
+        addBlock(1, 2, 2);
+        WritePlan plan = compile();
+
+        assertEquals(3, plan.getBlockCount());
+        assertEquals(2, plan.getStepCount());
+        List<WritePlan.Step> steps = plan.getSteps();
+        assertFalse(steps.get(0).mKeyB);
+        assertArrayEquals(KEY_A, steps.get(0).mKey);
+        assertArrayEquals(new int[] {0}, steps.get(0).mBlocks);
+        assertTrue(steps.get(1).mKeyB);
+        assertArrayEquals(KEY_B, steps.get(1).mKey);
+        assertArrayEquals(new int[] {1, 2}, steps.get(1).mBlocks);
+        assertArrayEquals(new int[] {3, 2}, steps.get(1).mWriteInfo);
+    }
+
+    @Test
+    public void keyAOrBUsesOneAuthentication() {
+        addBlock(1, 0, 3);
+        addBlock(1, 1, 1);
+        addBlock(1, 2, 3);
+        WritePlan plan = compile();
+        assertEquals(1, plan.getStepCount());
+        assertFalse(plan.getSteps().get(0).mKeyB);
+        assertArrayEquals(new int[] {0, 1, 2},
+                plan.getSteps().get(0).mBlocks);
+    }
+
+    @Test
+    public void keyAOrBWithoutKeyA() {
+        addBlock(1, 0, 3);
+        mKeyMap.put(1, new byte[][] {null, KEY_B});
+        WritePlan plan = compile();
+        assertEquals(1, plan.getStepCount());
+        assertTrue(plan.getSteps().get(0).mKeyB);
+    }
+
+    @Test
+    public void sectorTrailerIsWrittenLast() {
+        // The Sector Trailer is written with key A, the data with key B.
+        addBlock(2, 3, 4);
+        addBlock(2, 0, 2);
+        WritePlan plan = compile();
+        List<WritePlan.Step> steps = plan.getSteps();
+        assertEquals(2, steps.size());
+        assertTrue(steps.get(0).mKeyB);
+        assertArrayEquals(new int[] {0}, steps.get(0).mBlocks);
+        assertFalse(steps.get(1).mKeyB);
+        assertArrayEquals(new int[] {3}, steps.get(1).mBlocks);
+        // Both keys of the sector are known to the steps.
+        assertArrayEquals(KEY_B, steps.get(1).mSectorKeys[1]);
+    }
+
+    @Test
+    public void sectorsAreSortedAndUnwritableBlocksSkipped() {
+        addBlock(5, 0, 1);
+        addBlock(1, 0, 0);
+        addBlock(1, 1, -1);
+        addBlock(1, 2, 1);
+        // No data.
+        addBlock(3, 0, 1);
+        mData.get(3).remove(0);
+        // No keys.
+        addBlock(4, 0, 1);
+        mKeyMap.remove(4);
+        WritePlan plan = compile();
+        assertEquals(2, plan.getBlockCount());
+        List<WritePlan.Step> steps = plan.getSteps();
+        assertEquals(2, steps.size());
+        assertEquals(1, steps.get(0).mSector);
+        assertArrayEquals(new int[] {2}, steps.get(0).mBlocks);
+        assertEquals(5, steps.get(1).mSector);
+    }
+
+    @Test
+    public void writeOnSimulatedTag() throws Exception {
+        MCSimulatedTag tag = newTag();
+        MCReader reader = newReader(tag);
+        for (int sector = 1; sector < 4; sector++) {
+            for (int block = 0; block < 3; block++) {
+                addBlock(sector, block, (block == 1) ? 2 : 3);
+            }
+        }
+        WritePlan plan = compile();
+        assertEquals(0, reader.writeWithPlan(plan));
+        assertEquals(3, plan.getAuthCount());
+        assertEquals(9, plan.getWrittenBlockCount());
+        assertEquals(9, plan.getWriteCount());
+        assertEquals(-1, plan.getFailedSector());
+        assertTagContainsData(tag);
+    }
+
+    @Test
+    public void differentialWrite() throws Exception {
+        MCSimulatedTag tag = newTag();
+        MCReader reader = newReader(tag);
+        for (int sector = 1; sector < 4; sector++) {
+            for (int block = 0; block < 3; block++) {
+                addBlock(sector, block, 3);
+            }
+        }
+        // The Sector Trailer of sector 3 (same keys and Access Conditions).
+        mWriteOnPos.get(3).put(3, 2);
+        mData.get(3).put(3, tag.getBlock(tag.sectorToBlock(3) + 3));
+        WritePlan plan = compile();
+        plan.setDifferential(true);
+        assertEquals(0, reader.writeWithPlan(plan));
+        assertEquals(10, plan.getWrittenBlockCount());
+        assertEquals(0, plan.getSkippedBlockCount());
+        assertTagContainsData(tag);
+
+        // Nothing changed. Only the Sector Trailer is written again,
+        // because key A can not be read and was not used for
+        // authentication (so it might differ).
+        assertEquals(0, reader.writeWithPlan(plan));
+        assertEquals(9, plan.getSkippedBlockCount());
+        assertEquals(1, plan.getWriteCount());
+
+        // One more block changed.
+        tag.setBlock(tag.sectorToBlock(2) + 1, new byte[16]);
+        assertEquals(0, reader.writeWithPlan(plan));
+        assertEquals(8, plan.getSkippedBlockCount());
+        assertEquals(2, plan.getWriteCount());
+        assertTagContainsData(tag);
+    }
+
+    @Test
+    public void differentialWriteSkipsKnownSectorTrailer() throws Exception {
+        MCSimulatedTag tag = newTag();
+        MCReader reader = newReader(tag);
+        // Transport configuration: key B is readable.
+        byte[] trailer = Common.hex2Bytes("A0A1A2A3A4A5FF078069B0B1B2B3B4B5");
+        tag.setBlock(tag.sectorToBlock(1) + 3, trailer);
+        addBlock(1, 0, 1);
+        addBlock(1, 3, 1);
+        mData.get(1).put(3, trailer);
+        WritePlan plan = compile();
+        plan.setDifferential(true);
+        assertEquals(0, reader.writeWithPlan(plan));
+        assertEquals(1, plan.getSkippedBlockCount());
+        assertEquals(1, plan.getWriteCount());
+        assertTagContainsData(tag);
+    }
+
+    @Test
+    public void writeWithWrongKey() throws Exception {
+        MCSimulatedTag tag = newTag();
+        MCReader reader = newReader(tag);
+        addBlock(1, 0, 1);
+        addBlock(2, 0, 1);
+        addBlock(3, 0, 1);
+        mKeyMap.put(2, new byte[][] {WRONG_KEY, null});
+        WritePlan plan = compile();
+        assertEquals(4, reader.writeWithPlan(plan));
+        assertEquals(2, plan.getFailedSector());
+        assertEquals(-1, plan.getFailedBlock());
+        assertEquals(1, plan.getWrittenBlockCount());
+        assertArrayEquals(mData.get(1).get(0),
+                tag.getBlock(tag.sectorToBlock(1)));
+    }
+
+    @Test
+    public void writeToLostTag() throws Exception {
+        MCSimulatedTag tag = newTag();
+        MCReader reader = newReader(tag);
+        for (int sector = 1; sector < 4; sector++) {
+            addBlock(sector, 0, 1);
+        }
+        WritePlan plan = compile();
+        tag.setRemoveAfter(4);
+        assertEquals(-2, reader.writeWithPlan(plan));
+        assertTrue(plan.getWrittenBlockCount() < 3);
+    }
+
+    /**
+     * Add a block to write. The data is derived from sector and block.
+     */
+    private void addBlock(int sector, int block, int writeInfo) {
+        HashMap<Integer, Integer> blockInfo = mWriteOnPos.get(sector);
+        HashMap<Integer, byte[]> sectorData = mData.get(sector);
+        if (blockInfo == null) {
+            blockInfo = new HashMap<>();
+            sectorData = new HashMap<>();
+            mWriteOnPos.put(sector, blockInfo);
+            mData.put(sector, sectorData);
+            mKeyMap.put(sector, new byte[][] {KEY_A, KEY_B});
+        }
+        blockInfo.put(block, writeInfo);
+        byte[] data = new byte[16];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (sector * 16 + block + i);
+        }
+        sectorData.put(block, data);
+    }
+
+    private WritePlan compile() {
+        return WritePlan.compile(mWriteOnPos, mKeyMap, mData);
+    }
+
+    private void assertTagContainsData(MCSimulatedTag tag) {
+        for (int sector : mData.keySet()) {
+            HashMap<Integer, byte[]> sectorData = mData.get(sector);
+            for (int block : sectorData.keySet()) {
+                assertArrayEquals(sectorData.get(block),
+                        tag.getBlock(tag.sectorToBlock(sector) + block));
+            }
+        }
+    }
+
+    private static MCSimulatedTag newTag() {
+        MCSimulatedTag tag = new MCSimulatedTag(MCSimulatedTag.SIZE_1K,
+                Common.hex2Bytes("01020304"));
+        for (int sector = 0; sector < tag.getSectorCount(); sector++) {
+            tag.setSectorTrailer(sector, KEY_A, AC, KEY_B);
+        }
+        return tag;
+    }
+
+    private static MCReader newReader(MCSimulatedTag tag) throws Exception {
+        MCReader reader = MCReader.get(tag);
+        reader.setConfig(new ReaderConfig(false, false, 0, false, 0));
+        reader.connect();
+        return reader;
+    }
+}